@@ -53,6 +53,55 @@ public interface BasicTerminalIO {
 	 */
 	public int read() throws IOException;
 
+	/**
+	 * Method that reads a whole line of input. If the client is editing lines
+	 * itself (LINEMODE EDIT) the line arrives complete, and is taken in one
+	 * go; otherwise it is read a key at a time, echoed, and backspace and
+	 * delete are handled here.
+	 * <p>
+	 * The default reads a key at a time with {@link #read()}, whatever the
+	 * client is doing.
+	 *
+	 * @return the line, without the line end, or <tt>null</tt> if
+	 *         {@link #read()} gives -1
+	 */
+	public default String readLine() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (;;) {
+			int c = read();
+			switch (c) {
+				case -1:
+					return null;
+				case ENTER:
+				case '\r':
+					write(CRLF);
+					return sb.toString();
+				case 8:
+				case 127:
+				case BACKSPACE:
+				case DELETE:
+					if (sb.length() > 0) {
+						sb.setLength(sb.length() - 1);
+						write("\b \b");
+					}
+					break;
+				case UP:
+				case DOWN:
+				case LEFT:
+				case RIGHT:
+				case TABULATOR:
+				case COLORINIT:
+				case LOGOUTREQUEST:
+					break;
+				default:
+					if (c >= 32) {
+						sb.append((char) c);
+						write((char) c);
+					}
+			}
+		}
+	}//readLine
+
 	/**
 	 * Method that writes a raw byte to the terminal.
 	 * 
@@ -77,6 +126,41 @@ public interface BasicTerminalIO {
 	 */
 	public void write(String str) throws IOException;
 
+	/**
+	 * Method that writes text shared with other connections, rendered once
+	 * for all those with the same terminal and charset. It's flushed as any
+	 * other write would be, but not necessarily before this returns.
+	 * <p>
+	 * The default writes the text as a String.
+	 *
+	 * @param b
+	 *            Broadcast holding the text.
+	 */
+	public default void write(Broadcast b) throws IOException {
+		write(b.getText());
+	}//write(Broadcast)
+
+	/**
+	 * Method that starts a frame, such as one redraw of the screen. Nothing
+	 * is flushed until the matching {@link #endFrame()}, so it goes out in as
+	 * few segments as possible, and output from other threads waits for it.
+	 * Frames can be nested.
+	 * <p>
+	 * The default does nothing, output goes out as it would otherwise.
+	 */
+	public default void beginFrame() throws IOException {
+	}//beginFrame
+
+	/**
+	 * Method that ends a frame started on the same thread by
+	 * {@link #beginFrame()}, and flushes it if it's the outermost one.
+	 * <p>
+	 * The default just flushes.
+	 */
+	public default void endFrame() throws IOException {
+		flush();
+	}//endFrame
+
 	/**
 	 * Method that places the cursor on the terminal on the given absolute
 	 * position.
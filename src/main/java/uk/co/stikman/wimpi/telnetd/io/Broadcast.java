@@ -0,0 +1,86 @@
+package uk.co.stikman.wimpi.telnetd.io;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+
+import uk.co.stikman.wimpi.telnetd.io.terminal.Terminal;
+
+/**
+ * Text to be written to many connections at once. It's formatted by the
+ * terminal, encoded and translated for telnet only once for each different
+ * terminal, charset and mode among them, and the bytes are then shared by
+ * every connection that needs the same ones: each gets a view of them, not a
+ * copy. Write it with {@link BasicTerminalIO#write(Broadcast)}, or to a whole
+ * listener with {@link uk.co.stikman.wimpi.telnetd.net.ConnectionManager#broadcast(String)}.
+ */
+public class Broadcast {
+
+	private static final class Key {
+		final Terminal	terminal;
+		final Charset	charset;
+		final boolean	bold;
+		final boolean	binary;
+
+		Key(Terminal terminal, Charset charset, boolean bold, boolean binary) {
+			this.terminal = terminal;
+			this.charset = charset;
+			this.bold = bold;
+			this.binary = binary;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) o;
+			//terminals are shared instances, see TerminalManager
+			return k.terminal == terminal && k.charset.equals(charset) && k.bold == bold && k.binary == binary;
+		}
+
+		@Override
+		public int hashCode() {
+			return (System.identityHashCode(terminal) * 31 + charset.hashCode()) * 4 + (bold ? 2 : 0) + (binary ? 1 : 0);
+		}
+	}
+
+	private final String							text;
+	private final ConcurrentHashMap<Key, ByteBuffer>	rendered	= new ConcurrentHashMap<>(4);
+
+	public Broadcast(String text) {
+		this.text = text;
+	}//constructor
+
+	public String getText() {
+		return text;
+	}//getText
+
+	/**
+	 * @return how many different renderings have been made
+	 */
+	public int getRenderings() {
+		return rendered.size();
+	}//getRenderings
+
+	/**
+	 * Returns the bytes to send to a connection, rendering them if this is the
+	 * first with its terminal, charset and mode.
+	 *
+	 * @return a view of the shared bytes, which mustn't be changed
+	 */
+	ByteBuffer render(Terminal terminal, Charset charset, boolean bold, boolean binary) {
+		Key key = new Key(terminal, charset, bold, binary);
+		ByteBuffer bb = rendered.get(key);
+		if (bb == null) {
+			String s = bold ? terminal.formatBold(text) : terminal.format(text);
+			bb = ByteBuffer.wrap(TelnetIO.translate(s.getBytes(charset), binary));
+			ByteBuffer prev = rendered.putIfAbsent(key, bb);
+			if (prev != null) {
+				bb = prev;
+			}
+		}
+		return bb.duplicate();
+	}//render
+
+}//class Broadcast
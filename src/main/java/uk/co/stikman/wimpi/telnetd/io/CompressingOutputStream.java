@@ -0,0 +1,139 @@
+package uk.co.stikman.wimpi.telnetd.io;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Deflates everything written to it, for MCCP2 (telnet option 86). Each
+ * {@link #flush()} ends in a sync flush, so the client can show everything it
+ * has been sent so far.
+ * <p>
+ * The dictionary is kept across flushes, which compresses repetitive screen
+ * updates best, unless a reset interval is given. Then the first flush after
+ * that many bytes is a full flush instead, which starts the dictionary again
+ * so a client that gets confused part way only stays confused until the next
+ * reset.
+ * <p>
+ * {@link #finish()} ends the compressed stream and leaves the underlying one
+ * open, for switching compression off; it can be started again by writing
+ * more. Not thread safe.
+ */
+class CompressingOutputStream extends FilterOutputStream {
+
+	private final Deflater	deflater;
+	private final byte[]	buf		= new byte[4096];
+	private final byte[]	one		= new byte[1];
+	private final long		resetBytes;
+	private long			sinceReset;
+	private boolean			dirty;						//written since the last flush
+	private long			bytesIn;
+	private long			bytesOut;
+
+	/**
+	 * @param out
+	 *            where the compressed bytes go
+	 * @param level
+	 *            compression level, 0-9
+	 * @param resetBytes
+	 *            reset the dictionary at the first flush after this many
+	 *            bytes, 0 for never
+	 */
+	CompressingOutputStream(OutputStream out, int level, long resetBytes) {
+		super(out);
+		this.deflater = new Deflater(level);
+		this.resetBytes = resetBytes;
+	}//constructor
+
+	@Override
+	public void write(int b) throws IOException {
+		one[0] = (byte) b;
+		write(one, 0, 1);
+	}//write
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return;
+		}
+		deflater.setInput(b, off, len);
+		while (!deflater.needsInput()) {
+			deflate(Deflater.NO_FLUSH);
+		}
+		bytesIn += len;
+		sinceReset += len;
+		dirty = true;
+	}//write
+
+	private int deflate(int mode) throws IOException {
+		int n = deflater.deflate(buf, 0, buf.length, mode);
+		if (n > 0) {
+			out.write(buf, 0, n);
+			bytesOut += n;
+		}
+		return n;
+	}//deflate
+
+	@Override
+	public void flush() throws IOException {
+		if (dirty) {
+			int mode = Deflater.SYNC_FLUSH;
+			if (resetBytes > 0 && sinceReset >= resetBytes) {
+				mode = Deflater.FULL_FLUSH;
+				sinceReset = 0;
+			}
+			//a full buffer means there may be more to come
+			while (deflate(mode) == buf.length)
+				;
+			dirty = false;
+		}
+		out.flush();
+	}//flush
+
+	/**
+	 * Ends the compressed stream, leaving the underlying stream open.
+	 */
+	public void finish() throws IOException {
+		deflater.finish();
+		while (!deflater.finished()) {
+			deflate(Deflater.NO_FLUSH);
+		}
+		out.flush();
+		deflater.reset();
+		sinceReset = 0;
+		dirty = false;
+	}//finish
+
+	/**
+	 * Frees the compressor, without writing anything.
+	 */
+	public void end() {
+		deflater.end();
+	}//end
+
+	@Override
+	public void close() throws IOException {
+		try {
+			finish();
+		} finally {
+			end();
+			out.close();
+		}
+	}//close
+
+	/**
+	 * @return bytes written to this stream
+	 */
+	public long getBytesIn() {
+		return bytesIn;
+	}
+
+	/**
+	 * @return compressed bytes written to the underlying stream
+	 */
+	public long getBytesOut() {
+		return bytesOut;
+	}
+
+}//class CompressingOutputStream
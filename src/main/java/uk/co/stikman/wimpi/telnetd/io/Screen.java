@@ -0,0 +1,392 @@
+package uk.co.stikman.wimpi.telnetd.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import uk.co.stikman.wimpi.telnetd.io.terminal.CursorMotion;
+import uk.co.stikman.wimpi.telnetd.io.terminal.Terminal;
+
+/**
+ * A virtual screen for a connection, in the manner of curses. It's a grid of
+ * cells, each a char with its colours and style, the size of the terminal.
+ * The application draws into it as it likes and then calls
+ * {@link #refresh()}, which compares it with what the terminal was last sent
+ * and sends only the cells that have changed, all in one frame.
+ * <p>
+ * Rows and columns count from 0. Drawing outside the screen is clipped. If
+ * something else is written to the terminal in between, call
+ * {@link #invalidate()} so the next refresh redraws the lot. A screen is
+ * meant to be drawn on by one thread, as the toolkit is; refreshing takes the
+ * connection's write lock.
+ * <p>
+ * Get the one for a connection with {@link TerminalIO#getScreen()}.
+ */
+public class Screen {
+
+	/**
+	 * Styles, which can be combined
+	 */
+	public static final int		BOLD			= 1;
+	public static final int		UNDERLINED		= 2;
+	public static final int		ITALIC			= 4;
+	public static final int		BLINK			= 8;
+
+	//cell attributes: foreground code in the lowest byte, background code in the next (0 for the default colours), then the styles
+	private static final int	DEFAULT			= 0;
+	private static final int	UNKNOWN			= -1;
+	private static final int[]	STYLES			= { BOLD, UNDERLINED, ITALIC, BLINK };
+	private static final int[]	STYLE_ON		= { TerminalIO.BOLD, TerminalIO.UNDERLINED, TerminalIO.ITALIC, TerminalIO.BLINK };
+	private static final int[]	STYLE_OFF		= { TerminalIO.BOLD_OFF, TerminalIO.UNDERLINED_OFF, TerminalIO.ITALIC_OFF, TerminalIO.BLINK_OFF };
+
+	/**
+	 * Fewer bytes than there are in an erase to end of line, give or take the
+	 * attributes before it
+	 */
+	private static final int	ERASE_COST		= 4;
+
+	private final TerminalIO	io;
+	private int					rows;
+	private int					columns;
+	private char[]				chars;												//the back buffer, drawn into
+	private int[]				attrs;
+	private char[]				frontChars;											//what the terminal shows
+	private int[]				frontAttrs;
+	private volatile boolean	invalid;											//the terminal shows something else, erase it first
+	private int					pen				= DEFAULT;							//attributes drawn with
+	private int					cursorRow		= -1;								//where to leave the cursor, if anywhere
+	private int					cursorCol;
+
+	//during a refresh
+	private ByteBuffer			out				= ByteBuffer.allocate(8192);
+	private int					row;												//where the terminal's cursor is, -1 if not known
+	private int					col;
+	private int					attr;												//the terminal's attributes, or UNKNOWN
+	private Charset				charset;
+	private CharsetEncoder		encoder;
+	private boolean				ascii;												//chars below 128 are bytes as they are
+	private final CharBuffer	one				= CharBuffer.allocate(1);
+	private boolean				sgr;												//the terminal has attributes
+	private CursorMotion		motion;
+	private final CursorMotion.Row	shown;											//what the terminal shows on a row, for moving along it
+	private int					shownRow;
+
+	/**
+	 * Constructs a screen the size of the connection's terminal.
+	 *
+	 * @param io
+	 *            the connection's TerminalIO
+	 */
+	public Screen(TerminalIO io) {
+		this.io = io;
+		setSize(io.getRows(), io.getColumns());
+		shown = new CursorMotion.Row() {
+			@Override
+			public int charAt(int c) {
+				int i = shownRow * columns + c;
+				//written again it must look the same
+				return frontChars[i] < 128 && (!sgr || frontAttrs[i] == attr) ? frontChars[i] : -1;
+			}
+		};
+	}//constructor
+
+	public int getRows() {
+		return rows;
+	}//getRows
+
+	public int getColumns() {
+		return columns;
+	}//getColumns
+
+	/**
+	 * Sets the foreground colour drawn with from now on.
+	 *
+	 * @param c
+	 *            the colour, or <tt>null</tt> for the terminal's default
+	 */
+	public void setForeground(Color c) {
+		pen = (pen & ~0xff) | (c == null ? 0 : c.asForeground());
+	}//setForeground
+
+	/**
+	 * Sets the background colour drawn with from now on.
+	 *
+	 * @param c
+	 *            the colour, or <tt>null</tt> for the terminal's default
+	 */
+	public void setBackground(Color c) {
+		pen = (pen & ~0xff00) | (c == null ? 0 : c.asBackground() << 8);
+	}//setBackground
+
+	/**
+	 * Sets the styles drawn with from now on.
+	 *
+	 * @param style
+	 *            {@link #BOLD}, {@link #UNDERLINED}, {@link #ITALIC} and
+	 *            {@link #BLINK} or'd together, or 0 for none
+	 */
+	public void setStyle(int style) {
+		pen = (pen & 0xffff) | (style & 0xf) << 16;
+	}//setStyle
+
+	/**
+	 * Goes back to drawing in the default colours, with no style.
+	 */
+	public void resetAttributes() {
+		pen = DEFAULT;
+	}//resetAttributes
+
+	/**
+	 * Puts a char in a cell. Control chars, and halves of surrogate pairs,
+	 * which don't take one cell each, are drawn as <tt>?</tt>.
+	 */
+	public void put(int row, int col, char c) {
+		if (row >= 0 && row < rows && col >= 0 && col < columns) {
+			int i = row * columns + col;
+			chars[i] = c < 32 || c == 127 || Character.isSurrogate(c) ? '?' : c;
+			attrs[i] = pen;
+		}
+	}//put
+
+	/**
+	 * Writes a string along a row, from the given column. What doesn't fit is
+	 * left off; it doesn't wrap.
+	 */
+	public void write(int row, int col, String s) {
+		int n = Math.min(s.length(), columns - col);
+		for (int i = Math.max(0, -col); i < n; ++i) {
+			put(row, col + i, s.charAt(i));
+		}
+	}//write
+
+	/**
+	 * Fills a rectangle with a char.
+	 */
+	public void fill(int row, int col, int height, int width, char c) {
+		for (int r = Math.max(row, 0); r < Math.min(row + height, rows); ++r) {
+			for (int k = Math.max(col, 0); k < Math.min(col + width, columns); ++k) {
+				put(r, k, c);
+			}
+		}
+	}//fill
+
+	/**
+	 * Clears the whole screen to blanks in the default colours.
+	 */
+	public void clear() {
+		Arrays.fill(chars, ' ');
+		Arrays.fill(attrs, DEFAULT);
+	}//clear
+
+	public char getChar(int row, int col) {
+		return chars[row * columns + col];
+	}//getChar
+
+	/**
+	 * Sets where the cursor is left after a refresh.
+	 *
+	 * @param row
+	 *            the row, or -1 to leave it wherever the drawing ends
+	 */
+	public void setCursor(int row, int col) {
+		cursorRow = row;
+		cursorCol = col;
+	}//setCursor
+
+	/**
+	 * Makes the next refresh erase the terminal's screen and draw all of this
+	 * one, for when something else has been written to it.
+	 */
+	public void invalidate() {
+		invalid = true;
+	}//invalidate
+
+	/**
+	 * Sends the terminal what has changed since the last refresh, as one
+	 * frame. If the terminal's size has changed, the screen takes the new
+	 * size, keeping what fits, and is drawn again in full.
+	 *
+	 * @return the number of bytes of terminal output it took
+	 */
+	public int refresh() throws IOException {
+		io.beginFrame();
+		try {
+			if (io.getRows() != rows || io.getColumns() != columns) {
+				setSize(io.getRows(), io.getColumns());
+			}
+			Terminal t = io.getTerminal();
+			setCharset(io.getEncoding());
+			out.clear();
+			//other output may have come in between
+			row = -1;
+			attr = UNKNOWN;
+			sgr = t.supportsSGR();
+			motion = io.getCursorMotion();
+			if (invalid) {
+				if (sgr) {
+					setAttributes(t, DEFAULT);
+				}
+				ensure(16);
+				t.appendEraseSequence(out, TerminalIO.EES);
+				Arrays.fill(frontChars, ' ');
+				Arrays.fill(frontAttrs, DEFAULT);
+				invalid = false;
+			}
+			for (int r = 0; r < rows; ++r) {
+				refreshRow(t, r);
+			}
+			if (cursorRow >= 0 && (cursorRow != row || cursorCol != col)) {
+				moveTo(Math.min(cursorRow, rows - 1), Math.min(cursorCol, columns - 1));
+			}
+			io.writeRaw(out.array(), 0, out.position());
+			return out.position();
+		} finally {
+			io.endFrame();
+		}
+	}//refresh
+
+	private void refreshRow(Terminal t, int r) {
+		int base = r * columns;
+		//what's left of the row once it ends in blanks
+		int last = columns - 1;
+		while (last >= 0 && chars[base + last] == ' ' && attrs[base + last] == DEFAULT) {
+			--last;
+		}
+		int tail = 0;
+		for (int c = last + 1; c < columns; ++c) {
+			if (changed(base + c)) {
+				++tail;
+			}
+		}
+		boolean erase = tail > ERASE_COST;
+		int end = erase ? last + 1 : columns;
+		for (int c = 0; c < end; ++c) {
+			int i = base + c;
+			if (!changed(i)) {
+				continue;
+			}
+			moveTo(r, c);
+			if (sgr) {
+				setAttributes(t, attrs[i]);
+			}
+			putChar(chars[i]);
+			frontChars[i] = chars[i];
+			frontAttrs[i] = attrs[i];
+			++col;
+			if (col == columns) {
+				//wrapping, or about to, depending on the terminal
+				row = -1;
+			}
+		}
+		if (erase) {
+			moveTo(r, last + 1);
+			if (sgr) {
+				setAttributes(t, DEFAULT);
+			}
+			ensure(16);
+			t.appendEraseSequence(out, TerminalIO.EEOL);
+			Arrays.fill(frontChars, base + last + 1, base + columns, ' ');
+			Arrays.fill(frontAttrs, base + last + 1, base + columns, DEFAULT);
+		}
+	}//refreshRow
+
+	private boolean changed(int i) {
+		return chars[i] != frontChars[i] || (sgr && attrs[i] != frontAttrs[i]);
+	}//changed
+
+	private void moveTo(int r, int c) {
+		if (row == r && col == c) {
+			return;
+		}
+		ensure(64);
+		shownRow = r;
+		motion.move(out, row, col, r, c, shown);
+		row = r;
+		col = c;
+	}//moveTo
+
+	/**
+	 * Changes the terminal's attributes to the given ones, turning off only
+	 * what needs to be.
+	 */
+	private void setAttributes(Terminal t, int a) {
+		if (a == attr) {
+			return;
+		}
+		ensure(64);
+		if (a == DEFAULT || attr == UNKNOWN) {
+			t.appendGRSequence(out, TerminalIO.STYLE, 0);
+			attr = DEFAULT;
+			if (a == DEFAULT) {
+				return;
+			}
+		}
+		int from = attr >>> 16;
+		int to = a >>> 16;
+		for (int s = 0; s < STYLES.length; ++s) {
+			if ((from & STYLES[s]) != (to & STYLES[s])) {
+				t.appendGRSequence(out, TerminalIO.STYLE, (to & STYLES[s]) != 0 ? STYLE_ON[s] : STYLE_OFF[s]);
+			}
+		}
+		if ((a & 0xff) != (attr & 0xff)) {
+			t.appendGRSequence(out, TerminalIO.FCOLOR, (a & 0xff) == 0 ? 39 : a & 0xff);
+		}
+		if ((a & 0xff00) != (attr & 0xff00)) {
+			t.appendGRSequence(out, TerminalIO.BCOLOR, (a & 0xff00) == 0 ? 49 : (a >> 8) & 0xff);
+		}
+		attr = a;
+	}//setAttributes
+
+	private void putChar(char c) {
+		ensure(16);
+		if (c < 128 && ascii) {
+			out.put((byte) c);
+		} else {
+			one.clear();
+			one.put(c).flip();
+			encoder.reset();
+			encoder.encode(one, out, true);
+			encoder.flush(out);
+		}
+	}//putChar
+
+	private void ensure(int n) {
+		if (out.remaining() < n) {
+			ByteBuffer bb = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + n));
+			out.flip();
+			bb.put(out);
+			out = bb;
+		}
+	}//ensure
+
+	private void setCharset(Charset cs) {
+		if (!cs.equals(charset)) {
+			charset = cs;
+			encoder = cs.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+			ascii = cs.equals(StandardCharsets.UTF_8) || cs.equals(StandardCharsets.ISO_8859_1) || cs.equals(StandardCharsets.US_ASCII);
+		}
+	}//setCharset
+
+	private void setSize(int newRows, int newColumns) {
+		char[] c = new char[newRows * newColumns];
+		int[] a = new int[newRows * newColumns];
+		Arrays.fill(c, ' ');
+		for (int r = 0; r < Math.min(rows, newRows); ++r) {
+			System.arraycopy(chars, r * columns, c, r * newColumns, Math.min(columns, newColumns));
+			System.arraycopy(attrs, r * columns, a, r * newColumns, Math.min(columns, newColumns));
+		}
+		rows = newRows;
+		columns = newColumns;
+		chars = c;
+		attrs = a;
+		frontChars = new char[c.length];
+		frontAttrs = new int[c.length];
+		invalid = true;
+	}//setSize
+
+}//class Screen
@@ -33,14 +33,25 @@
 package uk.co.stikman.wimpi.telnetd.io;
 
 import java.io.BufferedOutputStream;
-import java.io.DataOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -48,6 +59,8 @@ import org.apache.commons.logging.LogFactory;
 import uk.co.stikman.wimpi.telnetd.net.Connection;
 import uk.co.stikman.wimpi.telnetd.net.ConnectionData;
 import uk.co.stikman.wimpi.telnetd.net.ConnectionEvent;
+import uk.co.stikman.wimpi.telnetd.net.ConnectionManager;
+import uk.co.stikman.wimpi.telnetd.net.OutputQueue;
 import uk.co.stikman.wimpi.telnetd.util.LogOutputStream;
 
 /**
@@ -78,43 +91,123 @@ import uk.co.stikman.wimpi.telnetd.util.LogOutputStream;
  */
 public class TelnetIO {
 
+	/**
+	 * Reads the client's bytes a chunk at a time and passes each chunk through
+	 * a {@link TelnetParser}, which hands the data back to be kept in a ring
+	 * buffer for {@link #read()} and {@link #read(byte[], int, int)}, and the
+	 * telnet protocol to the {@link IACHandler}.
+	 */
 	private class IACInputStream extends FilterInputStream {
 
-		protected IACInputStream(InputStream in) {
+		private final byte[]		raw		= new byte[INPUT_CHUNK];		//as read from the socket
+		private final byte[]		data	= new byte[INPUT_CHUNK * 2];	//ring of data ready to read
+		private int					head;
+		private int					count;
+		private final TelnetParser	parser;
+
+		protected IACInputStream(InputStream in, TelnetParser parser) {
 			super(in);
+			this.parser = parser;
 		}
 
 		@Override
 		public int read() throws IOException {
-			int c = super.read();
+			if (!fill())
+				return -1;
+			int b = data[head] & 0xff;
+			head = (head + 1) & (data.length - 1);
+			--count;
+			return b;
+		}
 
-			while (c == 255) {
-				c = super.read();
-				if (c != 255) {
-					iacHandler.handleC(c);
-					c = super.read();
-				} else {
-					break;
+		@Override
+		public int read(byte[] buffer, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (!fill())
+				return -1;
+			int n = Math.min(len, count);
+			int first = Math.min(n, data.length - head);
+			System.arraycopy(data, head, buffer, off, first);
+			System.arraycopy(data, 0, buffer, off + first, n - first);
+			head = (head + n) & (data.length - 1);
+			count -= n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return count;
+		}
+
+		/**
+		 * Blocks until there's data ready, handling any telnet commands that
+		 * arrive meanwhile. Only reads when the ring is empty, so a chunk's
+		 * data always fits.
+		 *
+		 * @return <tt>false</tt> if the stream ended first
+		 */
+		private boolean fill() throws IOException {
+			while (count == 0) {
+				int n = in.read(raw, 0, raw.length);
+				if (n < 0)
+					return false;
+				connectionData.activity();
+				//replies to negotiation are output like any other
+				writeLock.lock();
+				try {
+					parser.parse(raw, 0, n);
+				} finally {
+					writeLock.unlock();
 				}
 			}
-			return stripCRSeq(c);
+			return true;
+		}
+
+		private void put(byte[] b, int off, int len) {
+			int tail = (head + count) & (data.length - 1);
+			int first = Math.min(len, data.length - tail);
+			System.arraycopy(b, off, data, tail, first);
+			System.arraycopy(b, off + first, data, 0, len - first);
+			count += len;
+		}
+
+	}
+
+	/**
+	 * A buffered stream that can say how much it's holding.
+	 */
+	private static class OutputBuffer extends BufferedOutputStream {
+
+		OutputBuffer(OutputStream out) {
+			super(out);
+		}
+
+		int pending() {
+			return count;
+		}
+
+	}
+
+	/**
+	 * Counts the writes made to the transport, and the bytes in them.
+	 */
+	private class SegmentCounter extends FilterOutputStream {
+
+		SegmentCounter(OutputStream out) {
+			super(out);
 		}
 
 		@Override
-		public int read(byte[] buffer, int off, int len) throws IOException {
-			// TODO: more sane implementation of this
-			int cnt = 0;
-			while (len > 0) {
-				if (cnt > 0 && available() == 0)
-					return cnt;
-				int n = (byte) read();
-				if (n == -1)
-					throw new IOException("End of Stream");
-				buffer[off++] = (byte) n;
-				++cnt;
-				--len;
-			}
-			return cnt;
+		public void write(int b) throws IOException {
+			out.write(b);
+			connectionData.countSegment(1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			connectionData.countSegment(len);
 		}
 
 	}
@@ -122,8 +215,13 @@ public class TelnetIO {
 	private static Log			log			= LogFactory.getLog(TelnetIO.class);
 
 	private Connection			connection;										//a reference to the connection this instance works for
+	private final ReentrantLock	writeLock	= new ReentrantLock();				//guards all output, see getWriteLock()
 	private ConnectionData		connectionData;									//holds all important information of the connection
-	private DataOutputStream	out;											//the byte oriented outputstream
+	private OutputBuffer			out;										//the byte oriented outputstream
+	private OutputBuffer			plainOut;									//straight to the socket
+	private OutputBuffer			compressedOut;								//through the compressor, once MCCP2 is on
+	private OutputStream			sink;										//the transport's, counted
+	private CompressingOutputStream	compressor;
 	private IACInputStream		in;
 
 	//Aggregations
@@ -133,8 +231,27 @@ public class TelnetIO {
 	private InetAddress			localAddress;									//address of the host the telnetd is running on
 
 	private boolean				crFlag;
+	private boolean				binaryOutput;									//RFC 856, nothing translated but IAC
 
 	private Charset				encoding	= StandardCharsets.UTF_8;
+	private CharsetEncoder		encoder		= newEncoder(encoding);
+
+	//reused for every write of chars, so they allocate nothing
+	private final char[]		chars		= new char[CHUNK];
+	private final CharBuffer	charBuffer	= CharBuffer.wrap(chars);
+	private final ByteBuffer	encoded		= ByteBuffer.allocate(CHUNK * 4);
+
+	private static final int	CHUNK		= 1024;											//chars encoded at a time
+	private static final int	INPUT_CHUNK	= 4096;											//bytes read at a time, a power of two
+	private static final VarHandle	LONGS	= MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+	private static final byte[]	EOT			= { 4 };
+
+	private static final byte[]	SPECIAL		= new byte[256];								//output bytes that need translating
+	static {
+		SPECIAL[13] = 1;
+		SPECIAL[10] = 1;
+		SPECIAL[255] = 1;
+	}
 
 	/**
 	 * Creates a TelnetIO object for the given connection.<br>
@@ -149,16 +266,36 @@ public class TelnetIO {
 		iacHandler = new IACHandler();
 		//we setup underlying byte oriented streams
 		//		in = new DataInputStream(connectionData.getSocket().getInputStream());
-		out = new DataOutputStream(new BufferedOutputStream(connectionData.getSocket().getOutputStream()));
-		in = new IACInputStream(connectionData.getSocket().getInputStream());
+		sink = new SegmentCounter(connectionData.getTransport().getOutputStream());
+		plainOut = new OutputBuffer(sink);
+		out = plainOut;
+		in = new IACInputStream(connectionData.getTransport().getInputStream(), new TelnetParser(iacHandler));
 
 		//we save the local address (necessary?)
 		localAddress = connectionData.getSocket().getLocalAddress();
 		crFlag = false;
 		//bootstrap telnet communication
-		initTelnetCommunication();
+		writeLock.lock();
+		try {
+			initTelnetCommunication();
+		} finally {
+			writeLock.unlock();
+		}
 	}//initIO
 
+	/**
+	 * Returns the lock that guards output. Nothing here takes it for the
+	 * writing methods, whoever calls them has to hold it, as
+	 * {@link TerminalIO} does, but it's taken while what's read is parsed,
+	 * since replies to the client's negotiation are written then, and by the
+	 * methods that negotiate something themselves. So a reply never lands in
+	 * the middle of an escape sequence, and nothing is written while the
+	 * output is switching to compressed or binary.
+	 */
+	ReentrantLock getWriteLock() {
+		return writeLock;
+	}//getWriteLock
+
 	public void setConnection(Connection con) {
 		connection = con;
 		connectionData = connection.getConnectionData();
@@ -170,7 +307,8 @@ public class TelnetIO {
 
 	/**
 	 * Method to output a byte. Ensures that CR(\r) is never send alone,but
-	 * CRLF(\r\n), which is a rule of the telnet protocol.
+	 * CRLF(\r\n), which is a rule of the telnet protocol, and that a data byte
+	 * of 255 is sent as IAC IAC so the client doesn't take it for a command.
 	 * <p>
 	 * Note that this is safe for UTF-8 encodings, because multibyte sequences
 	 * are only ever bytes >= 0x7f
@@ -179,7 +317,13 @@ public class TelnetIO {
 	 *            Byte to be written.
 	 */
 	public void write(byte b) throws IOException {
-		//try {
+		if (binaryOutput) {
+			out.write(b);
+			if (b == (byte) IAC) {
+				out.write(b);
+			}
+			return;
+		}
 		//ensure CRLF(\r\n) is written for LF(\n) to adhere
 		//to the telnet protocol.
 		if (!crFlag && b == 10) {
@@ -192,17 +336,11 @@ public class TelnetIO {
 		}
 
 		out.write(b);
-
-		if (b == 13) {
-			crFlag = true;
-		} else {
-			crFlag = false;
+		if (b == (byte) IAC) {
+			out.write(b);
 		}
-		//} catch (IOException e) {
-		//  if (m_Connection.isActive()) {
-		//    m_ConnectionData.getManager().registerBrokenConnection(m_Connection);
-		//  }
-		//}
+
+		crFlag = b == 13;
 	}//write(byte)
 
 	/**
@@ -222,11 +360,157 @@ public class TelnetIO {
 	 *            byte[] to be written.
 	 */
 	public void write(byte[] sequence) throws IOException {
-		for (int z = 0; z < sequence.length; z++) {
-			write(sequence[z]);
-		}
+		write(sequence, 0, sequence.length);
 	}//write(byte[])
 
+	/**
+	 * Writes part of an array of bytes, translated in the same way as
+	 * {@link #write(byte)}. Runs of bytes that need no translation are passed
+	 * on in one go.
+	 *
+	 * @param b
+	 *            the bytes
+	 * @param off
+	 *            where to start
+	 * @param len
+	 *            how many to write
+	 */
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (binaryOutput) {
+			writeBinary(b, off, len);
+			return;
+		}
+		int end = off + len;
+		int i = off;
+		if (crFlag && i < end) {
+			//the last write ended with a CR
+			if (b[i] == 10) {
+				++i;
+			}
+			out.write(10);
+			crFlag = false;
+		}
+		int run = i;
+		while (i < end) {
+			int c = b[i] & 0xff;
+			if (SPECIAL[c] == 0) {
+				++i;
+				continue;
+			}
+			out.write(b, run, i - run);
+			++i;
+			if (c == 13) {
+				out.write(13);
+				if (i == end) {
+					crFlag = true;
+				} else {
+					if (b[i] == 10) {
+						++i;
+					}
+					out.write(10);
+				}
+			} else if (c == 10) {
+				out.write(13);
+				out.write(10);
+			} else {
+				out.write(IAC);
+				out.write(IAC);
+			}
+			run = i;
+		}
+		out.write(b, run, end - run);
+	}//write(byte[],int,int)
+
+	/**
+	 * Writes bytes with nothing translated but IAC, for binary transmission.
+	 */
+	private void writeBinary(byte[] b, int off, int len) throws IOException {
+		int end = off + len;
+		int run = off;
+		while (run < end) {
+			int i = indexOfIAC(b, run, end);
+			if (i == end) {
+				out.write(b, run, end - run);
+				break;
+			}
+			//the IAC goes out with the run, then again to double it
+			out.write(b, run, i + 1 - run);
+			out.write(IAC);
+			run = i + 1;
+		}
+	}//writeBinary
+
+	/**
+	 * Finds the first IAC, eight bytes at a time: a byte of 0xff is a zero byte
+	 * in the complement, and the usual test for a zero byte in a word finds
+	 * the lowest one exactly.
+	 *
+	 * @return the index of the first IAC in <tt>b[from, to)</tt>, or
+	 *         <tt>to</tt> if there isn't one
+	 */
+	static int indexOfIAC(byte[] b, int from, int to) {
+		int i = from;
+		for (; i + 8 <= to; i += 8) {
+			long w = ~(long) LONGS.get(b, i);
+			long z = (w - 0x0101010101010101L) & ~w & 0x8080808080808080L;
+			if (z != 0) {
+				return i + (Long.numberOfTrailingZeros(z) >>> 3);
+			}
+		}
+		for (; i < to; ++i) {
+			if (b[i] == (byte) IAC) {
+				return i;
+			}
+		}
+		return to;
+	}//indexOfIAC
+
+	/**
+	 * Translates bytes as {@link #write(byte[], int, int)} would, or
+	 * {@link #writeBinary(byte[], int, int)} if <tt>binary</tt>, into a new
+	 * array, for output that's the same for many connections. A CR at the end
+	 * gets its LF.
+	 */
+	static byte[] translate(byte[] b, boolean binary) {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(b.length + 16);
+		for (int i = 0; i < b.length; ++i) {
+			int c = b[i] & 0xff;
+			if (c == IAC) {
+				bos.write(IAC);
+				bos.write(IAC);
+			} else if (binary || (c != 13 && c != 10)) {
+				bos.write(c);
+			} else {
+				if (c == 13 && i + 1 < b.length && b[i + 1] == 10) {
+					++i;
+				}
+				bos.write(13);
+				bos.write(10);
+			}
+		}
+		return bos.toByteArray();
+	}//translate
+
+	/**
+	 * Writes bytes from {@link #translate(byte[], boolean)}. With an
+	 * {@link OutputQueue} they go into it as a frame of their own, without
+	 * being copied, unless output is being compressed.
+	 */
+	void writeTranslated(ByteBuffer bb) throws IOException {
+		if (crFlag) {
+			out.write(10);
+			crFlag = false;
+		}
+		OutputQueue queue = connectionData.getOutputQueue();
+		if (queue != null && out == plainOut) {
+			plainOut.flush();
+			connectionData.countSegment(bb.remaining());
+			queue.write(bb);
+		} else {
+			out.write(bb.array(), bb.arrayOffset() + bb.position(), bb.remaining());
+		}
+	}//writeTranslated
+
 	/**
 	 * Method to output an array of int' s.
 	 *
@@ -246,7 +530,11 @@ public class TelnetIO {
 	 *            char to be written.
 	 */
 	public void write(char ch) throws IOException {
-		write(Character.toString(ch).getBytes(encoding));
+		encoder.reset();
+		charBuffer.clear();
+		charBuffer.put(ch);
+		encodeChars(true);
+		flushEncoder();
 	}//write(char)
 
 	/**
@@ -256,15 +544,86 @@ public class TelnetIO {
 	 *            String to be written.
 	 */
 	public void write(String str) throws IOException {
-		write(str.getBytes(encoding));
+		write(str, 0, str.length());
 	}//write(String)
 
+	/**
+	 * Writes part of a string. The chars are encoded a chunk at a time into a
+	 * buffer kept for the purpose, and the bytes then written as by
+	 * {@link #write(byte[], int, int)}.
+	 *
+	 * @param str
+	 *            the string
+	 * @param off
+	 *            index of the first char to write
+	 * @param len
+	 *            number of chars to write
+	 */
+	public void write(String str, int off, int len) throws IOException {
+		encoder.reset();
+		charBuffer.clear();
+		int end = off + len;
+		do {
+			int n = Math.min(end - off, charBuffer.remaining());
+			str.getChars(off, off + n, chars, charBuffer.position());
+			charBuffer.position(charBuffer.position() + n);
+			off += n;
+			encodeChars(off >= end);
+		} while (off < end);
+		flushEncoder();
+	}//write(String,int,int)
+
+	/**
+	 * Encodes what's in the char buffer, leaving any chars the encoder
+	 * couldn't take yet (half a surrogate pair) at its start.
+	 */
+	private void encodeChars(boolean endOfInput) throws IOException {
+		charBuffer.flip();
+		CoderResult cr;
+		do {
+			cr = encoder.encode(charBuffer, encoded, endOfInput);
+			writeEncoded();
+		} while (cr.isOverflow());
+		charBuffer.compact();
+	}//encodeChars
+
+	private void flushEncoder() throws IOException {
+		while (encoder.flush(encoded).isOverflow()) {
+			writeEncoded();
+		}
+		writeEncoded();
+	}//flushEncoder
+
+	private void writeEncoded() throws IOException {
+		encoded.flip();
+		write(encoded.array(), encoded.arrayOffset() + encoded.position(), encoded.remaining());
+		encoded.clear();
+	}//writeEncoded
+
+	private static CharsetEncoder newEncoder(Charset cs) {
+		//replace what can't be encoded, as String.getBytes() does
+		return cs.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}//newEncoder
+
+	/**
+	 * @return how many bytes are waiting to be flushed
+	 */
+	public int getPendingOutput() {
+		return out.pending();
+	}//getPendingOutput
+
 	/**
 	 * Method to flush all buffered output.
 	 */
 	public void flush() throws IOException {
 		//try {
+		if (out.pending() > 0) {
+			connectionData.countFlush();
+		}
 		out.flush();
+		if (out == compressedOut) {
+			connectionData.setCompressionCounts(compressor.getBytesIn(), compressor.getBytesOut());
+		}
 		//} catch (IOException e) {
 		//  if (m_Connection.isActive()) {
 		//    m_ConnectionData.getManager().registerBrokenConnection(m_Connection);
@@ -279,18 +638,23 @@ public class TelnetIO {
 	 * connections that ended or died.
 	 */
 	public void closeOutput() {
-
+		writeLock.lock();
 		try {
 			//sends telnetprotocol logout acknowledgement
-			write(IAC);
-			write(DO);
-			write(LOGOUT);
+			rawWrite(IAC);
+			rawWrite(DO);
+			rawWrite(LOGOUT);
 			//and now close underlying outputstream
 
 			out.close();
 		} catch (IOException ex) {
 			log.error("closeOutput()", ex);
 			//handle?
+		} finally {
+			if (compressor != null) {
+				compressor.end();
+			}
+			writeLock.unlock();
 		}
 	}//close
 
@@ -304,12 +668,23 @@ public class TelnetIO {
 		//}
 	}//rawWrite
 
+	/**
+	 * Writes a byte inside a subnegotiation, doubling it if it's IAC.
+	 */
+	private void rawWriteEscaped(int i) throws IOException {
+		out.write(i);
+		if (i == IAC) {
+			out.write(i);
+		}
+	}//rawWriteEscaped
+
 	public Charset getEncoding() {
 		return encoding;
 	}
 
 	public void setEncoding(Charset encoding) {
 		this.encoding = encoding;
+		this.encoder = newEncoder(encoding);
 	}
 
 	/****
@@ -327,11 +702,27 @@ public class TelnetIO {
 	 * @return int read from stream.
 	 */
 	public int read() throws IOException {
-		int n = in.read();
+		return in.read();
+	}//read
 
-		return n;
+	/**
+	 * Reads as much data as has arrived, up to <tt>len</tt> bytes, blocking
+	 * only if there's none at all. Telnet commands are handled on the way, as
+	 * for {@link #read()}.
+	 *
+	 * @return the number of bytes read, or -1 at the end of the stream
+	 */
+	public int read(byte[] b, int off, int len) throws IOException {
+		return in.read(b, off, len);
 	}//read
 
+	/**
+	 * @return number of bytes that can be read without blocking
+	 */
+	public int available() {
+		return in.available();
+	}//available
+
 	/**
 	 * Method to close the underlying inputstream to free system resources.<br>
 	 * Most likely only to be called by the ConnectionManager upon clean up of
@@ -345,76 +736,6 @@ public class TelnetIO {
 		}
 	}//closeInput
 
-	/**
-	 * This method reads an unsigned 16bit Integer from the stream, its here for
-	 * getting the NAWS Data Values for height and width.
-	 */
-	private int read16int() throws IOException {
-		int ch1 = in.read();
-		int ch2 = in.read();
-		if ((ch1 | ch2) < 0)
-			throw new EOFException();
-		return (ch1 << 8) + (ch2 << 0);
-
-		//try {
-		//		int c = in.readUnsignedShort();
-		//		return c;
-		/*
-		 * } catch (EOFException e) { if (m_Connection.isActive()) {
-		 * m_ConnectionData.getManager().registerBrokenConnection(m_Connection);
-		 * } //for the sanity of the compiler we return something return -2; }
-		 * catch (IOException e) { if (m_Connection.isActive()) {
-		 * m_ConnectionData.getManager().registerBrokenConnection(m_Connection);
-		 * } //for the sanity of the compiler we return something return -1; }
-		 */
-	}//read16int
-
-	/**
-	 * Method to read a raw byte from the InputStream.<br>
-	 * Telnet protocol layer communication is filtered and processed here.
-	 *
-	 * @return int read from stream.
-	 */
-	private int rawread() throws IOException {
-		int b = in.read();
-		if (b < 0)
-			throw new EOFException();
-		connectionData.activity();
-		return b;
-
-		/*
-		 * } catch (EOFException e) { //this means the stream came to an end we
-		 * can let the //ConnectionManager do his job. if
-		 * (m_Connection.isActive()) {
-		 * //log.debug("Registering broken connection " +
-		 * m_Connection.toString() + " active=" + m_Connection.isActive());
-		 * m_ConnectionData.getManager().registerBrokenConnection(m_Connection);
-		 * } //for the sanity of the compiler we return something return -1; }
-		 * catch (IOException e) { //this also means that the stream is buggy or
-		 * something //going wrong. By definition we react the same as in above
-		 * case if (!m_Initializing && m_Connection.isActive()) {
-		 * //log.debug("Registering broken connection " + //
-		 * m_Connection.toString() + " active=" + m_Connection.isActive() + //
-		 * " initializing=" + m_Initializing);
-		 * 
-		 * m_ConnectionData.getManager().registerBrokenConnection(m_Connection);
-		 * } //for the sanity of the compiler we return something return -1; }
-		 */
-	}//rawread
-
-	/**
-	 * Checks for the telnet protocol specified CR followed by NULL or LF<BR>
-	 * Subsequently reads for the next byte and forwards only a ENTER
-	 * represented by LF internally.
-	 */
-	private int stripCRSeq(int input) throws IOException {
-		if (input == 13) {
-			rawread();
-			return 10;
-		}
-		return input;
-	}//stripCRSeq
-
 	/****
 	 * Implementation of InputStream
 	 ****************************************************/
@@ -439,8 +760,9 @@ public class TelnetIO {
 				log.debug("Character mode initialized.");
 			}
 			//open for a defined timeout so we read incoming negotiation
-			connectionData.getSocket().setSoTimeout(1000);
-			read();
+			connectionData.getTransport().setReadTimeout(connectionData.getManager().getNegotiationTimeout());
+			//anything the client types meanwhile stays in the buffer
+			in.fill();
 
 		} catch (Exception e) {
 			//handle properly
@@ -448,7 +770,7 @@ public class TelnetIO {
 		} finally {
 			//this is important, dont ask me why :)
 			try {
-				connectionData.getSocket().setSoTimeout(0);
+				connectionData.getTransport().setReadTimeout(0);
 			} catch (Exception ex) {
 				log.error("initTelnetCommunication()", ex);
 			}
@@ -500,6 +822,101 @@ public class TelnetIO {
 	public void setEcho(boolean b) {
 	}//setEcho
 
+	/**
+	 * Method that switches MCCP2 compression on, once the client has agreed.
+	 * Everything after the IAC SB COMPRESS2 IAC SE marker is compressed.
+	 */
+	private void startCompression() throws IOException {
+		OutputQueue queue = connectionData.getOutputQueue();
+		if (queue != null) {
+			//a dropped frame would corrupt everything after it
+			queue.setLossless(true);
+		}
+		rawWrite(IAC);
+		rawWrite(SB);
+		rawWrite(COMPRESS2);
+		rawWrite(IAC);
+		rawWrite(SE);
+		out.flush();
+		if (compressor == null) {
+			compressor = new CompressingOutputStream(sink, connectionData.getCompressionLevel(), connectionData.getCompressionReset());
+			compressedOut = new OutputBuffer(compressor);
+		}
+		out = compressedOut;
+		connectionData.setCompressing(true);
+		log.debug("startCompression()::level " + connectionData.getCompressionLevel());
+	}//startCompression
+
+	/**
+	 * Sets the characters that make a client editing lines itself (LINEMODE
+	 * EDIT) send what it has straight away, as well as at the end of the line.
+	 * Sent when LINEMODE is agreed, or now if it already has been.
+	 *
+	 * @param mask
+	 *            32 bytes, a bit for each character with the high bit of the
+	 *            first byte for 0, or <tt>null</tt> for none
+	 */
+	public void setForwardMask(byte[] mask) throws IOException {
+		if (mask != null && mask.length != 32) {
+			throw new IllegalArgumentException("Forward mask must be 32 bytes");
+		}
+		writeLock.lock();
+		try {
+			iacHandler.setForwardMask(mask);
+		} finally {
+			writeLock.unlock();
+		}
+	}//setForwardMask
+
+	/**
+	 * Asks the client to switch binary transmission (RFC 856) on or off, in
+	 * both directions. Each direction changes when the client agrees, see
+	 * {@link ConnectionData#isBinaryInput()} and
+	 * {@link ConnectionData#isBinaryOutput()}. Does nothing if binary is off
+	 * for the listener.
+	 */
+	public void requestBinary(boolean on) throws IOException {
+		writeLock.lock();
+		try {
+			iacHandler.requestBinary(on);
+		} finally {
+			writeLock.unlock();
+		}
+	}//requestBinary
+
+	private void setBinaryOutput(boolean b) throws IOException {
+		if (b && crFlag) {
+			//finish the line end that was started
+			out.write(10);
+			crFlag = false;
+		}
+		binaryOutput = b;
+		connectionData.setBinaryOutput(b);
+	}//setBinaryOutput
+
+	private void setBinaryInput(boolean b) {
+		in.parser.setBinary(b);
+		connectionData.setBinaryInput(b);
+	}//setBinaryInput
+
+	/**
+	 * Method that ends the compressed stream, going back to plain output.
+	 */
+	private void stopCompression() throws IOException {
+		if (out == compressedOut) {
+			out.flush();
+			compressor.finish();
+			out = plainOut;
+			OutputQueue queue = connectionData.getOutputQueue();
+			if (queue != null) {
+				queue.flush();
+				queue.setLossless(false);
+			}
+			connectionData.setCompressionCounts(compressor.getBytesIn(), compressor.getBytesOut());
+			connectionData.setCompressing(false);
+		}
+	}//stopCompression
+
 	/****
 	 * End telnet protocol level communication methods
 	 *******************************/
@@ -561,13 +978,7 @@ public class TelnetIO {
 	 *          selecting from it...
 	 *          </UL>
 	 */
-	class IACHandler {
-
-		/**
-		 * Telnet readin buffer Here its implemented guys. Open your eyes upon
-		 * this solution. The others take a one byte solution :)
-		 */
-		private int[]	buffer							= new int[2];
+	class IACHandler implements TelnetParser.Handler {
 
 		/**
 		 * DO_ECHO or not
@@ -599,6 +1010,11 @@ public class TelnetIO {
 		 */
 		private boolean	DO_NEWENV						= false;
 
+		/**
+		 * DO_COMPRESS2 or not
+		 */
+		private boolean	DO_COMPRESS2					= false;
+
 		/**
 		 * Are we waiting for a DO reply?
 		 */
@@ -609,6 +1025,7 @@ public class TelnetIO {
 		private boolean	WAIT_DO_REPLY_LINEMODE			= false;
 		private boolean	WAIT_LM_MODE_ACK				= false;
 		private boolean	WAIT_LM_DO_REPLY_FORWARDMASK	= false;
+		private boolean	FORWARDMASK_ACTIVE				= false;
 		private boolean	WAIT_DO_REPLY_NEWENV			= false;
 		private boolean	WAIT_NE_SEND_REPLY				= false;
 
@@ -619,6 +1036,18 @@ public class TelnetIO {
 		private boolean	WAIT_WILL_REPLY_ECHO			= false;
 		private boolean	WAIT_WILL_REPLY_NAWS			= false;
 		private boolean	WAIT_WILL_REPLY_TTYPE			= false;
+		private boolean	WAIT_WILL_REPLY_COMPRESS2		= false;
+		private boolean	WAIT_WILL_REPLY_BINARY			= false;
+		private boolean	WAIT_DO_REPLY_BINARY			= false;
+
+		/**
+		 * LINEMODE state: the MODE agreed, the SLC table, and the forward mask
+		 */
+		private int				lineModeMask;
+		private final byte[]	slcFlags	= SLC_DEFAULT_FLAGS.clone();
+		private final byte[]	slcValues	= SLC_DEFAULT_VALUES.clone();
+		private final byte[]	slcReply	= new byte[(LM_SLC_MAX + 1) * 3];
+		private byte[]			forwardMask;
 
 		public void doCharacterModeInit() throws IOException {
 			sendCommand(WILL, ECHO, true);
@@ -628,6 +1057,10 @@ public class TelnetIO {
 			sendCommand(DO, SUPGA, true);
 			sendCommand(DO, TTYPE, true);
 			sendCommand(DO, NEWENV, true); //environment variables
+			offerCompression();
+			if (connectionData.getBinaryMode() == ConnectionManager.BINARY_REQUEST) {
+				requestBinary(true);
+			}
 		}//doCharacterModeInit
 
 		public void doLineModeInit() throws IOException {
@@ -637,474 +1070,456 @@ public class TelnetIO {
 			sendCommand(DO, TTYPE, true);
 			sendCommand(DO, LINEMODE, true);
 			sendCommand(DO, NEWENV, true);
+			offerCompression();
+			if (connectionData.getBinaryMode() == ConnectionManager.BINARY_REQUEST) {
+				requestBinary(true);
+			}
 		}//doLineModeInit
 
-		/**
-		 * Method to handle a IAC that came in over the line.
-		 *
-		 * @param i
-		 *            (int)ed byte that followed the IAC
-		 */
-		public void handleC(int i) throws IOException {
-			buffer[0] = i;
-			if (!parseTWO(buffer)) {
-				buffer[1] = rawread();
-				parse(buffer);
+		private void offerCompression() throws IOException {
+			if (supported(COMPRESS2)) {
+				sendCommand(WILL, COMPRESS2, true);
 			}
-			buffer[0] = 0;
-			buffer[1] = 0;
-		}//handleC
+		}//offerCompression
+
+		@Override
+		public void data(byte[] b, int off, int len) {
+			in.put(b, off, len);
+		}//data
 
 		/**
-		 * Method that parses for options with two characters.
+		 * Method that handles a two byte command that came in over the line.
 		 *
-		 * @param buf
-		 *            int [] that represents the first byte that followed the
-		 *            IAC first.
-		 * @return true when it was a two byte command (IAC OPTIONBYTE)
+		 * @param c
+		 *            the byte that followed the IAC
 		 */
-		private boolean parseTWO(int[] buf) {
-			switch (buf[0]) {
-				case IAC:
-					//doubled IAC to escape 255 is handled within the
-					//read method.
-					break;
+		@Override
+		public void command(int c) {
+			switch (c) {
 				case AYT:
 					IamHere();
 					break;
-				case AO:
+				case BRK:
 				case IP:
+				case ABORT:
+					//signals trapped by a client in LINEMODE
+					nvtBreak();
+					break;
+				case EOF:
+					//as if it had been typed, ^D is a logout request
+					in.put(EOT, 0, 1);
+					break;
+				case DM: //How do I implement a SYNCH signal?
+				case AO:
+				case SUSP:
 				case EL:
 				case EC:
 				case NOP:
-					break;
-				case BRK:
-					nvtBreak();
-					break;
 				default:
-					return false;
+					break;
 			}
-			return true;
-		}//parseTWO
+		}//command
 
 		/**
-		 * Method that parses further on for options.
+		 * Method that handles an option negotiation.
 		 *
-		 * @param buf
-		 *            that represents the first two bytes that followed the IAC.
+		 * @param verb
+		 *            WILL, WONT, DO or DONT
+		 * @param option
+		 *            the option
 		 */
-		private void parse(int[] buf) throws IOException {
-			switch (buf[0]) {
-				/* First switch on the Negotiation Option */
+		@Override
+		public void option(int verb, int option) throws IOException {
+			if (option == BINARY) {
+				negotiateBinary(verb);
+				return;
+			}
+			switch (verb) {
 				case WILL:
-					if (supported(buf[1]) && isEnabled(buf[1])) {
+					if (supported(option) && isEnabled(option)) {
 						;// do nothing
 					} else {
-						if (waitDOreply(buf[1]) && supported(buf[1])) {
-							enable(buf[1]);
-							setWait(DO, buf[1], false);
+						if (waitDOreply(option) && supported(option)) {
+							enable(option);
+							setWait(DO, option, false);
 						} else {
-							if (supported(buf[1])) {
-								sendCommand(DO, buf[1], false);
-								enable(buf[1]);
+							if (supported(option)) {
+								sendCommand(DO, option, false);
+								enable(option);
 							} else {
-								sendCommand(DONT, buf[1], false);
+								sendCommand(DONT, option, false);
 							}
 						}
 					}
 					break;
 				case WONT:
-					if (waitDOreply(buf[1]) && supported(buf[1])) {
-						setWait(DO, buf[1], false);
+					if (waitDOreply(option) && supported(option)) {
+						setWait(DO, option, false);
 					} else {
-						if (supported(buf[1]) && isEnabled(buf[1])) {
+						if (supported(option) && isEnabled(option)) {
 							// eanable() Method disables an Option that is already enabled
-							enable(buf[1]);
+							enable(option);
 						}
 					}
 					break;
 				case DO:
-					if (supported(buf[1]) && isEnabled(buf[1])) {
+					if (supported(option) && isEnabled(option)) {
 						; // do nothing
 					} else {
-						if (waitWILLreply(buf[1]) && supported(buf[1])) {
-							enable(buf[1]);
-							setWait(WILL, buf[1], false);
+						if (waitWILLreply(option) && supported(option)) {
+							enable(option);
+							setWait(WILL, option, false);
 						} else {
-							if (supported(buf[1])) {
-								sendCommand(WILL, buf[1], false);
-								enable(buf[1]);
+							if (supported(option)) {
+								sendCommand(WILL, option, false);
+								enable(option);
 							} else {
-								sendCommand(WONT, buf[1], false);
+								sendCommand(WONT, option, false);
 							}
 						}
 					}
 					break;
 				case DONT:
-					if (waitWILLreply(buf[1]) && supported(buf[1])) {
-						setWait(WILL, buf[1], false);
+					if (waitWILLreply(option) && supported(option)) {
+						setWait(WILL, option, false);
 					} else {
-						if (supported(buf[1]) && isEnabled(buf[1])) {
+						if (supported(option) && isEnabled(option)) {
 							// enable() Method disables an Option that is already enabled
-							enable(buf[1]);
+							enable(option);
 						}
 					}
 					break;
 
-				/* Now about other two byte IACs */
-				case DM: //How do I implement a SYNCH signal?
+				default:
+					;
+			}//switch
+		}//option
+
+		/**
+		 * Method that handles negotiation of BINARY, which unlike the other
+		 * options is on or off separately in each direction: WILL and WONT are
+		 * about what the client sends, DO and DONT about what we send. A
+		 * request is only answered if it changes something, so the two ends
+		 * can't go back and forth forever.
+		 */
+		private void negotiateBinary(int verb) throws IOException {
+			boolean asked;
+			switch (verb) {
+				case WILL:
+					asked = waitDOreply(BINARY);
+					setWait(DO, BINARY, false);
+					if (!supported(BINARY)) {
+						sendCommand(DONT, BINARY, false);
+					} else if (!connectionData.isBinaryInput()) {
+						if (!asked) {
+							sendCommand(DO, BINARY, false);
+						}
+						setBinaryInput(true);
+					}
 					break;
-				case SB: //handle subnegotiations
-					if ((supported(buf[1])) && (isEnabled(buf[1]))) {
-						switch (buf[1]) {
-							case NAWS:
-								handleNAWS();
-								break;
-							case TTYPE:
-								handleTTYPE();
-								break;
-							case LINEMODE:
-								handleLINEMODE();
-								break;
-							case NEWENV:
-								handleNEWENV();
-								break;
-							default:
-								;
+				case WONT:
+					asked = waitDOreply(BINARY);
+					setWait(DO, BINARY, false);
+					if (connectionData.isBinaryInput()) {
+						if (!asked) {
+							sendCommand(DONT, BINARY, false);
 						}
-					} else {
-						//do nothing
+						setBinaryInput(false);
 					}
 					break;
-				default:
-					;
-			}//switch
-		}//parse
+				case DO:
+					asked = waitWILLreply(BINARY);
+					setWait(WILL, BINARY, false);
+					if (!supported(BINARY)) {
+						sendCommand(WONT, BINARY, false);
+					} else if (!connectionData.isBinaryOutput()) {
+						if (!asked) {
+							sendCommand(WILL, BINARY, false);
+						}
+						setBinaryOutput(true);
+					}
+					break;
+				case DONT:
+					asked = waitWILLreply(BINARY);
+					setWait(WILL, BINARY, false);
+					if (connectionData.isBinaryOutput()) {
+						if (!asked) {
+							sendCommand(WONT, BINARY, false);
+						}
+						setBinaryOutput(false);
+					}
+					break;
+			}
+		}//negotiateBinary
 
 		/**
-		 * Method that reads a NawsSubnegotiation that ends up with a IAC SE If
-		 * the measurements are unbelieveable it switches to the defaults.
+		 * Method that asks for BINARY to be switched on or off in both
+		 * directions. Switching off takes effect straight away.
 		 */
-		private void handleNAWS() throws IOException {
-			int width = read16int();
-			if (width == 255) {
-				width = read16int(); //handle doubled 255 value;
+		public void requestBinary(boolean on) throws IOException {
+			if (!supported(BINARY)) {
+				return;
 			}
-			int height = read16int();
-			if (height == 255) {
-				height = read16int(); //handle doubled 255 value;
+			if (on) {
+				if (!connectionData.isBinaryOutput()) {
+					sendCommand(WILL, BINARY, true);
+				}
+				if (!connectionData.isBinaryInput()) {
+					sendCommand(DO, BINARY, true);
+				}
+			} else {
+				if (connectionData.isBinaryOutput()) {
+					sendCommand(WONT, BINARY, false);
+					setBinaryOutput(false);
+				}
+				if (connectionData.isBinaryInput()) {
+					sendCommand(DONT, BINARY, false);
+					setBinaryInput(false);
+				}
 			}
-			skipToSE();
-			setTerminalGeometry(width, height);
-		}//handleNAWS
+		}//requestBinary
 
 		/**
-		 * Method that reads a TTYPE Subnegotiation String that ends up with a
-		 * IAC SE If no Terminal is valid, we switch to the dumb "none"
-		 * terminal.
+		 * Method that handles a NAWS subnegotiation. If the measurements are
+		 * unbelieveable it switches to the defaults.
 		 */
-		private void handleTTYPE() throws IOException {
-			String tmpstr = "";
-			// The next read should be 0 which is IS by the protocol
-			// specs. hmmm?
-			rawread(); //that should be the is :)
-			tmpstr = readIACSETerminatedString(40);
-			log.debug("Reported terminal name " + tmpstr);
-			connectionData.setNegotiatedTerminalType(tmpstr);
-		}//handleTTYPE
+		@Override
+		public void windowSize(int width, int height) {
+			if (isEnabled(NAWS)) {
+				setTerminalGeometry(width, height);
+			}
+		}//windowSize
 
 		/**
-		 * Method that handles LINEMODE subnegotiation.
+		 * Method that handles a TTYPE subnegotiation. Only the first line, and
+		 * at most 40 characters, of what the client reports is taken.
 		 */
-		public void handleLINEMODE() throws IOException {
-			int c = rawread();
+		@Override
+		public void terminalType(String type) {
+			if (!isEnabled(TTYPE)) {
+				return;
+			}
+			int end = 0;
+			while (end < type.length() && end < 40 && type.charAt(end) != '\n' && type.charAt(end) != '\r') {
+				end++;
+			}
+			type = type.substring(0, end);
+			log.debug("Reported terminal name " + type);
+			connectionData.setNegotiatedTerminalType(type);
+		}//terminalType
+
+		/**
+		 * Method that handles a variable from a NEW-ENVIRON subnegotiation.
+		 * Undefined variables, and ones too long to believe, are ignored.
+		 */
+		@Override
+		public void environment(boolean info, String name, String value) {
+			if (!isEnabled(NEWENV)) {
+				return;
+			}
+			if (value == null || name.length() > NE_VAR_NAME_MAXLENGTH || value.length() > NE_VAR_VALUE_MAXLENGTH) {
+				log.debug("environment()::ignoring " + name);
+				return;
+			}
+			log.debug("environment()::VAR=" + name + " VAL=" + value);
+			connectionData.getEnvironment().put(name, value);
+		}//environment
+
+		/**
+		 * Method that handles any other subnegotiation, which is only ever
+		 * LINEMODE.
+		 */
+		@Override
+		public void subnegotiation(int option, byte[] b, int off, int len) throws IOException {
+			if (option != LINEMODE || !isEnabled(LINEMODE) || len == 0) {
+				return;
+			}
+			int c = b[off] & 0xff;
 			switch (c) {
 				case LM_MODE:
-					handleLMMode();
+					handleLMMode(b, off + 1, len - 1);
 					break;
 				case LM_SLC:
-					handleLMSLC();
+					handleLMSLC(b, off + 1, len - 1);
 					break;
 				case WONT:
 				case WILL:
-					handleLMForwardMask(c);
+				case DO:
+				case DONT:
+					if (len > 1 && (b[off + 1] & 0xff) == LM_FORWARDMASK) {
+						handleLMForwardMask(c);
+					}
 					break;
 				default:
-					//skip to (including) SE
-					skipToSE();
-			}
-		}//handleLINEMODE
-
-		public void handleLMMode() throws IOException {
-			//we sent the default which no client might deny
-			//so we only wait the ACK
-			if (WAIT_LM_MODE_ACK) {
-				int mask = rawread();
-				if (mask != (LM_EDIT | LM_TRAPSIG | LM_MODEACK)) {
-					log.debug("Client violates linemodeack sent: " + mask);
-				}
-				WAIT_LM_MODE_ACK = false;
 			}
-			skipToSE();
-		}//handleLMMode
+		}//subnegotiation
 
-		public void handleLMSLC() throws IOException {
-			int[] triple = new int[3];
-			if (!readTriple(triple))
+		/**
+		 * Method that handles a LINEMODE MODE. With MODE_ACK set it's the
+		 * client's answer to ours, and says what the mode is now; without, the
+		 * client wants another mode, which is agreed to.
+		 */
+		public void handleLMMode(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
 				return;
-
-			//SLC will be initiated by the client
-			//case 1. client requests set
-			//LINEMODE SLC 0 SLC_DEFAULT 0
-			if ((triple[0] == 0) && (triple[1] == LM_SLC_DEFAULT) && (triple[2] == 0)) {
-				skipToSE();
-				//reply with SLC xxx SLC_DEFAULT 0
+			}
+			int mask = b[off] & 0xff;
+			if ((mask & LM_MODEACK) != 0) {
+				if (WAIT_LM_MODE_ACK && (mask & ~LM_MODEACK) != (LM_EDIT | LM_TRAPSIG)) {
+					log.debug("Client acknowledged a different line mode: " + mask);
+				}
+				WAIT_LM_MODE_ACK = false;
+			} else if ((mask & (LM_EDIT | LM_TRAPSIG)) != lineModeMask) {
 				rawWrite(IAC);
 				rawWrite(SB);
 				rawWrite(LINEMODE);
-				rawWrite(LM_SLC);
-				//triples defaults for all
-				for (int i = 1; i < 12; i++) {
-					rawWrite(i);
-					rawWrite(LM_SLC_DEFAULT);
-					rawWrite(0);
-				}
+				rawWrite(LM_MODE);
+				rawWriteEscaped((mask & (LM_EDIT | LM_TRAPSIG)) | LM_MODEACK);
 				rawWrite(IAC);
 				rawWrite(SE);
 				flush();
-			} else {
+			}
+			lineModeMask = mask & (LM_EDIT | LM_TRAPSIG);
+			connectionData.setLineEditing((lineModeMask & LM_EDIT) != 0);
+		}//handleLMMode
 
-				//case 2: just acknowledge anything we get from the client
-				rawWrite(IAC);
-				rawWrite(SB);
-				rawWrite(LINEMODE);
-				rawWrite(LM_SLC);
-				rawWrite(triple[0]);
-				rawWrite(triple[1] | LM_SLC_ACK);
-				rawWrite(triple[2]);
-				while (readTriple(triple)) {
-					rawWrite(triple[0]);
-					rawWrite(triple[1] | LM_SLC_ACK);
-					rawWrite(triple[2]);
+		/**
+		 * Method that handles a LINEMODE SLC, a list of triples of function,
+		 * level and flags, and value. Function 0 with level DEFAULT or VALUE
+		 * asks for our whole table. Otherwise the client's settings are taken,
+		 * except that DEFAULT gets ours, and anything that changes is
+		 * acknowledged. Acknowledgements aren't answered, so it can't go round
+		 * in circles.
+		 */
+		public void handleLMSLC(byte[] b, int off, int len) throws IOException {
+			int triples = len / 3;
+			if (triples == 0)
+				return;
+
+			boolean sendTable = false;
+			int replies = 0;
+			for (int i = 0; i < triples; i++) {
+				int t = off + i * 3;
+				int function = b[t] & 0xff;
+				int flags = b[t + 1] & 0xff;
+				int value = b[t + 2] & 0xff;
+				int level = flags & LM_SLC_LEVELBITS;
+				if (function == 0) {
+					sendTable |= level == LM_SLC_DEFAULT || level == LM_SLC_VALUE;
+					continue;
+				}
+				if ((flags & LM_SLC_ACK) != 0) {
+					if (function <= LM_SLC_MAX) {
+						slcFlags[function] = (byte) (flags & ~LM_SLC_ACK);
+						slcValues[function] = (byte) value;
+					}
+					continue;
+				}
+				if (function > LM_SLC_MAX) {
+					slcReply[replies++] = (byte) function;
+					slcReply[replies++] = LM_SLC_NOSUPPORT;
+					slcReply[replies++] = 0;
+				} else if (level == LM_SLC_DEFAULT) {
+					slcReply[replies++] = (byte) function;
+					slcReply[replies++] = SLC_DEFAULT_FLAGS[function];
+					slcReply[replies++] = SLC_DEFAULT_VALUES[function];
+					slcFlags[function] = SLC_DEFAULT_FLAGS[function];
+					slcValues[function] = SLC_DEFAULT_VALUES[function];
+				} else if ((slcFlags[function] & LM_SLC_LEVELBITS) != level || (slcValues[function] & 0xff) != value) {
+					slcFlags[function] = (byte) flags;
+					slcValues[function] = (byte) value;
+					slcReply[replies++] = (byte) function;
+					slcReply[replies++] = (byte) (flags | LM_SLC_ACK);
+					slcReply[replies++] = (byte) value;
+				}
+				if (replies == slcReply.length) {
+					writeSLC(slcReply, replies);
+					replies = 0;
+				}
+			}
+			if (sendTable) {
+				for (int f = 1; f <= LM_SLC_MAX; f++) {
+					slcReply[replies++] = (byte) f;
+					slcReply[replies++] = slcFlags[f];
+					slcReply[replies++] = slcValues[f];
+					if (replies == slcReply.length) {
+						writeSLC(slcReply, replies);
+						replies = 0;
+					}
 				}
-				rawWrite(IAC);
-				rawWrite(SE);
-				flush();
+			}
+			if (replies > 0) {
+				writeSLC(slcReply, replies);
 			}
 		}//handleLMSLC
 
+		private void writeSLC(byte[] triples, int len) throws IOException {
+			rawWrite(IAC);
+			rawWrite(SB);
+			rawWrite(LINEMODE);
+			rawWrite(LM_SLC);
+			for (int i = 0; i < len; i++) {
+				rawWriteEscaped(triples[i] & 0xff);
+			}
+			rawWrite(IAC);
+			rawWrite(SE);
+			flush();
+		}//writeSLC
+
+		/**
+		 * Method that handles the client's answer to FORWARDMASK, or a DO
+		 * FORWARDMASK from it, which we never have any use for.
+		 */
 		public void handleLMForwardMask(int WHAT) throws IOException {
 			switch (WHAT) {
+				case WILL:
 				case WONT:
-					if (WAIT_LM_DO_REPLY_FORWARDMASK) {
-						WAIT_LM_DO_REPLY_FORWARDMASK = false;
-					}
+					WAIT_LM_DO_REPLY_FORWARDMASK = false;
+					FORWARDMASK_ACTIVE = WHAT == WILL;
+					break;
+				case DO:
+					rawWrite(IAC);
+					rawWrite(SB);
+					rawWrite(LINEMODE);
+					rawWrite(WONT);
+					rawWrite(LM_FORWARDMASK);
+					rawWrite(IAC);
+					rawWrite(SE);
+					flush();
 					break;
 			}
-			skipToSE();
 		}//handleLMForward
 
-		public void handleNEWENV() throws IOException {
-			log.debug("handleNEWENV()");
-			int c = rawread();
-			switch (c) {
-				case IS:
-					handleNEIs();
-					break;
-				case NE_INFO:
-					handleNEInfo();
-					break;
-				default:
-					//skip to (including) SE
-					skipToSE();
-			}
-		}//handleNEWENV
-
-		/*
-		 * The characters following a "type" up to the next "type" or VALUE
-		 * specify the variable name.
-		 * 
-		 * If a "type" is not followed by a VALUE (e.g., by another VAR,
-		 * USERVAR, or IAC SE) then that variable is undefined.
-		 */
-		private int readNEVariableName(StringBuffer sbuf) throws IOException {
-			log.debug("readNEVariableName()");
-			int i = -1;
-			do {
-				i = rawread();
-				if (i == -1) {
-					return NE_IN_ERROR;
-				} else if (i == IAC) {
-					i = rawread();
-					if (i == IAC) {
-						//duplicated IAC
-						sbuf.append((char) i);
-					} else if (i == SE) {
-						return NE_IN_END;
-					} else {
-						//Error should have been duplicated
-						return NE_IN_ERROR;
-					}
-				} else if (i == NE_ESC) {
-					i = rawread();
-					if (i == NE_ESC || i == NE_VAR || i == NE_USERVAR || i == NE_VALUE) {
-						sbuf.append((char) i);
-					} else {
-						return NE_IN_ERROR;
-					}
-				} else if (i == NE_VAR || i == NE_USERVAR) {
-					return NE_VAR_UNDEFINED;
-				} else if (i == NE_VALUE) {
-					return NE_VAR_DEFINED;
-				} else {
-					//check maximum length to prevent overflow
-					if (sbuf.length() >= NE_VAR_NAME_MAXLENGTH) {
-						//TODO: Log Overflow
-						return NE_IN_ERROR;
-					} else {
-						sbuf.append((char) i);
-					}
-				}
-			} while (true);
-		}//readNEVariableName
-
-		/*
-		 * The characters following a VALUE up to the next "type" specify the
-		 * value of the variable. If a VALUE is immediately followed by a "type"
-		 * or IAC, then the variable is defined, but has no value. If an IAC is
-		 * contained between the IS and the IAC SE, it must be sent as IAC IAC.
+		/**
+		 * Method that sends the forward mask, or DONT FORWARDMASK if there
+		 * isn't one.
 		 */
-		private int readNEVariableValue(StringBuffer sbuf) throws IOException {
-			log.debug("readNEVariableValue()");
-			//check conditions for first character after VALUE
-			int i = rawread();
-			if (i == -1) {
-				return NE_IN_ERROR;
-			} else if (i == IAC) {
-				i = rawread();
-				if (i == IAC) {
-					//Double IAC
-					return NE_VAR_DEFINED_EMPTY;
-				} else if (i == SE) {
-					return NE_IN_END;
-				} else {
-					//according to rule IAC has to be duplicated
-					return NE_IN_ERROR;
-				}
-			} else if (i == NE_VAR || i == NE_USERVAR) {
-				return NE_VAR_DEFINED_EMPTY;
-			} else if (i == NE_ESC) {
-				//escaped value
-				i = rawread();
-				if (i == NE_ESC || i == NE_VAR || i == NE_USERVAR || i == NE_VALUE) {
-					sbuf.append((char) i);
-				} else {
-					return NE_IN_ERROR;
-				}
+		private void sendForwardMask() throws IOException {
+			rawWrite(IAC);
+			rawWrite(SB);
+			rawWrite(LINEMODE);
+			if (forwardMask == null) {
+				rawWrite(DONT);
+				rawWrite(LM_FORWARDMASK);
 			} else {
-				//character
-				sbuf.append((char) i);
-			}
-			//loop until end of value (IAC SE or TYPE)
-			do {
-				i = rawread();
-				if (i == -1) {
-					return NE_IN_ERROR;
-				} else if (i == IAC) {
-					i = rawread();
-					if (i == IAC) {
-						//duplicated IAC
-						sbuf.append((char) i);
-					} else if (i == SE) {
-						return NE_IN_END;
-					} else {
-						//Error should have been duplicated
-						return NE_IN_ERROR;
-					}
-				} else if (i == NE_ESC) {
-					i = rawread();
-					if (i == NE_ESC || i == NE_VAR || i == NE_USERVAR || i == NE_VALUE) {
-						sbuf.append((char) i);
-					} else {
-						return NE_IN_ERROR;
-					}
-				} else if (i == NE_VAR || i == NE_USERVAR) {
-					return NE_VAR_OK;
-				} else {
-					//check maximum length to prevent overflow
-					if (sbuf.length() > NE_VAR_VALUE_MAXLENGTH) {
-						//TODO: LOG Overflow
-						return NE_IN_ERROR;
-					} else {
-						sbuf.append((char) i);
-					}
+				rawWrite(DO);
+				rawWrite(LM_FORWARDMASK);
+				for (byte m : forwardMask) {
+					rawWriteEscaped(m & 0xff);
 				}
-			} while (true);
-		}//readNEVariableValue
-
-		public void readNEVariables() throws IOException {
-			log.debug("readNEVariables()");
-			StringBuffer sbuf = new StringBuffer(50);
-			int i = rawread();
-			if (i == IAC) {
-				//invalid or empty response
-				skipToSE();
-				log.debug("readNEVariables()::INVALID VARIABLE");
-				return;
-			}
-			boolean cont = true;
-			if (i == NE_VAR || i == NE_USERVAR) {
-				do {
-					switch (readNEVariableName(sbuf)) {
-						case NE_IN_ERROR:
-							log.debug("readNEVariables()::NE_IN_ERROR");
-							return;
-						case NE_IN_END:
-							log.debug("readNEVariables()::NE_IN_END");
-							return;
-						case NE_VAR_DEFINED:
-							log.debug("readNEVariables()::NE_VAR_DEFINED");
-							String str = sbuf.toString();
-							sbuf.delete(0, sbuf.length());
-							switch (readNEVariableValue(sbuf)) {
-								case NE_IN_ERROR:
-									log.debug("readNEVariables()::NE_IN_ERROR");
-									return;
-								case NE_IN_END:
-									log.debug("readNEVariables()::NE_IN_END");
-									return;
-								case NE_VAR_DEFINED_EMPTY:
-									log.debug("readNEVariables()::NE_VAR_DEFINED_EMPTY");
-									break;
-								case NE_VAR_OK:
-									//add variable
-									log.debug("readNEVariables()::NE_VAR_OK:VAR=" + str + " VAL=" + sbuf.toString());
-									TelnetIO.this.connectionData.getEnvironment().put(str, sbuf.toString());
-									sbuf.delete(0, sbuf.length());
-									break;
-							}
-							break;
-						case NE_VAR_UNDEFINED:
-							log.debug("readNEVariables()::NE_VAR_UNDEFINED");
-							break;
-					}
-				} while (cont);
 			}
-		}//readVariables
-
-		public void handleNEIs() throws IOException {
-			log.debug("handleNEIs()");
-			if (isEnabled(NEWENV)) {
-				readNEVariables();
-			}
-		}//handleNEIs
+			rawWrite(IAC);
+			rawWrite(SE);
+			WAIT_LM_DO_REPLY_FORWARDMASK = true;
+		}//sendForwardMask
 
-		public void handleNEInfo() throws IOException {
-			log.debug("handleNEInfo()");
-			if (isEnabled(NEWENV)) {
-				readNEVariables();
+		public void setForwardMask(byte[] mask) throws IOException {
+			forwardMask = mask == null ? null : mask.clone();
+			if (isEnabled(LINEMODE)) {
+				sendForwardMask();
+				flush();
 			}
-		}//handleNEInfo
+		}//setForwardMask
 
 		/**
 		 * Method that sends a TTYPE Subnegotiation Request. IAC SB
@@ -1136,16 +1551,11 @@ public class TelnetIO {
 				rawWrite(IAC);
 				rawWrite(SE);
 				WAIT_LM_MODE_ACK = true;
+				//the client edits from now on, unless it says otherwise
+				lineModeMask = LM_EDIT | LM_TRAPSIG;
+				connectionData.setLineEditing(true);
 
-				//dont forwardmask
-				rawWrite(IAC);
-				rawWrite(SB);
-				rawWrite(LINEMODE);
-				rawWrite(DONT);
-				rawWrite(LM_FORWARDMASK);
-				rawWrite(IAC);
-				rawWrite(SE);
-				WAIT_LM_DO_REPLY_FORWARDMASK = true;
+				sendForwardMask();
 				flush();
 			}
 		}//negotiateLineMode
@@ -1171,66 +1581,6 @@ public class TelnetIO {
 			}
 		}//negotiateEnvironment
 
-		/**
-		 * Method that skips a subnegotiation response.
-		 */
-		private void skipToSE() throws IOException {
-			while (rawread() != SE)
-				;
-		}//skipSubnegotiation
-
-		private boolean readTriple(int[] triple) throws IOException {
-			triple[0] = rawread();
-			triple[1] = rawread();
-			if ((triple[0] == IAC) && (triple[1] == SE)) {
-				return false;
-			} else {
-				triple[2] = rawread();
-				return true;
-			}
-		}//readTriple
-
-		/**
-		 * Method that reads a subnegotiation String, one of those that end with
-		 * a IAC SE combination. A maximum length is observed to prevent
-		 * overflow.
-		 *
-		 * @return IAC SE terminated String
-		 */
-		private String readIACSETerminatedString(int maxlength) throws IOException {
-			int where = 0;
-			char[] cbuf = new char[maxlength];
-			char b = ' ';
-			boolean cont = true;
-
-			do {
-				int i;
-				i = rawread();
-				switch (i) {
-					case IAC:
-						i = rawread();
-						if (i == SE) {
-							cont = false;
-						}
-						break;
-					case -1:
-						return (new String("default"));
-					default:
-				}
-				if (cont) {
-					b = (char) i;
-					//Fix for overflow wimpi (10/06/2004)
-					if (b == '\n' || b == '\r' || where == maxlength) {
-						cont = false;
-					} else {
-						cbuf[where++] = b;
-					}
-				}
-			} while (cont);
-
-			return (new String(cbuf, 0, where));
-		}//readIACSETerminatedString
-
 		/**
 		 * Method that informs internally about the supported Negotiation
 		 * Options
@@ -1249,6 +1599,10 @@ public class TelnetIO {
 					return true;
 				case LINEMODE:
 					return connectionData.isLineMode();
+				case COMPRESS2:
+					return connectionData.getCompressionLevel() >= 0;
+				case BINARY:
+					return connectionData.getBinaryMode() != ConnectionManager.BINARY_OFF;
 				default:
 					return false;
 			}
@@ -1319,6 +1673,8 @@ public class TelnetIO {
 						DO_LINEMODE = false;
 						//set false in connection data, so the application knows.
 						connectionData.setLineMode(false);
+						connectionData.setLineEditing(false);
+						lineModeMask = 0;
 					} else {
 						DO_LINEMODE = true;
 						negotiateLineMode();
@@ -1332,6 +1688,15 @@ public class TelnetIO {
 						negotiateEnvironment();
 					}
 					break;
+				case COMPRESS2:
+					if (DO_COMPRESS2) {
+						DO_COMPRESS2 = false;
+						stopCompression();
+					} else {
+						DO_COMPRESS2 = true;
+						startCompression();
+					}
+					break;
 			}
 		}//enable
 
@@ -1357,6 +1722,8 @@ public class TelnetIO {
 					return DO_LINEMODE;
 				case NEWENV:
 					return DO_NEWENV;
+				case COMPRESS2:
+					return DO_COMPRESS2;
 				default:
 					return false;
 			}
@@ -1380,6 +1747,10 @@ public class TelnetIO {
 					return WAIT_WILL_REPLY_NAWS;
 				case TTYPE:
 					return WAIT_WILL_REPLY_TTYPE;
+				case COMPRESS2:
+					return WAIT_WILL_REPLY_COMPRESS2;
+				case BINARY:
+					return WAIT_WILL_REPLY_BINARY;
 				default:
 					return false;
 			}
@@ -1406,6 +1777,8 @@ public class TelnetIO {
 					return WAIT_DO_REPLY_LINEMODE;
 				case NEWENV:
 					return WAIT_DO_REPLY_NEWENV;
+				case BINARY:
+					return WAIT_DO_REPLY_BINARY;
 				default:
 					return false;
 			}
@@ -1446,6 +1819,9 @@ public class TelnetIO {
 						case NEWENV:
 							WAIT_DO_REPLY_NEWENV = WAIT;
 							break;
+						case BINARY:
+							WAIT_DO_REPLY_BINARY = WAIT;
+							break;
 					}
 					break;
 				case WILL:
@@ -1462,6 +1838,12 @@ public class TelnetIO {
 						case TTYPE:
 							WAIT_WILL_REPLY_TTYPE = WAIT;
 							break;
+						case COMPRESS2:
+							WAIT_WILL_REPLY_COMPRESS2 = WAIT;
+							break;
+						case BINARY:
+							WAIT_WILL_REPLY_BINARY = WAIT;
+							break;
 					}
 					break;
 			}
@@ -1570,6 +1952,13 @@ public class TelnetIO {
 	 */
 	protected static final int	EL							= 248;
 
+	/**
+	 * End of File, Suspend and Abort, sent for signals with LINEMODE TRAPSIG
+	 */
+	protected static final int	EOF							= 236;
+	protected static final int	SUSP						= 237;
+	protected static final int	ABORT						= 238;
+
 	/**
 	 * The following are constants for supported options, which can be
 	 * negotiated based upon the telnet protocol specification.
@@ -1627,6 +2016,16 @@ public class TelnetIO {
 	 */
 	protected static final int	LOGOUT						= 18;
 
+	/**
+	 * Telnet Option: Binary Transmission
+	 */
+	protected static final int	BINARY						= 0;
+
+	/**
+	 * Telnet Option: MCCP2, compressed output
+	 */
+	protected static final int	COMPRESS2					= 86;
+
 	/**
 	 * Telnet Option: Linemode
 	 * <p/>
@@ -1658,6 +2057,42 @@ public class TelnetIO {
 	protected static final int	LM_SLC_ABORT				= 7;
 	protected static final int	LM_SLC_EOF					= 8;
 	protected static final int	LM_SLC_SUSP					= 9;
+	protected static final int	LM_SLC_EC					= 10;
+	protected static final int	LM_SLC_EL					= 11;
+	protected static final int	LM_SLC_EW					= 12;
+	protected static final int	LM_SLC_RP					= 13;
+	protected static final int	LM_SLC_LNEXT				= 14;
+	protected static final int	LM_SLC_XON					= 15;
+	protected static final int	LM_SLC_XOFF					= 16;
+	protected static final int	LM_SLC_FORW1				= 17;
+	protected static final int	LM_SLC_FORW2				= 18;
+	protected static final int	LM_SLC_MAX					= 18;
+
+	/**
+	 * Our SLC table for LINEMODE, the usual Unix characters, by function
+	 */
+	private static final byte[]	SLC_DEFAULT_FLAGS	= new byte[LM_SLC_MAX + 1];
+	private static final byte[]	SLC_DEFAULT_VALUES	= new byte[LM_SLC_MAX + 1];
+	static {
+		slc(LM_SLC_IP, 3, LM_SLC_FLUSHIN | LM_SLC_FLUSHOUT);
+		slc(LM_SLC_ABORT, 28, LM_SLC_FLUSHIN | LM_SLC_FLUSHOUT);
+		slc(LM_SLC_AO, 15, LM_SLC_FLUSHOUT);
+		slc(LM_SLC_AYT, 20, 0);
+		slc(LM_SLC_EOF, 4, 0);
+		slc(LM_SLC_SUSP, 26, LM_SLC_FLUSHIN);
+		slc(LM_SLC_EC, 127, 0);
+		slc(LM_SLC_EL, 21, 0);
+		slc(LM_SLC_EW, 23, 0);
+		slc(LM_SLC_RP, 18, 0);
+		slc(LM_SLC_LNEXT, 22, 0);
+		slc(LM_SLC_XON, 17, 0);
+		slc(LM_SLC_XOFF, 19, 0);
+	}
+
+	private static void slc(int function, int value, int flags) {
+		SLC_DEFAULT_FLAGS[function] = (byte) (LM_SLC_VALUE | flags);
+		SLC_DEFAULT_VALUES[function] = (byte) value;
+	}
 
 	/**
 	 * Telnet Option: Environment
@@ -1669,12 +2104,6 @@ public class TelnetIO {
 	protected static final int	NE_ESC						= 2;
 	protected static final int	NE_USERVAR					= 3;
 
-	protected static final int	NE_VAR_OK					= 2;
-	protected static final int	NE_VAR_DEFINED				= 1;
-	protected static final int	NE_VAR_DEFINED_EMPTY		= 0;
-	protected static final int	NE_VAR_UNDEFINED			= -1;
-	protected static final int	NE_IN_ERROR					= -2;
-	protected static final int	NE_IN_END					= -3;
 	protected static final int	NE_VAR_NAME_MAXLENGTH		= 50;
 	protected static final int	NE_VAR_VALUE_MAXLENGTH		= 1000;
 
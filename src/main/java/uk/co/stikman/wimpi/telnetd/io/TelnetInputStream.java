@@ -6,10 +6,25 @@ import java.nio.charset.StandardCharsets;
 
 import uk.co.stikman.wimpi.telnetd.util.PushDecoder;
 
+/**
+ * The client's input, as bytes or as characters. {@link #readChar()} takes
+ * as many bytes as have arrived from {@link TelnetIO} at once and decodes them
+ * as UTF-8 in bulk, through a {@link PushDecoder}. A multi-byte sequence split
+ * across reads waits for the rest of it, and malformed input comes out as
+ * U+FFFD.
+ * <p>
+ * Bytes read through {@link #read()} after {@link #readChar()} come from
+ * whatever it has already decoded, which is only the same thing for ASCII.
+ * That's all the escape sequence parsing in {@link TerminalIO} needs.
+ */
 public class TelnetInputStream extends InputStream {
 
-	private TelnetIO	io;
-	private PushDecoder	dec	= new PushDecoder(StandardCharsets.UTF_8.newDecoder());
+	private static final int	BUFFER_SIZE	= 4096;
+
+	private TelnetIO			io;
+	private final PushDecoder	decoder		= new PushDecoder(StandardCharsets.UTF_8.newDecoder(), BUFFER_SIZE);
+	private final byte[]		bytes		= new byte[BUFFER_SIZE];	//read, to be decoded
+	private final char[]		chars		= new char[BUFFER_SIZE];	//decoded, on the way to a line
 
 	public TelnetInputStream(TelnetIO telnetIO) {
 		this.io = telnetIO;
@@ -17,33 +32,68 @@ public class TelnetInputStream extends InputStream {
 
 	@Override
 	public int read() throws IOException {
+		if (decoder.available() > 0)
+			return decoder.read();
+		if (decoder.pending() > 0)
+			return decoder.readPending();
 		return io.read();
 	}
 
 	@Override
 	public int read(byte[] b, int off, int len) throws IOException {
-		//
-		// We have no way of testing for available(), so we can only
-		// return a single byte at a time here
-		//
 		if (len == 0)
 			return 0;
-		int n = io.read();
-		if (n == -1)
-			throw new IOException("End of Stream");
-		b[0] = (byte) n;
-		System.out.println("0x" + Integer.toHexString(n) + "  (" + n + ") " + Character.valueOf((char) n));
-		return 1;
+		if (decoder.available() == 0 && decoder.pending() == 0)
+			return io.read(b, off, len);
+		int n = 0;
+		while (n < len && (decoder.available() > 0 || decoder.pending() > 0))
+			b[off + n++] = (byte) read();
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return decoder.available() + decoder.pending() + io.available();
 	}
 
 	public char readChar() throws IOException {
-		while (!dec.hasOutput()) {
-			int n = read();
-			if (n == -1)
-				throw new IOException("End of Stream");
-			dec.write((byte) n);
+		while (!decoder.hasOutput())
+			decode();
+		return decoder.read();
+	}
+
+	/**
+	 * Reads characters up to a LF or an EOT, whichever comes first, straight
+	 * from what has been decoded, for input that arrives a line at a time.
+	 *
+	 * @param sb
+	 *            the characters before it are added to this
+	 * @return the LF or EOT
+	 */
+	public char readLine(StringBuilder sb) throws IOException {
+		for (;;) {
+			while (!decoder.hasOutput())
+				decode();
+			int i = decoder.indexOf('\n', (char) 4);
+			int n = i < 0 ? decoder.available() : i;
+			while (n > 0) {
+				int r = decoder.read(chars, 0, Math.min(n, chars.length));
+				sb.append(chars, 0, r);
+				n -= r;
+			}
+			if (i >= 0)
+				return decoder.read();
 		}
-		return dec.read();
+	}
+
+	/**
+	 * Reads whatever has arrived into the decoder, waiting if there's nothing.
+	 */
+	private void decode() throws IOException {
+		int n = io.read(bytes, 0, Math.min(bytes.length, decoder.free()));
+		if (n == -1)
+			throw new IOException("End of Stream");
+		decoder.write(bytes, 0, n);
 	}
 
 }
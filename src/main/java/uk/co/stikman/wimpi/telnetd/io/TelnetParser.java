@@ -0,0 +1,360 @@
+package uk.co.stikman.wimpi.telnetd.io;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Push parser for the telnet protocol. Bytes are handed to
+ * {@link #parse(byte[], int, int)} in whatever slices they arrive in, and it
+ * never blocks or asks for more: anything incomplete at the end of a slice,
+ * from a CR to half a subnegotiation, is remembered and carried on with the
+ * next one. What it finds is passed to a {@link Handler}.
+ * <p>
+ * Data comes out as slices of the input wherever it needs no translation, so
+ * plain text costs a scan and a call. CR LF and CR NUL come out as LF, unless
+ * the client is sending binary (RFC 856), and IAC IAC as a data byte of 255.
+ * <p>
+ * Subnegotiations are collected up to a fixed length. NAWS, TERMINAL-TYPE IS
+ * and NEW-ENVIRON IS/INFO are decoded, others are passed on as they are.
+ * Anything longer than the limit is thrown away, as is a subnegotiation that
+ * is cut short by a command other than IAC SE, which then takes effect as
+ * usual.
+ * <p>
+ * Not thread safe, meant to be fed by one reader.
+ */
+public class TelnetParser {
+
+	/**
+	 * Receives what a {@link TelnetParser} finds, in the order it was sent.
+	 */
+	public interface Handler {
+
+		/**
+		 * Data for the application. Only valid until this returns, the bytes
+		 * may be the caller's buffer.
+		 */
+		public void data(byte[] b, int off, int len) throws IOException;
+
+		/**
+		 * A two byte command, such as AYT, BRK or NOP.
+		 */
+		public void command(int command) throws IOException;
+
+		/**
+		 * An option negotiation.
+		 *
+		 * @param verb
+		 *            WILL, WONT, DO or DONT
+		 * @param option
+		 *            the option
+		 */
+		public void option(int verb, int option) throws IOException;
+
+		/**
+		 * A window size from NAWS.
+		 */
+		public void windowSize(int width, int height) throws IOException;
+
+		/**
+		 * A terminal type from TERMINAL-TYPE IS.
+		 */
+		public void terminalType(String type) throws IOException;
+
+		/**
+		 * One variable from NEW-ENVIRON IS or INFO.
+		 *
+		 * @param info
+		 *            <tt>true</tt> for INFO, an unprompted change
+		 * @param name
+		 *            the variable
+		 * @param value
+		 *            its value, <tt>null</tt> if the client says it isn't
+		 *            defined
+		 */
+		public void environment(boolean info, String name, String value) throws IOException;
+
+		/**
+		 * Any other subnegotiation, with IAC IAC already undone. Only valid
+		 * until this returns.
+		 */
+		public void subnegotiation(int option, byte[] b, int off, int len) throws IOException;
+	}
+
+	public static final int			DEFAULT_MAX_SUBNEGOTIATION	= 4096;
+
+	private static final int		IAC							= 255;
+	private static final int		SE							= 240;
+	private static final int		SB							= 250;
+	private static final int		WILL						= 251;
+	private static final int		DONT						= 254;
+	private static final int		NAWS						= 31;
+	private static final int		TTYPE						= 24;
+	private static final int		NEWENV						= 39;
+	private static final int		IS							= 0;
+	private static final int		NE_INFO						= 2;
+	private static final int		NE_VAR						= 0;
+	private static final int		NE_VALUE					= 1;
+	private static final int		NE_ESC						= 2;
+	private static final int		NE_USERVAR					= 3;
+
+	private static final byte[]		LF							= { 10 };
+	private static final byte[]		FF							= { (byte) IAC };
+
+	private static final int		DATA						= 0;
+	private static final int		CR							= 1;	//had a CR, drop a following LF or NUL
+	private static final int		COMMAND						= 2;	//had an IAC
+	private static final int		VERB						= 3;	//had IAC WILL/WONT/DO/DONT
+	private static final int		SB_OPTION					= 4;	//had IAC SB
+	private static final int		SB_DATA						= 5;
+	private static final int		SB_IAC						= 6;	//had an IAC inside a subnegotiation
+
+	private final Handler			handler;
+	private final byte[]			sb;
+	private final StringBuilder		text						= new StringBuilder();
+	private int						state						= DATA;
+	private boolean					binary;
+	private int						verb;
+	private int						sbOption;
+	private int						sbLength;
+	private boolean					sbOverflow;
+	private long					discarded;
+
+	public TelnetParser(Handler handler) {
+		this(handler, DEFAULT_MAX_SUBNEGOTIATION);
+	}//constructor
+
+	/**
+	 * @param handler
+	 *            receives what's found
+	 * @param maxSubnegotiation
+	 *            longest subnegotiation kept, in bytes after the option
+	 */
+	public TelnetParser(Handler handler, int maxSubnegotiation) {
+		this.handler = handler;
+		this.sb = new byte[maxSubnegotiation];
+	}//constructor
+
+	/**
+	 * Parses the next slice of input, calling the handler for everything
+	 * complete in it.
+	 */
+	public void parse(byte[] b, int off, int len) throws IOException {
+		int end = off + len;
+		int i = off;
+		while (i < end) {
+			switch (state) {
+				case DATA: {
+					int start = i;
+					byte x = 0;
+					while (i < end && (x = b[i]) != (byte) IAC && (x != 13 || binary))
+						++i;
+					if (i > start) {
+						handler.data(b, start, i - start);
+					}
+					if (i < end) {
+						++i;
+						if (x == 13) {
+							state = CR;
+							handler.data(LF, 0, 1);
+						} else {
+							state = COMMAND;
+						}
+					}
+					break;
+				}
+				case CR: {
+					state = DATA;
+					if (b[i] == 10 || b[i] == 0) {
+						++i;
+					}
+					break;
+				}
+				case COMMAND: {
+					int c = b[i++] & 0xff;
+					if (c == IAC) {
+						state = DATA;
+						handler.data(FF, 0, 1);
+					} else if (c >= WILL && c <= DONT) {
+						state = VERB;
+						verb = c;
+					} else if (c == SB) {
+						state = SB_OPTION;
+					} else {
+						state = DATA;
+						handler.command(c);
+					}
+					break;
+				}
+				case VERB: {
+					state = DATA;
+					handler.option(verb, b[i++] & 0xff);
+					break;
+				}
+				case SB_OPTION: {
+					state = SB_DATA;
+					sbOption = b[i++] & 0xff;
+					sbLength = 0;
+					sbOverflow = false;
+					break;
+				}
+				case SB_DATA: {
+					int start = i;
+					while (i < end && b[i] != (byte) IAC)
+						++i;
+					append(b, start, i - start);
+					if (i < end) {
+						++i;
+						state = SB_IAC;
+					}
+					break;
+				}
+				default: {
+					int c = b[i] & 0xff;
+					if (c == IAC) {
+						++i;
+						state = SB_DATA;
+						append(FF, 0, 1);
+					} else if (c == SE) {
+						++i;
+						state = DATA;
+						endSubnegotiation();
+					} else {
+						//broken off, the command that interrupted it still counts
+						++discarded;
+						state = COMMAND;
+					}
+				}
+			}
+		}
+	}//parse
+
+	private void append(byte[] b, int off, int len) {
+		if (sbLength + len > sb.length) {
+			sbOverflow = true;
+		}
+		if (!sbOverflow) {
+			System.arraycopy(b, off, sb, sbLength, len);
+			sbLength += len;
+		}
+	}//append
+
+	private void endSubnegotiation() throws IOException {
+		if (sbOverflow) {
+			++discarded;
+			return;
+		}
+		switch (sbOption) {
+			case NAWS:
+				if (sbLength == 4) {
+					handler.windowSize((sb[0] & 0xff) << 8 | (sb[1] & 0xff), (sb[2] & 0xff) << 8 | (sb[3] & 0xff));
+				} else {
+					++discarded;
+				}
+				break;
+			case TTYPE:
+				if (sbLength > 0 && sb[0] == IS) {
+					handler.terminalType(new String(sb, 1, sbLength - 1, StandardCharsets.ISO_8859_1));
+				} else {
+					++discarded;
+				}
+				break;
+			case NEWENV:
+				if (sbLength > 0 && (sb[0] == IS || sb[0] == NE_INFO)) {
+					parseEnvironment(sb[0] == NE_INFO);
+				} else {
+					++discarded;
+				}
+				break;
+			default:
+				handler.subnegotiation(sbOption, sb, 0, sbLength);
+		}
+	}//endSubnegotiation
+
+	/**
+	 * A list of VAR or USERVAR, name, and optionally VALUE and value. ESC
+	 * quotes the next byte in a name or value.
+	 */
+	private void parseEnvironment(boolean info) throws IOException {
+		int i = 1;
+		while (i < sbLength) {
+			int type = sb[i++];
+			if (type != NE_VAR && type != NE_USERVAR) {
+				++discarded;
+				return;
+			}
+			i = readEnvironmentText(i);
+			if (i < 0) {
+				++discarded;
+				return;
+			}
+			String name = text.toString();
+			String value = null;
+			if (i < sbLength && sb[i] == NE_VALUE) {
+				i = readEnvironmentText(i + 1);
+				if (i < 0) {
+					++discarded;
+					return;
+				}
+				value = text.toString();
+			}
+			handler.environment(info, name, value);
+		}
+	}//parseEnvironment
+
+	/**
+	 * Reads a name or value into {@link #text}.
+	 *
+	 * @return where it ended, or -1 if it ended in a dangling ESC
+	 */
+	private int readEnvironmentText(int i) {
+		text.setLength(0);
+		while (i < sbLength) {
+			int c = sb[i];
+			if (c == NE_VAR || c == NE_USERVAR || c == NE_VALUE) {
+				return i;
+			}
+			if (c == NE_ESC) {
+				if (++i == sbLength) {
+					return -1;
+				}
+				c = sb[i];
+			}
+			text.append((char) (c & 0xff));
+			++i;
+		}
+		return i;
+	}//readEnvironmentText
+
+	/**
+	 * Switches translation of CR LF and CR NUL off, for when the client is
+	 * sending binary. Takes effect from the next byte, even part way through
+	 * a call to {@link #parse(byte[], int, int)}.
+	 */
+	public void setBinary(boolean binary) {
+		this.binary = binary;
+		if (binary && state == CR) {
+			state = DATA;
+		}
+	}//setBinary
+
+	public boolean isBinary() {
+		return binary;
+	}//isBinary
+
+	/**
+	 * @return number of subnegotiations thrown away, for being too long, cut
+	 *         short or not making sense
+	 */
+	public long getDiscarded() {
+		return discarded;
+	}//getDiscarded
+
+	/**
+	 * @return <tt>true</tt> if it's part way through a command or
+	 *         subnegotiation
+	 */
+	public boolean isPending() {
+		return state != DATA && state != CR;
+	}//isPending
+
+}//class TelnetParser
@@ -33,17 +33,28 @@
 package uk.co.stikman.wimpi.telnetd.io;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import uk.co.stikman.wimpi.telnetd.io.terminal.CursorMotion;
 import uk.co.stikman.wimpi.telnetd.io.terminal.Terminal;
 import uk.co.stikman.wimpi.telnetd.io.terminal.TerminalManager;
 import uk.co.stikman.wimpi.telnetd.net.Connection;
 import uk.co.stikman.wimpi.telnetd.net.ConnectionData;
 import uk.co.stikman.wimpi.telnetd.net.ConnectionEvent;
-import uk.co.stikman.wimpi.telnetd.util.Mutex;
-import uk.co.stikman.wimpi.telnetd.util.ReentrantLock;
 
 /**
  * Class for Terminal specific I/O. It represents the layer between the
@@ -58,19 +69,33 @@ import uk.co.stikman.wimpi.telnetd.util.ReentrantLock;
 public class TerminalIO implements BasicTerminalIO {
 
 	private static Log			log	= LogFactory.getLog(TerminalIO.class);
-	private TelnetIO			telnetIO;									//low level I/O
+	private final TelnetIO		telnetIO;									//low level I/O
 	private TelnetInputStream	telnetInputStream;
 
 	private Connection			connection;									//the connection this instance is working for
 	private ConnectionData		connectionData;								//holds data of the connection
 	private Terminal			terminal;									//active terminal object
-	private ReentrantLock		writeLock;
-	private Mutex				readLock;
+	private final ReentrantLock	writeLock;									//telnetIO's, see TelnetIO.getWriteLock()
+	private final ReentrantLock	readLock;
 	//Members
-	private boolean				acousticSignalling;							//flag for accoustic signalling
-	private boolean				autoflush;									//flag for autoflushing mode
-	private boolean				forceBold;									//flag for forcing bold output
+	private volatile boolean	acousticSignalling;							//flag for accoustic signalling
+	private volatile boolean	autoflush;									//flag for autoflushing mode
+	private volatile boolean	forceBold;									//flag for forcing bold output
 	private boolean				lineWrapping;
+	private int					frameDepth;									//beginFrame()s not yet ended, guarded by writeLock
+	private final AtomicBoolean	flushScheduled	= new AtomicBoolean();
+	private final Runnable		scheduledFlush;
+	private final BlockingQueue<Broadcast>	deferred	= new ArrayBlockingQueue<>(MAX_DEFERRED);	//found the connection busy
+
+	private final ByteBuffer	seq				= ByteBuffer.allocate(512);	//escape sequences are put together here, guarded by writeLock
+	private Screen				screen;										//made when first asked for
+	private CursorMotion		motion;										//for the terminal in use, guarded by writeLock
+
+	private static ScheduledExecutorService	flusher;							//holds back autoflushes, shared
+
+	private static final int	MOVES			= 64;						//cursor moves put together at once
+	private static final int	RETRY_DELAY		= 10000;					//microseconds before a busy connection is tried again
+	private static final int	MAX_DEFERRED	= 64;						//broadcasts waiting for a busy connection
 
 	/**
 	 * Constructor of the TerminalIO class.
@@ -82,13 +107,34 @@ public class TerminalIO implements BasicTerminalIO {
 		connection = con;
 		acousticSignalling = true;
 		autoflush = true;
-		writeLock = new ReentrantLock();
-		readLock = new Mutex();
+		telnetIO = new TelnetIO();
+		writeLock = telnetIO.getWriteLock();
+		readLock = new ReentrantLock();
+		scheduledFlush = new Runnable() {
+			@Override
+			public void run() {
+				//a busy lock is another write, which will flush or leave this
+				//to do it, or a flush stuck on a slow client; either way, come
+				//back later rather than tie up a flusher thread waiting
+				if (!writeLock.tryLock()) {
+					getFlusher().schedule(this, Math.max(connectionData.getFlushDelay(), RETRY_DELAY), TimeUnit.MICROSECONDS);
+					return;
+				}
+				try {
+					flushScheduled.set(false);
+					writeDeferred();
+					telnetIO.flush();
+				} catch (IOException ex) {
+					log.debug("scheduledFlush", ex);
+				} finally {
+					writeLock.unlock();
+				}
+			}
+		};
 		//store the associated  ConnectionData instance
 		connectionData = connection.getConnectionData();
 		try {
-			//create a new telnet io
-			telnetIO = new TelnetIO();
+			//set up the telnet io
 			telnetInputStream = new TelnetInputStream(telnetIO);
 			telnetIO.setConnection(con);
 			telnetIO.initIO();
@@ -123,8 +169,11 @@ public class TerminalIO implements BasicTerminalIO {
 	 */
 	public int read() throws IOException {
 		try {
-			readLock.acquire();
-
+			readLock.lockInterruptibly();
+		} catch (InterruptedException ex) {
+			return -1;
+		}
+		try {
 			int i = telnetInputStream.readChar();
 
 			//translate possible control sequences
@@ -141,53 +190,177 @@ public class TerminalIO implements BasicTerminalIO {
 
 			//return i holding a char or a defined special key
 			return i;
-		} catch (InterruptedException ex) {
-			return -1;
 		} finally {
-			readLock.release();
+			readLock.unlock();
 		}
 
 	}//read
 
+	public String readLine() throws IOException {
+		if (!connectionData.isLineEditing()) {
+			return readAndEchoLine();
+		}
+		StringBuilder sb = new StringBuilder();
+		try {
+			readLock.lockInterruptibly();
+		} catch (InterruptedException ex) {
+			return null;
+		}
+		try {
+			//^D, from the client's EOF, is a logout request as usual
+			while (telnetInputStream.readLine(sb) == 4) {
+				connection.processConnectionEvent(new ConnectionEvent(connection, ConnectionEvent.CONNECTION_LOGOUTREQUEST));
+			}
+			return sb.toString();
+		} finally {
+			readLock.unlock();
+		}
+	}//readLine
+
+	/**
+	 * Reads a line a key at a time, for when the client doesn't edit lines
+	 * itself. Returns <tt>null</tt> if the thread is interrupted.
+	 */
+	private String readAndEchoLine() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (;;) {
+			int c = read();
+			switch (c) {
+				case -1:
+					return null;
+				case '\n':
+				case '\r':
+					write(CRLF);
+					return sb.toString();
+				case 8:
+				case 127:
+				case BACKSPACE:
+				case DELETE:
+					if (sb.length() > 0) {
+						sb.setLength(sb.length() - 1);
+						write("\b \b");
+					}
+					break;
+				default:
+					if (c >= 32 && c < UP) {
+						sb.append((char) c);
+						write((char) c);
+					}
+			}
+		}
+	}//readAndEchoLine
+
+	/**
+	 * Sets the characters that make a client editing lines itself send what
+	 * it has typed straight away, rather than at the end of the line.
+	 *
+	 * @param chars
+	 *            the characters, all below 256, or <tt>null</tt> for none
+	 */
+	public void setForwardMask(String chars) throws IOException {
+		byte[] mask = null;
+		if (chars != null) {
+			mask = new byte[32];
+			for (int i = 0; i < chars.length(); i++) {
+				int c = chars.charAt(i);
+				if (c > 255) {
+					throw new IllegalArgumentException("Not a forwarding character: " + c);
+				}
+				mask[c >> 3] |= 0x80 >> (c & 7);
+			}
+		}
+		telnetIO.setForwardMask(mask);
+	}//setForwardMask
+
 	public void write(byte b) throws IOException {
-		telnetIO.write(b);
-		if (autoflush) {
-			flush();
+		acquireWriteLock();
+		try {
+			telnetIO.write(b);
+			afterWrite();
+		} finally {
+			writeLock.unlock();
 		}
 	}//write
 
 	public void write(char ch) throws IOException {
+		acquireWriteLock();
 		try {
-			writeLock.acquire();
 			telnetIO.write(ch);
-			if (autoflush) {
-				flush();
-			}
-		} catch (InterruptedException ex) {
-			log.error("write(byte)", ex);
+			afterWrite();
 		} finally {
-			writeLock.release();
+			writeLock.unlock();
 		}
 	}//write(char)
 
 	public void write(String str) throws IOException {
+		acquireWriteLock();
 		try {
-			writeLock.acquire();
 			if (forceBold) {
 				telnetIO.write(terminal.formatBold(str));
 			} else {
 				telnetIO.write(terminal.format(str));
 			}
-			if (autoflush) {
-				flush();
-			}
-		} catch (InterruptedException ex) {
-			log.error("write(byte)", ex);
+			afterWrite();
 		} finally {
-			writeLock.release();
+			writeLock.unlock();
 		}
 	}//write(String)
 
+	/**
+	 * Writes bytes that are terminal output already, as a {@link Screen}
+	 * puts together. They're translated for telnet but not formatted.
+	 */
+	void writeRaw(byte[] b, int off, int len) throws IOException {
+		acquireWriteLock();
+		try {
+			telnetIO.write(b, off, len);
+			afterWrite();
+		} finally {
+			writeLock.unlock();
+		}
+	}//writeRaw
+
+	/**
+	 * Writes a {@link Broadcast}, and has it flushed as any other write would
+	 * be, except that the flush is always left to the flusher, so that one
+	 * slow client can't hold up whoever is writing to many connections. For
+	 * the same reason, if another thread is writing, or is in a frame, it's
+	 * left for the flusher to write once it's done.
+	 */
+	public void write(Broadcast b) throws IOException {
+		if (!writeLock.tryLock()) {
+			if (!deferred.offer(b)) {
+				throw new IOException("Too many broadcasts waiting");
+			}
+			if (flushScheduled.compareAndSet(false, true)) {
+				getFlusher().schedule(scheduledFlush, 0, TimeUnit.MICROSECONDS);
+			}
+			return;
+		}
+		try {
+			writeDeferred();
+			writeBroadcast(b);
+			afterWrite(false);
+		} finally {
+			writeLock.unlock();
+		}
+	}//write(Broadcast)
+
+	/**
+	 * Writes the broadcasts that found the connection busy, in the order
+	 * they came. The write lock must be held.
+	 */
+	private void writeDeferred() throws IOException {
+		Broadcast b;
+		while ((b = deferred.poll()) != null) {
+			writeBroadcast(b);
+		}
+	}//writeDeferred
+
+	private void writeBroadcast(Broadcast b) throws IOException {
+		telnetIO.writeTranslated(b.render(terminal, telnetIO.getEncoding(), forceBold, connectionData.isBinaryOutput()));
+	}//writeBroadcast
+
 	/*** End of Visible character I/O methods ******************************/
 
 	/**
@@ -196,41 +369,38 @@ public class TerminalIO implements BasicTerminalIO {
 	 * **********************************************************************
 	 */
 
-	public synchronized void eraseToEndOfLine() throws IOException {
+	public void eraseToEndOfLine() throws IOException {
 		doErase(EEOL);
 	}//eraseToEndOfLine
 
-	public synchronized void eraseToBeginOfLine() throws IOException {
+	public void eraseToBeginOfLine() throws IOException {
 		doErase(EBOL);
 	}//eraseToBeginOfLine
 
-	public synchronized void eraseLine() throws IOException {
+	public void eraseLine() throws IOException {
 		doErase(EEL);
 	}//eraseLine
 
-	public synchronized void eraseToEndOfScreen() throws IOException {
+	public void eraseToEndOfScreen() throws IOException {
 		doErase(EEOS);
 	}//eraseToEndOfScreen
 
-	public synchronized void eraseToBeginOfScreen() throws IOException {
+	public void eraseToBeginOfScreen() throws IOException {
 		doErase(EBOS);
 	}//eraseToBeginOfScreen
 
-	public synchronized void eraseScreen() throws IOException {
+	public void eraseScreen() throws IOException {
 		doErase(EES);
 	}//eraseScreen
 
 	private void doErase(int funcConst) throws IOException {
+		acquireWriteLock();
 		try {
-			writeLock.acquire();
-			telnetIO.write(terminal.getEraseSequence(funcConst));
-			if (autoflush) {
-				flush();
-			}
-		} catch (InterruptedException ex) {
-			log.error("doErase(int)", ex);
+			terminal.appendEraseSequence(seq, funcConst);
+			writeSequence();
+			afterWrite();
 		} finally {
-			writeLock.release();
+			writeLock.unlock();
 		}
 	}//erase
 
@@ -243,16 +413,17 @@ public class TerminalIO implements BasicTerminalIO {
 	 */
 
 	public void moveCursor(int direction, int times) throws IOException {
+		acquireWriteLock();
 		try {
-			writeLock.acquire();
-			telnetIO.write(terminal.getCursorMoveSequence(direction, times));
-			if (autoflush) {
-				flush();
+			//in pieces, so they fit
+			CursorMotion m = getCursorMotion();
+			for (int n = times; n > 0; n -= MOVES) {
+				m.moveBy(seq, direction, Math.min(n, MOVES));
+				writeSequence();
 			}
-		} catch (InterruptedException ex) {
-			log.error("moveCursor(int,int)", ex);
+			afterWrite();
 		} finally {
-			writeLock.release();
+			writeLock.unlock();
 		}
 	}//moveCursor
 
@@ -273,55 +444,44 @@ public class TerminalIO implements BasicTerminalIO {
 	}//moveDown
 
 	public void setCursor(int row, int col) throws IOException {
-		int[] pos = new int[2];
-		pos[0] = row;
-		pos[1] = col;
+		acquireWriteLock();
 		try {
-			writeLock.acquire();
-			telnetIO.write(terminal.getCursorPositioningSequence(pos));
-			if (autoflush) {
-				flush();
-			}
-		} catch (InterruptedException ex) {
-			log.error("setCursor(int,int)", ex);
+			terminal.appendCursorPositioningSequence(seq, row, col);
+			writeSequence();
+			afterWrite();
 		} finally {
-			writeLock.release();
+			writeLock.unlock();
 		}
 	}//setCursor
 
 	public void homeCursor() throws IOException {
+		acquireWriteLock();
 		try {
-			writeLock.acquire();
-			telnetIO.write(terminal.getCursorPositioningSequence(HOME));
-			if (autoflush) {
-				flush();
-			}
-		} catch (InterruptedException ex) {
-			log.error("homeCursor()", ex);
+			terminal.appendCursorPositioningSequence(seq, HOME[0], HOME[1]);
+			writeSequence();
+			afterWrite();
 		} finally {
-			writeLock.release();
+			writeLock.unlock();
 		}
 	}//homeCursor
 
 	public void storeCursor() throws IOException {
+		acquireWriteLock();
 		try {
-			writeLock.acquire();
-			telnetIO.write(terminal.getSpecialSequence(STORECURSOR));
-		} catch (InterruptedException ex) {
-			log.error("storeCursor()", ex);
+			terminal.appendSpecialSequence(seq, STORECURSOR);
+			writeSequence();
 		} finally {
-			writeLock.release();
+			writeLock.unlock();
 		}
 	}//store Cursor
 
-	public synchronized void restoreCursor() throws IOException {
+	public void restoreCursor() throws IOException {
+		acquireWriteLock();
 		try {
-			writeLock.acquire();
-			telnetIO.write(terminal.getSpecialSequence(RESTORECURSOR));
-		} catch (InterruptedException ex) {
-			log.error("write(byte)", ex);
+			terminal.appendSpecialSequence(seq, RESTORECURSOR);
+			writeSequence();
 		} finally {
-			writeLock.release();
+			writeLock.unlock();
 		}
 	}//restore Cursor
 
@@ -333,11 +493,11 @@ public class TerminalIO implements BasicTerminalIO {
 	 * **********************************************************************
 	 */
 
-	public synchronized void setSignalling(boolean bool) {
+	public void setSignalling(boolean bool) {
 		acousticSignalling = bool;
 	}//setAcousticSignalling
 
-	public synchronized boolean isSignalling() {
+	public boolean isSignalling() {
 		return acousticSignalling;
 	}//isAcousticSignalling
 
@@ -345,35 +505,47 @@ public class TerminalIO implements BasicTerminalIO {
 	 * Method to write the NVT defined BEL onto the stream. If signalling is
 	 * off, the method simply returns, without any action.
 	 */
-	public synchronized void bell() throws IOException {
-		if (acousticSignalling) {
-			telnetIO.write(BEL);
-		}
-		if (autoflush) {
-			flush();
+	public void bell() throws IOException {
+		acquireWriteLock();
+		try {
+			if (acousticSignalling) {
+				telnetIO.write(BEL);
+			}
+			afterWrite();
+		} finally {
+			writeLock.unlock();
 		}
 	}//bell
 
 	/**
 	 * EXPERIMENTAL, not defined in the interface.
 	 */
-	public synchronized boolean defineScrollRegion(int topmargin, int bottommargin) throws IOException {
-		if (terminal.supportsScrolling()) {
-			telnetIO.write(terminal.getScrollMarginsSequence(topmargin, bottommargin));
-			flush();
-			return true;
-		} else {
-			return false;
+	public boolean defineScrollRegion(int topmargin, int bottommargin) throws IOException {
+		acquireWriteLock();
+		try {
+			if (terminal.supportsScrolling()) {
+				telnetIO.write(terminal.getScrollMarginsSequence(topmargin, bottommargin));
+				flush();
+				return true;
+			} else {
+				return false;
+			}
+		} finally {
+			writeLock.unlock();
 		}
 	}//defineScrollRegion
 
 	@Override
-	public synchronized void setForegroundColor(int color) throws IOException {
-		if (terminal.supportsSGR()) {
-			telnetIO.write(terminal.getGRSequence(FCOLOR, color));
-			if (autoflush) {
-				flush();
+	public void setForegroundColor(int color) throws IOException {
+		acquireWriteLock();
+		try {
+			if (terminal.supportsSGR()) {
+				terminal.appendGRSequence(seq, FCOLOR, color);
+				writeSequence();
+				afterWrite();
 			}
+		} finally {
+			writeLock.unlock();
 		}
 	}//setForegroundColor
 
@@ -387,79 +559,100 @@ public class TerminalIO implements BasicTerminalIO {
 		setBackgroundColor(col.asBackground() - 10);
 	}
 
-	public synchronized void setBackgroundColor(int color) throws IOException {
-		if (terminal.supportsSGR()) {
-			//this method adds the offset to the fg color by itself // why???
-			telnetIO.write(terminal.getGRSequence(BCOLOR, color + 10));
-			if (autoflush) {
-				flush();
+	public void setBackgroundColor(int color) throws IOException {
+		acquireWriteLock();
+		try {
+			if (terminal.supportsSGR()) {
+				//this method adds the offset to the fg color by itself // why???
+				terminal.appendGRSequence(seq, BCOLOR, color + 10);
+				writeSequence();
+				afterWrite();
 			}
+		} finally {
+			writeLock.unlock();
 		}
 	}//setBackgroundColor
 
-	public synchronized void setBold(boolean b) throws IOException {
-		if (terminal.supportsSGR()) {
-			if (b) {
-				telnetIO.write(terminal.getGRSequence(STYLE, BOLD));
-			} else {
-				telnetIO.write(terminal.getGRSequence(STYLE, BOLD_OFF));
-			}
-			if (autoflush) {
-				flush();
+	public void setBold(boolean b) throws IOException {
+		acquireWriteLock();
+		try {
+			if (terminal.supportsSGR()) {
+				terminal.appendGRSequence(seq, STYLE, b ? BOLD : BOLD_OFF);
+				writeSequence();
+				afterWrite();
 			}
+		} finally {
+			writeLock.unlock();
 		}
 	}//setBold
 
-	public synchronized void forceBold(boolean b) {
+	public void forceBold(boolean b) {
 		forceBold = b;
 	}//forceBold
 
-	public synchronized void setUnderlined(boolean b) throws IOException {
-		if (terminal.supportsSGR()) {
-			if (b) {
-				telnetIO.write(terminal.getGRSequence(STYLE, UNDERLINED));
-			} else {
-				telnetIO.write(terminal.getGRSequence(STYLE, UNDERLINED_OFF));
-			}
-			if (autoflush) {
-				flush();
+	public void setUnderlined(boolean b) throws IOException {
+		acquireWriteLock();
+		try {
+			if (terminal.supportsSGR()) {
+				terminal.appendGRSequence(seq, STYLE, b ? UNDERLINED : UNDERLINED_OFF);
+				writeSequence();
+				afterWrite();
 			}
-
+		} finally {
+			writeLock.unlock();
 		}
 	}//setUnderlined
 
-	public synchronized void setItalic(boolean b) throws IOException {
-		if (terminal.supportsSGR()) {
-			if (b) {
-				telnetIO.write(terminal.getGRSequence(STYLE, ITALIC));
-			} else {
-				telnetIO.write(terminal.getGRSequence(STYLE, ITALIC_OFF));
-			}
-			if (autoflush) {
-				flush();
+	public void setItalic(boolean b) throws IOException {
+		acquireWriteLock();
+		try {
+			if (terminal.supportsSGR()) {
+				terminal.appendGRSequence(seq, STYLE, b ? ITALIC : ITALIC_OFF);
+				writeSequence();
+				afterWrite();
 			}
+		} finally {
+			writeLock.unlock();
 		}
 	}//setItalic
 
-	public synchronized void setBlink(boolean b) throws IOException {
-		if (terminal.supportsSGR()) {
-			if (b) {
-				telnetIO.write(terminal.getGRSequence(STYLE, BLINK));
-			} else {
-				telnetIO.write(terminal.getGRSequence(STYLE, BLINK_OFF));
-			}
-			if (autoflush) {
-				flush();
+	public void setBlink(boolean b) throws IOException {
+		acquireWriteLock();
+		try {
+			if (terminal.supportsSGR()) {
+				terminal.appendGRSequence(seq, STYLE, b ? BLINK : BLINK_OFF);
+				writeSequence();
+				afterWrite();
 			}
+		} finally {
+			writeLock.unlock();
 		}
 	}//setItalic
 
-	public synchronized void resetAttributes() throws IOException {
-		if (terminal.supportsSGR()) {
-			telnetIO.write(terminal.getGRSequence(RESET, 0));
+	public void resetAttributes() throws IOException {
+		acquireWriteLock();
+		try {
+			if (terminal.supportsSGR()) {
+				terminal.appendGRSequence(seq, RESET, 0);
+				writeSequence();
+			}
+		} finally {
+			writeLock.unlock();
 		}
 	}//resetGR
 
+	/**
+	 * Writes the escape sequence put together in {@link #seq}, and empties it
+	 * for the next. The write lock must be held.
+	 */
+	private void writeSequence() throws IOException {
+		try {
+			telnetIO.write(seq.array(), 0, seq.position());
+		} finally {
+			seq.clear();
+		}
+	}//writeSequence
+
 	/*** End of special terminal function methods ***************************/
 
 	/************************************************************************
@@ -493,20 +686,33 @@ public class TerminalIO implements BasicTerminalIO {
 		return autoflush;
 	}//isAutoflushing
 
-	public synchronized void resetTerminal() throws IOException {
-		telnetIO.write(terminal.getSpecialSequence(DEVICERESET));
+	public void resetTerminal() throws IOException {
+		acquireWriteLock();
+		try {
+			terminal.appendSpecialSequence(seq, DEVICERESET);
+			writeSequence();
+		} finally {
+			writeLock.unlock();
+		}
 	}
 
-	public synchronized void setLinewrapping(boolean b) throws IOException {
-		if (b && !lineWrapping) {
-			telnetIO.write(terminal.getSpecialSequence(LINEWRAP));
-			lineWrapping = true;
-			return;
-		}
-		if (!b && lineWrapping) {
-			telnetIO.write(terminal.getSpecialSequence(NOLINEWRAP));
-			lineWrapping = false;
-			return;
+	public void setLinewrapping(boolean b) throws IOException {
+		acquireWriteLock();
+		try {
+			if (b && !lineWrapping) {
+				terminal.appendSpecialSequence(seq, LINEWRAP);
+				writeSequence();
+				lineWrapping = true;
+				return;
+			}
+			if (!b && lineWrapping) {
+				terminal.appendSpecialSequence(seq, NOLINEWRAP);
+				writeSequence();
+				lineWrapping = false;
+				return;
+			}
+		} finally {
+			writeLock.unlock();
 		}
 	}//setLineWrapping
 
@@ -517,22 +723,124 @@ public class TerminalIO implements BasicTerminalIO {
 	/**
 	 * Mutator method for the autoflushing mechanism.
 	 */
-	public synchronized void setAutoflushing(boolean b) {
+	public void setAutoflushing(boolean b) {
 		autoflush = b;
 	}//setAutoflushing
 
+	/**
+	 * Starts a frame: nothing is flushed until the matching
+	 * {@link #endFrame()}, and no other thread can write meanwhile. Frames
+	 * can be nested, only the outermost one counts.
+	 */
+	public void beginFrame() throws IOException {
+		acquireWriteLock();
+		++frameDepth;
+	}//beginFrame
+
+	/**
+	 * Ends a frame, flushing everything written since the outermost
+	 * {@link #beginFrame()}, whether autoflushing or not. Has to be called on
+	 * the thread that began it.
+	 */
+	public void endFrame() throws IOException {
+		if (frameDepth == 0 || !writeLock.isHeldByCurrentThread()) {
+			throw new IllegalStateException("No frame begun");
+		}
+		try {
+			if (--frameDepth == 0) {
+				writeDeferred();
+				telnetIO.flush();
+				connectionData.countFrame();
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}//endFrame
+
+	/**
+	 * Called after each write: flushes if autoflushing, unless in a frame. If
+	 * the connection has a flush delay, the flush is held back for that long,
+	 * to take in whatever else is written meanwhile, unless there's already
+	 * as much waiting as the threshold.
+	 */
+	private void afterWrite() throws IOException {
+		afterWrite(true);
+	}//afterWrite
+
+	/**
+	 * As {@link #afterWrite()}, but if <tt>inline</tt> is false the flush is
+	 * always left to the flusher, for writes that mustn't wait on the
+	 * network.
+	 */
+	private void afterWrite(boolean inline) throws IOException {
+		if (!autoflush || frameDepth > 0) {
+			return;
+		}
+		int delay = connectionData.getFlushDelay();
+		if (inline && (delay <= 0 || telnetIO.getPendingOutput() >= connectionData.getFlushThreshold())) {
+			flush();
+		} else if (flushScheduled.compareAndSet(false, true)) {
+			getFlusher().schedule(scheduledFlush, Math.max(delay, 0), TimeUnit.MICROSECONDS);
+		}
+	}//afterWrite
+
+	/**
+	 * The threads that carry out held back flushes, for all connections. A
+	 * flush can still wait on the network, so there are a few of them, and
+	 * one that finds a connection busy moves on to the next.
+	 */
+	private static synchronized ScheduledExecutorService getFlusher() {
+		if (flusher == null) {
+			int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+			flusher = Executors.newScheduledThreadPool(threads, new ThreadFactory() {
+				private final AtomicInteger	count	= new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "telnetd-flusher-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return flusher;
+	}//getFlusher
+
 	/**
 	 * Method to flush the Low-Level Buffer
 	 */
-	public synchronized void flush() throws IOException {
-		telnetIO.flush();
+	public void flush() throws IOException {
+		acquireWriteLock();
+		try {
+			telnetIO.flush();
+		} finally {
+			writeLock.unlock();
+		}
 	}//flush (implements the famous iToilet)
 
-	public synchronized void close() {
+	public void close() {
 		telnetIO.closeOutput();
 		telnetIO.closeInput();
 	}//close
 
+	/**
+	 * Takes the write lock, which every write holds for as long as it takes to
+	 * hand all its bytes to the {@link TelnetIO}, so output from different
+	 * threads can't be mixed up within an escape sequence. It's shared with
+	 * the telnet layer's replies to negotiation, and is a
+	 * <code>java.util.concurrent</code> lock rather than
+	 * <code>synchronized</code> so that a virtual thread blocked writing
+	 * doesn't pin its carrier.
+	 */
+	private void acquireWriteLock() throws IOException {
+		try {
+			writeLock.lockInterruptibly();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}//acquireWriteLock
+
 	/*** End of Auxiliary I/O methods **************************************/
 
 	/************************************************************************
@@ -571,6 +879,11 @@ public class TerminalIO implements BasicTerminalIO {
 		terminal = TerminalManager.getReference().getTerminal(terminalName);
 		//Terminal is set we init it....
 		initTerminal();
+		synchronized (this) {
+			if (screen != null) {
+				screen.invalidate();
+			}
+		}
 		//debug message
 		log.debug("Set terminal to " + terminal.toString());
 	}//setTerminal
@@ -578,9 +891,14 @@ public class TerminalIO implements BasicTerminalIO {
 	/**
 	 * Terminal initialization
 	 */
-	private synchronized void initTerminal() throws IOException {
-		telnetIO.write(terminal.getInitSequence());
-		flush();
+	private void initTerminal() throws IOException {
+		acquireWriteLock();
+		try {
+			telnetIO.write(terminal.getInitSequence());
+			flush();
+		} finally {
+			writeLock.unlock();
+		}
 	}//initTerminal
 
 	/**
@@ -597,6 +915,38 @@ public class TerminalIO implements BasicTerminalIO {
 		return connectionData.getTerminalColumns();
 	}//getColumns
 
+	/**
+	 * Returns the virtual screen of this connection, made the size of the
+	 * terminal the first time it's asked for.
+	 *
+	 * @see Screen
+	 */
+	public synchronized Screen getScreen() {
+		if (screen == null) {
+			screen = new Screen(this);
+		}
+		return screen;
+	}//getScreen
+
+	/**
+	 * Returns the cursor motion planner for the terminal in use. The write
+	 * lock must be held.
+	 */
+	CursorMotion getCursorMotion() {
+		if (motion == null || motion.getTerminal() != terminal) {
+			motion = new CursorMotion(terminal);
+		}
+		motion.setBinaryOutput(connectionData.isBinaryOutput());
+		return motion;
+	}//getCursorMotion
+
+	/**
+	 * Returns the charset chars are written in.
+	 */
+	Charset getEncoding() {
+		return telnetIO.getEncoding();
+	}//getEncoding
+
 	/**
 	 * Accessor Method for the terminal geometry changed flag
 	 */
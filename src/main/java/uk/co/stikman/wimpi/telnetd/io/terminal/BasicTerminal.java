@@ -32,6 +32,9 @@
 
 package uk.co.stikman.wimpi.telnetd.io.terminal;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
 import uk.co.stikman.wimpi.telnetd.io.TerminalIO;
 
 /**
@@ -47,6 +50,69 @@ public abstract class BasicTerminal implements Terminal {
 	//Associations
 	protected Colorizer colorizer;
 
+	//Members
+	private volatile Tables		tables;						//made the first time they're needed, see tables()
+
+	/**
+	 * Digits of the numbers below 1000, for cursor positions and the like.
+	 */
+	private static final byte[][]	DIGITS		= new byte[1000][];
+
+	/**
+	 * The parameters there are ready made graphics rendition sequences for,
+	 * which covers all the colors and styles.
+	 */
+	private static final int		GR_PARAMS	= 108;
+
+	static {
+		for (int i = 0; i < DIGITS.length; ++i) {
+			DIGITS[i] = Integer.toString(i).getBytes();
+		}
+	}
+
+	/**
+	 * The sequences that are always the same, taken from the <tt>get</tt>
+	 * methods once so that a subclass's own are used.
+	 */
+	private static final class Tables {
+		final byte[][]		moves	= new byte[4][];				//one step UP, DOWN, RIGHT and LEFT
+		final byte[]		home;
+		final byte[][]		erase	= new byte[TerminalIO.EES - TerminalIO.EEOL + 1][];	//EEOL to EES
+		final byte[][]		special	= new byte[5][];				//see specialIndex()
+		final byte[][][]	gr		= new byte[3][GR_PARAMS][];		//FCOLOR, BCOLOR, STYLE
+		final byte[]		reset;
+		final boolean		ownMoves;								//a subclass makes its own moves and positions
+
+		Tables(BasicTerminal t) {
+			for (int i = 0; i < moves.length; ++i) {
+				moves[i] = t.getCursorMoveSequence(TerminalIO.UP + i, 1);
+			}
+			home = t.getCursorPositioningSequence(TerminalIO.HOME);
+			for (int i = 0; i < erase.length; ++i) {
+				erase[i] = t.getEraseSequence(TerminalIO.EEOL + i);
+			}
+			int[] functions = { TerminalIO.STORECURSOR, TerminalIO.RESTORECURSOR, TerminalIO.DEVICERESET, TerminalIO.LINEWRAP, TerminalIO.NOLINEWRAP };
+			for (int f : functions) {
+				special[specialIndex(f)] = t.getSpecialSequence(f);
+			}
+			for (int i = 0; i < GR_PARAMS; ++i) {
+				gr[0][i] = t.getGRSequence(TerminalIO.FCOLOR, i);
+				gr[1][i] = t.getGRSequence(TerminalIO.BCOLOR, i);
+				gr[2][i] = t.getGRSequence(TerminalIO.STYLE, i);
+			}
+			reset = t.getGRSequence(TerminalIO.RESET, 0);
+			ownMoves = declaredBelow(t, "getCursorMoveSequence", int.class, int.class) || declaredBelow(t, "getCursorPositioningSequence", int[].class) || declaredBelow(t, "translateIntToDigitCodes", int.class);
+		}//constructor
+
+		private static boolean declaredBelow(BasicTerminal t, String name, Class<?>... params) {
+			try {
+				return t.getClass().getMethod(name, params).getDeclaringClass() != BasicTerminal.class;
+			} catch (NoSuchMethodException ex) {
+				return false;
+			}
+		}//declaredBelow
+	}//class Tables
+
 	/**
 	 * Constructs an instance with an associated colorizer.
 	 */
@@ -326,6 +392,149 @@ public abstract class BasicTerminal implements Terminal {
 		return sequence;
 	}//getScrollMarginsSequence
 
+	/**
+	 * Made the first time, rather than in the constructor, because they come
+	 * from methods a subclass may override.
+	 */
+	private Tables tables() {
+		Tables t = tables;
+		if (t == null) {
+			t = new Tables(this);
+			tables = t;
+		}
+		return t;
+	}//tables
+
+	private static int specialIndex(int function) {
+		switch (function) {
+			case TerminalIO.STORECURSOR:
+				return 0;
+			case TerminalIO.RESTORECURSOR:
+				return 1;
+			case TerminalIO.DEVICERESET:
+				return 2;
+			case TerminalIO.LINEWRAP:
+				return 3;
+			case TerminalIO.NOLINEWRAP:
+				return 4;
+			default:
+				return -1;
+		}
+	}//specialIndex
+
+	private static void put(ByteBuffer buf, byte[] sequence) {
+		if (sequence != null) {
+			buf.put(sequence);
+		}
+	}//put
+
+	/**
+	 * Puts the digits of a number, as {@link #translateIntToDigitCodes(int)}
+	 * would make them.
+	 */
+	private static void putDigits(ByteBuffer buf, int n) {
+		if (n >= 0 && n < DIGITS.length) {
+			buf.put(DIGITS[n]);
+		} else {
+			buf.put(Integer.toString(n).getBytes());
+		}
+	}//putDigits
+
+	@Override
+	public void appendCursorMoveSequence(ByteBuffer buf, int direction, int times) {
+		Tables t = tables();
+		int i = direction - TerminalIO.UP;
+		if (t.ownMoves || i < 0 || i >= t.moves.length) {
+			put(buf, getCursorMoveSequence(direction, times));
+			return;
+		}
+		byte[] step = t.moves[i];
+		if (buf.remaining() < step.length * Math.max(times, 0)) {
+			throw new BufferOverflowException();
+		}
+		for (int n = 0; n < times; ++n) {
+			buf.put(step);
+		}
+	}//appendCursorMoveSequence
+
+	@Override
+	public void appendCursorMoveCountSequence(ByteBuffer buf, int direction, int times) {
+		Tables t = tables();
+		int i = direction - TerminalIO.UP;
+		if (t.ownMoves || i < 0 || i >= t.moves.length || times <= 1) {
+			appendCursorMoveSequence(buf, direction, times);
+			return;
+		}
+		byte[] step = t.moves[i];
+		buf.put(ESC).put(LSB);
+		putDigits(buf, times);
+		buf.put(step[step.length - 1]);
+	}//appendCursorMoveCountSequence
+
+	@Override
+	public void appendCursorPositioningSequence(ByteBuffer buf, int row, int col) {
+		Tables t = tables();
+		if (t.ownMoves) {
+			put(buf, getCursorPositioningSequence(new int[] { row, col }));
+		} else if (row == TerminalIO.HOME[0] && col == TerminalIO.HOME[1]) {
+			buf.put(t.home);
+		} else {
+			buf.put(ESC).put(LSB);
+			putDigits(buf, row);
+			buf.put(SEMICOLON);
+			putDigits(buf, col);
+			buf.put(H);
+		}
+	}//appendCursorPositioningSequence
+
+	@Override
+	public void appendEraseSequence(ByteBuffer buf, int eraseFunc) {
+		int i = eraseFunc - TerminalIO.EEOL;
+		if (i >= 0 && i < tables().erase.length) {
+			put(buf, tables().erase[i]);
+		} else {
+			put(buf, getEraseSequence(eraseFunc));
+		}
+	}//appendEraseSequence
+
+	@Override
+	public void appendSpecialSequence(ByteBuffer buf, int function) {
+		int i = specialIndex(function);
+		if (i >= 0) {
+			put(buf, tables().special[i]);
+		} else {
+			put(buf, getSpecialSequence(function));
+		}
+	}//appendSpecialSequence
+
+	@Override
+	public void appendGRSequence(ByteBuffer buf, int type, int param) {
+		Tables t = tables();
+		int i;
+		switch (type) {
+			case TerminalIO.FCOLOR:
+				i = 0;
+				break;
+			case TerminalIO.BCOLOR:
+				i = 1;
+				break;
+			case TerminalIO.STYLE:
+				i = 2;
+				break;
+			case TerminalIO.RESET:
+				put(buf, t.reset);
+				return;
+			default:
+				i = -1;
+				break;
+		}
+		if (i >= 0 && param >= 0 && param < GR_PARAMS) {
+			put(buf, t.gr[i][param]);
+		} else {
+			put(buf, getGRSequence(type, param));
+		}
+	}//appendGRSequence
+
 	public String format(String str) {
 		return colorizer.colorize(str, supportsSGR(), false);
 	}//format
@@ -0,0 +1,311 @@
+package uk.co.stikman.wimpi.telnetd.io.terminal;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import uk.co.stikman.wimpi.telnetd.io.TerminalIO;
+
+/**
+ * Plans the cheapest way of moving the cursor on a terminal, in the manner of
+ * curses' mvcur. It knows what each way costs in bytes, as the terminal makes
+ * them, and picks the fewest among
+ * <ul>
+ * <li>an absolute position, or home
+ * <li>moving up, down, left and right by a count, or one step at a time
+ * <li>backspaces, to go left
+ * <li>a newline, to the start of the next row
+ * <li>with binary output, a CR to the start of the row and LFs to go down
+ * <li>writing again what's shown on the row, to go right
+ * </ul>
+ * Without binary output a CR or LF alone goes out as CR LF, so they are used
+ * only together. A newline is never used to go past the row moved to, so
+ * nothing scrolls.
+ * <p>
+ * Rows and columns count from 0. An instance isn't thread safe; it belongs
+ * to a connection, and is used with its write lock held.
+ */
+public class CursorMotion {
+
+	/**
+	 * What's shown on the row the cursor moves to, so that it can be moved
+	 * right by writing it again.
+	 */
+	public interface Row {
+
+		/**
+		 * @return the char at the column, if it's ASCII and would look the
+		 *         same written again now, otherwise -1
+		 */
+		public int charAt(int col);
+
+	}//interface Row
+
+	private static final int	NEVER		= Integer.MAX_VALUE / 4;	//a cost that's never the cheapest
+	private static final byte	CR			= 13;
+	private static final byte	LF			= 10;
+
+	//the ways of moving
+	private static final int	ABSOLUTE	= 0;
+	private static final int	RELATIVE	= 1;
+	private static final int	LINE_START	= 2;
+	private static final int	HOME		= 3;
+
+	private final Terminal		terminal;
+	private final ByteBuffer	scratch		= ByteBuffer.allocate(256);	//sequences are made here to be measured
+	private final int[][]		counts		= new int[4][];				//cost of each count, up and down, right and left, measured as needed
+	private final int			home;
+	private boolean				binaryOutput;
+
+	public CursorMotion(Terminal terminal) {
+		this.terminal = terminal;
+		for (int i = 0; i < counts.length; ++i) {
+			counts[i] = new int[0];
+		}
+		terminal.appendCursorPositioningSequence(scratch, TerminalIO.HOME[0], TerminalIO.HOME[1]);
+		home = measure();
+	}//constructor
+
+	public Terminal getTerminal() {
+		return terminal;
+	}//getTerminal
+
+	/**
+	 * Sets whether CR and LF go to the terminal as they are, as they do with
+	 * binary output.
+	 */
+	public void setBinaryOutput(boolean b) {
+		binaryOutput = b;
+	}//setBinaryOutput
+
+	public boolean isBinaryOutput() {
+		return binaryOutput;
+	}//isBinaryOutput
+
+	/**
+	 * Returns what the cheapest move costs, in bytes.
+	 *
+	 * @param fromRow
+	 *            the row the cursor is on, or -1 if it's not known
+	 * @param row
+	 *            what's shown on the row moved to, or <tt>null</tt>
+	 */
+	public int cost(int fromRow, int fromCol, int toRow, int toCol, Row row) {
+		return plan(null, fromRow, fromCol, toRow, toCol, row);
+	}//cost
+
+	/**
+	 * Appends the cheapest move.
+	 *
+	 * @param fromRow
+	 *            the row the cursor is on, or -1 if it's not known
+	 * @param row
+	 *            what's shown on the row moved to, or <tt>null</tt>
+	 * @return the number of bytes appended
+	 * @throws BufferOverflowException
+	 *             if there isn't room in the buffer
+	 */
+	public int move(ByteBuffer buf, int fromRow, int fromCol, int toRow, int toCol, Row row) {
+		return plan(buf, fromRow, fromCol, toRow, toCol, row);
+	}//move
+
+	public int move(ByteBuffer buf, int fromRow, int fromCol, int toRow, int toCol) {
+		return plan(buf, fromRow, fromCol, toRow, toCol, null);
+	}//move
+
+	/**
+	 * Appends the cheapest move from where the cursor is, in one direction.
+	 *
+	 * @param direction
+	 *            {@link TerminalIO#UP}, {@link TerminalIO#DOWN},
+	 *            {@link TerminalIO#RIGHT} or {@link TerminalIO#LEFT}
+	 * @return the number of bytes appended
+	 */
+	public int moveBy(ByteBuffer buf, int direction, int times) {
+		switch (direction) {
+			case TerminalIO.UP:
+				return vertical(buf, times, 0);
+			case TerminalIO.DOWN:
+				//not by LFs, which scroll at the bottom
+				return count(buf, 1, times);
+			case TerminalIO.RIGHT:
+				return horizontal(buf, 0, times, null);
+			case TerminalIO.LEFT:
+				return horizontal(buf, times, 0, null);
+			default:
+				int start = buf.position();
+				terminal.appendCursorMoveSequence(buf, direction, times);
+				return buf.position() - start;
+		}
+	}//moveBy
+
+	/**
+	 * Works out the cheapest way, and appends it if there's a buffer.
+	 */
+	private int plan(ByteBuffer buf, int fromRow, int fromCol, int toRow, int toCol, Row row) {
+		if (fromRow == toRow && fromCol == toCol && fromRow >= 0) {
+			return 0;
+		}
+		int how = ABSOLUTE;
+		int best = absolute(null, toRow, toCol);
+		int c = home + vertical(null, 0, toRow) + horizontal(null, 0, toCol, row);
+		if (c < best) {
+			how = HOME;
+			best = c;
+		}
+		if (fromRow >= 0) {
+			c = vertical(null, fromRow, toRow) + horizontal(null, fromCol, toCol, row);
+			if (c < best) {
+				how = RELATIVE;
+				best = c;
+			}
+			c = lineStart(null, fromRow, toRow, toCol, row);
+			if (c < best) {
+				how = LINE_START;
+				best = c;
+			}
+		}
+		if (buf == null) {
+			return best;
+		}
+		switch (how) {
+			case RELATIVE:
+				return vertical(buf, fromRow, toRow) + horizontal(buf, fromCol, toCol, row);
+			case LINE_START:
+				return lineStart(buf, fromRow, toRow, toCol, row);
+			case HOME:
+				terminal.appendCursorPositioningSequence(buf, TerminalIO.HOME[0], TerminalIO.HOME[1]);
+				return home + vertical(buf, 0, toRow) + horizontal(buf, 0, toCol, row);
+			default:
+				return absolute(buf, toRow, toCol);
+		}
+	}//plan
+
+	private int absolute(ByteBuffer buf, int toRow, int toCol) {
+		if (toRow == 0 && toCol == 0) {
+			if (buf != null) {
+				terminal.appendCursorPositioningSequence(buf, TerminalIO.HOME[0], TerminalIO.HOME[1]);
+			}
+			return home;
+		}
+		ByteBuffer b = buf == null ? scratch : buf;
+		int start = b.position();
+		terminal.appendCursorPositioningSequence(b, toRow + 1, toCol + 1);
+		if (buf == null) {
+			return measure();
+		}
+		return b.position() - start;
+	}//absolute
+
+	/**
+	 * To the start of a row first, by CR or newline.
+	 */
+	private int lineStart(ByteBuffer buf, int fromRow, int toRow, int toCol, Row row) {
+		if (binaryOutput) {
+			if (buf != null) {
+				buf.put(CR);
+			}
+			return 1 + vertical(buf, fromRow, toRow) + horizontal(buf, 0, toCol, row);
+		}
+		if (toRow <= fromRow) {
+			return NEVER;
+		}
+		if (buf != null) {
+			buf.put(CR).put(LF);
+		}
+		return 2 + vertical(buf, fromRow + 1, toRow) + horizontal(buf, 0, toCol, row);
+	}//lineStart
+
+	private int vertical(ByteBuffer buf, int from, int to) {
+		if (to < from) {
+			return count(buf, 0, from - to);
+		}
+		if (to == from) {
+			return 0;
+		}
+		int n = to - from;
+		if (binaryOutput && n <= count(null, 1, n)) {
+			if (buf != null) {
+				for (int i = 0; i < n; ++i) {
+					buf.put(LF);
+				}
+			}
+			return n;
+		}
+		return count(buf, 1, n);
+	}//vertical
+
+	private int horizontal(ByteBuffer buf, int from, int to, Row row) {
+		if (to == from) {
+			return 0;
+		}
+		int n = Math.abs(to - from);
+		if (to < from) {
+			if (n <= count(null, 3, n)) {
+				if (buf != null) {
+					for (int i = 0; i < n; ++i) {
+						buf.put(Terminal.BS);
+					}
+				}
+				return n;
+			}
+			return count(buf, 3, n);
+		}
+		if (row != null && n <= count(null, 2, n) && overwritable(row, from, to)) {
+			if (buf != null) {
+				for (int i = from; i < to; ++i) {
+					buf.put((byte) row.charAt(i));
+				}
+			}
+			return n;
+		}
+		return count(buf, 2, n);
+	}//horizontal
+
+	private static boolean overwritable(Row row, int from, int to) {
+		for (int i = from; i < to; ++i) {
+			int c = row.charAt(i);
+			if (c < 32 || c >= 127) {
+				return false;
+			}
+		}
+		return true;
+	}//overwritable
+
+	/**
+	 * The cost of a move by a count, which is made the first time to see.
+	 *
+	 * @param i
+	 *            0 to 3 for up, down, right and left
+	 */
+	private int count(ByteBuffer buf, int i, int n) {
+		int direction = TerminalIO.UP + i;
+		if (buf != null) {
+			int start = buf.position();
+			terminal.appendCursorMoveCountSequence(buf, direction, n);
+			return buf.position() - start;
+		}
+		int[] costs = counts[i];
+		if (n >= costs.length) {
+			int[] grown = new int[Math.max(n + 1, costs.length * 2)];
+			System.arraycopy(costs, 0, grown, 0, costs.length);
+			for (int k = Math.max(costs.length, 1); k < grown.length; ++k) {
+				try {
+					terminal.appendCursorMoveCountSequence(scratch, direction, k);
+					grown[k] = measure();
+				} catch (BufferOverflowException ex) {
+					scratch.clear();
+					grown[k] = NEVER;
+				}
+			}
+			counts[i] = costs = grown;
+		}
+		return costs[n];
+	}//count
+
+	private int measure() {
+		int n = scratch.position();
+		scratch.clear();
+		return n;
+	}//measure
+
+}//class CursorMotion
@@ -32,6 +32,8 @@
 
 package uk.co.stikman.wimpi.telnetd.io.terminal;
 
+import java.nio.ByteBuffer;
+
 /**
  * On top of the telnet protocol communication layer
  * there is a layer for terminal communication. This layer
@@ -184,6 +186,104 @@ public interface Terminal {
    */
   public byte[] getGRSequence(int type, int param);
 
+  /**
+   * Appends the sequence of {@link #getCursorMoveSequence(int,int)} to
+   * the given buffer.<br>
+   * This and the other <tt>append</tt> methods let a caller that draws a lot
+   * (a whole screen, say) put its sequences into one buffer of its own
+   * instead of getting a new array for each. The defaults here simply copy
+   * what the <tt>get</tt> methods return; {@link BasicTerminal} does it
+   * without allocating.
+   *
+   * @param buf   the buffer to append to.
+   * @param dir   Direction of movement.
+   * @param times Number of movements into given direction.
+   * @throws java.nio.BufferOverflowException if there isn't room in the buffer.
+   */
+  public default void appendCursorMoveSequence(ByteBuffer buf, int dir, int times) {
+    byte[] sequence = getCursorMoveSequence(dir, times);
+    if (sequence != null) {
+      buf.put(sequence);
+    }
+  }
+
+  /**
+   * Appends a sequence moving the cursor the given number of times in one
+   * go, as <tt>ESC [ n C</tt> does. Terminals that can't do that repeat a
+   * single move, which is what the default does.
+   *
+   * @param buf   the buffer to append to.
+   * @param dir   Direction of movement.
+   * @param times Number of movements into given direction.
+   * @throws java.nio.BufferOverflowException if there isn't room in the buffer.
+   * @see CursorMotion
+   */
+  public default void appendCursorMoveCountSequence(ByteBuffer buf, int dir, int times) {
+    appendCursorMoveSequence(buf, dir, times);
+  }
+
+  /**
+   * Appends the sequence of {@link #getCursorPositioningSequence(int[])}
+   * to the given buffer.<br>
+   *
+   * @param buf the buffer to append to.
+   * @param row row coordinate.
+   * @param col column coordinate.
+   * @throws java.nio.BufferOverflowException if there isn't room in the buffer.
+   */
+  public default void appendCursorPositioningSequence(ByteBuffer buf, int row, int col) {
+    byte[] sequence = getCursorPositioningSequence(new int[]{row, col});
+    if (sequence != null) {
+      buf.put(sequence);
+    }
+  }
+
+  /**
+   * Appends the sequence of {@link #getEraseSequence(int)} to the given
+   * buffer.<br>
+   *
+   * @param buf       the buffer to append to.
+   * @param eraseFunc Type of erase function.
+   * @throws java.nio.BufferOverflowException if there isn't room in the buffer.
+   */
+  public default void appendEraseSequence(ByteBuffer buf, int eraseFunc) {
+    byte[] sequence = getEraseSequence(eraseFunc);
+    if (sequence != null) {
+      buf.put(sequence);
+    }
+  }
+
+  /**
+   * Appends the sequence of {@link #getSpecialSequence(int)} to the given
+   * buffer.<br>
+   *
+   * @param buf      the buffer to append to.
+   * @param function Type of special sequence.
+   * @throws java.nio.BufferOverflowException if there isn't room in the buffer.
+   */
+  public default void appendSpecialSequence(ByteBuffer buf, int function) {
+    byte[] sequence = getSpecialSequence(function);
+    if (sequence != null) {
+      buf.put(sequence);
+    }
+  }
+
+  /**
+   * Appends the sequence of {@link #getGRSequence(int,int)} to the given
+   * buffer.<br>
+   *
+   * @param buf   the buffer to append to.
+   * @param type  Type of graphics rendition request.
+   * @param param Parameter to the type requested.
+   * @throws java.nio.BufferOverflowException if there isn't room in the buffer.
+   */
+  public default void appendGRSequence(ByteBuffer buf, int type, int param) {
+    byte[] sequence = getGRSequence(type, param);
+    if (sequence != null) {
+      buf.put(sequence);
+    }
+  }
+
 
   /**
    * Returns a "formatted" string containing terminal dependent
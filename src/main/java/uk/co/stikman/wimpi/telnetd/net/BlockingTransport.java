@@ -0,0 +1,105 @@
+package uk.co.stikman.wimpi.telnetd.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * The classic {@link Transport}: a plain blocking {@link Socket}, read and
+ * written directly by the connection's own thread. With an
+ * {@link OutputQueue}, a task of its own does the writing instead, on the
+ * same executor as the connections when there is one, so it is a virtual
+ * thread when they are.
+ */
+public class BlockingTransport implements Transport {
+
+	private final Socket		socket;
+	private volatile OutputQueue	queue;
+
+	public BlockingTransport(Socket socket) {
+		this.socket = socket;
+	}
+
+	@Override
+	public Socket getSocket() {
+		return socket;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return socket.getInputStream();
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		OutputQueue q = queue;
+		return q != null ? q : socket.getOutputStream();
+	}
+
+	@Override
+	public void setOutputQueue(final OutputQueue q, Executor executor) throws IOException {
+		final OutputStream out = socket.getOutputStream();
+		q.setOnDisconnect(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					close();
+				} catch (IOException ex) {
+					//nothing to be done
+				}
+			}
+		});
+		Runnable writer = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					ByteBuffer bb;
+					while ((bb = q.take()) != null) {
+						out.write(bb.array(), bb.arrayOffset() + bb.position(), bb.remaining());
+						q.sent();
+					}
+				} catch (IOException ex) {
+					q.abort(ex);
+				} catch (InterruptedException ex) {
+					q.abort(null);
+				}
+			}
+		};
+		if (executor == null) {
+			Thread t = new Thread(writer, "telnetd-writer-" + socket.getPort());
+			t.setDaemon(true);
+			t.start();
+		} else {
+			try {
+				executor.execute(writer);
+			} catch (RejectedExecutionException ex) {
+				throw new IOException("Could not start writing", ex);
+			}
+		}
+		queue = q;
+	}
+
+	@Override
+	public void setReadTimeout(int millis) throws IOException {
+		socket.setSoTimeout(millis);
+	}
+
+	@Override
+	public void close() throws IOException {
+		OutputQueue q = queue;
+		if (q != null) {
+			q.abort(null);
+		}
+		socket.close();
+	}
+
+	@Override
+	public String toString() {
+		return "BlockingTransport [" + socket + "]";
+	}
+
+}//class BlockingTransport
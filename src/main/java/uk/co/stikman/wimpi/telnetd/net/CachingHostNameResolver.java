@@ -0,0 +1,254 @@
+package uk.co.stikman.wimpi.telnetd.net;
+
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * {@link HostNameResolver} that sits in front of another one and remembers its
+ * answers, so reconnecting users and lots of clients behind the same NAT don't
+ * cost a lookup every time.
+ * <ul>
+ * <li>Names are kept for a fixed TTL, failures for a (usually shorter)
+ * negative TTL
+ * <li>The cache holds at most a fixed number of entries, the least recently
+ * used go first
+ * <li>Concurrent lookups for the same address share a single upstream lookup
+ * <li>At most a fixed number of upstream lookups run at once, past that
+ * lookups fail straight away rather than queueing behind a slow DNS server
+ * </ul>
+ * Hit, miss and latency counters are kept for monitoring.
+ */
+public class CachingHostNameResolver implements HostNameResolver {
+
+	private static final Log								log				= LogFactory.getLog(CachingHostNameResolver.class);
+
+	private final HostNameResolver							delegate;
+	private final long										ttl;
+	private final long										negativeTtl;
+	private final Semaphore									permits;
+	private final ReentrantLock								lock			= new ReentrantLock();
+	private final LinkedHashMap<InetAddress, Entry>			cache;
+	private final Map<InetAddress, CompletableFuture<String>>	inflight		= new ConcurrentHashMap<>();
+
+	private final AtomicLong								hits			= new AtomicLong();
+	private final AtomicLong								negativeHits	= new AtomicLong();
+	private final AtomicLong								misses			= new AtomicLong();
+	private final AtomicLong								coalesced		= new AtomicLong();
+	private final AtomicLong								rejected		= new AtomicLong();
+	private final AtomicLong								failures		= new AtomicLong();
+	private final AtomicLong								lookups			= new AtomicLong();
+	private final AtomicLong								lookupNanos		= new AtomicLong();
+	private final AtomicLong								maxLookupNanos	= new AtomicLong();
+
+	private static class Entry {
+		final String	name;		//null for a failed lookup
+		final long		expires;
+
+		Entry(String name, long expires) {
+			this.name = name;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * @param delegate
+	 *            resolver that does the actual lookups
+	 * @param maxEntries
+	 *            maximum number of addresses to remember
+	 * @param ttl
+	 *            how long to remember a name, in milliseconds
+	 * @param negativeTtl
+	 *            how long to remember a failed lookup, in milliseconds
+	 * @param maxConcurrent
+	 *            maximum number of lookups passed to the delegate at once
+	 */
+	public CachingHostNameResolver(HostNameResolver delegate, final int maxEntries, long ttl, long negativeTtl, int maxConcurrent) {
+		this.delegate = delegate;
+		this.ttl = ttl;
+		this.negativeTtl = negativeTtl;
+		this.permits = new Semaphore(maxConcurrent);
+		this.cache = new LinkedHashMap<InetAddress, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<InetAddress, Entry> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}//constructor
+
+	@Override
+	public String resolve(InetAddress addr) {
+		Entry e;
+		lock.lock();
+		try {
+			e = cache.get(addr);
+		} finally {
+			lock.unlock();
+		}
+		if (e != null && e.expires - System.currentTimeMillis() > 0) {
+			if (e.name == null)
+				negativeHits.incrementAndGet();
+			else
+				hits.incrementAndGet();
+			return e.name;
+		}
+		misses.incrementAndGet();
+
+		//if someone is already looking this one up then wait for theirs
+		CompletableFuture<String> mine = new CompletableFuture<>();
+		CompletableFuture<String> theirs = inflight.putIfAbsent(addr, mine);
+		if (theirs != null) {
+			coalesced.incrementAndGet();
+			return theirs.join();
+		}
+
+		String name = null;
+		try {
+			if (!permits.tryAcquire()) {
+				//don't cache this, it says nothing about the address
+				rejected.incrementAndGet();
+				return null;
+			}
+			try {
+				name = lookup(addr);
+			} finally {
+				permits.release();
+			}
+			lock.lock();
+			try {
+				cache.put(addr, new Entry(name, System.currentTimeMillis() + (name == null ? negativeTtl : ttl)));
+			} finally {
+				lock.unlock();
+			}
+			return name;
+		} finally {
+			inflight.remove(addr, mine);
+			mine.complete(name);
+		}
+	}//resolve
+
+	private String lookup(InetAddress addr) {
+		long t0 = System.nanoTime();
+		String name = null;
+		try {
+			name = delegate.resolve(addr);
+		} catch (RuntimeException ex) {
+			log.error("lookup()", ex);
+		}
+		long dt = System.nanoTime() - t0;
+		lookups.incrementAndGet();
+		lookupNanos.addAndGet(dt);
+		long max;
+		while (dt > (max = maxLookupNanos.get()) && !maxLookupNanos.compareAndSet(max, dt))
+			;
+		if (name == null)
+			failures.incrementAndGet();
+		return name;
+	}//lookup
+
+	/**
+	 * Forgets everything in the cache.
+	 */
+	public void clear() {
+		lock.lock();
+		try {
+			cache.clear();
+		} finally {
+			lock.unlock();
+		}
+	}//clear
+
+	/**
+	 * @return the number of addresses currently cached, including expired ones
+	 *         that haven't been replaced yet
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return cache.size();
+		} finally {
+			lock.unlock();
+		}
+	}//size
+
+	/**
+	 * @return number of lookups answered with a name from the cache
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return number of lookups answered with a cached failure
+	 */
+	public long getNegativeHits() {
+		return negativeHits.get();
+	}
+
+	/**
+	 * @return number of lookups that weren't in the cache, or had expired
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return number of misses that shared another thread's upstream lookup
+	 */
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+
+	/**
+	 * @return number of misses given up on because too many upstream lookups
+	 *         were already running
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * @return number of upstream lookups that didn't find a name
+	 */
+	public long getFailures() {
+		return failures.get();
+	}
+
+	/**
+	 * @return number of upstream lookups made
+	 */
+	public long getLookups() {
+		return lookups.get();
+	}
+
+	/**
+	 * @return mean time taken by an upstream lookup, in milliseconds
+	 */
+	public double getMeanLookupMillis() {
+		long n = lookups.get();
+		return n == 0 ? 0 : lookupNanos.get() / 1000000.0 / n;
+	}
+
+	/**
+	 * @return longest time taken by an upstream lookup, in milliseconds
+	 */
+	public double getMaxLookupMillis() {
+		return maxLookupNanos.get() / 1000000.0;
+	}
+
+	@Override
+	public String toString() {
+		return "CachingHostNameResolver [size=" + size() + ", hits=" + hits + ", negativeHits=" + negativeHits + ", misses=" + misses + ", rejected=" + rejected + ", meanLookupMillis=" + getMeanLookupMillis() + "]";
+	}
+
+}//class CachingHostNameResolver
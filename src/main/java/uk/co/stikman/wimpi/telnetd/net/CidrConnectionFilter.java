@@ -0,0 +1,378 @@
+package uk.co.stikman.wimpi.telnetd.net;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Properties;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * {@link ConnectionFilter} that allows or denies addresses by IPv4 and IPv6
+ * CIDR ranges, for rule lists too long to check one by one.
+ * <p>
+ * Rules are kept in a path compressed binary trie (one for each address
+ * family), so a lookup costs at most one step per rule the address falls in,
+ * however many rules there are. The most specific matching rule wins, and an
+ * address no rule matches gets the default.
+ * <p>
+ * A rule set is never changed once built. New rules are built on the side and
+ * swapped in with a single write, so {@link #reload()}, {@link #load(File)}
+ * and {@link #setRules(Collection, Collection, boolean)} can be called while
+ * connections are being accepted, and each check sees either the old rules or
+ * the new ones. If new rules can't be parsed the old ones stay in place.
+ * <p>
+ * Settings, read by {@link #initialize(Properties)}:
+ * <ul>
+ * <li><tt>cidr.default</tt>: <tt>allow</tt> (the default) or <tt>deny</tt>
+ * <li><tt>cidr.allow</tt>, <tt>cidr.deny</tt>: comma separated ranges
+ * <li><tt>cidr.file</tt>: a file of rules, added to the above. One rule per
+ * line, <tt>allow 10.0.0.0/8</tt> or <tt>deny 2001:db8::/32</tt>, a line
+ * <tt>default deny</tt> overrides <tt>cidr.default</tt>, and <tt>#</tt>
+ * starts a comment
+ * </ul>
+ * A range without a prefix length is a single address.
+ */
+public class CidrConnectionFilter implements ConnectionFilter {
+
+	private static final Log	log				= LogFactory.getLog(CidrConnectionFilter.class);
+
+	private static final byte	NONE			= 0;
+	private static final byte	ALLOW			= 1;
+	private static final byte	DENY			= 2;
+
+	private volatile Rules		rules			= new Rules(true);
+	private boolean				allowByDefault	= true;
+	private String				allowList;
+	private String				denyList;
+	private File				file;
+
+	/**
+	 * A trie node, covering the first <tt>len</tt> bits of
+	 * <tt>hi</tt>:<tt>lo</tt>. IPv4 addresses sit in the top 32 bits of
+	 * <tt>hi</tt>.
+	 */
+	private static final class Node {
+		final long	hi;
+		final long	lo;
+		final long	hiMask;
+		final long	loMask;
+		final int	len;
+		byte		action;
+		Node		zero;
+		Node		one;
+
+		Node(long hi, long lo, int len, byte action) {
+			this.len = len;
+			this.hiMask = len == 0 ? 0 : len >= 64 ? -1L : -1L << (64 - len);
+			this.loMask = len <= 64 ? 0 : len == 128 ? -1L : -1L << (128 - len);
+			this.hi = hi & hiMask;
+			this.lo = lo & loMask;
+			this.action = action;
+		}
+
+		boolean matches(long khi, long klo) {
+			return ((khi ^ hi) & hiMask) == 0 && ((klo ^ lo) & loMask) == 0;
+		}
+
+		Node child(long khi, long klo) {
+			return bit(khi, klo, len) == 0 ? zero : one;
+		}
+	}
+
+	/**
+	 * A set of rules, never changed once it has been published.
+	 */
+	private static final class Rules {
+		final Node		v4		= new Node(0, 0, 0, NONE);
+		final Node		v6		= new Node(0, 0, 0, NONE);
+		boolean			allowByDefault;
+		int				count;
+
+		Rules(boolean allowByDefault) {
+			this.allowByDefault = allowByDefault;
+		}
+
+		void add(String cidr, byte action) {
+			String s = cidr.trim();
+			int len = -1;
+			int slash = s.indexOf('/');
+			if (slash >= 0) {
+				len = Integer.parseInt(s.substring(slash + 1).trim());
+				s = s.substring(0, slash).trim();
+			}
+			//only ever literals, never a name that needs looking up
+			boolean literal = s.indexOf('.') >= 0 || s.indexOf(':') >= 0;
+			for (int i = 0; i < s.length() && literal; ++i) {
+				char ch = s.charAt(i);
+				literal = Character.digit(ch, 16) >= 0 || ch == '.' || ch == ':';
+			}
+			if (!literal) {
+				throw new IllegalArgumentException("Not an address range: " + cidr);
+			}
+			byte[] b;
+			try {
+				b = InetAddress.getByName(s).getAddress();
+			} catch (UnknownHostException ex) {
+				throw new IllegalArgumentException("Not an address range: " + cidr);
+			}
+			int bits = b.length * 8;
+			if (len == -1) {
+				len = bits;
+			}
+			if (len < 0 || len > bits) {
+				throw new IllegalArgumentException("Bad prefix length: " + cidr);
+			}
+			insert(b.length == 4 ? v4 : v6, toHi(b), toLo(b), len, action);
+			++count;
+		}
+
+		private static void insert(Node n, long hi, long lo, int len, byte action) {
+			for (;;) {
+				if (n.len == len) {
+					n.action = action;
+					return;
+				}
+				boolean one = bit(hi, lo, n.len) != 0;
+				Node c = one ? n.one : n.zero;
+				Node add;
+				if (c == null) {
+					add = new Node(hi, lo, len, action);
+				} else {
+					int common = Math.min(commonPrefix(c.hi, c.lo, hi, lo), Math.min(c.len, len));
+					if (common == c.len) {
+						n = c;
+						continue;
+					}
+					//the new prefix parts from the child's part way along,
+					//put a node in where they split
+					add = new Node(hi, lo, common, common == len ? action : NONE);
+					if (bit(c.hi, c.lo, common) == 0) {
+						add.zero = c;
+					} else {
+						add.one = c;
+					}
+					if (common != len) {
+						Node leaf = new Node(hi, lo, len, action);
+						if (bit(hi, lo, common) == 0) {
+							add.zero = leaf;
+						} else {
+							add.one = leaf;
+						}
+					}
+				}
+				if (one) {
+					n.one = add;
+				} else {
+					n.zero = add;
+				}
+				return;
+			}
+		}
+
+		boolean isAllowed(byte[] addr) {
+			long hi = toHi(addr);
+			long lo = toLo(addr);
+			Node n = addr.length == 4 ? v4 : v6;
+			int bits = addr.length * 8;
+			byte best = NONE;
+			while (n != null && n.matches(hi, lo)) {
+				if (n.action != NONE) {
+					best = n.action;
+				}
+				if (n.len == bits) {
+					break;
+				}
+				n = n.child(hi, lo);
+			}
+			return best == NONE ? allowByDefault : best == ALLOW;
+		}
+	}
+
+	private static int bit(long hi, long lo, int i) {
+		return (int) (i < 64 ? hi >>> (63 - i) : lo >>> (127 - i)) & 1;
+	}
+
+	private static int commonPrefix(long ahi, long alo, long bhi, long blo) {
+		long x = ahi ^ bhi;
+		if (x != 0) {
+			return Long.numberOfLeadingZeros(x);
+		}
+		return 64 + Long.numberOfLeadingZeros(alo ^ blo);
+	}
+
+	private static long toHi(byte[] b) {
+		long l = 0;
+		for (int i = 0; i < 8; ++i) {
+			l = l << 8 | (i < b.length ? b[i] & 0xff : 0);
+		}
+		return l;
+	}
+
+	private static long toLo(byte[] b) {
+		long l = 0;
+		for (int i = 8; i < 16 && i < b.length; ++i) {
+			l = l << 8 | (b[i] & 0xff);
+		}
+		return l;
+	}
+
+	@Override
+	public void initialize(Properties props) {
+		allowByDefault = parseDefault(props.getProperty("cidr.default", "allow"));
+		allowList = props.getProperty("cidr.allow");
+		denyList = props.getProperty("cidr.deny");
+		String f = props.getProperty("cidr.file");
+		file = f == null || f.trim().length() == 0 ? null : new File(f.trim());
+		try {
+			reload();
+		} catch (IOException ex) {
+			throw new IllegalArgumentException("Couldn't read " + file + ": " + ex.getMessage(), ex);
+		}
+	}//initialize
+
+	@Override
+	public boolean isAllowed(InetAddress ip) {
+		return rules.isAllowed(ip.getAddress());
+	}//isAllowed
+
+	/**
+	 * Builds the rules again from the settings given to
+	 * {@link #initialize(Properties)} and the rules file, to pick up changes to
+	 * the file.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if a rule can't be parsed, the old rules stay in place
+	 */
+	public synchronized void reload() throws IOException {
+		Rules r = new Rules(allowByDefault);
+		addList(r, allowList, ALLOW);
+		addList(r, denyList, DENY);
+		if (file != null) {
+			Reader in = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8);
+			try {
+				parse(in, r, file.getName());
+			} finally {
+				in.close();
+			}
+		}
+		rules = r;
+		log.info("reload():: " + r.count + " rules in place.");
+	}//reload
+
+	/**
+	 * Switches to a different rules file and reloads, see the class
+	 * description for the format.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if a rule can't be parsed, the old rules and file stay in
+	 *             place
+	 */
+	public synchronized void load(File f) throws IOException {
+		File old = file;
+		file = f;
+		try {
+			reload();
+		} catch (IOException | RuntimeException ex) {
+			file = old;
+			throw ex;
+		}
+	}//load
+
+	/**
+	 * Replaces the rules with the given ones, until the next
+	 * {@link #reload()}.
+	 *
+	 * @param allow
+	 *            ranges to allow
+	 * @param deny
+	 *            ranges to deny
+	 * @param allowByDefault
+	 *            what to do with addresses in neither
+	 * @throws IllegalArgumentException
+	 *             if a range can't be parsed, the old rules stay in place
+	 */
+	public synchronized void setRules(Collection<String> allow, Collection<String> deny, boolean allowByDefault) {
+		Rules r = new Rules(allowByDefault);
+		for (String s : allow) {
+			r.add(s, ALLOW);
+		}
+		for (String s : deny) {
+			r.add(s, DENY);
+		}
+		rules = r;
+		log.info("setRules():: " + r.count + " rules in place.");
+	}//setRules
+
+	/**
+	 * @return the number of rules in place
+	 */
+	public int size() {
+		return rules.count;
+	}//size
+
+	private static boolean parseDefault(String s) {
+		s = s.trim().toLowerCase();
+		if (s.equals("allow")) {
+			return true;
+		} else if (s.equals("deny")) {
+			return false;
+		}
+		throw new IllegalArgumentException("Expected allow or deny: " + s);
+	}//parseDefault
+
+	private static void addList(Rules r, String list, byte action) {
+		if (list == null) {
+			return;
+		}
+		for (String s : list.split(",")) {
+			if (s.trim().length() != 0) {
+				r.add(s, action);
+			}
+		}
+	}//addList
+
+	private static void parse(Reader reader, Rules r, String source) throws IOException {
+		BufferedReader in = new BufferedReader(reader);
+		String line;
+		int lineno = 0;
+		while ((line = in.readLine()) != null) {
+			++lineno;
+			int hash = line.indexOf('#');
+			if (hash >= 0) {
+				line = line.substring(0, hash);
+			}
+			line = line.trim();
+			if (line.length() == 0) {
+				continue;
+			}
+			String[] parts = line.split("\\s+");
+			try {
+				if (parts.length != 2) {
+					throw new IllegalArgumentException("Expected two words");
+				}
+				String word = parts[0].toLowerCase();
+				if (word.equals("allow")) {
+					r.add(parts[1], ALLOW);
+				} else if (word.equals("deny")) {
+					r.add(parts[1], DENY);
+				} else if (word.equals("default")) {
+					r.allowByDefault = parseDefault(parts[1]);
+				} else {
+					throw new IllegalArgumentException("Unknown rule: " + parts[0]);
+				}
+			} catch (IllegalArgumentException ex) {
+				throw new IllegalArgumentException(source + ":" + lineno + ": " + ex.getMessage(), ex);
+			}
+		}
+	}//parse
+
+}//class CidrConnectionFilter
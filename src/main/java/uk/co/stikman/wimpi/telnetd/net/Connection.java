@@ -32,8 +32,12 @@
 
 package uk.co.stikman.wimpi.telnetd.net;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -42,22 +46,25 @@ import uk.co.stikman.wimpi.telnetd.io.BasicTerminalIO;
 import uk.co.stikman.wimpi.telnetd.io.TerminalIO;
 import uk.co.stikman.wimpi.telnetd.shell.Shell;
 import uk.co.stikman.wimpi.telnetd.shell.ShellManager;
+import uk.co.stikman.wimpi.telnetd.util.TimingWheel;
 
 /**
  * Class that implements a connection with this telnet daemon.<br>
- * It is derived from java.lang.Thread, which reflects the architecture
- * constraint of one thread per connection. This might seem a waste of
- * resources, but as a matter of fact sharing threads would require a far more
- * complex imlementation, due to the fact that telnet is not a stateless
- * protocol (i.e. alive throughout a session of multiple requests and
- * responses).<br>
+ * It is a <tt>Runnable</tt> that occupies one thread for the life of the
+ * session, which reflects the architecture constraint of one thread per
+ * connection. Sharing threads would require a far more complex
+ * imlementation, due to the fact that telnet is not a stateless protocol
+ * (i.e. alive throughout a session of multiple requests and responses).
+ * Which thread that is is up to the ConnectionManager's connection executor,
+ * by default a platform thread in the manager's threadgroup, but it can be a
+ * virtual thread so that blocking shells scale to many sessions.<br>
  * Each Connection instance is created by the listeners ConnectionManager
- * instance, making it part of a threadgroup and passing in an associated
- * ConnectionData instance, that holds vital information about the connection.
- * Be sure to take a look at their documention.<br>
+ * instance, passing in an associated ConnectionData instance, that holds vital
+ * information about the connection. Be sure to take a look at their
+ * documention.<br>
  * <p/>
- * Once the thread has started and is running, it will get a login shell
- * instance from the ShellManager and run passing its own reference.
+ * Once the connection is running, it will get a login shell instance from the
+ * ShellManager and run passing its own reference.
  *
  * @author Dieter Wimberger
  * @version 2.0 (16/07/2006)
@@ -66,45 +73,52 @@ import uk.co.stikman.wimpi.telnetd.shell.ShellManager;
  * @see uk.co.stikman.wimpi.telnetd.shell.ShellManager
  * @see uk.co.stikman.wimpi.telnetd.io.TerminalIO
  */
-public class Connection extends Thread {
+public class Connection implements Runnable {
 
 	private static final Log			LOG			= LogFactory.getLog(Connection.class);
-	private static int					number;												//unique number for a thread in the thread group
-	private boolean						dead;
+	private static final AtomicLong		number		= new AtomicLong();						//unique number for a connection
+	private final long					id;
+	private final String				name;
+	private final AtomicBoolean			closed		= new AtomicBoolean();
+	private volatile boolean			dead;
+	private volatile Thread				runner;												//thread running the shell
 	private List<ConnectionListener>	listeners;
+	final Queue<EventDispatcher.Pending>	pendingEvents	= new ConcurrentLinkedQueue<>();		//events waiting for the dispatcher
+	final AtomicBoolean					dispatching		= new AtomicBoolean();					//set while the dispatcher is delivering them
+	volatile TimingWheel.Timeout		idleTimeout;										//next idle check, owned by the manager
 
 	//Associations
 	private ConnectionData				connectionData;										//associated information
-	private BasicTerminalIO				terminalIO;											//associated terminal io
+	private volatile BasicTerminalIO	terminalIO;											//associated terminal io
 	private Shell						nextShell	= null;									//next shell to be run
 
 	/**
-	 * Constructs a TelnetConnection by invoking its parent constructor and
-	 * setting of various members.<br>
-	 * Subsequently instantiates the whole i/o subsystem, negotiating telnet
-	 * protocol level options etc.<br>
+	 * Constructs a TelnetConnection setting of various members.<br>
+	 * This is called on the accept thread, so does nothing that involves the
+	 * client; the i/o subsystem is set up when the connection starts running.<br>
 	 *
-	 * @param tcg
-	 *            ThreadGroup that this instance is running in.
 	 * @param cd
 	 *            ConnectionData instance containing all vital information of
 	 *            this connection.
 	 * @see uk.co.stikman.wimpi.telnetd.net.ConnectionData
 	 */
-	public Connection(ThreadGroup tcg, ConnectionData cd) {
-		super(tcg, ("Connection" + (++number)));
-
+	public Connection(ConnectionData cd) {
+		id = number.incrementAndGet();
+		name = "Connection" + id;
 		connectionData = cd;
+		cd.setConnection(this);
 		//init the connection listeners for events
 		//(there should actually be only one or two)
-		listeners = new ArrayList<>();
-		terminalIO = new TerminalIO(this);
+		listeners = new CopyOnWriteArrayList<>();
 		dead = false;
 	}//constructor
 
 	/**
 	 * Method overloaded to implement following behaviour:
 	 * <ol>
+	 * <li>Finish setting up the connection, resolving the host name and
+	 * instantiating the i/o subsystem, which negotiates telnet protocol level
+	 * options etc. Each of these has its own timeout.
 	 * <li>On first entry, retrieve an instance of the configured login shell
 	 * from the ShellManager and run it.
 	 * <li>Handle a shell switch or close down disgracefully when problems (i.e.
@@ -114,8 +128,22 @@ public class Connection extends Thread {
 	public void run() {
 
 		boolean done = false;
+		runner = Thread.currentThread();
+		if (runner.getName().isEmpty()) {
+			//virtual threads are unnamed, make them show up in dumps
+			runner.setName(name);
+		}
 
 		try {
+			if (dead) {
+				//closed before it got a thread
+				return;
+			}
+			connectionData.getManager().resolveHostName(connectionData);
+			terminalIO = new TerminalIO(this);
+			if (dead) {
+				return;
+			}
 			Shell sh = ShellManager.getReference().getShell(connectionData.getLoginShell());
 			do {
 				sh.run(this);
@@ -137,9 +165,30 @@ public class Connection extends Thread {
 				close();
 			}
 		}
+		runner = null;
 		LOG.debug("run():: Returning from " + this.toString());
 	}//run
 
+	/**
+	 * Returns the id of this connection, which is unique for the life of the
+	 * VM.
+	 *
+	 * @return the id.
+	 * @see ConnectionRegistry#get(long)
+	 */
+	public long getId() {
+		return id;
+	}//getId
+
+	/**
+	 * Returns the name of this connection.
+	 *
+	 * @return the name as <tt>String</tt>.
+	 */
+	public String getName() {
+		return name;
+	}//getName
+
 	/**
 	 * Method to access the associated connection data.
 	 *
@@ -201,22 +250,24 @@ public class Connection extends Thread {
 	/**
 	 * Closes the connection and its underlying i/o and network resources.<br>
 	 */
-	public synchronized void close() {
-		if (dead) {
+	public void close() {
+		if (!closed.compareAndSet(false, true)) {
 			return;
 		} else {
 			try {
 				//connection dead
 				dead = true;
-				//close i/o
-				terminalIO.close();
+				//close i/o, if it got that far
+				if (terminalIO != null) {
+					terminalIO.close();
+				}
 			} catch (Exception ex) {
 				LOG.error("close()", ex);
 				//handle
 			}
 			try {
 				//close socket
-				connectionData.getSocket().close();
+				connectionData.getTransport().close();
 			} catch (Exception ex) {
 				LOG.error("close()", ex);
 				//handle
@@ -230,7 +281,10 @@ public class Connection extends Thread {
 			}
 			try {
 				//try to interrupt it
-				interrupt();
+				Thread t = runner;
+				if (t != null && t != Thread.currentThread()) {
+					t.interrupt();
+				}
 			} catch (Exception ex) {
 				LOG.error("close()", ex);
 				//handle
@@ -259,9 +313,7 @@ public class Connection extends Thread {
 	 * @see uk.co.stikman.wimpi.telnetd.net.ConnectionListener
 	 */
 	public void addConnectionListener(ConnectionListener cl) {
-		synchronized (listeners) {
-			listeners.add(cl);
-		}
+		listeners.add(cl);
 	}//addConnectionListener
 
 	/**
@@ -272,36 +324,56 @@ public class Connection extends Thread {
 	 * @see uk.co.stikman.wimpi.telnetd.net.ConnectionListener
 	 */
 	public void removeConnectionListener(ConnectionListener cl) {
-		synchronized (listeners) {
-			listeners.remove(cl);
-		}
+		listeners.remove(cl);
 	}//removeConnectionListener
 
 	/**
 	 * Method called by the io subsystem to pass on a "low-level" event. It will
 	 * be properly delegated to all registered listeners.
+	 * <p>
+	 * Events are queued and delivered by the manager's
+	 * {@link EventDispatcher}, in the order they were raised, so this returns
+	 * without waiting for the listeners.
 	 *
 	 * @param ce
 	 *            ConnectionEvent to be processed.
 	 * @see uk.co.stikman.wimpi.telnetd.net.ConnectionEvent
 	 */
 	public void processConnectionEvent(ConnectionEvent ce) {
-		synchronized (listeners) {
-			for (ConnectionListener cl : listeners) {
-				if (ce.isType(ConnectionEvent.CONNECTION_IDLE)) {
-					cl.connectionIdle(ce);
-				} else if (ce.isType(ConnectionEvent.CONNECTION_TIMEDOUT)) {
-					cl.connectionTimedOut(ce);
-				} else if (ce.isType(ConnectionEvent.CONNECTION_LOGOUTREQUEST)) {
-					cl.connectionLogoutRequest(ce);
-					//}
-					//else if (ce.isType(ConnectionEvent.CONNECTION_BROKEN)) {
-					//  cl.connectionBroken(ce);
-				} else if (ce.isType(ConnectionEvent.CONNECTION_BREAK)) {
-					cl.connectionSentBreak(ce);
-				}
-			}
+		ConnectionManager cm = connectionData.getManager();
+		EventDispatcher dispatcher = cm == null ? null : cm.getEventDispatcher();
+		if (dispatcher == null) {
+			fireConnectionEvent(ce);
+		} else {
+			dispatcher.dispatch(this, ce);
 		}
 	}//processConnectionEvent
 
+	/**
+	 * Calls the listeners for an event, on this thread.
+	 */
+	void fireConnectionEvent(ConnectionEvent ce) {
+		//listeners may well write to the terminal, so don't hold a lock
+		//while calling them
+		for (ConnectionListener cl : listeners) {
+			if (ce.isType(ConnectionEvent.CONNECTION_IDLE)) {
+				cl.connectionIdle(ce);
+			} else if (ce.isType(ConnectionEvent.CONNECTION_TIMEDOUT)) {
+				cl.connectionTimedOut(ce);
+			} else if (ce.isType(ConnectionEvent.CONNECTION_LOGOUTREQUEST)) {
+				cl.connectionLogoutRequest(ce);
+				//}
+				//else if (ce.isType(ConnectionEvent.CONNECTION_BROKEN)) {
+				//  cl.connectionBroken(ce);
+			} else if (ce.isType(ConnectionEvent.CONNECTION_BREAK)) {
+				cl.connectionSentBreak(ce);
+			}
+		}
+	}//fireConnectionEvent
+
+	@Override
+	public String toString() {
+		return "Connection [" + name + "]";
+	}
+
 }//class Connection
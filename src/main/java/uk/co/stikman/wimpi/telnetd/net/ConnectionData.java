@@ -36,6 +36,7 @@ import java.net.InetAddress;
 import java.net.Socket;
 import java.util.HashMap;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * An utility class that is used to store and allow retrieval of all data
@@ -49,23 +50,42 @@ public class ConnectionData {
 
 	//Associations
 	private ConnectionManager		cm;									//the connection's ConnectionManager
-	private Socket					socket;								//the connection's socket
+	private Connection				connection;							//the connection this data belongs to
+	private Transport				transport;							//the connection's transport
 	private InetAddress				ip;									//the connection's IP Address Object
 	private HashMap<String, String>	environment;						//the environment
 
 	//Members
-	private String					hostName;							//cache for the hostname
+	private volatile String			hostName;							//cache for the hostname
+	private final AtomicBoolean		hostNameDeferred		= new AtomicBoolean();	//lazy lookup not yet made
 	private String					hostAddress;						//cache for the host ip
 	private int						port;								//port of the connection
-	private Locale					locale;								//locale of the connection
-	private long					lastActivity;						//timestamp for the last activity
-	private boolean					warned;								//warned flag
-	private String					negotiatedTerminalType;				//negotiated TerminalType as String
+	private volatile Locale			locale;								//locale of the connection
+	private volatile long			lastActivity;						//timestamp for the last activity
+	private volatile boolean		warned;								//warned flag
+	private volatile boolean		timedOut;							//timed out flag
+	private volatile String			negotiatedTerminalType;				//negotiated TerminalType as String
 	private TerminalGeometry		terminalGeometry;					//negotiated terminal geometry
 	private boolean					terminalGeometryChanged	= true;		//flag for changes in the terminal geometry
-	private String					loginShell;							//the login shell
+	private volatile String			loginShell;							//the login shell
 	private boolean					lineMode				= false;
 	private String					echoMode				= "server";
+	private int						compressionLevel		= -1;		//MCCP2 level, -1 not offered
+	private long					compressionReset;					//bytes between dictionary resets, 0 never
+	private volatile boolean		compressing;						//MCCP2 is on
+	private volatile long			uncompressedBytes;					//written while compressing
+	private volatile long			compressedBytes;					//sent for them
+	private volatile boolean		lineEditing;						//client does LINEMODE EDIT
+	private OutputQueue				outputQueue;						//null if output goes straight out
+	private int						flushDelay;							//microseconds autoflushes wait, 0 none
+	private int						flushThreshold;						//bytes that flush before then
+	private volatile long			frames;								//counters for the output, see TerminalIO
+	private volatile long			flushes;
+	private volatile long			segments;
+	private volatile long			segmentBytes;
+	private int						binaryMode;							//see ConnectionManager.BINARY_*
+	private volatile boolean		binaryInput;						//client sends binary
+	private volatile boolean		binaryOutput;						//we send binary
 
 	public String getEchoMode() {
 		return echoMode;
@@ -79,11 +99,25 @@ public class ConnectionData {
 	 *            Socket of the inbound connection.
 	 */
 	public ConnectionData(Socket sock, ConnectionManager cm) {
-		socket = sock;
+		this(new BlockingTransport(sock), cm);
+	}//ConnectionData
+
+	/**
+	 * Constructs a ConnectionData instance storing vital information about a
+	 * connection.
+	 *
+	 * @param transport
+	 *            Transport of the inbound connection.
+	 */
+	public ConnectionData(Transport transport, ConnectionManager cm) {
+		this.transport = transport;
 		this.cm = cm;
+		Socket sock = transport.getSocket();
 		ip = sock.getInetAddress();
-		setHostName();
+		//the hostname is resolved later, off the accept thread, until then
+		//it is just the address
 		setHostAddress();
+		hostName = hostAddress;
 		setLocale();
 		port = sock.getPort();
 		//this will set a default geometry and terminal type for the terminal
@@ -112,9 +146,19 @@ public class ConnectionData {
 	 * @see java.net.Socket
 	 */
 	public Socket getSocket() {
-		return socket;
+		return transport.getSocket();
 	}//getSocket
 
+	/**
+	 * Returns the transport the Connection reads and writes through.
+	 *
+	 * @return Reference to the associated Transport.
+	 * @see uk.co.stikman.wimpi.telnetd.net.Transport
+	 */
+	public Transport getTransport() {
+		return transport;
+	}//getTransport
+
 	/**
 	 * Returns the remote port to which the socket is connected.
 	 *
@@ -128,13 +172,19 @@ public class ConnectionData {
 	/**
 	 * Returns the fully qualified host name for the connection's IP
 	 * address.<br>
-	 * The name is cached on creation for performance reasons. Subsequent calls
-	 * will not result in resolve queries.
+	 * The name is resolved once and cached, either in the background when the
+	 * connection is made or, in lazy mode, on the first call to this method.
+	 * Until then, or if the lookup fails or times out, this is the IP address.
+	 *
+	 * @see ConnectionManager#RESOLVE_LAZY
 	 *
 	 * @return String that contains the fully qualified host name for this
 	 *         address.
 	 */
 	public String getHostName() {
+		if (hostNameDeferred.compareAndSet(true, false)) {
+			cm.awaitHostName(this);
+		}
 		return hostName;
 	}//getHostName
 
@@ -174,6 +224,9 @@ public class ConnectionData {
 	 *         name.
 	 */
 	public Locale getLocale() {
+		if (hostNameDeferred.compareAndSet(true, false)) {
+			cm.awaitHostName(this);
+		}
 		return locale;
 	}//getLocale
 
@@ -194,11 +247,16 @@ public class ConnectionData {
 	 * System. This will remove an idle warning flag if it has been set. Note
 	 * that you can use this behaviour to implement your own complex idle
 	 * timespan policies within the context of your application.<br>
-	 * The check frequency of the ConnectionManager should just be set according
-	 * to the lowest time to warning and time to disconnect requirements.
+	 * This is cheap, it doesn't reschedule anything, the ConnectionManager
+	 * looks at the timestamp when the connection's current timeout comes due.
 	 */
 	public void activity() {
-		warned = false;
+		if (warned) {
+			warned = false;
+		}
+		if (timedOut) {
+			timedOut = false;
+		}
 		lastActivity = System.currentTimeMillis();
 	}//setLastActivity
 
@@ -229,6 +287,22 @@ public class ConnectionData {
 		return warned;
 	}//isWarned
 
+	/**
+	 * Returns the state of the timed out flag, which will be true if the
+	 * connection has been idle past the disconnect timeout and a
+	 * <tt>CONNECTION_TIMEDOUT</tt> event has been fired for it. It is cleared by
+	 * {@link #activity()}.
+	 *
+	 * @return the state of the timed out flag.
+	 */
+	public boolean isTimedOut() {
+		return timedOut;
+	}//isTimedOut
+
+	void setTimedOut(boolean bool) {
+		timedOut = bool;
+	}//setTimedOut
+
 	/**
 	 * Sets the terminal geometry data.<br>
 	 * <em>This method should not be called explicitly by the application (i.e.
@@ -302,6 +376,7 @@ public class ConnectionData {
 	 */
 	public void setNegotiatedTerminalType(String termtype) {
 		negotiatedTerminalType = termtype;
+		reindex();
 	}//setNegotiatedTerminalType
 
 	/**
@@ -332,6 +407,7 @@ public class ConnectionData {
 	 */
 	public void setLoginShell(String s) {
 		loginShell = s;
+		reindex();
 	}//setLoginShell
 
 	/**
@@ -364,10 +440,344 @@ public class ConnectionData {
 	}//setLineMode
 
 	/**
-	 * Mutator for HostName cache
+	 * Tests if the client is editing lines itself (LINEMODE EDIT), so input
+	 * arrives a line at a time and the client echoes it.
+	 *
+	 * @return true if so, false otherwise
+	 */
+	public boolean isLineEditing() {
+		return lineEditing;
+	}//isLineEditing
+
+	/**
+	 * <em>This method should not be called explicitly by the application (i.e.
+	 * the its here for the io subsystem).</em>
+	 */
+	public void setLineEditing(boolean b) {
+		lineEditing = b;
+	}//setLineEditing
+
+	/**
+	 * Returns the MCCP2 compression level offered to the client.
+	 *
+	 * @return 0-9, or -1 if compression isn't offered
+	 */
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}//getCompressionLevel
+
+	/**
+	 * Returns how many bytes are written between resets of the compression
+	 * dictionary.
+	 *
+	 * @return number of bytes, 0 for never, 1 for every flush
+	 */
+	public long getCompressionReset() {
+		return compressionReset;
+	}//getCompressionReset
+
+	/**
+	 * Sets the MCCP2 compression settings for the connection. Note that the
+	 * setting will only be used at startup.
+	 *
+	 * @param level
+	 *            compression level 0-9, or -1 not to offer compression
+	 * @param reset
+	 *            bytes between resets of the dictionary, 0 for never
+	 */
+	public void setCompression(int level, long reset) {
+		compressionLevel = level;
+		compressionReset = reset;
+	}//setCompression
+
+	/**
+	 * Tests if output is being compressed.
+	 *
+	 * @return true if the client has agreed to MCCP2
+	 */
+	public boolean isCompressing() {
+		return compressing;
+	}//isCompressing
+
+	/**
+	 * <em>This method should not be called explicitly by the application (i.e.
+	 * the its here for the io subsystem).</em>
+	 */
+	public void setCompressing(boolean b) {
+		compressing = b;
+	}//setCompressing
+
+	/**
+	 * Returns how many bytes have been written to the connection while
+	 * compressing, as of the last flush.
+	 *
+	 * @return number of bytes before compression
+	 */
+	public long getUncompressedBytes() {
+		return uncompressedBytes;
+	}//getUncompressedBytes
+
+	/**
+	 * Returns how many bytes compression turned
+	 * {@link #getUncompressedBytes()} into.
+	 *
+	 * @return number of bytes sent
+	 */
+	public long getCompressedBytes() {
+		return compressedBytes;
+	}//getCompressedBytes
+
+	/**
+	 * <em>This method should not be called explicitly by the application (i.e.
+	 * the its here for the io subsystem).</em>
+	 */
+	public void setCompressionCounts(long uncompressed, long compressed) {
+		uncompressedBytes = uncompressed;
+		compressedBytes = compressed;
+	}//setCompressionCounts
+
+	/**
+	 * Returns how long, in microseconds, an automatic flush is held back to
+	 * take in any more output written meanwhile.
+	 *
+	 * @return the delay, 0 if each write is flushed straight away
+	 */
+	public int getFlushDelay() {
+		return flushDelay;
+	}//getFlushDelay
+
+	/**
+	 * <em>This method should not be called explicitly by the application (i.e.
+	 * the its here for the io subsystem).</em>
+	 */
+	public void setFlushDelay(int micros) {
+		flushDelay = micros;
+	}//setFlushDelay
+
+	/**
+	 * Returns how many bytes of output waiting make an automatic flush that's
+	 * being held back happen straight away.
+	 *
+	 * @return number of bytes
+	 */
+	public int getFlushThreshold() {
+		return flushThreshold;
+	}//getFlushThreshold
+
+	/**
+	 * <em>This method should not be called explicitly by the application (i.e.
+	 * the its here for the io subsystem).</em>
+	 */
+	public void setFlushThreshold(int bytes) {
+		flushThreshold = bytes;
+	}//setFlushThreshold
+
+	/**
+	 * Returns how many frames have been written, see
+	 * {@link uk.co.stikman.wimpi.telnetd.io.BasicTerminalIO#endFrame()}.
+	 *
+	 * @return number of frames
+	 */
+	public long getFrames() {
+		return frames;
+	}//getFrames
+
+	/**
+	 * Returns how many times output has been flushed with something to send.
+	 *
+	 * @return number of flushes
 	 */
-	private void setHostName() {
-		hostName = ip.getHostName();
+	public long getFlushes() {
+		return flushes;
+	}//getFlushes
+
+	/**
+	 * Returns how many writes have been made to the transport, each one a
+	 * flush or a full buffer, and so usually a TCP segment.
+	 *
+	 * @return number of writes
+	 */
+	public long getSegments() {
+		return segments;
+	}//getSegments
+
+	/**
+	 * Returns how many bytes have been written to the transport, which over
+	 * {@link #getSegments()} is the average segment size.
+	 *
+	 * @return number of bytes
+	 */
+	public long getSegmentBytes() {
+		return segmentBytes;
+	}//getSegmentBytes
+
+	/**
+	 * <em>This method should not be called explicitly by the application (i.e.
+	 * the its here for the io subsystem).</em>
+	 */
+	public void countFrame() {
+		++frames;
+	}//countFrame
+
+	/**
+	 * <em>This method should not be called explicitly by the application (i.e.
+	 * the its here for the io subsystem).</em>
+	 */
+	public void countFlush() {
+		++flushes;
+	}//countFlush
+
+	/**
+	 * <em>This method should not be called explicitly by the application (i.e.
+	 * the its here for the io subsystem).</em>
+	 */
+	public void countSegment(int bytes) {
+		++segments;
+		segmentBytes += bytes;
+	}//countSegment
+
+	/**
+	 * Returns the queue output waits in before the transport sends it.
+	 *
+	 * @return the queue, or <tt>null</tt> if output is written straight to
+	 *         the network
+	 */
+	public OutputQueue getOutputQueue() {
+		return outputQueue;
+	}//getOutputQueue
+
+	/**
+	 * <em>This method should not be called explicitly by the application (i.e.
+	 * the its here for the io subsystem).</em>
+	 */
+	public void setOutputQueue(OutputQueue q) {
+		outputQueue = q;
+	}//setOutputQueue
+
+	/**
+	 * Returns how many bytes of output are waiting to be sent.
+	 *
+	 * @return number of bytes, always 0 without an output queue
+	 */
+	public int getOutputQueueDepth() {
+		return outputQueue == null ? 0 : outputQueue.getDepth();
+	}//getOutputQueueDepth
+
+	/**
+	 * Returns the most bytes of output that have been waiting at once.
+	 *
+	 * @return number of bytes, always 0 without an output queue
+	 */
+	public int getOutputQueueMaxDepth() {
+		return outputQueue == null ? 0 : outputQueue.getMaxDepth();
+	}//getOutputQueueMaxDepth
+
+	/**
+	 * Returns how many frames of output have been dropped because the client
+	 * wasn't reading fast enough.
+	 *
+	 * @return number of frames
+	 */
+	public long getDroppedFrames() {
+		return outputQueue == null ? 0 : outputQueue.getDroppedFrames();
+	}//getDroppedFrames
+
+	/**
+	 * Returns how many bytes of output have been dropped because the client
+	 * wasn't reading fast enough.
+	 *
+	 * @return number of bytes
+	 */
+	public long getDroppedBytes() {
+		return outputQueue == null ? 0 : outputQueue.getDroppedBytes();
+	}//getDroppedBytes
+
+	/**
+	 * Returns whether binary transmission (RFC 856) is used.
+	 *
+	 * @return one of the <tt>ConnectionManager.BINARY_*</tt> constants
+	 */
+	public int getBinaryMode() {
+		return binaryMode;
+	}//getBinaryMode
+
+	/**
+	 * Sets whether binary transmission (RFC 856) is used. Note that the
+	 * setting has to be made before the connection is started.
+	 *
+	 * @param mode
+	 *            one of the <tt>ConnectionManager.BINARY_*</tt> constants
+	 */
+	public void setBinaryMode(int mode) {
+		binaryMode = mode;
+	}//setBinaryMode
+
+	/**
+	 * Tests if the client is sending binary, in which case CR reaches the
+	 * application as it was sent.
+	 *
+	 * @return true if so, false otherwise
+	 */
+	public boolean isBinaryInput() {
+		return binaryInput;
+	}//isBinaryInput
+
+	/**
+	 * <em>This method should not be called explicitly by the application (i.e.
+	 * the its here for the io subsystem).</em>
+	 */
+	public void setBinaryInput(boolean b) {
+		binaryInput = b;
+	}//setBinaryInput
+
+	/**
+	 * Tests if output is sent as binary, in which case nothing written is
+	 * translated apart from doubling IAC.
+	 *
+	 * @return true if so, false otherwise
+	 */
+	public boolean isBinaryOutput() {
+		return binaryOutput;
+	}//isBinaryOutput
+
+	/**
+	 * <em>This method should not be called explicitly by the application (i.e.
+	 * the its here for the io subsystem).</em>
+	 */
+	public void setBinaryOutput(boolean b) {
+		binaryOutput = b;
+	}//setBinaryOutput
+
+	void setConnection(Connection con) {
+		connection = con;
+	}//setConnection
+
+	/**
+	 * Keeps the manager's registry indexes up to date.
+	 */
+	private void reindex() {
+		if (connection != null && cm != null) {
+			cm.getRegistry().update(connection);
+		}
+	}//reindex
+
+	/**
+	 * Marks the host name as still to be looked up, on first use.
+	 */
+	void setHostNameDeferred(boolean b) {
+		hostNameDeferred.set(b);
+	}//setHostNameDeferred
+
+	/**
+	 * Mutator for HostName cache, also updates the Locale which is derived
+	 * from it.
+	 *
+	 * @param name
+	 *            the resolved host name.
+	 */
+	void setHostName(String name) {
+		hostName = name;
+		setLocale();
 	}//setHostName
 
 	/**
@@ -383,7 +793,7 @@ public class ConnectionData {
 	 * represents a problem for example :)
 	 */
 	private void setLocale() {
-		String country = getHostName();
+		String country = hostName;
 		try {
 			country = country.substring(country.lastIndexOf(".") + 1);
 			if (country.equals("at")) {
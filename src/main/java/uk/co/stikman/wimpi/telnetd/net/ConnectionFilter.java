@@ -70,4 +70,15 @@ public interface ConnectionFilter {
    */
   public boolean isAllowed(InetAddress ip);
 
+  /**
+   * Called when a connection this filter allowed has gone away,
+   * either closed or refused later on for some other reason.
+   * Filters that count open connections should release them here,
+   * others can ignore it.
+   *
+   * @param ip the address of the connection.
+   */
+  public default void connectionClosed(InetAddress ip) {
+  }
+
 }//interface ConnectionFilter
\ No newline at end of file
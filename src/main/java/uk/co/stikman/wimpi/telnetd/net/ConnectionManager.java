@@ -33,21 +33,39 @@
 package uk.co.stikman.wimpi.telnetd.net;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.text.MessageFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Deque;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import uk.co.stikman.wimpi.telnetd.BootException;
+import uk.co.stikman.wimpi.telnetd.io.BasicTerminalIO;
+import uk.co.stikman.wimpi.telnetd.io.Broadcast;
+import uk.co.stikman.wimpi.telnetd.util.TimingWheel;
 
 /**
  * Class that takes care for active and queued connection. Housekeeping is done
@@ -58,25 +76,139 @@ import uk.co.stikman.wimpi.telnetd.BootException;
  */
 public class ConnectionManager implements Runnable {
 
-	private static Log			log			= LogFactory.getLog(ConnectionManager.class);
+	private static Log			log					= LogFactory.getLog(ConnectionManager.class);
+	private static final int	RESOLVER_THREADS	= 8;												//threads for reverse DNS lookups
+	private static final int	WHEEL_SIZE			= 512;												//buckets in the timeout wheel
+	private static final int	MESSENGER_THREADS	= 2;												//threads writing to connections turned away or queued
+	private static final int	MESSENGER_BACKLOG	= 1024;												//messages waiting for them
+	private static final int	MESSAGE_TIMEOUT		= 5000;												//longest one may take to write
+
+	/**
+	 * Host names are not looked up, {@link ConnectionData#getHostName()} gives
+	 * the address.
+	 */
+	public static final int		RESOLVE_NONE		= 0;
+	/**
+	 * Host names are looked up in the background as soon as a connection is
+	 * made, {@link ConnectionData#getHostName()} gives the address until the
+	 * lookup finishes.
+	 */
+	public static final int		RESOLVE_EAGER		= 1;
+	/**
+	 * Host names are looked up the first time something asks for them, which
+	 * waits up to the resolve timeout.
+	 */
+	public static final int		RESOLVE_LAZY		= 2;
+
+	/**
+	 * Connections over the connection limit are closed straight away.
+	 */
+	public static final int		OVERLOAD_CLOSE		= 0;
+	/**
+	 * Connections over the connection limit are sent the overload message and
+	 * closed.
+	 */
+	public static final int		OVERLOAD_REJECT		= 1;
+	/**
+	 * Connections over the connection limit wait in a queue for someone to
+	 * leave, and are told their place in it as it moves. They are rejected if
+	 * the queue is full or they wait too long.
+	 */
+	public static final int		OVERLOAD_QUEUE		= 2;
+
+	/**
+	 * Binary transmission (RFC 856) is refused.
+	 */
+	public static final int		BINARY_OFF			= 0;
+	/**
+	 * Binary transmission is agreed to if the client asks for it.
+	 */
+	public static final int		BINARY_ACCEPT		= 1;
+	/**
+	 * Binary transmission is asked for in both directions when the connection
+	 * starts, and agreed to if the client asks for it.
+	 */
+	public static final int		BINARY_REQUEST		= 2;
 
 	private Thread				thread;
 	private ThreadGroup			threadGroup;												//ThreadGroup all connections run in
-	private List<Connection>	openConnections;
-	private Deque<Connection>	closedConnections;
+	private volatile TimingWheel	timeouts;													//idle checks, driven by the housekeeping thread
+	private Executor			connectionExecutor;											//runs the connections, null for a thread each in the group
+	private boolean				ownsExecutor;												//shut the executor down on stop
+	private ExecutorService		resolverExecutor;											//reverse DNS lookups, created when first needed
+	private ExecutorService		messenger;													//overload and queue messages, created when first needed
+	private volatile EventDispatcher	eventDispatcher;										//delivers connection events, created on start if not set
+	private boolean				ownsDispatcher;												//shut the dispatcher down on stop
+	private int					eventThreads		= 2;
+	private int					eventQueueSize		= 1024;
+	private HostNameResolver	hostNameResolver	= new SystemHostNameResolver();
+	private int					resolveMode			= RESOLVE_EAGER;
+	private int					resolveTimeout		= 2000;									//time to wait for a lazy reverse DNS lookup
+	private int					negotiationTimeout	= 1000;									//time to wait for telnet option negotiation
+	private int					compressionLevel	= -1;									//MCCP2 level offered, -1 none
+	private long				compressionReset;											//bytes between dictionary resets, 0 never
+	private int					binaryMode			= BINARY_OFF;
+	private int					outputQueueSize;											//bytes of output waiting, 0 no queue
+	private int					outputPolicy		= OutputQueue.BLOCK;
+	private int					outputTimeout		= 10000;
+	private int					flushDelay;													//microseconds, 0 flush each write
+	private int					flushThreshold		= 1460;									//about a full segment
+	private final ConnectionRegistry	registry	= new ConnectionRegistry();							//open connections
+	private Slots				slots				= new Slots(this);							//counted against maxConnections, maybe with other shards
 	private ConnectionFilter	connectionFilter;											//reference to the connection filter
 	private int					maxConnections;												//maximum allowed connections stored from the properties
 	private int					warningTimeout;												//time to idle warning
 	private int					disconnectTimeout;											//time to idle diconnection
 	private int					housekeepingInterval;										//interval for managing cleanups
 	private String				loginShell;
-	private boolean				lineMode	= false;
-	private boolean				stopping	= false;
+	private boolean				lineMode			= false;
+	private volatile boolean	stopping			= false;
+	private int					overloadPolicy		= OVERLOAD_REJECT;
+	private String				overloadText;
+	private byte[]				overloadMessage;											//pre-encoded, sent to connections turned away
+	private String				queueMessage		= "All lines are busy, you are number {0,number,integer} in the queue.";
+	private int					maxQueued			= 32;
+	private int					queueTimeout		= 60000;
+	private final ArrayDeque<Waiting>	waiting		= new ArrayDeque<>();								//connections queued for a free slot
+	private final AtomicLong	shed				= new AtomicLong();
+	private final AtomicLong	queued				= new AtomicLong();
+	private final AtomicLong	queueTimeouts		= new AtomicLong();
+
+	/**
+	 * A connection queued for a free slot. Writes to it are made holding its
+	 * lock, so that position updates never land in the middle of the session
+	 * once it has been let in.
+	 */
+	private static class Waiting {
+		final Transport			transport;
+		final long				since;
+		final ReentrantLock		lock	= new ReentrantLock();
+		volatile int			position;	//last position the client was told
+		volatile boolean		admitted;	//set holding lock
+
+		Waiting(Transport transport, long since) {
+			this.transport = transport;
+			this.since = since;
+		}
+	}
+
+	/**
+	 * The connections counted against the connection limit, which the
+	 * managers of a sharded listener share so that the limit holds across
+	 * all of them rather than each getting a part of it.
+	 */
+	private static class Slots {
+		final AtomicInteger						taken		= new AtomicInteger();
+		final List<ConnectionManager>			managers	= new CopyOnWriteArrayList<>();	//to let in their queued connections when one is freed
+
+		Slots(ConnectionManager cm) {
+			managers.add(cm);
+		}
+	}
 
 	public ConnectionManager() {
+		setOverloadMessage("Too many connections, please try again later.");
 		threadGroup = new ThreadGroup(new StringBuffer().append(this.toString()).append("Connections").toString());
-		closedConnections = new LinkedList<>();
-		openConnections = Collections.synchronizedList(new ArrayList<>(100));
 	}
 
 	public ConnectionManager(int con, int timew, int timedis, int hoke, ConnectionFilter filter, String lsh, boolean lm) {
@@ -117,19 +249,79 @@ public class ConnectionManager implements Runnable {
 	 * @return the number of open connections as <tt>int</tt>.
 	 */
 	public int openConnectionCount() {
-		return openConnections.size();
+		return registry.size();
 	}//openConnectionCount
 
+	/**
+	 * Counts this manager's connections against the same limit as another's,
+	 * for the shards of one listener. Connections over the limit are dealt
+	 * with by whichever manager they arrive at, but a connection closing on
+	 * any of them frees a slot for all of them. Call this before starting.
+	 *
+	 * @param other
+	 *            the manager to share with, whose connection limit this
+	 *            one takes
+	 */
+	public void shareConnectionLimit(ConnectionManager other) {
+		slots.managers.remove(this);
+		slots = other.slots;
+		slots.managers.add(this);
+		maxConnections = other.maxConnections;
+	}//shareConnectionLimit
+
+	/**
+	 * Takes a slot if there is one free under the connection limit.
+	 */
+	private boolean takeSlot() {
+		for (;;) {
+			int n = slots.taken.get();
+			if (n >= maxConnections) {
+				return false;
+			}
+			if (slots.taken.compareAndSet(n, n + 1)) {
+				return true;
+			}
+		}
+	}//takeSlot
+
+	/**
+	 * Gives back a slot, and lets in a queued connection on any manager
+	 * sharing the limit.
+	 */
+	private void releaseSlot() {
+		slots.taken.decrementAndGet();
+		for (ConnectionManager cm : slots.managers) {
+			cm.admitWaiting();
+		}
+	}//releaseSlot
+
+	/**
+	 * Returns the registry of open connections, which can be used to look
+	 * them up by id, address, login shell or terminal type.
+	 *
+	 * @return the registry.
+	 */
+	public ConnectionRegistry getRegistry() {
+		return registry;
+	}//getRegistry
+
 	/**
 	 * Returns the {@link Connection} at the given index.
 	 * 
 	 * @param idx
 	 * @return
+	 * @deprecated connections have no fixed order, this walks them all. Look
+	 *             them up by id through {@link #getRegistry()} instead.
 	 */
+	@Deprecated
 	public Connection getConnection(int idx) {
-		synchronized (openConnections) {
-			return (Connection) openConnections.get(idx);
+		int i = 0;
+		for (Connection c : registry.getConnections()) {
+			if (i++ == idx) {
+				return c;
+			}
 		}
+		throw new IndexOutOfBoundsException("Index: " + idx);
 	}//getConnection
 
 	/**
@@ -139,20 +331,55 @@ public class ConnectionManager implements Runnable {
 	 *         <tt>InetAddress</tt>.
 	 */
 	public Connection[] getConnectionsByAdddress(InetAddress addr) {
-		List<Connection> l = new ArrayList<>();
-		synchronized (openConnections) {
-			for (Connection connection : openConnections)
-				if (connection.getConnectionData().getInetAddress().equals(addr))
-					l.add(connection);
-		}
-		Connection[] conns = new Connection[l.size()];
-		return (Connection[]) l.toArray(conns);
+		return registry.getByAddress(addr).toArray(new Connection[0]);
 	}//getConnectionsByAddress
 
+	/**
+	 * Writes the same text to every open connection. It's rendered once for
+	 * each different terminal and charset among them, rather than once for
+	 * each connection, see {@link Broadcast}.
+	 *
+	 * @return the number of connections it was written to.
+	 */
+	public int broadcast(String text) {
+		return broadcast(new Broadcast(text), registry.getConnections());
+	}//broadcast
+
+	/**
+	 * Writes a {@link Broadcast} to each of the given connections, for example
+	 * those from {@link ConnectionRegistry#getByTerminalType(String)}. A
+	 * connection that fails is skipped. Nothing here waits for a connection's
+	 * output to go out, so a slow client doesn't hold up the rest; see
+	 * {@link uk.co.stikman.wimpi.telnetd.io.TerminalIO#write(Broadcast)}.
+	 *
+	 * @return the number of connections it was written to.
+	 */
+	public int broadcast(Broadcast b, Iterable<Connection> to) {
+		int n = 0;
+		for (Connection c : to) {
+			BasicTerminalIO tio = c.getTerminalIO();
+			if (tio == null || !c.isActive()) {
+				continue;
+			}
+			try {
+				tio.write(b);
+				++n;
+			} catch (IOException ex) {
+				log.debug("broadcast()", ex);
+			}
+		}
+		return n;
+	}//broadcast
+
 	/**
 	 * Starts this <tt>ConnectionManager</tt>.
 	 */
 	public void start() {
+		if (eventDispatcher == null) {
+			eventDispatcher = new EventDispatcher(eventThreads, eventQueueSize);
+			ownsDispatcher = true;
+		}
+		timeouts = new TimingWheel(Math.max(1, housekeepingInterval), WHEEL_SIZE, System.currentTimeMillis());
 		thread = new Thread(this);
 		thread.start();
 	}//start
@@ -171,17 +398,38 @@ public class ConnectionManager implements Runnable {
 		} catch (InterruptedException iex) {
 			log.error("stop()", iex);
 		}
-		synchronized (openConnections) {
-			for (Iterator iter = openConnections.iterator(); iter.hasNext();) {
-				try {
-					Connection tc = (Connection) iter.next();
-					//maybe write a disgrace to the socket?
-					tc.close();
-				} catch (Exception exc) {
-					log.error("stop()", exc);
-				}
+		for (Connection tc : registry.getConnections()) {
+			try {
+				//maybe write a disgrace to the socket?
+				tc.close();
+			} catch (Exception exc) {
+				log.error("stop()", exc);
+			}
+			if (registry.remove(tc)) {
+				releaseSlot();
+			}
+		}
+		synchronized (waiting) {
+			for (Waiting w : waiting) {
+				close(w.transport);
+			}
+			waiting.clear();
+		}
+		if (ownsExecutor && connectionExecutor instanceof ExecutorService) {
+			((ExecutorService) connectionExecutor).shutdown();
+		}
+		if (ownsDispatcher) {
+			eventDispatcher.shutdown();
+		}
+		synchronized (this) {
+			if (resolverExecutor != null) {
+				resolverExecutor.shutdownNow();
+				resolverExecutor = null;
+			}
+			if (messenger != null) {
+				messenger.shutdownNow();
+				messenger = null;
 			}
-			openConnections.clear();
 		}
 		log.debug("stop():: Stopped " + this.toString());
 	}//stop
@@ -193,43 +441,486 @@ public class ConnectionManager implements Runnable {
 	 *            Socket thats representing the incoming connection.
 	 */
 	public void makeConnection(Socket insock) {
-		log.debug("makeConnection()::" + insock.toString());
-		if (connectionFilter == null || (connectionFilter != null && connectionFilter.isAllowed(insock.getInetAddress()))) {
-			//we create the connection data object at this point to
-			//store certain information there.
-			ConnectionData newCD = new ConnectionData(insock, this);
-			newCD.setLoginShell(loginShell);
-			newCD.setLineMode(lineMode);
-			if (openConnections.size() < maxConnections) {
-				//create a new Connection instance
-				Connection con = new Connection(threadGroup, newCD);
-				//log the newly created connection
-				Object[] args = { new Integer(openConnections.size() + 1) };
-				log.info(MessageFormat.format("connection #{0,number,integer} made.", args));
-				//register it for being managed
-				synchronized (openConnections) {
-					openConnections.add(con);
+		makeConnection(new BlockingTransport(insock));
+	}//makeConnection
+
+	private void startConnection(Connection con) {
+		if (connectionExecutor == null) {
+			Thread t = new Thread(threadGroup, con, con.getName());
+			t.start();
+			return;
+		}
+		try {
+			connectionExecutor.execute(con);
+		} catch (RejectedExecutionException ex) {
+			log.error("startConnection()", ex);
+			con.close();
+		}
+	}//startConnection
+
+	/**
+	 * Sets the executor that connections are run on. Each connection holds on
+	 * to its thread for as long as the session lasts, so this should be one
+	 * that hands out a thread per task, for example
+	 * {@link #newVirtualThreadExecutor()}. Passing <tt>null</tt> gives the
+	 * default of a platform thread each, in this manager's threadgroup.
+	 *
+	 * @param executor
+	 *            the executor, or <tt>null</tt>
+	 */
+	public void setConnectionExecutor(Executor executor) {
+		connectionExecutor = executor;
+		ownsExecutor = false;
+	}//setConnectionExecutor
+
+	/**
+	 * Returns the executor connections are run on.
+	 *
+	 * @return the executor, or <tt>null</tt> if connections get a platform
+	 *         thread each.
+	 */
+	public Executor getConnectionExecutor() {
+		return connectionExecutor;
+	}//getConnectionExecutor
+
+	/**
+	 * Creates an executor that runs each task on a new virtual thread. This is
+	 * looked up reflectively so the library still builds and runs on JVMs
+	 * without them.
+	 *
+	 * @return the executor
+	 * @throws UnsupportedOperationException
+	 *             if the running JVM does not have virtual threads.
+	 */
+	public static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (NoSuchMethodException ex) {
+			throw new UnsupportedOperationException("Virtual threads need Java 21 or later");
+		} catch (Exception ex) {
+			throw new UnsupportedOperationException("Could not create virtual thread executor", ex);
+		}
+	}//newVirtualThreadExecutor
+
+	/**
+	 * Starts resolving the host name of a connection that is being set up,
+	 * according to the resolve mode. This never waits for the lookup.
+	 *
+	 * @param cd
+	 *            the connection's data.
+	 */
+	void resolveHostName(ConnectionData cd) {
+		if (resolveMode == RESOLVE_EAGER) {
+			try {
+				submitLookup(cd);
+			} catch (RejectedExecutionException ex) {
+				//shutting down
+			}
+		} else if (resolveMode == RESOLVE_LAZY) {
+			cd.setHostNameDeferred(true);
+		}
+	}//resolveHostName
+
+	/**
+	 * Resolves the host name of a connection in lazy mode, the first time it
+	 * is asked for. Waits up to the resolve timeout, if it takes longer than
+	 * that the connection keeps its address as the host name until the lookup
+	 * does finish.
+	 *
+	 * @param cd
+	 *            the connection's data.
+	 */
+	void awaitHostName(ConnectionData cd) {
+		try {
+			submitLookup(cd).get(resolveTimeout, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException ex) {
+			log.debug("awaitHostName():: Still resolving " + cd.getInetAddress());
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} catch (Exception ex) {
+			log.error("awaitHostName()", ex);
+		}
+	}//awaitHostName
+
+	private Future<String> submitLookup(final ConnectionData cd) {
+		final HostNameResolver resolver = hostNameResolver;
+		return getResolverExecutor().submit(new Callable<String>() {
+			@Override
+			public String call() {
+				String name = resolver.resolve(cd.getInetAddress());
+				if (name != null) {
+					cd.setHostName(name);
 				}
-				//start it
-				con.start();
+				return name;
 			}
+		});
+	}//submitLookup
+
+	private synchronized ExecutorService getResolverExecutor() {
+		if (resolverExecutor == null) {
+			resolverExecutor = Executors.newFixedThreadPool(RESOLVER_THREADS, new ThreadFactory() {
+				private int n = 0;
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Resolver" + (++n));
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return resolverExecutor;
+	}//getResolverExecutor
+
+	/**
+	 * Method that that tries to connect an incoming request. Properly queueing.
+	 * <p>
+	 * This runs on the accept thread so only does what's cheap: filtering,
+	 * the connection limit and handing the connection over to its own thread.
+	 * Name resolution and telnet negotiation happen on that thread, see
+	 * {@link Connection#run()}.
+	 *
+	 * @param transport
+	 *            Transport thats representing the incoming connection.
+	 */
+	public void makeConnection(Transport transport) {
+		if (isAllowed(transport.getSocket().getInetAddress())) {
+			openConnection(transport);
 		} else {
-			log.info("makeConnection():: Active Filter blocked incoming connection.");
 			try {
-				insock.close();
+				transport.close();
 			} catch (IOException ex) {
 				//do nothing or log.
 			}
 		}
 	}//makeConnection
 
+	/**
+	 * Asks the connection filter, if there is one, whether a connection from
+	 * an address may go ahead. Listeners call this with the bare socket so
+	 * refused connections cost as little as possible, and then pass the ones
+	 * that are allowed to {@link #openConnection(Transport)}.
+	 *
+	 * @param addr
+	 *            the remote address
+	 * @return <tt>true</tt> if the connection may be opened
+	 */
+	public boolean isAllowed(InetAddress addr) {
+		ConnectionFilter filter = connectionFilter;
+		if (filter == null || filter.isAllowed(addr)) {
+			return true;
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("isAllowed():: Active Filter blocked incoming connection from " + addr);
+		}
+		return false;
+	}//isAllowed
+
+	/**
+	 * Opens a connection that has already been through
+	 * {@link #isAllowed(InetAddress)}.
+	 */
+	void openConnection(Transport transport) {
+		log.debug("openConnection()::" + transport.toString());
+		if (takeSlot()) {
+			createConnection(transport);
+		} else {
+			overloaded(transport);
+		}
+	}//openConnection
+
+	private void createConnection(Transport transport) {
+		//we create the connection data object at this point to
+		//store certain information there.
+		ConnectionData newCD = new ConnectionData(transport, this);
+		newCD.setLoginShell(loginShell);
+		newCD.setLineMode(lineMode);
+		newCD.setCompression(compressionLevel, compressionReset);
+		newCD.setBinaryMode(binaryMode);
+		newCD.setFlushDelay(flushDelay);
+		newCD.setFlushThreshold(flushThreshold);
+		if (outputQueueSize > 0) {
+			OutputQueue q = new OutputQueue(outputQueueSize, outputPolicy, outputTimeout);
+			try {
+				transport.setOutputQueue(q, connectionExecutor);
+				newCD.setOutputQueue(q);
+			} catch (IOException ex) {
+				log.error("createConnection()", ex);
+			}
+		}
+		//create a new Connection instance
+		Connection con = new Connection(newCD);
+		//log the newly created connection
+		Object[] args = { new Integer(registry.size() + 1) };
+		log.info(MessageFormat.format("connection #{0,number,integer} made.", args));
+		//register it for being managed
+		registry.add(con);
+		scheduleIdleCheck(con, newCD.getLastActivity() + warningTimeout);
+		//start it
+		startConnection(con);
+	}//createConnection
+
+	/**
+	 * Deals with a connection over the connection limit, according to the
+	 * overload policy.
+	 */
+	private void overloaded(Transport transport) {
+		if (overloadPolicy == OVERLOAD_QUEUE) {
+			Waiting w = new Waiting(transport, System.currentTimeMillis());
+			int pos = 0;
+			synchronized (waiting) {
+				if (waiting.size() < maxQueued) {
+					waiting.addLast(w);
+					pos = waiting.size();
+				}
+			}
+			if (pos > 0) {
+				queued.incrementAndGet();
+				log.info("openConnection():: Connection limit reached, queued connection at position " + pos + ".");
+				tellPosition(w, pos);
+				//someone may have left while it was being queued
+				admitWaiting();
+				return;
+			}
+		}
+		shed.incrementAndGet();
+		log.info("openConnection():: Connection limit reached, refusing connection.");
+		reject(transport, null);
+	}//overloaded
+
+	/**
+	 * Opens queued connections for as long as there are free slots. One that
+	 * is being written to is passed over until next time, rather than waited
+	 * for.
+	 */
+	private void admitWaiting() {
+		for (;;) {
+			Waiting w = null;
+			synchronized (waiting) {
+				if (stopping || waiting.isEmpty()) {
+					return;
+				}
+			}
+			if (!takeSlot()) {
+				return;
+			}
+			synchronized (waiting) {
+				for (Iterator<Waiting> it = waiting.iterator(); it.hasNext();) {
+					Waiting x = it.next();
+					if (x.lock.tryLock()) {
+						it.remove();
+						w = x;
+						break;
+					}
+				}
+			}
+			if (w == null) {
+				//nobody to give it to, the housekeeping thread tries again
+				slots.taken.decrementAndGet();
+				return;
+			}
+			try {
+				w.admitted = true;
+			} finally {
+				w.lock.unlock();
+			}
+			log.info("admitWaiting():: Letting in connection queued for " + (System.currentTimeMillis() - w.since) + "ms.");
+			createConnection(w.transport);
+		}
+	}//admitWaiting
+
+	/**
+	 * Called from the housekeeping thread, lets in whoever it can, turns away
+	 * those that have waited too long and tells the rest where they are.
+	 */
+	private void serviceQueue(long now) {
+		admitWaiting();
+		List<Waiting> expired = null;
+		Waiting[] rest;
+		synchronized (waiting) {
+			if (waiting.isEmpty()) {
+				return;
+			}
+			for (Iterator<Waiting> it = waiting.iterator(); it.hasNext();) {
+				Waiting w = it.next();
+				if (now - w.since >= queueTimeout) {
+					it.remove();
+					if (expired == null) {
+						expired = new ArrayList<>();
+					}
+					expired.add(w);
+				}
+			}
+			rest = waiting.toArray(new Waiting[waiting.size()]);
+		}
+		if (expired != null) {
+			for (Waiting w : expired) {
+				queueTimeouts.incrementAndGet();
+				log.info("serviceQueue():: Queued connection waited too long, refusing connection.");
+				reject(w.transport, w);
+			}
+		}
+		for (int i = 0; i < rest.length; ++i) {
+			tellPosition(rest[i], i + 1);
+		}
+	}//serviceQueue
+
+	private void tellPosition(Waiting w, int pos) {
+		if (w.admitted || w.position == pos) {
+			return;
+		}
+		w.position = pos;
+		send(w.transport, w, encodeMessage(MessageFormat.format(queueMessage, new Object[] { pos })), false);
+	}//tellPosition
+
+	/**
+	 * Sends the overload message, if the policy calls for one, and drops the
+	 * connection.
+	 */
+	private void reject(Transport transport, Waiting w) {
+		byte[] msg = overloadMessage;
+		if (overloadPolicy != OVERLOAD_CLOSE && msg != null) {
+			send(transport, w, msg, true);
+		} else {
+			drop(transport);
+		}
+	}//reject
+
+	/**
+	 * Closes a connection that never got as far as being opened, letting the
+	 * filter know it has gone.
+	 */
+	private void drop(Transport transport) {
+		ConnectionFilter filter = connectionFilter;
+		if (filter != null) {
+			filter.connectionClosed(transport.getSocket().getInetAddress());
+		}
+		close(transport);
+	}//drop
+
+	/**
+	 * Writes a message to a connection that hasn't been opened, on the
+	 * messenger threads, so a client that doesn't read can't hold up the
+	 * accept or housekeeping threads. A write that takes longer than
+	 * {@link #MESSAGE_TIMEOUT} has the connection closed under it. If the
+	 * messengers are too far behind, the message is skipped.
+	 *
+	 * @param w
+	 *            the queue entry, if it's queued, in which case nothing is
+	 *            written once it has been let in
+	 * @param thenDrop
+	 *            drop the connection afterwards, otherwise it's only dropped
+	 *            if the write fails
+	 */
+	private void send(final Transport transport, final Waiting w, final byte[] msg, final boolean thenDrop) {
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				TimingWheel wheel = timeouts;
+				TimingWheel.Timeout watchdog = null;
+				if (wheel != null) {
+					watchdog = wheel.schedule(new Runnable() {
+						@Override
+						public void run() {
+							log.debug("send():: Message took too long, closing connection.");
+							close(transport);
+						}
+					}, System.currentTimeMillis() + MESSAGE_TIMEOUT);
+				}
+				boolean ok = false;
+				if (w != null) {
+					w.lock.lock();
+				}
+				try {
+					if (w == null || !w.admitted) {
+						write(transport, msg);
+					}
+					ok = true;
+				} catch (IOException ex) {
+					log.debug("send()", ex);
+				} finally {
+					if (w != null) {
+						w.lock.unlock();
+					}
+					if (watchdog != null) {
+						watchdog.cancel();
+					}
+				}
+				if (thenDrop) {
+					drop(transport);
+				} else if (!ok) {
+					//they've gone
+					dropWaiting(w);
+				}
+			}
+		};
+		try {
+			getMessenger().execute(task);
+		} catch (RejectedExecutionException ex) {
+			if (thenDrop) {
+				drop(transport);
+			}
+		}
+	}//send
+
+	private void dropWaiting(Waiting w) {
+		boolean removed;
+		synchronized (waiting) {
+			removed = waiting.remove(w);
+		}
+		if (removed) {
+			drop(w.transport);
+		}
+	}//dropWaiting
+
+	private synchronized ExecutorService getMessenger() {
+		if (messenger == null) {
+			messenger = new ThreadPoolExecutor(MESSENGER_THREADS, MESSENGER_THREADS, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(MESSENGER_BACKLOG), new ThreadFactory() {
+				private int n = 0;
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Messenger" + (++n));
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return messenger;
+	}//getMessenger
+
+	private static void write(Transport transport, byte[] msg) throws IOException {
+		OutputStream out = transport.getOutputStream();
+		out.write(msg);
+		out.flush();
+	}//write
+
+	private static void close(Transport transport) {
+		try {
+			transport.close();
+		} catch (IOException ex) {
+			//do nothing or log.
+		}
+	}//close
+
+	/**
+	 * Encodes a message for sending to a client before any negotiation has
+	 * happened, with telnet line ends.
+	 */
+	private static byte[] encodeMessage(String msg) {
+		String s = msg.replace("\r\n", "\n").replace("\n", "\r\n");
+		if (!s.endsWith("\r\n")) {
+			s += "\r\n";
+		}
+		return s.getBytes(StandardCharsets.UTF_8);
+	}//encodeMessage
+
 	/**
 	 * Periodically does following work:
 	 * <ul>
-	 * <li>cleaning up died connections.
-	 * <li>checking managed connections if they are working properly.
-	 * <li>checking the open connections.
+	 * <li>running the idle checks that have come due.
 	 * </ul>
+	 * Closed connections take themselves out of the registry straight away.
 	 */
 	public void run() {
 		//housekeep connections
@@ -237,10 +928,10 @@ public class ConnectionManager implements Runnable {
 			do {
 				//clean up and close all broken connections
 				//cleanupBroken();
-				//clean up closed connections
-				cleanupClosed();
-				//check all active connections
-				checkOpenConnections();
+				//run the idle checks that have come due
+				timeouts.advance(System.currentTimeMillis());
+				//let in, turn away and update queued connections
+				serviceQueue(System.currentTimeMillis());
 				//sleep interval
 				Thread.sleep(housekeepingInterval);
 			} while (!stopping);
@@ -264,59 +955,71 @@ public class ConnectionManager implements Runnable {
 	  }
 	}//cleanupBroken
 	*/
-	private void cleanupClosed() {
-		if (stopping) {
+
+	private void scheduleIdleCheck(final Connection conn, long when) {
+		TimingWheel wheel = timeouts;
+		if (wheel == null) {
 			return;
 		}
-		//cleanup loop
-		synchronized (closedConnections) {
-			while (!closedConnections.isEmpty()) {
-				Connection nextOne = (Connection) closedConnections.pop();
-				log.info("cleanupClosed():: Removing closed connection " + nextOne.toString());
-				openConnections.remove(nextOne);
+		conn.idleTimeout = wheel.schedule(new Runnable() {
+			@Override
+			public void run() {
+				checkIdle(conn);
 			}
+		}, when);
+		if (!conn.isActive()) {
+			//closed while we were scheduling, don't hang on to it
+			conn.idleTimeout.cancel();
 		}
-	}//cleanupBroken
+	}//scheduleIdleCheck
 
-	private void checkOpenConnections() {
+	/**
+	 * Called from the timing wheel when a connection's idle check comes due.
+	 * Activity just moves the connection's timestamp on, so this works out
+	 * from the timestamp whether anything needs doing yet, and when to look
+	 * again. The idle and timed out events are each fired once per idle
+	 * period.
+	 */
+	private void checkIdle(Connection conn) {
 		if (stopping) {
 			return;
 		}
-		//do routine checks on active connections
-		synchronized (openConnections) {
-			for (Connection conn : openConnections) {
-				ConnectionData cd = conn.getConnectionData();
-				//check if it is dead and remove it.
-				if (!conn.isActive()) {
-					registerClosedConnection(conn);
-					continue;
-				}
-				/* Timeouts check */
-				//first we caculate the inactivity time
-				long inactivity = System.currentTimeMillis() - cd.getLastActivity();
-				//now we check for warning and disconnection
-				if (inactivity > warningTimeout) {
-					//..and for disconnect
-					if (inactivity > (disconnectTimeout + warningTimeout)) {
-						//this connection needs to be disconnected :)
-						log.debug("checkOpenConnections():" + conn.toString() + " exceeded total timeout.");
-						//fire logoff event for shell site cleanup , beware could hog the daemon thread
-						conn.processConnectionEvent(new ConnectionEvent(conn, ConnectionEvent.CONNECTION_TIMEDOUT));
-						//conn.close();
-					} else {
-						//this connection needs to be warned :)
-						if (!cd.isWarned()) {
-							log.debug("checkOpenConnections():" + conn.toString() + " exceeded warning timeout.");
-							cd.setWarned(true);
-							//warning event is fired but beware this could hog the daemon thread!!
-							conn.processConnectionEvent(new ConnectionEvent(conn, ConnectionEvent.CONNECTION_IDLE));
-						}
-					}
-				}
+		//check if it is dead and remove it.
+		if (!conn.isActive()) {
+			registerClosedConnection(conn);
+			return;
+		}
+		ConnectionData cd = conn.getConnectionData();
+		long now = System.currentTimeMillis();
+		long last = cd.getLastActivity();
+		long inactivity = now - last;
+		long next;
+		if (cd.isTimedOut()) {
+			//already fired, the shell didn't close it, so look again later in
+			//case the client comes back
+			next = now + warningTimeout;
+		} else if (inactivity > (disconnectTimeout + warningTimeout)) {
+			//this connection needs to be disconnected :)
+			log.debug("checkIdle():" + conn.toString() + " exceeded total timeout.");
+			cd.setWarned(true);
+			cd.setTimedOut(true);
+			//fire logoff event for shell site cleanup, delivered on the dispatcher
+			conn.processConnectionEvent(new ConnectionEvent(conn, ConnectionEvent.CONNECTION_TIMEDOUT));
+			next = now + warningTimeout;
+		} else if (inactivity > warningTimeout) {
+			//this connection needs to be warned :)
+			if (!cd.isWarned()) {
+				log.debug("checkIdle():" + conn.toString() + " exceeded warning timeout.");
+				cd.setWarned(true);
+				//warning event is fired, delivered on the dispatcher
+				conn.processConnectionEvent(new ConnectionEvent(conn, ConnectionEvent.CONNECTION_IDLE));
 			}
-			/* end Timeouts check */
+			next = last + warningTimeout + disconnectTimeout + 1;
+		} else {
+			next = last + warningTimeout + 1;
 		}
-	}//checkConnections
+		scheduleIdleCheck(conn, next);
+	}//checkIdle
 
 	/**
 	 * Called by connections that got broken (i.e. I/O errors). The housekeeper
@@ -336,11 +1039,17 @@ public class ConnectionManager implements Runnable {
 		if (stopping) {
 			return;
 		}
-		synchronized (closedConnections) {
-			if (!closedConnections.contains(con)) {
-				log.debug("registerClosedConnection()::" + con.toString());
-				closedConnections.push(con);
+		if (registry.remove(con)) {
+			log.info("registerClosedConnection():: Removing closed connection " + con.toString());
+			ConnectionFilter filter = connectionFilter;
+			if (filter != null) {
+				filter.connectionClosed(con.getConnectionData().getInetAddress());
+			}
+			TimingWheel.Timeout t = con.idleTimeout;
+			if (t != null) {
+				t.cancel();
 			}
+			releaseSlot();
 		}
 	}//unregister
 
@@ -352,6 +1061,22 @@ public class ConnectionManager implements Runnable {
 	 *            Properties containing the settings for this instance.
 	 */
 	public static ConnectionManager createConnectionManager(String name, Properties settings) throws BootException {
+		return createConnectionManager(name, settings, null);
+	}//createManager
+
+	/**
+	 * Factory method for a ConnectionManager that is one of a listener's
+	 * shards. Rather than creating its own, it takes the connection filter,
+	 * host name resolver, event dispatcher and connection limit of the first
+	 * shard, which has to have been started.
+	 *
+	 * @param settings
+	 *            Properties containing the settings for this instance.
+	 * @param first
+	 *            the shard to share with, or <tt>null</tt> for a manager of
+	 *            its own.
+	 */
+	public static ConnectionManager createConnectionManager(String name, Properties settings, ConnectionManager first) throws BootException {
 
 		try {
 			int maxc = Integer.parseInt(settings.getProperty(name + ".maxcon"));
@@ -362,7 +1087,9 @@ public class ConnectionManager implements Runnable {
 			ConnectionFilter filter = null;
 			String loginshell = "";
 			boolean linemode = false;
-			if (filterclass != null && filterclass.length() != 0 && !filterclass.toLowerCase().equals("none")) {
+			if (first != null) {
+				filter = first.getConnectionFilter();
+			} else if (filterclass != null && filterclass.length() != 0 && !filterclass.toLowerCase().equals("none")) {
 				//load filter
 				filter = (ConnectionFilter) Class.forName(filterclass).newInstance();
 				filter.initialize(settings);
@@ -381,6 +1108,96 @@ public class ConnectionManager implements Runnable {
 			}
 			//return fabricated manager
 			ConnectionManager cm = new ConnectionManager(maxc, timow, timodis, hoke, filter, loginshell, linemode);
+			//connection setup timeouts
+			cm.setResolveTimeout(Integer.parseInt(settings.getProperty(name + ".time_to_resolve", "2000")));
+			cm.setHostNameResolver(first != null ? first.getHostNameResolver() : createHostNameResolver(name, settings));
+			String resolve = settings.getProperty(name + ".resolve", "eager").toLowerCase();
+			if (resolve.equals("eager")) {
+				cm.setResolveMode(RESOLVE_EAGER);
+			} else if (resolve.equals("lazy")) {
+				cm.setResolveMode(RESOLVE_LAZY);
+			} else if (resolve.equals("none")) {
+				cm.setResolveMode(RESOLVE_NONE);
+			} else {
+				throw new BootException("Unknown resolve mode: " + resolve);
+			}
+			cm.setNegotiationTimeout(Integer.parseInt(settings.getProperty(name + ".time_to_negotiate", "1000")));
+			//MCCP2 output compression
+			String compression = settings.getProperty(name + ".compression", "off").toLowerCase();
+			cm.setCompressionLevel(compression.equals("off") ? -1 : Integer.parseInt(compression));
+			String reset = settings.getProperty(name + ".compression_reset", "never").toLowerCase();
+			if (reset.equals("never")) {
+				cm.setCompressionReset(0);
+			} else if (reset.equals("flush")) {
+				cm.setCompressionReset(1);
+			} else {
+				cm.setCompressionReset(Long.parseLong(reset));
+			}
+			//RFC 856 binary transmission
+			String binary = settings.getProperty(name + ".binary", "off").toLowerCase();
+			if (binary.equals("off")) {
+				cm.setBinaryMode(BINARY_OFF);
+			} else if (binary.equals("accept")) {
+				cm.setBinaryMode(BINARY_ACCEPT);
+			} else if (binary.equals("request")) {
+				cm.setBinaryMode(BINARY_REQUEST);
+			} else {
+				throw new BootException("Unknown binary mode: " + binary);
+			}
+			//bounded output, for clients that stop reading
+			cm.setOutputQueueSize(Integer.parseInt(settings.getProperty(name + ".output_queue", "0")));
+			String policy = settings.getProperty(name + ".output_policy", "block").toLowerCase();
+			if (policy.equals("block")) {
+				cm.setOutputPolicy(OutputQueue.BLOCK);
+			} else if (policy.equals("dropoldest")) {
+				cm.setOutputPolicy(OutputQueue.DROP_OLDEST);
+			} else if (policy.equals("coalesce")) {
+				cm.setOutputPolicy(OutputQueue.COALESCE);
+			} else if (policy.equals("disconnect")) {
+				cm.setOutputPolicy(OutputQueue.DISCONNECT);
+			} else {
+				throw new BootException("Unknown output policy: " + policy);
+			}
+			cm.setOutputTimeout(Integer.parseInt(settings.getProperty(name + ".output_timeout", "10000")));
+			//coalesced autoflushes
+			cm.setFlushDelay(Integer.parseInt(settings.getProperty(name + ".flush_delay", "0")));
+			cm.setFlushThreshold(Integer.parseInt(settings.getProperty(name + ".flush_threshold", "1460")));
+			//connection events, delivered on their own threads
+			cm.setEventThreads(Integer.parseInt(settings.getProperty(name + ".eventthreads", "2")));
+			cm.setEventQueueSize(Integer.parseInt(settings.getProperty(name + ".eventqueue", "1024")));
+			//what to do with connections over the limit
+			String overload = settings.getProperty(name + ".overload", "reject").toLowerCase();
+			if (overload.equals("close")) {
+				cm.setOverloadPolicy(OVERLOAD_CLOSE);
+			} else if (overload.equals("reject")) {
+				cm.setOverloadPolicy(OVERLOAD_REJECT);
+			} else if (overload.equals("queue")) {
+				cm.setOverloadPolicy(OVERLOAD_QUEUE);
+			} else {
+				throw new BootException("Unknown overload policy: " + overload);
+			}
+			String msg = settings.getProperty(name + ".overload_message");
+			if (msg != null) {
+				cm.setOverloadMessage(msg);
+			}
+			msg = settings.getProperty(name + ".overload_queuemessage");
+			if (msg != null) {
+				cm.setQueueMessage(msg);
+			}
+			cm.setMaxQueued(Integer.parseInt(settings.getProperty(name + ".overload_queuesize", "32")));
+			cm.setQueueTimeout(Integer.parseInt(settings.getProperty(name + ".overload_queuetime", "60000")));
+			//threads the connections run on, a platform thread each by default
+			String threads = settings.getProperty(name + ".connectionthreads", "platform");
+			if (threads.toLowerCase().equals("virtual")) {
+				cm.setConnectionExecutor(newVirtualThreadExecutor());
+				cm.ownsExecutor = true;
+			} else if (!threads.toLowerCase().equals("platform")) {
+				throw new BootException("Unknown connection thread type: " + threads);
+			}
+			if (first != null) {
+				cm.setEventDispatcher(first.getEventDispatcher());
+				cm.shareConnectionLimit(first);
+			}
 			//set higher priority!
 			//cm.setPriority(Thread.NORM_PRIORITY + 2);
 			return cm;
@@ -390,6 +1207,193 @@ public class ConnectionManager implements Runnable {
 		}
 	}//createManager
 
+	private static HostNameResolver createHostNameResolver(String name, Properties settings) throws Exception {
+		HostNameResolver resolver;
+		String resolverclass = settings.getProperty(name + ".resolver");
+		if (resolverclass == null || resolverclass.length() == 0) {
+			resolver = new SystemHostNameResolver();
+		} else {
+			resolver = (HostNameResolver) Class.forName(resolverclass).getDeclaredConstructor().newInstance();
+		}
+		int cachesize = Integer.parseInt(settings.getProperty(name + ".resolver_cachesize", "1024"));
+		if (cachesize > 0) {
+			long ttl = Long.parseLong(settings.getProperty(name + ".resolver_ttl", "300000"));
+			long negttl = Long.parseLong(settings.getProperty(name + ".resolver_negativettl", "60000"));
+			int concurrency = Integer.parseInt(settings.getProperty(name + ".resolver_concurrency", "4"));
+			resolver = new CachingHostNameResolver(resolver, cachesize, ttl, negttl, concurrency);
+		}
+		return resolver;
+	}//createHostNameResolver
+
+	/**
+	 * Sets the resolver used to look up host names for new connections.
+	 *
+	 * @param resolver
+	 *            the resolver.
+	 * @see CachingHostNameResolver
+	 */
+	public void setHostNameResolver(HostNameResolver resolver) {
+		hostNameResolver = resolver;
+	}//setHostNameResolver
+
+	/**
+	 * Returns the resolver used to look up host names for new connections,
+	 * which will be a {@link CachingHostNameResolver} unless configured
+	 * otherwise, and can be queried for its hit and latency counters.
+	 *
+	 * @return the resolver.
+	 */
+	public HostNameResolver getHostNameResolver() {
+		return hostNameResolver;
+	}//getHostNameResolver
+
+	public int getResolveMode() {
+		return resolveMode;
+	}
+
+	public void setResolveMode(int resolveMode) {
+		this.resolveMode = resolveMode;
+	}
+
+	public int getResolveTimeout() {
+		return resolveTimeout;
+	}
+
+	public void setResolveTimeout(int resolveTimeout) {
+		this.resolveTimeout = resolveTimeout;
+	}
+
+	public int getNegotiationTimeout() {
+		return negotiationTimeout;
+	}
+
+	public void setNegotiationTimeout(int negotiationTimeout) {
+		this.negotiationTimeout = negotiationTimeout;
+	}
+
+	/**
+	 * @return the MCCP2 compression level offered to clients, -1 if it isn't
+	 */
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	/**
+	 * Sets the MCCP2 compression level offered to new connections, 0 (fastest)
+	 * to 9 (smallest), or -1 not to offer compression.
+	 */
+	public void setCompressionLevel(int compressionLevel) {
+		if (compressionLevel < -1 || compressionLevel > 9) {
+			throw new IllegalArgumentException("Compression level out of range: " + compressionLevel);
+		}
+		this.compressionLevel = compressionLevel;
+	}
+
+	public long getCompressionReset() {
+		return compressionReset;
+	}
+
+	/**
+	 * Sets how often the compression dictionary is reset: at the first flush
+	 * after this many bytes, so 1 for every flush, or 0 for never.
+	 */
+	public void setCompressionReset(long compressionReset) {
+		this.compressionReset = compressionReset;
+	}
+
+	/**
+	 * @return one of {@link #BINARY_OFF}, {@link #BINARY_ACCEPT} or
+	 *         {@link #BINARY_REQUEST}
+	 */
+	public int getBinaryMode() {
+		return binaryMode;
+	}
+
+	/**
+	 * Sets whether new connections use binary transmission (RFC 856), which
+	 * sends output untranslated apart from doubling IAC.
+	 *
+	 * @param binaryMode
+	 *            one of {@link #BINARY_OFF}, {@link #BINARY_ACCEPT} or
+	 *            {@link #BINARY_REQUEST}
+	 */
+	public void setBinaryMode(int binaryMode) {
+		this.binaryMode = binaryMode;
+	}
+
+	public int getOutputQueueSize() {
+		return outputQueueSize;
+	}
+
+	/**
+	 * Sets how many bytes of output each new connection can have waiting to
+	 * be sent, or 0 to write straight to the network as the application
+	 * writes, with no limit.
+	 *
+	 * @see OutputQueue
+	 */
+	public void setOutputQueueSize(int outputQueueSize) {
+		this.outputQueueSize = outputQueueSize;
+	}
+
+	/**
+	 * @return one of {@link OutputQueue#BLOCK},
+	 *         {@link OutputQueue#DROP_OLDEST}, {@link OutputQueue#COALESCE} or
+	 *         {@link OutputQueue#DISCONNECT}
+	 */
+	public int getOutputPolicy() {
+		return outputPolicy;
+	}
+
+	/**
+	 * Sets what happens when a connection's output queue is full.
+	 *
+	 * @param outputPolicy
+	 *            one of {@link OutputQueue#BLOCK},
+	 *            {@link OutputQueue#DROP_OLDEST}, {@link OutputQueue#COALESCE}
+	 *            or {@link OutputQueue#DISCONNECT}
+	 */
+	public void setOutputPolicy(int outputPolicy) {
+		this.outputPolicy = outputPolicy;
+	}
+
+	public int getOutputTimeout() {
+		return outputTimeout;
+	}
+
+	/**
+	 * Sets how long, in milliseconds, a write waits for room in a full output
+	 * queue, and closing waits for it to drain.
+	 */
+	public void setOutputTimeout(int outputTimeout) {
+		this.outputTimeout = outputTimeout;
+	}
+
+	public int getFlushDelay() {
+		return flushDelay;
+	}
+
+	/**
+	 * Sets how long, in microseconds, an automatic flush is held back for, so
+	 * that output written meanwhile goes in the same segment. 0 flushes after
+	 * every write, as always.
+	 */
+	public void setFlushDelay(int flushDelay) {
+		this.flushDelay = flushDelay;
+	}
+
+	public int getFlushThreshold() {
+		return flushThreshold;
+	}
+
+	/**
+	 * Sets how many bytes waiting make an automatic flush that's being held
+	 * back happen straight away.
+	 */
+	public void setFlushThreshold(int flushThreshold) {
+		this.flushThreshold = flushThreshold;
+	}
+
 	public int getDisconnectTimeout() {
 		return disconnectTimeout;
 	}
@@ -430,6 +1434,142 @@ public class ConnectionManager implements Runnable {
 		this.maxConnections = maxConnections;
 	}
 
+	/**
+	 * @return the dispatcher delivering connection events, <tt>null</tt> if
+	 *         the manager hasn't been started and none has been set
+	 */
+	public EventDispatcher getEventDispatcher() {
+		return eventDispatcher;
+	}
+
+	/**
+	 * Sets the dispatcher that delivers connection events, for instance to
+	 * share one between managers. Must be called before {@link #start()}, the
+	 * manager doesn't shut it down.
+	 */
+	public void setEventDispatcher(EventDispatcher eventDispatcher) {
+		this.eventDispatcher = eventDispatcher;
+		ownsDispatcher = false;
+	}
+
+	public int getEventThreads() {
+		return eventThreads;
+	}
+
+	/**
+	 * Sets how many threads the dispatcher created on {@link #start()} has.
+	 */
+	public void setEventThreads(int eventThreads) {
+		this.eventThreads = eventThreads;
+	}
+
+	public int getEventQueueSize() {
+		return eventQueueSize;
+	}
+
+	/**
+	 * Sets how many connections can wait for a thread of the dispatcher
+	 * created on {@link #start()}.
+	 */
+	public void setEventQueueSize(int eventQueueSize) {
+		this.eventQueueSize = eventQueueSize;
+	}
+
+	/**
+	 * @return one of {@link #OVERLOAD_CLOSE}, {@link #OVERLOAD_REJECT} or
+	 *         {@link #OVERLOAD_QUEUE}
+	 */
+	public int getOverloadPolicy() {
+		return overloadPolicy;
+	}
+
+	/**
+	 * Sets what happens to connections over the connection limit.
+	 *
+	 * @param overloadPolicy
+	 *            one of {@link #OVERLOAD_CLOSE}, {@link #OVERLOAD_REJECT} or
+	 *            {@link #OVERLOAD_QUEUE}
+	 */
+	public void setOverloadPolicy(int overloadPolicy) {
+		this.overloadPolicy = overloadPolicy;
+	}
+
+	public String getOverloadMessage() {
+		return overloadText;
+	}
+
+	/**
+	 * Sets the message sent to connections that are turned away. It is
+	 * encoded once here, rather than every time it is sent.
+	 */
+	public void setOverloadMessage(String msg) {
+		overloadText = msg;
+		overloadMessage = msg == null ? null : encodeMessage(msg);
+	}
+
+	public String getQueueMessage() {
+		return queueMessage;
+	}
+
+	/**
+	 * Sets the message sent to queued connections when their place in the
+	 * queue changes, a <tt>MessageFormat</tt> pattern with the place as
+	 * argument 0.
+	 */
+	public void setQueueMessage(String queueMessage) {
+		this.queueMessage = queueMessage;
+	}
+
+	public int getMaxQueued() {
+		return maxQueued;
+	}
+
+	public void setMaxQueued(int maxQueued) {
+		this.maxQueued = maxQueued;
+	}
+
+	/**
+	 * @return how long a connection may wait in the queue, in milliseconds
+	 */
+	public int getQueueTimeout() {
+		return queueTimeout;
+	}
+
+	public void setQueueTimeout(int queueTimeout) {
+		this.queueTimeout = queueTimeout;
+	}
+
+	/**
+	 * @return number of connections turned away at the connection limit,
+	 *         without being queued
+	 */
+	public long getShedCount() {
+		return shed.get();
+	}
+
+	/**
+	 * @return number of connections that have been queued
+	 */
+	public long getQueuedCount() {
+		return queued.get();
+	}
+
+	/**
+	 * @return number of queued connections turned away for waiting too long
+	 */
+	public long getQueueTimeoutCount() {
+		return queueTimeouts.get();
+	}
+
+	/**
+	 * @return number of connections waiting in the queue
+	 */
+	public int getQueueLength() {
+		synchronized (waiting) {
+			return waiting.size();
+		}
+	}
+
 	public int getWarningTimeout() {
 		return warningTimeout;
 	}
@@ -0,0 +1,281 @@
+package uk.co.stikman.wimpi.telnetd.net;
+
+import java.net.InetAddress;
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The open connections of a {@link ConnectionManager}, keyed by
+ * {@link Connection#getId()} and indexed by remote address, login shell and
+ * negotiated terminal type.
+ * <p>
+ * Adding, removing and looking up connections are all constant time and
+ * never block each other for more than a single map update. The collections
+ * handed out are live, weakly consistent views: they can be iterated while
+ * connections come and go without any locking and without ever throwing
+ * <tt>ConcurrentModificationException</tt>, but may or may not reflect changes
+ * made during the iteration.
+ */
+public class ConnectionRegistry {
+
+	private final Map<Long, Entry>							byId			= new ConcurrentHashMap<>();
+	private final Collection<Connection>					connections;
+	private final Index<InetAddress>						byAddress		= new Index<>();
+	private final Index<String>								byLoginShell	= new Index<>();
+	private final Index<String>								byTerminalType	= new Index<>();
+
+	/**
+	 * Index keys a connection is currently filed under, so it can be moved
+	 * when they change. Guarded by its own monitor, which is only ever held
+	 * for a few map operations.
+	 */
+	private static class Entry {
+		final Connection	connection;
+		String				loginShell;
+		String				terminalType;
+		boolean				removed;
+
+		Entry(Connection connection) {
+			this.connection = connection;
+		}
+	}
+
+	/**
+	 * A multimap from key to the set of connections with that key. Empty sets
+	 * are dropped so keys don't pile up as clients come and go.
+	 */
+	private static class Index<K> {
+		private final Map<K, Set<Connection>> map = new ConcurrentHashMap<>();
+
+		void add(K key, Connection c) {
+			if (key == null)
+				return;
+			map.compute(key, (k, set) -> {
+				if (set == null)
+					set = ConcurrentHashMap.newKeySet();
+				set.add(c);
+				return set;
+			});
+		}
+
+		void remove(K key, Connection c) {
+			if (key == null)
+				return;
+			map.computeIfPresent(key, (k, set) -> {
+				set.remove(c);
+				return set.isEmpty() ? null : set;
+			});
+		}
+
+		/**
+		 * The set for a key is dropped once it's empty, and a new one made if
+		 * the key comes back, so the view looks it up on each use rather than
+		 * holding on to the one there is now.
+		 */
+		Set<Connection> get(final K key) {
+			if (key == null)
+				return Collections.emptySet();
+			return new AbstractSet<Connection>() {
+				@Override
+				public Iterator<Connection> iterator() {
+					return current().iterator();
+				}
+
+				@Override
+				public int size() {
+					return count(key);
+				}
+
+				@Override
+				public boolean contains(Object o) {
+					return current().contains(o);
+				}
+
+				private Set<Connection> current() {
+					Set<Connection> set = map.get(key);
+					return set == null ? Collections.<Connection> emptySet() : Collections.unmodifiableSet(set);
+				}
+			};
+		}
+
+		int count(K key) {
+			Set<Connection> set = key == null ? null : map.get(key);
+			return set == null ? 0 : set.size();
+		}
+
+		Set<K> keys() {
+			return Collections.unmodifiableSet(map.keySet());
+		}
+	}
+
+	public ConnectionRegistry() {
+		final Collection<Entry> entries = byId.values();
+		connections = new AbstractCollection<Connection>() {
+			@Override
+			public Iterator<Connection> iterator() {
+				final Iterator<Entry> it = entries.iterator();
+				return new Iterator<Connection>() {
+					@Override
+					public boolean hasNext() {
+						return it.hasNext();
+					}
+
+					@Override
+					public Connection next() {
+						return it.next().connection;
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return entries.size();
+			}
+		};
+	}//constructor
+
+	/**
+	 * Adds a connection.
+	 *
+	 * @param c
+	 *            the connection
+	 * @return <tt>false</tt> if it was already registered
+	 */
+	public boolean add(Connection c) {
+		Entry e = new Entry(c);
+		synchronized (e) {
+			if (byId.putIfAbsent(c.getId(), e) != null)
+				return false;
+			ConnectionData cd = c.getConnectionData();
+			byAddress.add(cd.getInetAddress(), c);
+			e.loginShell = cd.getLoginShell();
+			byLoginShell.add(e.loginShell, c);
+			e.terminalType = cd.getNegotiatedTerminalType();
+			byTerminalType.add(e.terminalType, c);
+		}
+		return true;
+	}//add
+
+	/**
+	 * Removes a connection.
+	 *
+	 * @param c
+	 *            the connection
+	 * @return <tt>false</tt> if it wasn't registered
+	 */
+	public boolean remove(Connection c) {
+		Entry e = byId.remove(c.getId());
+		if (e == null)
+			return false;
+		synchronized (e) {
+			e.removed = true;
+			byAddress.remove(c.getConnectionData().getInetAddress(), c);
+			byLoginShell.remove(e.loginShell, c);
+			byTerminalType.remove(e.terminalType, c);
+		}
+		return true;
+	}//remove
+
+	/**
+	 * Refiles a connection under its current login shell and terminal type.
+	 * Called by {@link ConnectionData} when either changes.
+	 */
+	void update(Connection c) {
+		Entry e = byId.get(c.getId());
+		if (e == null)
+			return;
+		synchronized (e) {
+			if (e.removed)
+				return;
+			ConnectionData cd = c.getConnectionData();
+			String shell = cd.getLoginShell();
+			if (shell == null ? e.loginShell != null : !shell.equals(e.loginShell)) {
+				byLoginShell.remove(e.loginShell, c);
+				e.loginShell = shell;
+				byLoginShell.add(shell, c);
+			}
+			String type = cd.getNegotiatedTerminalType();
+			if (type == null ? e.terminalType != null : !type.equals(e.terminalType)) {
+				byTerminalType.remove(e.terminalType, c);
+				e.terminalType = type;
+				byTerminalType.add(type, c);
+			}
+		}
+	}//update
+
+	/**
+	 * @param id
+	 *            a connection id
+	 * @return the connection, or <tt>null</tt> if there is no open connection
+	 *         with that id
+	 */
+	public Connection get(long id) {
+		Entry e = byId.get(id);
+		return e == null ? null : e.connection;
+	}//get
+
+	/**
+	 * @return the number of open connections
+	 */
+	public int size() {
+		return byId.size();
+	}//size
+
+	/**
+	 * @return a live view of all open connections
+	 */
+	public Collection<Connection> getConnections() {
+		return connections;
+	}//getConnections
+
+	/**
+	 * @return a live view of the open connections from an address
+	 */
+	public Set<Connection> getByAddress(InetAddress addr) {
+		return byAddress.get(addr);
+	}//getByAddress
+
+	/**
+	 * @return the number of open connections from an address
+	 */
+	public int countByAddress(InetAddress addr) {
+		return byAddress.count(addr);
+	}//countByAddress
+
+	/**
+	 * @return a live view of the addresses with open connections
+	 */
+	public Set<InetAddress> getAddresses() {
+		return byAddress.keys();
+	}//getAddresses
+
+	/**
+	 * @return a live view of the open connections with a given login shell
+	 */
+	public Set<Connection> getByLoginShell(String shell) {
+		return byLoginShell.get(shell);
+	}//getByLoginShell
+
+	/**
+	 * @return a live view of the open connections that negotiated a given
+	 *         terminal type
+	 */
+	public Set<Connection> getByTerminalType(String type) {
+		return byTerminalType.get(type);
+	}//getByTerminalType
+
+	/**
+	 * @return a live view of the terminal types open connections have
+	 *         negotiated
+	 */
+	public Set<String> getTerminalTypes() {
+		return byTerminalType.keys();
+	}//getTerminalTypes
+
+}//class ConnectionRegistry
@@ -0,0 +1,220 @@
+package uk.co.stikman.wimpi.telnetd.net;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Delivers {@link ConnectionEvent}s to their connection's listeners on a small
+ * pool of threads, so that a slow listener holds up only its own connection
+ * rather than the housekeeping thread or whoever raised the event.
+ * <p>
+ * Each connection has its own queue of events, which are delivered one at a
+ * time and in the order they were raised. A connection only takes a pool
+ * thread while it has events waiting, and gives it up after a few so that a
+ * busy connection can't starve the others.
+ * <p>
+ * The pool's work queue is bounded. If it fills up the events are delivered
+ * on the thread that raised them instead, which slows that thread down
+ * rather than letting events pile up without limit.
+ */
+public class EventDispatcher {
+
+	private static final Log			log					= LogFactory.getLog(EventDispatcher.class);
+	private static final int			BATCH				= 16;				//events delivered before giving the thread up
+	private static final AtomicInteger	poolNumber			= new AtomicInteger();
+
+	private final ThreadPoolExecutor	executor;
+
+	private final AtomicLong			dispatched			= new AtomicLong();
+	private final AtomicLong			inline				= new AtomicLong();
+	private final AtomicLong			lagNanos			= new AtomicLong();
+	private final AtomicLong			maxLagNanos			= new AtomicLong();
+	private final AtomicLong			listenerNanos		= new AtomicLong();
+	private final AtomicLong			maxListenerNanos	= new AtomicLong();
+
+	/**
+	 * An event waiting for delivery.
+	 */
+	static final class Pending {
+		final ConnectionEvent	event;
+		final long				queued;
+
+		Pending(ConnectionEvent event, long queued) {
+			this.event = event;
+			this.queued = queued;
+		}
+	}
+
+	/**
+	 * @param threads
+	 *            most threads delivering events at once
+	 * @param queueSize
+	 *            most connections waiting for a thread, past that events are
+	 *            delivered on the thread raising them
+	 */
+	public EventDispatcher(int threads, int queueSize) {
+		final int pool = poolNumber.incrementAndGet();
+		executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+			private final AtomicInteger	count	= new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "EventDispatcher-" + pool + "-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+	}//constructor
+
+	/**
+	 * Queues an event for delivery to its connection's listeners.
+	 *
+	 * @param conn
+	 *            the connection
+	 * @param ce
+	 *            the event
+	 */
+	public void dispatch(Connection conn, ConnectionEvent ce) {
+		conn.pendingEvents.add(new Pending(ce, System.nanoTime()));
+		if (conn.dispatching.compareAndSet(false, true) && !submit(conn)) {
+			drain(conn);
+		}
+	}//dispatch
+
+	/**
+	 * Hands a connection that has events waiting to the pool.
+	 *
+	 * @return <tt>false</tt> if the pool is full, or shut down, and the caller
+	 *         should deliver them itself
+	 */
+	private boolean submit(final Connection conn) {
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					drain(conn);
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException ex) {
+			inline.incrementAndGet();
+			return false;
+		}
+	}//submit
+
+	/**
+	 * Delivers a connection's waiting events. Only ever runs on one thread at
+	 * a time for a given connection, the one that set its dispatching flag.
+	 */
+	private void drain(Connection conn) {
+		do {
+			for (int i = 0; i < BATCH; ++i) {
+				Pending p = conn.pendingEvents.poll();
+				if (p == null) {
+					break;
+				}
+				deliver(conn, p);
+			}
+			conn.dispatching.set(false);
+			//look again in case something arrived after the last poll, or the
+			//batch ran out, and carry on here if the pool is full
+		} while (!conn.pendingEvents.isEmpty() && conn.dispatching.compareAndSet(false, true) && !submit(conn));
+	}//drain
+
+	private void deliver(Connection conn, Pending p) {
+		long start = System.nanoTime();
+		try {
+			conn.fireConnectionEvent(p.event);
+		} catch (RuntimeException ex) {
+			log.error("deliver()", ex);
+		}
+		long end = System.nanoTime();
+		dispatched.incrementAndGet();
+		record(lagNanos, maxLagNanos, start - p.queued);
+		record(listenerNanos, maxListenerNanos, end - start);
+	}//deliver
+
+	private static void record(AtomicLong total, AtomicLong max, long dt) {
+		total.addAndGet(dt);
+		long m;
+		while (dt > (m = max.get()) && !max.compareAndSet(m, dt))
+			;
+	}//record
+
+	/**
+	 * Stops the pool. Events raised afterwards are delivered on the thread
+	 * raising them.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}//shutdown
+
+	/**
+	 * @return number of events delivered
+	 */
+	public long getDispatched() {
+		return dispatched.get();
+	}
+
+	/**
+	 * @return number of times events were delivered on the thread raising
+	 *         them because the pool was full
+	 */
+	public long getRanInline() {
+		return inline.get();
+	}
+
+	/**
+	 * @return number of connections waiting for a thread
+	 */
+	public int getQueueLength() {
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * @return mean time from an event being raised to its delivery starting,
+	 *         in milliseconds
+	 */
+	public double getMeanLagMillis() {
+		long n = dispatched.get();
+		return n == 0 ? 0 : lagNanos.get() / 1000000.0 / n;
+	}
+
+	/**
+	 * @return longest time from an event being raised to its delivery
+	 *         starting, in milliseconds
+	 */
+	public double getMaxLagMillis() {
+		return maxLagNanos.get() / 1000000.0;
+	}
+
+	/**
+	 * @return mean time the listeners took over an event, in milliseconds
+	 */
+	public double getMeanListenerMillis() {
+		long n = dispatched.get();
+		return n == 0 ? 0 : listenerNanos.get() / 1000000.0 / n;
+	}
+
+	/**
+	 * @return longest time the listeners took over an event, in milliseconds
+	 */
+	public double getMaxListenerMillis() {
+		return maxListenerNanos.get() / 1000000.0;
+	}
+
+	@Override
+	public String toString() {
+		return "EventDispatcher [dispatched=" + dispatched + ", inline=" + inline + ", meanLagMillis=" + getMeanLagMillis() + ", meanListenerMillis=" + getMeanListenerMillis() + "]";
+	}
+
+}//class EventDispatcher
@@ -0,0 +1,156 @@
+package uk.co.stikman.wimpi.telnetd.net;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A single selector thread that services any number of {@link NioTransport}s.
+ * It moves bytes between the sockets and the per-connection buffers, and never
+ * blocks on a client, so one of these can look after thousands of mostly idle
+ * connections.
+ * <p>
+ * Anything that needs to touch the selector or a <tt>SelectionKey</tt> from
+ * another thread goes through {@link #execute(Runnable)}.
+ */
+public class EventLoop implements Runnable {
+
+	private static final Log		log				= LogFactory.getLog(EventLoop.class);
+
+	private final String			name;
+	private final Selector			selector;
+	private final Queue<Runnable>	tasks			= new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean		wakeupPending	= new AtomicBoolean();
+	private Thread					thread;
+	private volatile boolean		stopping		= false;
+
+	public EventLoop(String name) throws IOException {
+		this.name = name;
+		selector = Selector.open();
+	}//constructor
+
+	/**
+	 * Starts the selector thread.
+	 */
+	public void start() {
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}//start
+
+	/**
+	 * Stops the selector thread, and closes any channels still registered with
+	 * it.
+	 */
+	public void stop() {
+		stopping = true;
+		selector.wakeup();
+		try {
+			if (thread != null && thread != Thread.currentThread())
+				thread.join();
+		} catch (InterruptedException iex) {
+			log.error("stop()", iex);
+		}
+	}//stop
+
+	/**
+	 * Queues a task to be run on the selector thread, and wakes the selector up
+	 * if it needs it.
+	 *
+	 * @param task
+	 *            the task to run.
+	 */
+	void execute(Runnable task) {
+		tasks.add(task);
+		if (Thread.currentThread() != thread && wakeupPending.compareAndSet(false, true))
+			selector.wakeup();
+	}//execute
+
+	Selector getSelector() {
+		return selector;
+	}//getSelector
+
+	public String getName() {
+		return name;
+	}//getName
+
+	/**
+	 * Returns the number of channels currently registered with this loop.
+	 *
+	 * @return the channel count
+	 */
+	public int getChannelCount() {
+		return selector.keys().size();
+	}//getChannelCount
+
+	public void run() {
+		while (!stopping) {
+			try {
+				selector.select();
+				wakeupPending.set(false);
+				runTasks();
+
+				Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+				while (iter.hasNext()) {
+					SelectionKey key = iter.next();
+					iter.remove();
+					NioTransport transport = (NioTransport) key.attachment();
+					try {
+						if (key.isValid() && key.isReadable())
+							transport.handleReadable();
+						if (key.isValid() && key.isWritable())
+							transport.handleWritable();
+					} catch (IOException ex) {
+						//a reset or similar, the reader will see EOF
+						log.debug("run():: " + transport + " " + ex.getMessage());
+						transport.handleBroken();
+					} catch (Exception ex) {
+						log.error("run()", ex);
+						transport.handleBroken();
+					}
+				}
+			} catch (Exception ex) {
+				log.error("run()", ex);
+			}
+		}
+
+		runTasks();
+		for (SelectionKey key : selector.keys()) {
+			try {
+				key.channel().close();
+			} catch (IOException ex) {
+				//nothing to be done
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException ex) {
+			log.error("run()", ex);
+		}
+		log.debug("run():: Ran out " + name);
+	}//run
+
+	private void runTasks() {
+		Runnable r;
+		while ((r = tasks.poll()) != null) {
+			try {
+				r.run();
+			} catch (Exception ex) {
+				log.error("runTasks()", ex);
+			}
+		}
+	}//runTasks
+
+	@Override
+	public String toString() {
+		return "EventLoop [" + name + "]";
+	}
+
+}//class EventLoop
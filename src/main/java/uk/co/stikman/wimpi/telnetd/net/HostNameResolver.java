@@ -0,0 +1,26 @@
+package uk.co.stikman.wimpi.telnetd.net;
+
+import java.net.InetAddress;
+
+/**
+ * Looks up host names for the addresses connections come from. The
+ * {@link ConnectionManager} always calls this on its resolver pool, never on
+ * the accept thread or while a connection is being set up, so implementations
+ * are free to block.
+ * <p>
+ * Configured per listener with <tt>&lt;name&gt;.resolver</tt>, the default is
+ * {@link SystemHostNameResolver}, wrapped in a
+ * {@link CachingHostNameResolver} unless the cache is turned off.
+ */
+public interface HostNameResolver {
+
+	/**
+	 * Looks up the host name for an address.
+	 *
+	 * @param addr
+	 *            the address
+	 * @return the host name, or <tt>null</tt> if it could not be resolved
+	 */
+	public String resolve(InetAddress addr);
+
+}//interface HostNameResolver
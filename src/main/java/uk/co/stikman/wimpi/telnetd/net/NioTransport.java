@@ -0,0 +1,466 @@
+package uk.co.stikman.wimpi.telnetd.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link Transport} over a non-blocking {@link SocketChannel} that is
+ * serviced by an {@link EventLoop}. The streams handed out still block the
+ * calling thread, they just wait on a condition rather than sitting in a
+ * socket read, so the connection's shell doesn't need to know the difference.
+ * <p>
+ * Memory is kept flat for idle connections: the input buffer is only held
+ * while there is unread data, and output is written straight to the channel
+ * from the calling thread where possible, only queueing what the socket
+ * wouldn't take, and only so much of that.
+ */
+public class NioTransport implements Transport {
+
+	private static final int		INPUT_BUFFER_SIZE	= 1024;
+	private static final int		PENDING_LIMIT		= 64 * 1024;							//bytes of output waiting before writers block
+
+	private final SocketChannel		channel;
+	private final EventLoop			loop;
+	private final ReentrantLock		lock				= new ReentrantLock();
+	private final Condition			readable			= lock.newCondition();
+	private final Condition			drained				= lock.newCondition();
+	private final Condition			room				= lock.newCondition();
+	private SelectionKey			key;													//only touched on the loop thread
+	private boolean					registered;
+	private boolean					closed;
+
+	//input, guarded by lock
+	private byte[]					inbuf;
+	private ByteBuffer				inview;
+	private int						inHead;
+	private int						inTail;
+	private boolean					eof;
+	private boolean					readSuspended;
+	private int						readTimeout;
+
+	//output, guarded by lock
+	private final Deque<ByteBuffer>	pending				= new ArrayDeque<>();
+	private int						pendingBytes;
+	private boolean					writeInterest;
+	private volatile OutputQueue	queue;													//bounded output, instead of pending
+
+	private final InputStream		inputStream			= new ChannelInputStream();
+	private final OutputStream		outputStream		= new ChannelOutputStream();
+
+	/**
+	 * Creates a transport for an accepted channel. The channel is switched to
+	 * non-blocking mode, but is not registered with the loop until one of the
+	 * streams is asked for, so a connection that gets filtered out never
+	 * touches the selector.
+	 *
+	 * @param channel
+	 *            the accepted channel
+	 * @param loop
+	 *            the loop that will service it
+	 */
+	public NioTransport(SocketChannel channel, EventLoop loop) throws IOException {
+		this.channel = channel;
+		this.loop = loop;
+		channel.configureBlocking(false);
+	}//constructor
+
+	@Override
+	public Socket getSocket() {
+		return channel.socket();
+	}//getSocket
+
+	public SocketChannel getChannel() {
+		return channel;
+	}//getChannel
+
+	public EventLoop getEventLoop() {
+		return loop;
+	}//getEventLoop
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		register();
+		return inputStream;
+	}//getInputStream
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		register();
+		OutputQueue q = queue;
+		return q != null ? q : outputStream;
+	}//getOutputStream
+
+	@Override
+	public void setOutputQueue(OutputQueue q, Executor executor) {
+		queue = q;
+		q.setOnReady(new Runnable() {
+			@Override
+			public void run() {
+				loop.execute(enableWrite);
+			}
+		});
+		q.setOnDisconnect(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					close();
+				} catch (IOException ex) {
+					//nothing to be done
+				}
+			}
+		});
+	}//setOutputQueue
+
+	@Override
+	public void setReadTimeout(int millis) {
+		lock.lock();
+		try {
+			readTimeout = millis;
+		} finally {
+			lock.unlock();
+		}
+	}//setReadTimeout
+
+	@Override
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			if (closed)
+				return;
+			closed = true;
+			pending.clear();
+			pendingBytes = 0;
+			readable.signalAll();
+			drained.signalAll();
+			room.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		OutputQueue q = queue;
+		if (q != null) {
+			q.abort(null);
+		}
+		//closing the channel cancels its key, the selector tidies up on its next pass
+		channel.close();
+	}//close
+
+	private void register() throws IOException {
+		lock.lock();
+		try {
+			if (closed)
+				throw new ClosedChannelException();
+			if (registered)
+				return;
+			registered = true;
+		} finally {
+			lock.unlock();
+		}
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					key = channel.register(loop.getSelector(), SelectionKey.OP_READ, NioTransport.this);
+				} catch (ClosedChannelException ex) {
+					handleBroken();
+				}
+			}
+		});
+	}//register
+
+	/*** Event loop side ***************************************************/
+
+	/**
+	 * Called on the loop thread when the channel has data.
+	 */
+	void handleReadable() throws IOException {
+		lock.lock();
+		try {
+			if (inbuf == null) {
+				inbuf = new byte[INPUT_BUFFER_SIZE];
+				inview = ByteBuffer.wrap(inbuf);
+			} else if (inHead > 0) {
+				System.arraycopy(inbuf, inHead, inbuf, 0, inTail - inHead);
+				inTail -= inHead;
+				inHead = 0;
+			}
+			if (inTail < inbuf.length) {
+				inview.limit(inbuf.length).position(inTail);
+				int n = channel.read(inview);
+				if (n < 0) {
+					eof = true;
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+				} else {
+					inTail += n;
+				}
+				readable.signalAll();
+			}
+			if (inTail == inbuf.length) {
+				//the reader isn't keeping up, stop reading until it has
+				//made some room, TCP will push back on the client
+				readSuspended = true;
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}//handleReadable
+
+	/**
+	 * Called on the loop thread when the channel can take more output.
+	 */
+	void handleWritable() throws IOException {
+		OutputQueue q = queue;
+		if (q != null) {
+			ByteBuffer bb;
+			while ((bb = q.next()) != null) {
+				channel.write(bb);
+				if (bb.hasRemaining())
+					return;
+				q.sent();
+			}
+			//a frame queued after this will turn it back on
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			return;
+		}
+		lock.lock();
+		try {
+			while (!pending.isEmpty()) {
+				ByteBuffer bb = pending.peek();
+				channel.write(bb);
+				if (bb.hasRemaining())
+					return;
+				pending.poll();
+				pendingBytes -= bb.limit();
+				room.signalAll();
+			}
+			writeInterest = false;
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			drained.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}//handleWritable
+
+	/**
+	 * Called on the loop thread when the channel has failed. Readers see end
+	 * of stream, writers get an exception.
+	 */
+	void handleBroken() {
+		lock.lock();
+		try {
+			eof = true;
+			closed = true;
+			pending.clear();
+			pendingBytes = 0;
+			readable.signalAll();
+			drained.signalAll();
+			room.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		OutputQueue q = queue;
+		if (q != null) {
+			q.abort(new ClosedChannelException());
+		}
+		if (key != null)
+			key.cancel();
+		try {
+			channel.close();
+		} catch (IOException ex) {
+			//nothing to be done
+		}
+	}//handleBroken
+
+	private final Runnable	resumeRead	= new Runnable() {
+											@Override
+											public void run() {
+												if (key != null && key.isValid())
+													key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+											}
+										};
+
+	private final Runnable	enableWrite	= new Runnable() {
+											@Override
+											public void run() {
+												if (key != null && key.isValid())
+													key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+											}
+										};
+
+	/*** Caller side ******************************************************/
+
+	private int doRead(byte[] b, int off, int len) throws IOException {
+		lock.lock();
+		try {
+			long nanos = TimeUnit.MILLISECONDS.toNanos(readTimeout);
+			while (inbuf == null || inHead == inTail) {
+				if (eof || closed)
+					return -1;
+				if (readTimeout > 0) {
+					if (nanos <= 0)
+						throw new SocketTimeoutException("Read timed out");
+					nanos = readable.awaitNanos(nanos);
+				} else {
+					readable.await();
+				}
+			}
+			int n = Math.min(len, inTail - inHead);
+			System.arraycopy(inbuf, inHead, b, off, n);
+			inHead += n;
+			if (inHead == inTail) {
+				//drop the buffer, idle connections shouldn't hold any
+				inbuf = null;
+				inview = null;
+				inHead = inTail = 0;
+			}
+			if (readSuspended) {
+				readSuspended = false;
+				loop.execute(resumeRead);
+			}
+			return n;
+		} catch (InterruptedException ex) {
+			throw new InterruptedIOException();
+		} finally {
+			lock.unlock();
+		}
+	}//doRead
+
+	private int doAvailable() {
+		lock.lock();
+		try {
+			return inTail - inHead;
+		} finally {
+			lock.unlock();
+		}
+	}//doAvailable
+
+	/**
+	 * Writes what the socket will take straight away, and queues the rest for
+	 * the loop. Once {@link #PENDING_LIMIT} bytes are queued it waits for
+	 * them to go, as a blocking socket would, so a client that doesn't read
+	 * can't make the queue grow without bound.
+	 */
+	private void doWrite(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return;
+		lock.lock();
+		try {
+			while (pendingBytes >= PENDING_LIMIT && !closed)
+				room.await();
+			if (closed)
+				throw new ClosedChannelException();
+			if (pending.isEmpty()) {
+				//nothing queued, so try the socket directly and save a hop
+				ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+				channel.write(bb);
+				if (!bb.hasRemaining())
+					return;
+				off = bb.position();
+				len = bb.remaining();
+			}
+			ByteBuffer copy = ByteBuffer.allocate(len);
+			copy.put(b, off, len);
+			copy.flip();
+			pending.add(copy);
+			pendingBytes += len;
+			if (!writeInterest) {
+				writeInterest = true;
+				loop.execute(enableWrite);
+			}
+		} catch (InterruptedException ex) {
+			throw new InterruptedIOException();
+		} finally {
+			lock.unlock();
+		}
+	}//doWrite
+
+	private void doFlush() throws IOException {
+		lock.lock();
+		try {
+			while (!pending.isEmpty() && !closed)
+				drained.await();
+			if (closed)
+				throw new ClosedChannelException();
+		} catch (InterruptedException ex) {
+			throw new InterruptedIOException();
+		} finally {
+			lock.unlock();
+		}
+	}//doFlush
+
+	@Override
+	public String toString() {
+		return "NioTransport [" + channel + "]";
+	}
+
+	private class ChannelInputStream extends InputStream {
+
+		private final byte[]	one	= new byte[1];
+
+		@Override
+		public int read() throws IOException {
+			int n = doRead(one, 0, 1);
+			return n < 0 ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			return doRead(b, off, len);
+		}
+
+		@Override
+		public int available() {
+			return doAvailable();
+		}
+
+		@Override
+		public void close() throws IOException {
+			NioTransport.this.close();
+		}
+
+	}
+
+	private class ChannelOutputStream extends OutputStream {
+
+		private final byte[]	one	= new byte[1];
+
+		@Override
+		public void write(int b) throws IOException {
+			one[0] = (byte) b;
+			doWrite(one, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			doWrite(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			doFlush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			NioTransport.this.close();
+		}
+
+	}
+
+}//class NioTransport
@@ -0,0 +1,507 @@
+package uk.co.stikman.wimpi.telnetd.net;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded queue of output for one connection, counted in bytes, that the
+ * application writes to and the {@link Transport} drains. Writing never waits
+ * on the network, only on the queue, so a client that stops reading can't
+ * hold a writer up for longer than the policy allows.
+ * <p>
+ * What's written between two flushes is a frame, usually one screen update,
+ * and a flush hands it to the transport without waiting for it to be sent.
+ * When there isn't room for a write, the policy decides what happens:
+ * <ul>
+ * <li>{@link #BLOCK} waits for room, up to the timeout;
+ * <li>{@link #DROP_OLDEST} throws away the oldest frames that haven't started
+ * going out, then waits like {@link #BLOCK} if that wasn't enough;
+ * <li>{@link #COALESCE} throws away all of them, for applications that redraw
+ * the whole screen, so only the latest one matters;
+ * <li>{@link #DISCONNECT} closes the connection.
+ * </ul>
+ * A write bigger than the room left is split, and the frames it's split into
+ * are never dropped, nor are frames written while the queue is lossless
+ * (while output is compressed, where dropping anything would corrupt the
+ * rest).
+ * <p>
+ * {@link #close()} waits for the queue to drain, up to the timeout, so that
+ * the last thing written still gets there; {@link #abort(IOException)}
+ * doesn't.
+ */
+public class OutputQueue extends OutputStream {
+
+	/**
+	 * Writers wait for room, and fail after the timeout.
+	 */
+	public static final int				BLOCK			= 0;
+	/**
+	 * The oldest frames waiting are dropped to make room.
+	 */
+	public static final int				DROP_OLDEST		= 1;
+	/**
+	 * All the frames waiting are dropped to make room, leaving the latest.
+	 */
+	public static final int				COALESCE		= 2;
+	/**
+	 * The connection is closed.
+	 */
+	public static final int				DISCONNECT		= 3;
+
+	private static final class Frame {
+		final ByteBuffer	data;
+		final boolean		keep;			//never dropped
+
+		Frame(ByteBuffer data, boolean keep) {
+			this.data = data;
+			this.keep = keep;
+		}
+	}
+
+	private final int					limit;
+	private final int					policy;
+	private final long					timeoutNanos;
+	private final ReentrantLock			lock			= new ReentrantLock();
+	private final Condition				room			= lock.newCondition();
+	private final Condition				ready			= lock.newCondition();
+	private final Deque<Frame>			frames			= new ArrayDeque<>();	//closed, not started
+	private Frame						head;									//going out now
+	private byte[]						open;									//being written
+	private int							openLength;
+	private boolean						continuing;								//open frame is the rest of a split one
+	private boolean						lossless;
+	private boolean						closed;
+	private IOException					failure;
+	private Runnable					onReady;
+	private Runnable					onDisconnect;
+
+	//counters, guarded by lock but read without it
+	private volatile int				depth;									//bytes in all of the above
+	private volatile int				maxDepth;
+	private volatile long				droppedFrames;
+	private volatile long				droppedBytes;
+
+	/**
+	 * @param limit
+	 *            most bytes waiting, sent or not
+	 * @param policy
+	 *            {@link #BLOCK}, {@link #DROP_OLDEST}, {@link #COALESCE} or
+	 *            {@link #DISCONNECT}
+	 * @param timeout
+	 *            longest a write waits for room, and {@link #close()} for the
+	 *            queue to drain, in milliseconds
+	 */
+	public OutputQueue(int limit, int policy, int timeout) {
+		if (limit <= 0) {
+			throw new IllegalArgumentException("Output queue limit must be positive: " + limit);
+		}
+		this.limit = limit;
+		this.policy = policy;
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+		this.open = new byte[Math.min(limit, 8192)];
+	}//constructor
+
+	/*** Writer side *******************************************************/
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}//write
+
+	/**
+	 * Queues bytes, waiting for room or making it as the policy says. If the
+	 * wait times out or is interrupted after some of them have been queued,
+	 * the connection is closed as with {@link #DISCONNECT}, since the client
+	 * would otherwise get part of an escape sequence or telnet command.
+	 */
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		Runnable disconnect = null;
+		final int total = len;
+		lock.lock();
+		try {
+			long nanos = timeoutNanos;
+			while (len > 0) {
+				check();
+				int free = limit - depth;
+				if (free > 0) {
+					int n = Math.min(free, len);
+					append(b, off, n);
+					off += n;
+					len -= n;
+					continue;
+				}
+				if (policy == DROP_OLDEST && drop(false)) {
+					continue;
+				}
+				if (policy == COALESCE && drop(true)) {
+					continue;
+				}
+				if (openLength > 0) {
+					//send what there is of it, so it can make room
+					Runnable r = endFrame(true);
+					continuing = true;
+					if (r != null) {
+						r.run();
+					}
+					continue;
+				}
+				if (policy == DISCONNECT) {
+					failure = new IOException("Output queue full");
+					disconnect = onDisconnect;
+					discard();
+					throw failure;
+				}
+				IOException ex = null;
+				if (nanos <= 0) {
+					ex = new SocketTimeoutException("Write timed out");
+				} else {
+					try {
+						nanos = room.awaitNanos(nanos);
+					} catch (InterruptedException iex) {
+						ex = new InterruptedIOException();
+					}
+				}
+				if (ex != null) {
+					if (len < total) {
+						failure = ex;
+						disconnect = onDisconnect;
+						discard();
+					}
+					throw ex;
+				}
+			}
+		} finally {
+			lock.unlock();
+			if (disconnect != null) {
+				disconnect.run();
+			}
+		}
+	}//write
+
+	/**
+	 * Adds bytes as a frame of their own, after ending the one being written,
+	 * without copying them: the queue keeps the buffer, so it mustn't be
+	 * changed afterwards. For output shared by many connections, see
+	 * {@link uk.co.stikman.wimpi.telnetd.io.Broadcast}. Waits for room, or
+	 * drops frames to make it, as {@link #write(byte[], int, int)} does, and
+	 * if it's bigger than the whole queue it's copied in pieces instead.
+	 *
+	 * @param frame
+	 *            a heap buffer, from its position to its limit
+	 */
+	public void write(ByteBuffer frame) throws IOException {
+		int len = frame.remaining();
+		if (len > limit) {
+			write(frame.array(), frame.arrayOffset() + frame.position(), len);
+			flush();
+			return;
+		}
+		flush();
+		Runnable ready = null;
+		Runnable disconnect = null;
+		lock.lock();
+		try {
+			long nanos = timeoutNanos;
+			for (;;) {
+				check();
+				if (limit - depth >= len) {
+					break;
+				}
+				if (policy == DROP_OLDEST && drop(false)) {
+					continue;
+				}
+				if (policy == COALESCE && drop(true)) {
+					continue;
+				}
+				if (policy == DISCONNECT) {
+					failure = new IOException("Output queue full");
+					disconnect = onDisconnect;
+					discard();
+					throw failure;
+				}
+				if (nanos <= 0) {
+					throw new SocketTimeoutException("Write timed out");
+				}
+				nanos = room.awaitNanos(nanos);
+			}
+			boolean wasEmpty = head == null && frames.isEmpty();
+			frames.add(new Frame(frame, lossless));
+			depth += len;
+			if (depth > maxDepth) {
+				maxDepth = depth;
+			}
+			this.ready.signal();
+			ready = wasEmpty ? onReady : null;
+		} catch (InterruptedException ex) {
+			throw new InterruptedIOException();
+		} finally {
+			lock.unlock();
+			if (disconnect != null) {
+				disconnect.run();
+			}
+		}
+		if (ready != null) {
+			ready.run();
+		}
+	}//write(ByteBuffer)
+
+	/**
+	 * Ends the frame being written and hands it to the transport, without
+	 * waiting for it to be sent.
+	 */
+	@Override
+	public void flush() throws IOException {
+		Runnable r = null;
+		lock.lock();
+		try {
+			check();
+			if (openLength > 0) {
+				r = endFrame(continuing);
+				continuing = false;
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (r != null) {
+			r.run();
+		}
+	}//flush
+
+	/**
+	 * Flushes, and waits up to the timeout for everything to be sent. Later
+	 * writes fail.
+	 */
+	@Override
+	public void close() throws IOException {
+		flush();
+		lock.lock();
+		try {
+			long nanos = timeoutNanos;
+			while (failure == null && !closed && (head != null || !frames.isEmpty()) && nanos > 0)
+				nanos = room.awaitNanos(nanos);
+			closed = true;
+			ready.signalAll();
+		} catch (InterruptedException ex) {
+			throw new InterruptedIOException();
+		} finally {
+			lock.unlock();
+		}
+	}//close
+
+	/**
+	 * Frames written from now on, until this is switched off again, are never
+	 * dropped.
+	 */
+	public void setLossless(boolean b) {
+		lock.lock();
+		try {
+			lossless = b;
+		} finally {
+			lock.unlock();
+		}
+	}//setLossless
+
+	private void check() throws IOException {
+		if (failure != null) {
+			throw new IOException("Output queue closed", failure);
+		}
+		if (closed) {
+			throw new IOException("Output queue closed");
+		}
+	}//check
+
+	private void append(byte[] b, int off, int len) {
+		if (openLength + len > open.length) {
+			byte[] nu = new byte[Math.min(limit, Math.max(open.length * 2, openLength + len))];
+			System.arraycopy(open, 0, nu, 0, openLength);
+			open = nu;
+		}
+		System.arraycopy(b, off, open, openLength, len);
+		openLength += len;
+		depth += len;
+		if (depth > maxDepth) {
+			maxDepth = depth;
+		}
+	}//append
+
+	/**
+	 * @return what to run once the lock is let go, to tell the transport
+	 */
+	private Runnable endFrame(boolean keep) {
+		byte[] data = new byte[openLength];
+		System.arraycopy(open, 0, data, 0, openLength);
+		openLength = 0;
+		boolean wasEmpty = head == null && frames.isEmpty();
+		frames.add(new Frame(ByteBuffer.wrap(data), keep || lossless));
+		ready.signal();
+		return wasEmpty ? onReady : null;
+	}//endFrame
+
+	/**
+	 * Drops the oldest frame that can be, or all of them.
+	 *
+	 * @return true if anything was dropped
+	 */
+	private boolean drop(boolean all) {
+		boolean dropped = false;
+		for (Iterator<Frame> it = frames.iterator(); it.hasNext();) {
+			Frame f = it.next();
+			if (!f.keep) {
+				it.remove();
+				depth -= f.data.limit();
+				droppedBytes += f.data.limit();
+				++droppedFrames;
+				dropped = true;
+				if (!all) {
+					break;
+				}
+			}
+		}
+		return dropped;
+	}//drop
+
+	private void discard() {
+		frames.clear();
+		head = null;
+		openLength = 0;
+		depth = 0;
+		room.signalAll();
+		ready.signalAll();
+	}//discard
+
+	/*** Transport side ****************************************************/
+
+	/**
+	 * Sets what to run when a frame is waiting after the queue was empty,
+	 * for a transport that doesn't have a thread sitting in {@link #take()}.
+	 * It's run on the writer's thread, so mustn't block.
+	 */
+	public void setOnReady(Runnable r) {
+		onReady = r;
+	}//setOnReady
+
+	/**
+	 * Sets what to run when the {@link #DISCONNECT} policy kicks in, usually
+	 * closing the transport.
+	 */
+	public void setOnDisconnect(Runnable r) {
+		onDisconnect = r;
+	}//setOnDisconnect
+
+	/**
+	 * @return the frame to send next, which stays in the queue until
+	 *         {@link #sent()}, or <tt>null</tt> if there isn't one
+	 */
+	public ByteBuffer next() {
+		lock.lock();
+		try {
+			if (head == null) {
+				head = frames.poll();
+			}
+			return head == null ? null : head.data;
+		} finally {
+			lock.unlock();
+		}
+	}//next
+
+	/**
+	 * Waits for a frame to send.
+	 *
+	 * @return as {@link #next()}, or <tt>null</tt> once the queue is closed
+	 *         and empty
+	 */
+	public ByteBuffer take() throws InterruptedException {
+		lock.lock();
+		try {
+			for (;;) {
+				if (head == null) {
+					head = frames.poll();
+				}
+				if (head != null) {
+					return head.data;
+				}
+				if (closed || failure != null) {
+					return null;
+				}
+				ready.await();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}//take
+
+	/**
+	 * Says the frame from {@link #next()} or {@link #take()} has all gone.
+	 */
+	public void sent() {
+		lock.lock();
+		try {
+			if (head != null) {
+				depth -= head.data.limit();
+				head = null;
+				room.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}//sent
+
+	/**
+	 * Throws everything away, for when the connection has gone. Writers see
+	 * the exception, or a plain one if it's <tt>null</tt>.
+	 */
+	public void abort(IOException cause) {
+		lock.lock();
+		try {
+			if (failure == null) {
+				failure = cause != null ? cause : new IOException("Connection closed");
+			}
+			discard();
+		} finally {
+			lock.unlock();
+		}
+	}//abort
+
+	/*** Counters **********************************************************/
+
+	/**
+	 * @return bytes waiting, including any being sent
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * @return the most bytes that have been waiting at once
+	 */
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	public long getDroppedFrames() {
+		return droppedFrames;
+	}
+
+	public long getDroppedBytes() {
+		return droppedBytes;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	public int getPolicy() {
+		return policy;
+	}
+
+}//class OutputQueue
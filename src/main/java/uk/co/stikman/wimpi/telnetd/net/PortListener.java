@@ -33,21 +33,37 @@
 package uk.co.stikman.wimpi.telnetd.net;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import uk.co.stikman.wimpi.telnetd.BootException;
+import uk.co.stikman.wimpi.telnetd.io.Broadcast;
+import uk.co.stikman.wimpi.telnetd.util.RateMeter;
 
 /**
  * Class that implements a <tt>PortListener</tt>.<br>
  * If available, it accepts incoming connections and passes them
  * to an associated <tt>ConnectionManager</tt>.
+ * <p/>
+ * A listener can run several acceptor threads, each handing its connections
+ * to its own <tt>ConnectionManager</tt> shard. Where the platform supports
+ * <tt>SO_REUSEPORT</tt> each acceptor gets its own socket and the kernel
+ * spreads incoming connections over them, otherwise they share one.
  *
  * @author Dieter Wimberger
  * @version 2.0 (16/07/2006)
@@ -64,11 +80,111 @@ public class PortListener
   private ServerSocket m_ServerSocket = null; //server socket
 
   private Thread m_Thread;
-  private ConnectionManager connectionManager;	//connection management thread
-  private boolean m_Stopping = false;
-  private boolean m_Available;               		//Flag for availability
+  private volatile boolean m_Stopping = false;
+  private volatile boolean m_Available;         //Flag for availability
+  private EventLoop[] m_EventLoops;              //null for blocking transport
+  private final AtomicInteger m_NextLoop = new AtomicInteger();
+  private Acceptor[] m_Acceptors;
+  private boolean m_ReusePort;                   //acceptors have a socket each
 
 
+  /**
+   * An accept thread, and the <tt>ConnectionManager</tt> shard it
+   * passes its connections to.
+   */
+  public class Acceptor
+      implements Runnable {
+
+    private final int m_Index;
+    private final RateMeter m_Accepts = new RateMeter(1000);
+    private ConnectionManager m_ConnectionManager;
+    private ServerSocket m_Socket;                //classic blocking accept
+    private ServerSocketChannel m_Channel;        //or a channel, possibly shared
+    private Thread m_AcceptThread;
+
+    private Acceptor(int idx) {
+      m_Index = idx;
+    }//constructor
+
+    public int getIndex() {
+      return m_Index;
+    }//getIndex
+
+    public ConnectionManager getConnectionManager() {
+      return m_ConnectionManager;
+    }//getConnectionManager
+
+    /**
+     * @return the number of connections this acceptor has accepted.
+     */
+    public long getAcceptCount() {
+      return m_Accepts.getCount();
+    }//getAcceptCount
+
+    /**
+     * @return connections accepted per second, over the last second.
+     */
+    public double getAcceptRate() {
+      return m_Accepts.getRate();
+    }//getAcceptRate
+
+    private void close() {
+      try {
+        if (m_Socket != null) {
+          m_Socket.close();
+        }
+        if (m_Channel != null) {
+          m_Channel.close();
+        }
+      } catch (IOException ex) {
+        log.error("close()", ex);
+      }
+    }//close
+
+    public void run() {
+      try {
+        do {
+          try {
+            if (m_Channel == null) {
+              Socket s = m_Socket.accept();
+              m_Accepts.mark();
+              if (m_Available && m_ConnectionManager.isAllowed(s.getInetAddress())) {
+                m_ConnectionManager.openConnection(new BlockingTransport(s));
+              } else {
+                //just shut down the socket
+                s.close();
+              }
+            } else {
+              SocketChannel ch = m_Channel.accept();
+              m_Accepts.mark();
+              if (m_Available && m_ConnectionManager.isAllowed(ch.socket().getInetAddress())) {
+                if (m_EventLoops == null) {
+                  m_ConnectionManager.openConnection(new BlockingTransport(ch.socket()));
+                } else {
+                  m_ConnectionManager.openConnection(new NioTransport(ch, nextEventLoop()));
+                }
+              } else {
+                ch.close();
+              }
+            }
+          } catch (SocketException | ClosedChannelException ex) {
+            if (m_Stopping) {
+              //server socket was closed blocked in accept
+              log.debug("run(): ServerSocket closed by stop()");
+            } else {
+              log.error("run()", ex);
+            }
+          }
+        } while (!m_Stopping);
+
+      } catch (IOException e) {
+        log.error("run()", e);
+      }
+      log.debug("run(): acceptor " + m_Index + " returning.");
+    }//run
+
+  }//class Acceptor
+
   /**
    * Constructs a PortListener instance.<br>
    *
@@ -80,6 +196,44 @@ public class PortListener
     m_Available = false;
     m_Port = port;
     m_FloodProtection = floodprot;
+    m_Acceptors = new Acceptor[] {new Acceptor(0)};
+  }//constructor
+
+  /**
+   * Constructs a PortListener instance that hands its connections
+   * to a set of NIO event loops instead of using blocking sockets.<br>
+   *
+   * @param port       int that specifies the port number of the server socket.
+   * @param floodprot  that specifies the server socket queue size.
+   * @param eventloops number of selector threads to share the connections over.
+   */
+  public PortListener(String name, int port, int floodprot, int eventloops)
+      throws IOException {
+    this(name, port, floodprot, eventloops, 1);
+  }//constructor
+
+  /**
+   * Constructs a PortListener instance with several acceptors.<br>
+   *
+   * @param port       int that specifies the port number of the server socket.
+   * @param floodprot  that specifies the server socket queue size.
+   * @param eventloops number of selector threads to share the connections over,
+   *                   or 0 to use blocking sockets.
+   * @param acceptors  number of accept threads.
+   */
+  public PortListener(String name, int port, int floodprot, int eventloops, int acceptors)
+      throws IOException {
+    this(name, port, floodprot);
+    if (eventloops > 0) {
+      m_EventLoops = new EventLoop[eventloops];
+      for (int i = 0; i < eventloops; i++) {
+        m_EventLoops[i] = new EventLoop(name + "-eventloop-" + i);
+      }
+    }
+    m_Acceptors = new Acceptor[Math.max(1, acceptors)];
+    for (int i = 0; i < m_Acceptors.length; i++) {
+      m_Acceptors[i] = new Acceptor(i);
+    }
   }//constructor
 
   /**
@@ -114,6 +268,11 @@ public class PortListener
    */
   public void start() {
     log.debug("start()");
+    if (m_EventLoops != null) {
+      for (EventLoop loop : m_EventLoops) {
+        loop.start();
+      }
+    }
     m_Thread = new Thread(this);
     m_Thread.start();
     m_Available = true;
@@ -128,29 +287,45 @@ public class PortListener
     //flag stop
     m_Stopping = true;
     m_Available = false;
-    //take down all connections
-    connectionManager.stop();
+    //take down all connections, the first shard last since the
+    //others share its event dispatcher
+    List<ConnectionManager> managers = getConnectionManagers();
+    for (int i = managers.size() - 1; i >= 0; i--) {
+      managers.get(i).stop();
+    }
 
-    //close server socket
-    try {
-      m_ServerSocket.close();
-    } catch (IOException ex) {
-      log.error("stop()", ex);
+    //close server sockets
+    for (Acceptor a : m_Acceptors) {
+      a.close();
     }
 
-    //wait for thread to die
+    //wait for threads to die
     try {
       m_Thread.join();
+      for (Acceptor a : m_Acceptors) {
+        if (a.m_AcceptThread != null) {
+          a.m_AcceptThread.join();
+        }
+      }
     } catch (InterruptedException iex) {
       log.error("stop()", iex);
     }
 
+    //stop the selector threads, closing anything left on them
+    if (m_EventLoops != null) {
+      for (EventLoop loop : m_EventLoops) {
+        loop.stop();
+      }
+    }
+
     log.info("stop()::Stopped " + this.toString());
   }//stop
 
   /**
    * Listen constantly to a server socket and handles incoming connections
-   * through the associated {a:link ConnectionManager}.
+   * through the associated {a:link ConnectionManager}. With more than one
+   * acceptor, this starts the others on their own threads and then acts
+   * as the first.
    *
    * @see uk.co.stikman.wimpi.telnetd.net.ConnectionManager
    */
@@ -162,48 +337,167 @@ public class PortListener
           should be handled properly, but denial of service attacks via massive parallel
           program logins should be prevented with this.
       */
-      m_ServerSocket = new ServerSocket(m_Port, m_FloodProtection);
+      openSockets();
 
       //log entry
       Object[] args = {new Integer(m_Port), new Integer(m_FloodProtection)};
       log.info(MessageFormat.format(logmsg, args));
-
-      do {
-        try {
-          Socket s = m_ServerSocket.accept();
-          if (m_Available) {
-            connectionManager.makeConnection(s);
-          } else {
-            //just shut down the socket
-            s.close();
-          }
-        } catch (SocketException ex) {
-          if (m_Stopping) {
-            //server socket was closed blocked in accept
-            log.debug("run(): ServerSocket closed by stop()");
-          } else {
-            log.error("run()", ex);
-          }
-        }
-      } while (!m_Stopping);
-
+      if (m_Acceptors.length > 1) {
+        log.info(m_Acceptors.length + " acceptors " + (m_ReusePort ? "with a socket each (SO_REUSEPORT)." : "sharing a socket."));
+      }
     } catch (IOException e) {
       log.error("run()", e);
+      return;
     }
+
+    for (int i = 1; i < m_Acceptors.length; i++) {
+      Acceptor a = m_Acceptors[i];
+      a.m_AcceptThread = new Thread(a, m_Name + "-acceptor-" + i);
+      a.m_AcceptThread.start();
+    }
+    m_Acceptors[0].run();
     log.debug("run(): returning.");
   }//run
 
+  private void openSockets() throws IOException {
+    if (m_Acceptors.length == 1 && m_EventLoops == null) {
+      m_ServerSocket = new ServerSocket(m_Port, m_FloodProtection);
+      m_Acceptors[0].m_Socket = m_ServerSocket;
+      return;
+    }
+    if (m_Acceptors.length > 1) {
+      ServerSocketChannel probe = ServerSocketChannel.open();
+      m_ReusePort = probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+      probe.close();
+    }
+    ServerSocketChannel shared = null;
+    for (Acceptor a : m_Acceptors) {
+      if (m_ReusePort) {
+        a.m_Channel = ServerSocketChannel.open();
+        a.m_Channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        a.m_Channel.bind(new InetSocketAddress(m_Port), m_FloodProtection);
+      } else {
+        if (shared == null) {
+          shared = ServerSocketChannel.open();
+          shared.bind(new InetSocketAddress(m_Port), m_FloodProtection);
+        }
+        a.m_Channel = shared;
+      }
+    }
+    m_ServerSocket = m_Acceptors[0].m_Channel.socket();
+  }//openSockets
+
+  private EventLoop nextEventLoop() {
+    int n = m_NextLoop.getAndIncrement();
+    return m_EventLoops[(n & Integer.MAX_VALUE) % m_EventLoops.length];
+  }//nextEventLoop
+
+  /**
+   * Returns the event loops servicing this listener's connections.
+   *
+   * @return the loops, or an empty array when using blocking sockets.
+   */
+  public EventLoop[] getEventLoops() {
+    return m_EventLoops == null ? new EventLoop[0] : m_EventLoops.clone();
+  }//getEventLoops
+
+  /**
+   * Returns this listener's acceptors, for their accept counters.
+   *
+   * @return the acceptors.
+   */
+  public Acceptor[] getAcceptors() {
+    return m_Acceptors.clone();
+  }//getAcceptors
 
   /**
    * Returns reference to ConnectionManager instance associated
-   * with the PortListener.
+   * with the PortListener. With more than one acceptor this is
+   * the first shard.
    *
    * @return the associated ConnectionManager.
+   * @see #getConnectionManagers()
    */
   public ConnectionManager getConnectionManager() {
-    return connectionManager;
+    return m_Acceptors[0].m_ConnectionManager;
   }//getConnectionManager
 
+  /**
+   * Returns the ConnectionManager shards of this listener, one
+   * per acceptor unless they have been set to share one.
+   *
+   * @return the distinct ConnectionManagers.
+   */
+  public List<ConnectionManager> getConnectionManagers() {
+    List<ConnectionManager> l = new ArrayList<>(m_Acceptors.length);
+    for (Acceptor a : m_Acceptors) {
+      if (a.m_ConnectionManager != null && !l.contains(a.m_ConnectionManager)) {
+        l.add(a.m_ConnectionManager);
+      }
+    }
+    return l;
+  }//getConnectionManagers
+
+  /**
+   * Returns the number of open connections over all the shards.
+   *
+   * @return the number of open connections.
+   */
+  public int openConnectionCount() {
+    int n = 0;
+    for (ConnectionManager cm : getConnectionManagers()) {
+      n += cm.openConnectionCount();
+    }
+    return n;
+  }//openConnectionCount
+
+  /**
+   * Looks up an open connection by id, on whichever shard it is.
+   *
+   * @param id the connection's {@link Connection#getId()}.
+   * @return the connection, or <tt>null</tt> if there is none open with that id.
+   */
+  public Connection getConnection(long id) {
+    for (ConnectionManager cm : getConnectionManagers()) {
+      Connection c = cm.getRegistry().get(id);
+      if (c != null) {
+        return c;
+      }
+    }
+    return null;
+  }//getConnection
+
+  /**
+   * Returns the open connections from an address, over all the shards.
+   *
+   * @param addr the remote address.
+   * @return the connections, which may be none.
+   */
+  public List<Connection> getConnectionsByAddress(InetAddress addr) {
+    List<Connection> l = new ArrayList<>();
+    for (ConnectionManager cm : getConnectionManagers()) {
+      l.addAll(cm.getRegistry().getByAddress(addr));
+    }
+    return l;
+  }//getConnectionsByAddress
+
+  /**
+   * Writes a text to every open connection on every shard, rendering it
+   * once for each terminal type whichever shard the connections are on.
+   *
+   * @param text the text to write.
+   * @return the number of connections it was written to.
+   * @see ConnectionManager#broadcast(Broadcast, Iterable)
+   */
+  public int broadcast(String text) {
+    Broadcast b = new Broadcast(text);
+    int n = 0;
+    for (ConnectionManager cm : getConnectionManagers()) {
+      n += cm.broadcast(b, cm.getRegistry().getConnections());
+    }
+    return n;
+  }//broadcast
+
   /**
    * Factory method for a PortListener instance, returns
    * an instance of a PortListener with an associated ConnectionManager.
@@ -214,27 +508,45 @@ public class PortListener
       throws BootException {
 
     PortListener pl = null;
+    int acceptors = 1;
 
     try {
       //1. read settings of the port listener itself
       int port = Integer.parseInt(settings.getProperty(name + ".port"));
       int floodprot = Integer.parseInt(settings.getProperty(name + ".floodprotection"));
+      acceptors = Math.max(1, Integer.parseInt(settings.getProperty(name + ".acceptors", "1")));
 
       if (new Boolean(settings.getProperty(name + ".secure")).booleanValue()) {
         //do nothing for now, probably set factory in the future
       }
-      pl = new PortListener(name, port, floodprot);
+      //transport, either plain blocking sockets with a thread each or
+      //non-blocking channels serviced by a few selector threads
+      String transport = settings.getProperty(name + ".transport", "blocking");
+      if ("nio".equalsIgnoreCase(transport)) {
+        int loops = Integer.parseInt(settings.getProperty(name + ".eventloops",
+            Integer.toString(Runtime.getRuntime().availableProcessors())));
+        pl = new PortListener(name, port, floodprot, Math.max(1, loops), acceptors);
+      } else if ("blocking".equalsIgnoreCase(transport)) {
+        pl = new PortListener(name, port, floodprot, 0, acceptors);
+      } else {
+        throw new IllegalArgumentException("Unknown transport: " + transport);
+      }
     } catch (Exception ex) {
       log.error("createPortListener()", ex);
       throw new BootException("Failure while creating PortListener instance:\n" +
           ex.getMessage());
     }
 
-    //2. factorize a ConnectionManager, passing the settings, if we do not have one yet
-    if (pl.connectionManager == null) {
-      pl.connectionManager = ConnectionManager.createConnectionManager(name, settings);
+    //2. factorize a ConnectionManager shard per acceptor, passing the settings,
+    //   the first creates the resolver, event dispatcher and connection filter,
+    //   and the rest share them and its connection limit, so both the overall
+    //   and per address limits hold however the connections are spread
+    for (int i = 0; i < acceptors; i++) {
+      ConnectionManager first = i == 0 ? null : pl.m_Acceptors[0].m_ConnectionManager;
+      ConnectionManager cm = ConnectionManager.createConnectionManager(name, settings, first);
+      pl.m_Acceptors[i].m_ConnectionManager = cm;
       try {
-        pl.connectionManager.start();
+        cm.start();
       } catch (Exception exc) {
         log.error("createPortListener()", exc);
         throw new BootException("Failure while starting ConnectionManager watchdog thread:\n" +
@@ -249,8 +561,14 @@ public class PortListener
 
 
 
+  /**
+   * Sets the ConnectionManager for this listener, which all its
+   * acceptors will share.
+   */
   public void setConnectionManager(ConnectionManager connectionManager) {
-      this.connectionManager = connectionManager;
+      for (Acceptor a : m_Acceptors) {
+        a.m_ConnectionManager = connectionManager;
+      }
   }
 
 }//class PortListener
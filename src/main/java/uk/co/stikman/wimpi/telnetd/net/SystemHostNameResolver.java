@@ -0,0 +1,20 @@
+package uk.co.stikman.wimpi.telnetd.net;
+
+import java.net.InetAddress;
+
+/**
+ * {@link HostNameResolver} that uses the JVM's own reverse lookup,
+ * {@link InetAddress#getHostName()}.
+ */
+public class SystemHostNameResolver implements HostNameResolver {
+
+	@Override
+	public String resolve(InetAddress addr) {
+		//getHostName() gives back the literal address when it fails
+		String name = addr.getHostName();
+		if (name.equals(addr.getHostAddress()))
+			return null;
+		return name;
+	}
+
+}//class SystemHostNameResolver
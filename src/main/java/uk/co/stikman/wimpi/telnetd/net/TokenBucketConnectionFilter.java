@@ -0,0 +1,408 @@
+package uk.co.stikman.wimpi.telnetd.net;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link ConnectionFilter} that limits how quickly connections are accepted,
+ * and how many may be open at once, from each address, from each subnet, and
+ * (rate only) over all.
+ * <p>
+ * Rates are token buckets: each connection takes a token, and tokens come
+ * back at a steady rate up to a burst size. Open connections are counted
+ * through {@link #connectionClosed(InetAddress)}. A connection has to pass
+ * every limit. If a later limit refuses it, whatever the earlier ones took is
+ * handed back.
+ * <p>
+ * A bucket with no open connections and a full set of tokens is the same as
+ * not having one, so it can be dropped. Such buckets are swept out from time
+ * to time, and whenever a table reaches its size limit. If a sweep can't make
+ * room, addresses that aren't already being tracked are refused until room
+ * comes free. Everything else is a map lookup and a short uncontended lock.
+ * <p>
+ * Settings, read by {@link #initialize(Properties)}, with 0 meaning no limit:
+ * <ul>
+ * <li><tt>tokenbucket.host_rate</tt>, <tt>tokenbucket.host_burst</tt>:
+ * connections per second from one address, and how many may come at once
+ * <li><tt>tokenbucket.host_sessions</tt>: open connections from one address
+ * <li><tt>tokenbucket.subnet_rate</tt>, <tt>tokenbucket.subnet_burst</tt>,
+ * <tt>tokenbucket.subnet_sessions</tt>: the same per subnet
+ * <li><tt>tokenbucket.subnet4_prefix</tt>, <tt>tokenbucket.subnet6_prefix</tt>:
+ * prefix lengths of IPv4 and IPv6 subnets, 24 and 64 by default
+ * <li><tt>tokenbucket.global_rate</tt>, <tt>tokenbucket.global_burst</tt>:
+ * connections per second over all
+ * <li><tt>tokenbucket.maxentries</tt>: most addresses (and subnets) tracked
+ * </ul>
+ */
+public class TokenBucketConnectionFilter implements ConnectionFilter {
+
+	private static final int			OK					= 0;
+	private static final int			RATE				= 1;
+	private static final int			SESSIONS			= 2;
+	private static final int			FULL				= 3;
+
+	private static final long			SWEEP_INTERVAL		= 10000000000L;	//10s
+	private static final long			FULL_SWEEP_INTERVAL	= 100000000L;	//100ms, when full
+
+	private Table<InetAddress>			hosts;
+	private Table<Integer>				subnets4;
+	private Table<Long>					subnets6;
+	private Bucket						global;
+	private int							subnet4Mask;
+	private long						subnet6Mask;
+
+	private final AtomicLong			allowed				= new AtomicLong();
+	private final AtomicLong			rejectedRate		= new AtomicLong();
+	private final AtomicLong			rejectedSessions	= new AtomicLong();
+	private final AtomicLong			rejectedFull		= new AtomicLong();
+
+	/**
+	 * A rate and open connection limit.
+	 */
+	private static final class Limit {
+		final double	perNano;
+		final double	burst;
+		final int		sessions;
+
+		Limit(double perSecond, double burst, int sessions) {
+			this.perNano = perSecond / 1e9;
+			this.burst = Math.max(1, burst);
+			this.sessions = sessions;
+		}
+
+		boolean isEnabled() {
+			return perNano > 0 || sessions > 0;
+		}
+	}
+
+	/**
+	 * Tokens and open connections for one key. Guarded by its own monitor.
+	 */
+	private static final class Bucket {
+		final Limit	limit;
+		double		tokens;
+		long		refilled;
+		int			sessions;
+		boolean		dead;		//swept out of its table, look again
+
+		Bucket(Limit limit, long now) {
+			this.limit = limit;
+			this.tokens = limit.burst;
+			this.refilled = now;
+		}
+
+		private void refill(long now) {
+			if (limit.perNano > 0 && tokens < limit.burst) {
+				tokens = Math.min(limit.burst, tokens + (now - refilled) * limit.perNano);
+			}
+			refilled = now;
+		}
+
+		int admit(long now) {
+			if (limit.sessions > 0 && sessions >= limit.sessions) {
+				return SESSIONS;
+			}
+			if (limit.perNano > 0) {
+				refill(now);
+				if (tokens < 1) {
+					return RATE;
+				}
+				tokens -= 1;
+			}
+			++sessions;
+			return OK;
+		}
+
+		void undo() {
+			if (sessions > 0) {
+				--sessions;
+			}
+			if (limit.perNano > 0) {
+				tokens = Math.min(limit.burst, tokens + 1);
+			}
+		}
+
+		void release() {
+			if (sessions > 0) {
+				--sessions;
+			}
+		}
+
+		boolean isIdle(long now) {
+			refill(now);
+			return sessions == 0 && (limit.perNano <= 0 || tokens >= limit.burst);
+		}
+	}
+
+	/**
+	 * Buckets by key, at most a fixed number of them.
+	 */
+	private static final class Table<K> {
+		private final Map<K, Bucket>	map			= new ConcurrentHashMap<>();
+		private final ReentrantLock		sweepLock	= new ReentrantLock();
+		private final Limit				limit;
+		private final int				maxEntries;
+		private volatile long			lastSweep;
+
+		Table(Limit limit, int maxEntries, long now) {
+			this.limit = limit;
+			this.maxEntries = maxEntries;
+			this.lastSweep = now;
+		}
+
+		int admit(K key, long now) {
+			if (now - lastSweep >= SWEEP_INTERVAL) {
+				sweep(now);
+			}
+			for (;;) {
+				Bucket b = map.get(key);
+				if (b == null) {
+					if (map.size() >= maxEntries) {
+						//don't sweep over and over while a flood keeps it full
+						if (now - lastSweep >= FULL_SWEEP_INTERVAL) {
+							sweep(now);
+						}
+						if (map.size() >= maxEntries) {
+							return FULL;
+						}
+					}
+					Bucket mine = new Bucket(limit, now);
+					b = map.putIfAbsent(key, mine);
+					if (b == null) {
+						b = mine;
+					}
+				}
+				synchronized (b) {
+					if (!b.dead) {
+						return b.admit(now);
+					}
+				}
+			}
+		}
+
+		void undo(K key) {
+			Bucket b = map.get(key);
+			if (b != null) {
+				synchronized (b) {
+					b.undo();
+				}
+			}
+		}
+
+		void release(K key) {
+			Bucket b = map.get(key);
+			if (b != null) {
+				synchronized (b) {
+					b.release();
+				}
+			}
+		}
+
+		/**
+		 * Drops idle buckets. Only one thread sweeps at a time, anyone else
+		 * arriving meanwhile just carries on.
+		 */
+		void sweep(long now) {
+			if (!sweepLock.tryLock()) {
+				return;
+			}
+			try {
+				for (Iterator<Bucket> it = map.values().iterator(); it.hasNext();) {
+					Bucket b = it.next();
+					synchronized (b) {
+						if (b.isIdle(now)) {
+							b.dead = true;
+							it.remove();
+						}
+					}
+				}
+				lastSweep = now;
+			} finally {
+				sweepLock.unlock();
+			}
+		}
+
+		int size() {
+			return map.size();
+		}
+	}
+
+	@Override
+	public void initialize(Properties props) {
+		long now = now();
+		int max = Integer.parseInt(props.getProperty("tokenbucket.maxentries", "65536"));
+		Limit host = new Limit(getDouble(props, "tokenbucket.host_rate", 2), getDouble(props, "tokenbucket.host_burst", 10), (int) getDouble(props, "tokenbucket.host_sessions", 16));
+		Limit subnet = new Limit(getDouble(props, "tokenbucket.subnet_rate", 10), getDouble(props, "tokenbucket.subnet_burst", 40), (int) getDouble(props, "tokenbucket.subnet_sessions", 64));
+		Limit all = new Limit(getDouble(props, "tokenbucket.global_rate", 100), getDouble(props, "tokenbucket.global_burst", 200), 0);
+		int prefix4 = Integer.parseInt(props.getProperty("tokenbucket.subnet4_prefix", "24"));
+		int prefix6 = Integer.parseInt(props.getProperty("tokenbucket.subnet6_prefix", "64"));
+		if (prefix4 < 0 || prefix4 > 32 || prefix6 < 0 || prefix6 > 64) {
+			throw new IllegalArgumentException("Subnet prefix out of range");
+		}
+
+		hosts = host.isEnabled() ? new Table<InetAddress>(host, max, now) : null;
+		if (subnet.isEnabled()) {
+			subnets4 = new Table<Integer>(subnet, max, now);
+			subnets6 = new Table<Long>(subnet, max, now);
+		} else {
+			subnets4 = null;
+			subnets6 = null;
+		}
+		global = all.isEnabled() ? new Bucket(all, now) : null;
+		subnet4Mask = prefix4 == 0 ? 0 : -1 << (32 - prefix4);
+		subnet6Mask = prefix6 == 0 ? 0 : -1L << (64 - prefix6);
+	}//initialize
+
+	private static double getDouble(Properties props, String key, double def) {
+		String s = props.getProperty(key);
+		return s == null || s.length() == 0 ? def : Double.parseDouble(s);
+	}//getDouble
+
+	@Override
+	public boolean isAllowed(InetAddress ip) {
+		long now = now();
+		int r = hosts == null ? OK : hosts.admit(ip, now);
+		if (r != OK) {
+			return reject(r);
+		}
+
+		boolean v4 = ip instanceof Inet4Address;
+		Integer key4 = null;
+		Long key6 = null;
+		if (subnets4 != null) {
+			if (v4) {
+				key4 = Integer.valueOf(toInt(ip.getAddress()) & subnet4Mask);
+				r = subnets4.admit(key4, now);
+			} else {
+				key6 = Long.valueOf(toLong(ip.getAddress()) & subnet6Mask);
+				r = subnets6.admit(key6, now);
+			}
+			if (r != OK) {
+				if (hosts != null) {
+					hosts.undo(ip);
+				}
+				return reject(r);
+			}
+		}
+
+		if (global != null) {
+			synchronized (global) {
+				r = global.admit(now);
+			}
+			if (r != OK) {
+				if (hosts != null) {
+					hosts.undo(ip);
+				}
+				if (key4 != null) {
+					subnets4.undo(key4);
+				} else if (key6 != null) {
+					subnets6.undo(key6);
+				}
+				return reject(r);
+			}
+		}
+		allowed.incrementAndGet();
+		return true;
+	}//isAllowed
+
+	@Override
+	public void connectionClosed(InetAddress ip) {
+		if (hosts != null) {
+			hosts.release(ip);
+		}
+		if (subnets4 != null) {
+			if (ip instanceof Inet4Address) {
+				subnets4.release(Integer.valueOf(toInt(ip.getAddress()) & subnet4Mask));
+			} else {
+				subnets6.release(Long.valueOf(toLong(ip.getAddress()) & subnet6Mask));
+			}
+		}
+		if (global != null) {
+			synchronized (global) {
+				global.release();
+			}
+		}
+	}//connectionClosed
+
+	private boolean reject(int reason) {
+		switch (reason) {
+			case RATE:
+				rejectedRate.incrementAndGet();
+				break;
+			case SESSIONS:
+				rejectedSessions.incrementAndGet();
+				break;
+			default:
+				rejectedFull.incrementAndGet();
+		}
+		return false;
+	}//reject
+
+	private static int toInt(byte[] b) {
+		return (b[0] & 0xff) << 24 | (b[1] & 0xff) << 16 | (b[2] & 0xff) << 8 | (b[3] & 0xff);
+	}
+
+	private static long toLong(byte[] b) {
+		long l = 0;
+		for (int i = 0; i < 8; ++i) {
+			l = l << 8 | (b[i] & 0xff);
+		}
+		return l;
+	}
+
+	/**
+	 * @return the current time in nanoseconds, overridable for testing
+	 */
+	protected long now() {
+		return System.nanoTime();
+	}//now
+
+	/**
+	 * @return number of connections allowed
+	 */
+	public long getAllowed() {
+		return allowed.get();
+	}
+
+	/**
+	 * @return number of connections refused for coming in too fast
+	 */
+	public long getRejectedRate() {
+		return rejectedRate.get();
+	}
+
+	/**
+	 * @return number of connections refused because their address or subnet
+	 *         already had too many open
+	 */
+	public long getRejectedSessions() {
+		return rejectedSessions.get();
+	}
+
+	/**
+	 * @return number of connections refused because there was no room to
+	 *         track their address
+	 */
+	public long getRejectedFull() {
+		return rejectedFull.get();
+	}
+
+	/**
+	 * @return the number of addresses being tracked
+	 */
+	public int size() {
+		return hosts == null ? 0 : hosts.size();
+	}//size
+
+	@Override
+	public String toString() {
+		return "TokenBucketConnectionFilter [hosts=" + size() + ", allowed=" + allowed + ", rejectedRate=" + rejectedRate + ", rejectedSessions=" + rejectedSessions + ", rejectedFull=" + rejectedFull + "]";
+	}
+
+}//class TokenBucketConnectionFilter
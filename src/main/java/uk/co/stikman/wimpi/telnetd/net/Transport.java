@@ -0,0 +1,74 @@
+package uk.co.stikman.wimpi.telnetd.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.Executor;
+
+/**
+ * The byte level connection to a client. The telnet layer ({@link
+ * uk.co.stikman.wimpi.telnetd.io.TelnetIO}) only ever talks to the streams
+ * returned from here, so it doesn't care whether there's a plain blocking
+ * {@link Socket} underneath ({@link BlockingTransport}) or a non-blocking
+ * channel driven by an {@link EventLoop} ({@link NioTransport}).
+ * <p>
+ * The streams are blocking from the point of view of the caller in both cases,
+ * which is what lets the existing <code>Shell.run(Connection)</code> model
+ * carry on working unchanged.
+ *
+ * @see ConnectionData#getTransport()
+ */
+public interface Transport {
+
+	/**
+	 * Returns the socket for this transport. For NIO transports this is the
+	 * channel's socket adaptor, which is fine for querying addresses and ports
+	 * but must not be used for I/O.
+	 *
+	 * @return the <tt>Socket</tt>
+	 */
+	public Socket getSocket();
+
+	/**
+	 * @return a blocking <tt>InputStream</tt> reading from the client
+	 */
+	public InputStream getInputStream() throws IOException;
+
+	/**
+	 * @return an <tt>OutputStream</tt> writing to the client, a
+	 *         <code>flush()</code> returns once the data has been handed to
+	 *         the network
+	 */
+	public OutputStream getOutputStream() throws IOException;
+
+	/**
+	 * Puts a bounded queue between the application and the network, which the
+	 * transport drains. From then on {@link #getOutputStream()} returns the
+	 * queue, and a flush no longer waits for the network. Has to be called
+	 * before the output stream is first asked for.
+	 *
+	 * @param queue
+	 *            the queue
+	 * @param executor
+	 *            runs the draining, for transports that need a thread of
+	 *            their own for it, or <tt>null</tt> for a new platform thread
+	 */
+	public void setOutputQueue(OutputQueue queue, Executor executor) throws IOException;
+
+	/**
+	 * Sets the timeout for blocking reads, in the same way as
+	 * {@link Socket#setSoTimeout(int)}. Zero means wait forever.
+	 *
+	 * @param millis
+	 *            timeout in milliseconds
+	 */
+	public void setReadTimeout(int millis) throws IOException;
+
+	/**
+	 * Closes the transport and the underlying socket. Any threads blocked
+	 * reading will see end of stream.
+	 */
+	public void close() throws IOException;
+
+}//interface Transport
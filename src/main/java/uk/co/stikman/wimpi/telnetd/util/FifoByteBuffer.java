@@ -1,63 +1,133 @@
 package uk.co.stikman.wimpi.telnetd.util;
 
-import java.nio.ByteBuffer;
-import java.util.Arrays;
+import java.nio.BufferOverflowException;
 
 /**
- * {@link #write(byte)} adds a byte, {@link #createByteBuffer()} returns a
- * {@link ByteBuffer} from the current read position until the end.
- * {@link #discardFirst(int)} discards some number of bytes from the beginning
- * of the buffer, you would do this after having used the returned buffer to
- * have successfully read something
- * 
+ * Circular buffer of <code>byte</code>s with a fixed capacity.
+ * {@link #write(byte[], int, int)} adds to the end, {@link #read(byte[], int, int)}
+ * takes from the beginning, and neither allocates. Writing more than there is
+ * room for throws a {@link BufferOverflowException} and writes nothing.
+ * <p>
+ * The array has a few spare bytes past the end, so that {@link PushDecoder}
+ * can copy the start of the buffer there when what it's decoding wraps round,
+ * and see a multi-byte sequence split by the wrap in one piece.
+ *
  * @author Stik
  *
  */
 public class FifoByteBuffer {
 
-	private byte[]	data;
-	private int		readPtr		= 0;
-	private int		writePtr	= 0;
+	static final int		SLACK	= 16;	//longer than any multi-byte sequence
+
+	final byte[]			data;
+	final int				capacity;
+	int						head;			//next to read
+	int						count;
 
 	public FifoByteBuffer(int capacity) {
-		data = new byte[capacity];
+		this.capacity = capacity;
+		data = new byte[capacity + SLACK];
 	}
 
 	public void write(byte b) {
-		data[writePtr++] = b;
+		if (count == capacity) {
+			throw new BufferOverflowException();
+		}
+		data[index(count)] = b;
+		++count;
+	}
+
+	public void write(int i) {
+		write((byte) i);
+	}
+
+	public void write(byte[] b, int off, int len) {
+		if (len > capacity - count) {
+			throw new BufferOverflowException();
+		}
+		int tail = index(count);
+		int n = Math.min(len, capacity - tail);
+		System.arraycopy(b, off, data, tail, n);
+		System.arraycopy(b, off + n, data, 0, len - n);
+		count += len;
+	}
+
+	/**
+	 * @return the next byte, or -1 if it's empty
+	 */
+	public int read() {
+		if (count == 0) {
+			return -1;
+		}
+		int b = data[head] & 0xff;
+		discardFirst(1);
+		return b;
+	}
+
+	/**
+	 * @return number of bytes read, 0 if it's empty
+	 */
+	public int read(byte[] b, int off, int len) {
+		len = Math.min(len, count);
+		int n = Math.min(len, capacity - head);
+		System.arraycopy(data, head, b, off, n);
+		System.arraycopy(data, 0, b, off + n, len - n);
+		discardFirst(len);
+		return len;
 	}
 
 	public int available() {
-		return writePtr - readPtr;
+		return count;
 	}
 
-	public ByteBuffer createByteBuffer() {
-		ByteBuffer bb = ByteBuffer.wrap(data, readPtr, available());
-		return bb;
+	/**
+	 * @return room for this many more bytes
+	 */
+	public int free() {
+		return capacity - count;
+	}
+
+	public int capacity() {
+		return capacity;
 	}
 
 	public void discardFirst(int length) {
-		readPtr += length;
-		compact();
+		head = index(length);
+		count -= length;
 	}
 
-	private void compact() {
-		if (readPtr > data.length / 2) {
-			byte[] nu = new byte[data.length];
-			System.arraycopy(data, readPtr, nu, 0, available());
-			data = nu;
-			writePtr -= readPtr;
-			readPtr = 0;
-		}
+	public void clear() {
+		head = 0;
+		count = 0;
 	}
 
-	public void write(int i) {
-		write((byte) i);
+	/**
+	 * @return bytes from the read position before the end of the array
+	 */
+	int contiguous() {
+		return Math.min(count, capacity - head);
+	}
+
+	/**
+	 * Copies up to {@link #SLACK} bytes from the start of the array to just
+	 * past the end, when the data wraps round.
+	 *
+	 * @return how many were copied
+	 */
+	int mirror() {
+		int n = Math.min(count - contiguous(), SLACK);
+		System.arraycopy(data, 0, data, capacity, n);
+		return n;
+	}
+
+	private int index(int n) {
+		int i = head + n;
+		return i >= capacity ? i - capacity : i;
 	}
 
 	@Override
 	public String toString() {
-		return "SomeBuffer [r=" + readPtr + ", w=" + writePtr + ", data=" + Arrays.toString(data) + "]";
+		return "FifoByteBuffer [head=" + head + ", count=" + count + ", capacity=" + capacity + "]";
 	}
 
 }
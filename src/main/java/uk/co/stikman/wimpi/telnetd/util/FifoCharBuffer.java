@@ -1,44 +1,130 @@
 package uk.co.stikman.wimpi.telnetd.util;
 
+import java.nio.BufferOverflowException;
+
 /**
- * Buffer of <code>char</code>s, {@link #write(char)} adds a char,
- * {@link #read()} gets one. Reading also triggers the compact method, which
- * shrinks the buffer
- * 
+ * Circular buffer of <code>char</code>s with a fixed capacity,
+ * {@link #write(char)} adds a char, {@link #read()} gets one, and there are
+ * bulk versions of both. Nothing allocates once it's created. Writing more
+ * than there is room for throws a {@link BufferOverflowException} and writes
+ * nothing.
+ *
  * @author Stik
  *
  */
 public class FifoCharBuffer {
 
-	private char[]	data;
-	private int		readPtr		= 0;
-	private int		writePtr	= 0;
+	final char[]	data;
+	final int		capacity;
+	int				head;		//next to read
+	int				count;
 
 	public FifoCharBuffer(int capacity) {
-		data = new char[capacity];
+		this.capacity = capacity;
+		//one spare, see PushDecoder
+		data = new char[capacity + 1];
 	}
 
 	public void write(char b) {
-		data[writePtr++] = b;
+		if (count == capacity) {
+			throw new BufferOverflowException();
+		}
+		data[index(count)] = b;
+		++count;
+	}
+
+	public void write(char[] b, int off, int len) {
+		if (len > capacity - count) {
+			throw new BufferOverflowException();
+		}
+		int tail = index(count);
+		int n = Math.min(len, capacity - tail);
+		System.arraycopy(b, off, data, tail, n);
+		System.arraycopy(b, off + n, data, 0, len - n);
+		count += len;
 	}
 
 	public int available() {
-		return writePtr - readPtr;
+		return count;
 	}
 
-	private void compact() {
-		if (readPtr > data.length / 2) {
-			char[] nu = new char[data.length];
-			System.arraycopy(data, readPtr, nu, 0, available());
-			data = nu;
-			writePtr -= readPtr;
-			readPtr = 0;
-		}
+	/**
+	 * @return room for this many more chars
+	 */
+	public int free() {
+		return capacity - count;
 	}
 
+	/**
+	 * Will throw an {@link IllegalStateException} if it's empty
+	 */
 	public char read() {
-		compact();
-		return data[readPtr++];
+		if (count == 0) {
+			throw new IllegalStateException();
+		}
+		char c = data[head];
+		discardFirst(1);
+		return c;
+	}
+
+	/**
+	 * @return number of chars read, 0 if it's empty
+	 */
+	public int read(char[] b, int off, int len) {
+		len = Math.min(len, count);
+		int n = Math.min(len, capacity - head);
+		System.arraycopy(data, head, b, off, n);
+		System.arraycopy(data, 0, b, off + n, len - n);
+		discardFirst(len);
+		return len;
+	}
+
+	/**
+	 * @return how far from the next char to read the first of either char is,
+	 *         or -1 if neither is there
+	 */
+	public int indexOf(char a, char b) {
+		for (int i = 0; i < count; ++i) {
+			char c = data[index(i)];
+			if (c == a || c == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public void clear() {
+		head = 0;
+		count = 0;
+	}
+
+	void discardFirst(int length) {
+		head = index(length);
+		count -= length;
+	}
+
+	/**
+	 * @return where the next char written goes
+	 */
+	int tail() {
+		return index(count);
+	}
+
+	/**
+	 * Takes chars put straight into the array from {@link #tail()} onwards,
+	 * possibly one past the end, which then belongs at the start.
+	 */
+	void commit(int n) {
+		int tail = tail();
+		if (tail + n > capacity) {
+			data[0] = data[capacity];
+		}
+		count += n;
+	}
+
+	private int index(int n) {
+		int i = head + n;
+		return i >= capacity ? i - capacity : i;
 	}
 
 }
@@ -1,6 +1,10 @@
 //@license@
 package uk.co.stikman.wimpi.telnetd.util;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -103,57 +107,69 @@ public class Mutex {
    */
   protected boolean inuse_ = false;
 
+  //waiting is done on a java.util.concurrent lock rather than a monitor,
+  //so a virtual thread blocked here does not pin its carrier thread
+  private final ReentrantLock m_Lock = new ReentrantLock();
+  private final Condition m_Free = m_Lock.newCondition();
+
   public void acquire() throws InterruptedException {
     //log.debug("acquire()::" + Thread.currentThread().toString());
     if (Thread.interrupted()) throw new InterruptedException();
-    synchronized (this) {
+    m_Lock.lockInterruptibly();
+    try {
       try {
-        while (inuse_) wait();
+        while (inuse_) m_Free.await();
         inuse_ = true;
       } catch (InterruptedException ex) {
-        notify();
+        m_Free.signal();
         throw ex;
       }
+    } finally {
+      m_Lock.unlock();
     }
   }//accquire
 
-  public synchronized void release() {
+  public void release() {
     //log.debug("release()::" + Thread.currentThread().toString());
-    inuse_ = false;
-    notify();
+    m_Lock.lock();
+    try {
+      inuse_ = false;
+      m_Free.signal();
+    } finally {
+      m_Lock.unlock();
+    }
   }//release
 
 
   public boolean attempt(long msecs) throws InterruptedException {
     //log.debug("attempt()::" + Thread.currentThread().toString());
     if (Thread.interrupted()) throw new InterruptedException();
-    synchronized (this) {
+    m_Lock.lockInterruptibly();
+    try {
       if (!inuse_) {
         inuse_ = true;
         return true;
       } else if (msecs <= 0)
         return false;
       else {
-        long waitTime = msecs;
-        long start = System.currentTimeMillis();
+        long nanos = TimeUnit.MILLISECONDS.toNanos(msecs);
         try {
           for (; ;) {
-            wait(waitTime);
+            nanos = m_Free.awaitNanos(nanos);
             if (!inuse_) {
               inuse_ = true;
               return true;
-            } else {
-              waitTime = msecs - (System.currentTimeMillis() - start);
-              if (waitTime <= 0)
-                return false;
-            }
+            } else if (nanos <= 0)
+              return false;
           }
         } catch (InterruptedException ex) {
-          notify();
+          m_Free.signal();
           throw ex;
         }
       }
+    } finally {
+      m_Lock.unlock();
     }
   }//attempt
 
-}//class Mutex
\ No newline at end of file
+}//class Mutex
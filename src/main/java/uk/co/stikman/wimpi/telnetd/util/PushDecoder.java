@@ -1,27 +1,40 @@
 package uk.co.stikman.wimpi.telnetd.util;
 
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 
 /**
  * A charset decoder that accumulates bytes. When it's got enough to return at
  * least one <code>char</code> then {@link #hasOutput()} returns
- * <code>true</code>, and you can call {@link #read()} once.
- * 
+ * <code>true</code>, and you can call {@link #read()} once. Bytes can also be
+ * written, and chars read, in bulk.
+ * <p>
+ * Bytes and chars are kept in circular buffers, decoded straight from one to
+ * the other through buffers that wrap them, so nothing is allocated after it's
+ * created. A multi-byte sequence split across writes, or across the wrap of
+ * the byte buffer, waits for the rest of it. Malformed or unmappable input
+ * comes out as the decoder's replacement, whatever action the decoder was set
+ * up with.
+ *
  * @author Stik
  *
  */
 public class PushDecoder {
 
-	private FifoByteBuffer	buf;
-	private FifoCharBuffer	output;
-	private CharBuffer		out;
-	private CharsetDecoder	cs;
+	private final FifoByteBuffer	buf;
+	private final FifoCharBuffer	output;
+	private final ByteBuffer		in;		//views of their arrays
+	private final CharBuffer		out;
+	private final CharsetDecoder	cs;
+	private final String			replacement;
 
 	public PushDecoder(Charset cs) {
-		this(cs.newDecoder());
+		this(cs.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE));
 	}
 
 	public PushDecoder(CharsetDecoder csd) {
@@ -30,23 +43,70 @@ public class PushDecoder {
 
 	/**
 	 * bufferSize is the size of internal fifo buffers, if you write more bytes
-	 * than this to the decoder without reading them back you'll get problems
-	 * with buffers overflowing
-	 * 
-	 * @param cs
+	 * than this to the decoder without reading them back, the write throws a
+	 * {@link BufferOverflowException}
+	 *
+	 * @param csd
 	 * @param bufferSize
 	 */
 	public PushDecoder(CharsetDecoder csd, int bufferSize) {
 		this.cs = csd;
+		this.replacement = csd.replacement();
 		buf = new FifoByteBuffer(bufferSize);
 		output = new FifoCharBuffer(bufferSize);
-		out = CharBuffer.allocate(bufferSize);
+		in = ByteBuffer.wrap(buf.data);
+		out = CharBuffer.wrap(output.data);
 	}
 
 	public void write(byte b) {
+		if (buf.free() == 0) {
+			decodeMore();
+		}
 		buf.write(b);
 	}
 
+	/**
+	 * Adds bytes, decoding what's already there first if that's needed to
+	 * make room.
+	 *
+	 * @throws BufferOverflowException
+	 *             if there still isn't room, because too much decoded output
+	 *             hasn't been read
+	 */
+	public void write(byte[] b, int off, int len) {
+		if (buf.free() < len) {
+			decodeMore();
+		}
+		buf.write(b, off, len);
+	}
+
+	/**
+	 * @return how many bytes can be written, after decoding what's there to
+	 *         make room
+	 */
+	public int free() {
+		decodeMore();
+		return buf.free();
+	}
+
+	/**
+	 * @return how many bytes have been written that can't be decoded yet
+	 */
+	public int pending() {
+		decodeMore();
+		return buf.available();
+	}
+
+	/**
+	 * Takes back the first byte that hasn't been decoded, for a caller that
+	 * wants the raw bytes.
+	 *
+	 * @return the byte, or -1 if there aren't any
+	 */
+	public int readPending() {
+		return buf.read();
+	}
+
 	public boolean hasOutput() {
 		if (output.available() > 0)
 			return true;
@@ -54,33 +114,99 @@ public class PushDecoder {
 		return output.available() > 0;
 	}
 
+	/**
+	 * @return how many chars can be read without writing more
+	 */
+	public int available() {
+		decodeMore();
+		return output.available();
+	}
+
+	/**
+	 * Decodes as much as there's room for in the output.
+	 */
 	private void decodeMore() {
-		//
-		// Try to decode some more
-		//
-		ByteBuffer in = buf.createByteBuffer();
-		int offset = in.position();
-		cs.decode(in, out, false);
-		out.flip();
-		buf.discardFirst(in.position() - offset);
-		for (int i = 0; i < out.limit(); ++i)
-			output.write(out.get());
-		out.clear();
+		while (buf.available() > 0 && output.free() > 0) {
+			//
+			// Bytes up to the end of the array, plus the start of the rest
+			// copied past it if they wrap
+			//
+			int start = buf.head;
+			int n = buf.contiguous();
+			if (n < buf.available())
+				n += buf.mirror();
+			in.limit(start + n).position(start);
+
+			//
+			// Room up to the end of the array, plus the spare char if the
+			// start is free, for a surrogate pair that straddles the wrap
+			//
+			int tail = output.tail();
+			int room = Math.min(output.free(), output.capacity - tail);
+			if (room < output.free())
+				++room;
+			out.limit(tail + room).position(tail);
+
+			CoderResult r = cs.decode(in, out, false);
+			int consumed = in.position() - start;
+			int produced = out.position() - tail;
+			buf.discardFirst(consumed);
+			output.commit(produced);
+			if (r.isError()) {
+				if (output.free() < replacement.length())
+					return;
+				buf.discardFirst(r.length());
+				for (int i = 0; i < replacement.length(); ++i)
+					output.write(replacement.charAt(i));
+			} else if (consumed == 0 && produced == 0) {
+				// the rest of a sequence, or room for it, hasn't come yet
+				return;
+			}
+		}
 	}
 
 	/**
 	 * Will throw an {@link IllegalStateException} if you call it when
-	 * {@link #hasOutput()} would return <code>true</code>
-	 * 
+	 * {@link #hasOutput()} would return <code>false</code>
+	 *
 	 * @return
 	 */
 	public char read() {
-		while (output.available() > 0)
-			return output.read();
+		if (output.available() == 0)
+			decodeMore();
+		return output.read();
+	}
+
+	/**
+	 * @return number of chars read, 0 if there aren't any yet
+	 */
+	public int read(char[] b, int off, int len) {
+		if (output.available() < len)
+			decodeMore();
+		int n = output.read(b, off, len);
+		if (n < len && output.available() == 0) {
+			decodeMore();
+			n += output.read(b, off + n, len - n);
+		}
+		return n;
+	}
+
+	/**
+	 * @return how many chars there are to read before the first of either
+	 *         char, or -1 if neither has been decoded yet
+	 */
+	public int indexOf(char a, char b) {
 		decodeMore();
-		if (output.available() > 0)
-			return output.read();
-		throw new IllegalStateException();
+		return output.indexOf(a, b);
+	}
+
+	/**
+	 * Throws away anything pending, and resets the decoder.
+	 */
+	public void reset() {
+		buf.clear();
+		output.clear();
+		cs.reset();
 	}
 
 }
@@ -0,0 +1,63 @@
+package uk.co.stikman.wimpi.telnetd.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts events and gives the rate they happened at over the last complete
+ * window. Meant for a single thread calling {@link #mark()}, with any number of
+ * threads reading.
+ */
+public class RateMeter {
+
+	private final long			windowMillis;
+	private final AtomicLong	count		= new AtomicLong();
+	private volatile long		windowStart;
+	private volatile long		windowCount;
+	private volatile double		lastRate;
+
+	/**
+	 * @param windowMillis
+	 *            length of the window the rate is measured over
+	 */
+	public RateMeter(long windowMillis) {
+		this.windowMillis = windowMillis;
+		this.windowStart = System.currentTimeMillis();
+	}//constructor
+
+	/**
+	 * Records an event.
+	 */
+	public void mark() {
+		long now = System.currentTimeMillis();
+		long elapsed = now - windowStart;
+		if (elapsed >= windowMillis) {
+			lastRate = windowCount * 1000.0 / elapsed;
+			windowStart = now;
+			windowCount = 0;
+		}
+		windowCount++;
+		count.incrementAndGet();
+	}//mark
+
+	/**
+	 * @return the total number of events
+	 */
+	public long getCount() {
+		return count.get();
+	}//getCount
+
+	/**
+	 * @return events per second over the last complete window, allowing for
+	 *         windows where nothing happened at all
+	 */
+	public double getRate() {
+		long elapsed = System.currentTimeMillis() - windowStart;
+		if (elapsed >= 2 * windowMillis) {
+			//nothing has rolled the window over for a while, so the last rate
+			//is out of date, average over the whole quiet spell instead
+			return windowCount * 1000.0 / elapsed;
+		}
+		return lastRate;
+	}//getRate
+
+}//class RateMeter
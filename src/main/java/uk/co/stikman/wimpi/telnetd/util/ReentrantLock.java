@@ -1,6 +1,8 @@
 //@license@
 package uk.co.stikman.wimpi.telnetd.util;
 
+import java.util.concurrent.TimeUnit;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -13,68 +15,24 @@ import org.apache.commons.logging.LogFactory;
 public class ReentrantLock {
 
   private static final Log log = LogFactory.getLog(ReentrantLock.class);
-  protected Thread m_Owner = null;
-  protected long m_Holds = 0;
+
+  //backed by the java.util.concurrent lock, which parks rather than
+  //waiting on a monitor, so virtual threads do not pin their carrier
+  private final java.util.concurrent.locks.ReentrantLock m_Lock =
+      new java.util.concurrent.locks.ReentrantLock();
 
   public void acquire() throws InterruptedException {
     //log.debug("acquire()::" + Thread.currentThread().toString());
     if (Thread.interrupted()) throw new InterruptedException();
-    Thread caller = Thread.currentThread();
-    synchronized (this) {
-      if (caller == m_Owner)
-        ++m_Holds;
-      else {
-        try {
-          while (m_Owner != null) wait();
-          m_Owner = caller;
-          m_Holds = 1;
-        } catch (InterruptedException ex) {
-          notify();
-          throw ex;
-        }
-      }
-    }
+    m_Lock.lockInterruptibly();
   }//acquire
 
   public boolean attempt(long msecs) throws InterruptedException {
     //log.debug("attempt()::" + Thread.currentThread().toString());
     if (Thread.interrupted()) throw new InterruptedException();
-    Thread caller = Thread.currentThread();
-    synchronized (this) {
-      if (caller == m_Owner) {
-        ++m_Holds;
-        return true;
-      } else if (m_Owner == null) {
-        m_Owner = caller;
-        m_Holds = 1;
-        return true;
-      } else if (msecs <= 0)
-        return false;
-      else {
-        long waitTime = msecs;
-        long start = System.currentTimeMillis();
-        try {
-          for (; ;) {
-            wait(waitTime);
-            if (caller == m_Owner) {
-              ++m_Holds;
-              return true;
-            } else if (m_Owner == null) {
-              m_Owner = caller;
-              m_Holds = 1;
-              return true;
-            } else {
-              waitTime = msecs - (System.currentTimeMillis() - start);
-              if (waitTime <= 0)
-                return false;
-            }
-          }
-        } catch (InterruptedException ex) {
-          notify();
-          throw ex;
-        }
-      }
-    }
+    if (msecs <= 0)
+      return m_Lock.tryLock();
+    return m_Lock.tryLock(msecs, TimeUnit.MILLISECONDS);
   }//attempt
 
   /**
@@ -82,15 +40,11 @@ public class ReentrantLock {
    *
    * @throws Error thrown if not current owner of lock
    */
-  public synchronized void release() {
+  public void release() {
     //log.debug("release()::" + Thread.currentThread().toString());
-    if (Thread.currentThread() != m_Owner)
+    if (!m_Lock.isHeldByCurrentThread())
       throw new Error("Illegal Lock usage");
-
-    if (--m_Holds == 0) {
-      m_Owner = null;
-      notify();
-    }
+    m_Lock.unlock();
   }//release
 
   /**
@@ -104,14 +58,12 @@ public class ReentrantLock {
    * @throws Error thrown if not current owner of lock
    *               or has fewer than N holds on the lock
    */
-  public synchronized void release(long n) {
-    if (Thread.currentThread() != m_Owner || n > m_Holds)
+  public void release(long n) {
+    if (!m_Lock.isHeldByCurrentThread() || n > m_Lock.getHoldCount())
       throw new Error("Illegal Lock usage");
 
-    m_Holds -= n;
-    if (m_Holds == 0) {
-      m_Owner = null;
-      notify();
+    for (long i = 0; i < n; ++i) {
+      m_Lock.unlock();
     }
   }//release
 
@@ -121,9 +73,8 @@ public class ReentrantLock {
    * by the current thread.
    * Returns zero if current thread does not hold lock.
    */
-  public synchronized long holds() {
-    if (Thread.currentThread() != m_Owner) return 0;
-    return m_Holds;
+  public long holds() {
+    return m_Lock.getHoldCount();
   }//holds
 
 }//class ReentrantLock
@@ -0,0 +1,224 @@
+package uk.co.stikman.wimpi.telnetd.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A hashed timing wheel. Timeouts are dropped into one of a fixed number of
+ * buckets according to their deadline, and each call to
+ * {@link #advance(long)} only looks at the buckets for the ticks that have
+ * passed, so the cost of a tick depends on how many timeouts are due rather
+ * than how many there are in total.
+ * <p>
+ * {@link #schedule(Runnable, long)} and {@link Timeout#cancel()} can be called
+ * from any thread, they are queued and applied at the start of the next
+ * advance. Everything else happens on the thread calling
+ * {@link #advance(long)}, which is also where the tasks are run, so they
+ * should be quick.
+ * <p>
+ * Deadlines are only as accurate as the tick, a task runs on the first
+ * advance at or after the end of the tick its deadline falls in.
+ */
+public class TimingWheel {
+
+	private static final Log			log				= LogFactory.getLog(TimingWheel.class);
+
+	private static final int			PENDING			= 0;
+	private static final int			CANCELLED		= 1;
+	private static final int			EXPIRED			= 2;
+
+	private final long					tickMillis;
+	private final Bucket[]				wheel;
+	private final int					mask;
+	private final Queue<Timeout>		pendingAdds		= new ConcurrentLinkedQueue<>();
+	private final Queue<Timeout>		pendingCancels	= new ConcurrentLinkedQueue<>();
+	private long						currentTick;											//next tick to be processed
+	private int							size;
+
+	/**
+	 * A scheduled task, which can be cancelled up until it has been run.
+	 */
+	public static final class Timeout {
+		private final TimingWheel	owner;
+		private final Runnable		task;
+		private final long			deadline;
+		private final AtomicInteger	state	= new AtomicInteger(PENDING);
+		private long				rounds;
+		private Bucket				bucket;
+		private Timeout				prev;
+		private Timeout				next;
+
+		private Timeout(TimingWheel owner, Runnable task, long deadline) {
+			this.owner = owner;
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancels this timeout.
+		 *
+		 * @return <tt>true</tt> if it was cancelled, <tt>false</tt> if it had
+		 *         already been run or cancelled.
+		 */
+		public boolean cancel() {
+			if (!state.compareAndSet(PENDING, CANCELLED))
+				return false;
+			owner.pendingCancels.add(this);
+			return true;
+		}
+
+		public boolean isCancelled() {
+			return state.get() == CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return state.get() == EXPIRED;
+		}
+
+		public long getDeadline() {
+			return deadline;
+		}
+	}
+
+	private static final class Bucket {
+		private Timeout	head;
+		private Timeout	tail;
+
+		void add(Timeout t) {
+			t.bucket = this;
+			if (head == null) {
+				head = tail = t;
+			} else {
+				tail.next = t;
+				t.prev = tail;
+				tail = t;
+			}
+		}
+
+		void remove(Timeout t) {
+			if (t.prev != null)
+				t.prev.next = t.next;
+			else
+				head = t.next;
+			if (t.next != null)
+				t.next.prev = t.prev;
+			else
+				tail = t.prev;
+			t.prev = t.next = null;
+			t.bucket = null;
+		}
+	}
+
+	/**
+	 * @param tickMillis
+	 *            length of a tick in milliseconds, the resolution of the
+	 *            deadlines
+	 * @param ticksPerWheel
+	 *            number of buckets, rounded up to a power of two. Deadlines
+	 *            further away than a full turn of the wheel are fine, they
+	 *            just get looked at once per turn
+	 * @param now
+	 *            the current time in milliseconds
+	 */
+	public TimingWheel(long tickMillis, int ticksPerWheel, long now) {
+		if (tickMillis <= 0)
+			throw new IllegalArgumentException("tickMillis must be positive");
+		if (ticksPerWheel <= 0 || ticksPerWheel > 1 << 30)
+			throw new IllegalArgumentException("ticksPerWheel out of range");
+		int n = 1;
+		while (n < ticksPerWheel)
+			n <<= 1;
+		this.tickMillis = tickMillis;
+		this.wheel = new Bucket[n];
+		for (int i = 0; i < n; ++i)
+			wheel[i] = new Bucket();
+		this.mask = n - 1;
+		this.currentTick = now / tickMillis;
+	}//constructor
+
+	/**
+	 * Schedules a task to run at the given time.
+	 *
+	 * @param task
+	 *            the task
+	 * @param deadline
+	 *            when to run it, in milliseconds
+	 * @return a handle that can be used to cancel it
+	 */
+	public Timeout schedule(Runnable task, long deadline) {
+		Timeout t = new Timeout(this, task, deadline);
+		pendingAdds.add(t);
+		return t;
+	}//schedule
+
+	/**
+	 * Runs every task whose tick has passed.
+	 *
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return the number of tasks run
+	 */
+	public int advance(long now) {
+		Timeout t;
+		while ((t = pendingCancels.poll()) != null) {
+			if (t.bucket != null) {
+				t.bucket.remove(t);
+				--size;
+			}
+		}
+		while ((t = pendingAdds.poll()) != null) {
+			if (t.state.get() == PENDING)
+				insert(t);
+		}
+
+		int count = 0;
+		long lastTick = now / tickMillis - 1;
+		while (currentTick <= lastTick) {
+			Bucket b = wheel[(int) (currentTick & mask)];
+			t = b.head;
+			while (t != null) {
+				Timeout next = t.next;
+				if (t.rounds <= 0) {
+					b.remove(t);
+					--size;
+					if (t.state.compareAndSet(PENDING, EXPIRED)) {
+						++count;
+						try {
+							t.task.run();
+						} catch (Exception ex) {
+							log.error("advance()", ex);
+						}
+					}
+				} else {
+					--t.rounds;
+				}
+				t = next;
+			}
+			++currentTick;
+		}
+		return count;
+	}//advance
+
+	private void insert(Timeout t) {
+		long tick = Math.max(t.deadline / tickMillis, currentTick);
+		t.rounds = (tick - currentTick) / wheel.length;
+		wheel[(int) (tick & mask)].add(t);
+		++size;
+	}//insert
+
+	/**
+	 * @return the number of timeouts in the wheel, as of the last advance
+	 */
+	public int size() {
+		return size;
+	}//size
+
+	public long getTickMillis() {
+		return tickMillis;
+	}//getTickMillis
+
+}//class TimingWheel
@@ -0,0 +1,66 @@
+package uk.co.stikman.telnetd;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import uk.co.stikman.wimpi.telnetd.net.CidrConnectionFilter;
+
+/**
+ * Times {@link CidrConnectionFilter} lookups against rule sets of various
+ * sizes. Not a unit test, run it by hand:
+ * <tt>BenchmarkCidrConnectionFilter [rules...]</tt>
+ */
+public class BenchmarkCidrConnectionFilter {
+
+	public static void main(String[] args) throws Exception {
+		int[] sizes = { 10, 1000, 100000 };
+		if (args.length > 0) {
+			sizes = new int[args.length];
+			for (int i = 0; i < args.length; ++i)
+				sizes[i] = Integer.parseInt(args[i]);
+		}
+		Random rnd = new Random(42);
+		InetAddress[] probes = new InetAddress[4096];
+		for (int i = 0; i < probes.length; ++i) {
+			probes[i] = i % 4 == 0 ? InetAddress.getByAddress(random(rnd, 16)) : InetAddress.getByAddress(random(rnd, 4));
+		}
+
+		for (int size : sizes) {
+			List<String> allow = new ArrayList<>();
+			List<String> deny = new ArrayList<>();
+			for (int i = 0; i < size; ++i) {
+				boolean v6 = rnd.nextInt(4) == 0;
+				String addr = InetAddress.getByAddress(random(rnd, v6 ? 16 : 4)).getHostAddress();
+				int len = v6 ? 16 + rnd.nextInt(113) : 8 + rnd.nextInt(25);
+				(rnd.nextBoolean() ? allow : deny).add(addr + "/" + len);
+			}
+			CidrConnectionFilter f = new CidrConnectionFilter();
+			long t0 = System.nanoTime();
+			f.setRules(allow, deny, true);
+			long build = System.nanoTime() - t0;
+
+			int n = 5000000;
+			int allowed = 0;
+			for (int round = 0; round < 3; ++round) {
+				t0 = System.nanoTime();
+				for (int i = 0; i < n; ++i) {
+					if (f.isAllowed(probes[i & (probes.length - 1)]))
+						++allowed;
+				}
+				long dt = System.nanoTime() - t0;
+				System.out.printf("%8d rules: built in %6.1f ms, %6.1f ns/lookup%n", size, build / 1e6, (double) dt / n);
+			}
+			if (allowed == 0)
+				System.out.println("(nothing allowed)");
+		}
+	}
+
+	private static byte[] random(Random rnd, int len) {
+		byte[] b = new byte[len];
+		rnd.nextBytes(b);
+		return b;
+	}
+
+}
@@ -0,0 +1,80 @@
+package uk.co.stikman.telnetd;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import uk.co.stikman.wimpi.telnetd.io.terminal.CursorMotion;
+import uk.co.stikman.wimpi.telnetd.io.terminal.Terminal;
+import uk.co.stikman.wimpi.telnetd.io.terminal.xterm;
+
+/**
+ * Measures the bytes a move of the cursor takes on a 200x60 terminal, when
+ * every move is an absolute position and when {@link CursorMotion} plans
+ * them, for moves all over the screen and for the short hops a screen
+ * refresh makes. Not a unit test, run it by hand:
+ * <tt>BenchmarkCursorMotion [moves]</tt>
+ */
+public class BenchmarkCursorMotion {
+
+	private static final int	ROWS	= 60;
+	private static final int	COLUMNS	= 200;
+
+	public static void main(String[] args) throws Exception {
+		int moves = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		Terminal t = new xterm();
+		CursorMotion.Row text = new CursorMotion.Row() {
+			@Override
+			public int charAt(int col) {
+				return col % 7 == 0 ? -1 : 'x';
+			}
+		};
+		for (int round = 0; round < 2; ++round) {
+			for (int hops = 0; hops < 2; ++hops) {
+				for (int binary = 0; binary < 2; ++binary) {
+					run(t, moves, hops == 1, binary == 1, null);
+					run(t, moves, hops == 1, binary == 1, text);
+				}
+			}
+			System.out.println();
+		}
+	}
+
+	private static void run(Terminal t, int moves, boolean hops, boolean binary, CursorMotion.Row row) {
+		CursorMotion motion = new CursorMotion(t);
+		motion.setBinaryOutput(binary);
+		ByteBuffer buf = ByteBuffer.allocate(256);
+		Random rnd = new Random(1);
+		long cup = 0;
+		long planned = 0;
+		long nanos = 0;
+		int r = 0;
+		int c = 0;
+		for (int i = 0; i < moves; ++i) {
+			int tr;
+			int tc;
+			if (hops) {
+				// the next change along, or on one of the next rows
+				tr = rnd.nextInt(4) == 0 ? Math.min(ROWS - 1, r + 1 + rnd.nextInt(2)) : r;
+				tc = tr == r ? Math.min(COLUMNS - 1, c + 1 + rnd.nextInt(12)) : rnd.nextInt(COLUMNS / 4);
+				if (tr == r && tc == COLUMNS - 1) {
+					tr = (r + 1) % ROWS;
+					tc = 0;
+				}
+			} else {
+				tr = rnd.nextInt(ROWS);
+				tc = rnd.nextInt(COLUMNS);
+			}
+			t.appendCursorPositioningSequence(buf, tr + 1, tc + 1);
+			cup += buf.position();
+			buf.clear();
+			long t0 = System.nanoTime();
+			planned += motion.move(buf, r, c, tr, tc, row);
+			nanos += System.nanoTime() - t0;
+			buf.clear();
+			r = tr;
+			c = tc;
+		}
+		System.out.printf("%-6s %-6s %-9s absolute %5.2f bytes/move, planned %5.2f bytes/move (%4.1f%% fewer), %4.0f ns/move%n", hops ? "hops" : "random", binary ? "binary" : "", row == null ? "" : "overwrite", (double) cup / moves, (double) planned / moves, 100.0 - planned * 100.0 / cup, (double) nanos / moves);
+	}
+
+}
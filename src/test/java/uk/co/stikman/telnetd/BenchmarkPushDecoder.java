@@ -0,0 +1,195 @@
+package uk.co.stikman.telnetd;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import uk.co.stikman.wimpi.telnetd.util.PushDecoder;
+
+/**
+ * Times {@link PushDecoder} against the one it replaced, which is copied in
+ * here, decoding mostly ASCII with some multi-byte text. Reports bytes
+ * allocated as well, which should be nothing for the new one. Not a unit
+ * test, run it by hand: <tt>BenchmarkPushDecoder [megabytes]</tt>
+ */
+public class BenchmarkPushDecoder {
+
+	private static long sink;
+
+	public static void main(String[] args) throws Exception {
+		int mb = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		byte[] text = text(new Random(42), 1 << 20);
+
+		for (int round = 0; round < 3; ++round) {
+			long t0 = System.nanoTime();
+			long a0 = allocated();
+			OldPushDecoder old = new OldPushDecoder(StandardCharsets.UTF_8.newDecoder());
+			for (int i = 0; i < mb; ++i) {
+				for (byte b : text) {
+					old.write(b);
+					while (old.hasOutput())
+						sink += old.read();
+				}
+			}
+			report("old, a byte at a time", mb, System.nanoTime() - t0, allocated() - a0);
+
+			t0 = System.nanoTime();
+			a0 = allocated();
+			PushDecoder dec = new PushDecoder(StandardCharsets.UTF_8);
+			for (int i = 0; i < mb; ++i) {
+				for (byte b : text) {
+					dec.write(b);
+					while (dec.hasOutput())
+						sink += dec.read();
+				}
+			}
+			report("new, a byte at a time", mb, System.nanoTime() - t0, allocated() - a0);
+
+			t0 = System.nanoTime();
+			a0 = allocated();
+			dec = new PushDecoder(StandardCharsets.UTF_8);
+			char[] chars = new char[1024];
+			for (int i = 0; i < mb; ++i) {
+				for (int off = 0; off < text.length; off += 1000) {
+					dec.write(text, off, Math.min(1000, text.length - off));
+					int n;
+					while ((n = dec.read(chars, 0, chars.length)) > 0)
+						sink += n;
+				}
+			}
+			report("new, 1000 byte writes", mb, System.nanoTime() - t0, allocated() - a0);
+		}
+		if (sink == 0)
+			System.out.println("(nothing decoded)");
+	}
+
+	private static void report(String what, int mb, long nanos, long allocated) {
+		System.out.printf("%-24s %8.1f MB/s %12d bytes allocated%n", what, mb * 1e9 / nanos, allocated);
+	}
+
+	private static long allocated() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+	}
+
+	private static byte[] text(Random rnd, int size) {
+		StringBuilder sb = new StringBuilder();
+		String[] words = { "the", "quick", "brown", "fox", "naïve", "café", "größe", "♥", "日本語", "\u001b[1;32m" };
+		while (sb.length() < size / 2) {
+			sb.append(rnd.nextInt(10) < 8 ? words[rnd.nextInt(4)] : words[4 + rnd.nextInt(6)]).append(' ');
+		}
+		byte[] b = sb.toString().getBytes(StandardCharsets.UTF_8);
+		return Arrays.copyOf(b, Math.min(b.length, size));
+	}
+
+	/**
+	 * PushDecoder as it was, with its buffers
+	 */
+	private static class OldPushDecoder {
+		private final OldFifoByteBuffer	buf		= new OldFifoByteBuffer(1024);
+		private final OldFifoCharBuffer	output	= new OldFifoCharBuffer(1024);
+		private final CharBuffer		out		= CharBuffer.allocate(1024);
+		private final CharsetDecoder	cs;
+
+		OldPushDecoder(CharsetDecoder cs) {
+			this.cs = cs;
+		}
+
+		void write(byte b) {
+			buf.write(b);
+		}
+
+		boolean hasOutput() {
+			if (output.available() > 0)
+				return true;
+			decodeMore();
+			return output.available() > 0;
+		}
+
+		private void decodeMore() {
+			ByteBuffer in = buf.createByteBuffer();
+			int offset = in.position();
+			cs.decode(in, out, false);
+			out.flip();
+			buf.discardFirst(in.position() - offset);
+			for (int i = 0; i < out.limit(); ++i)
+				output.write(out.get());
+			out.clear();
+		}
+
+		char read() {
+			while (output.available() > 0)
+				return output.read();
+			decodeMore();
+			if (output.available() > 0)
+				return output.read();
+			throw new IllegalStateException();
+		}
+	}
+
+	private static class OldFifoByteBuffer {
+		private byte[]	data;
+		private int		readPtr;
+		private int		writePtr;
+
+		OldFifoByteBuffer(int capacity) {
+			data = new byte[capacity];
+		}
+
+		void write(byte b) {
+			data[writePtr++] = b;
+		}
+
+		int available() {
+			return writePtr - readPtr;
+		}
+
+		ByteBuffer createByteBuffer() {
+			return ByteBuffer.wrap(data, readPtr, available());
+		}
+
+		void discardFirst(int length) {
+			readPtr += length;
+			if (readPtr > data.length / 2) {
+				byte[] nu = new byte[data.length];
+				System.arraycopy(data, readPtr, nu, 0, available());
+				data = nu;
+				writePtr -= readPtr;
+				readPtr = 0;
+			}
+		}
+	}
+
+	private static class OldFifoCharBuffer {
+		private char[]	data;
+		private int		readPtr;
+		private int		writePtr;
+
+		OldFifoCharBuffer(int capacity) {
+			data = new char[capacity];
+		}
+
+		void write(char b) {
+			data[writePtr++] = b;
+		}
+
+		int available() {
+			return writePtr - readPtr;
+		}
+
+		char read() {
+			if (readPtr > data.length / 2) {
+				char[] nu = new char[data.length];
+				System.arraycopy(data, readPtr, nu, 0, available());
+				data = nu;
+				writePtr -= readPtr;
+				readPtr = 0;
+			}
+			return data[readPtr++];
+		}
+	}
+
+}
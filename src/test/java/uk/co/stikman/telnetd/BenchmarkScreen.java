@@ -0,0 +1,128 @@
+package uk.co.stikman.telnetd;
+
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import uk.co.stikman.wimpi.telnetd.io.Color;
+import uk.co.stikman.wimpi.telnetd.io.Screen;
+import uk.co.stikman.wimpi.telnetd.io.TerminalIO;
+import uk.co.stikman.wimpi.telnetd.io.terminal.Terminal;
+import uk.co.stikman.wimpi.telnetd.io.terminal.TerminalManager;
+import uk.co.stikman.wimpi.telnetd.io.terminal.xterm;
+import uk.co.stikman.wimpi.telnetd.net.Connection;
+import uk.co.stikman.wimpi.telnetd.net.ConnectionData;
+
+/**
+ * Compares the bytes sent to update a 200x60 dashboard of counters, a few of
+ * which change each time, when it's redrawn whole through {@link TerminalIO}
+ * and when it's drawn on a {@link Screen} and refreshed. Not a unit test, run
+ * it by hand: <tt>BenchmarkScreen [updates]</tt>
+ */
+public class BenchmarkScreen {
+
+	private static final int	ROWS	= 60;
+	private static final int	COLUMNS	= 200;
+	private static final int	CELLS	= 5;	//counters on each row
+	private static final int	WIDTH	= COLUMNS / CELLS;
+
+	public static void main(String[] args) throws Exception {
+		int updates = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		Map<String, Terminal> terminals = new HashMap<>();
+		terminals.put("default", new xterm());
+		TerminalManager.createTerminalManager(terminals, false);
+
+		ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		Socket client = new Socket(server.getInetAddress(), server.getLocalPort());
+		Socket accepted = server.accept();
+		final InputStream in = client.getInputStream();
+		Thread drain = new Thread() {
+			@Override
+			public void run() {
+				byte[] buf = new byte[65536];
+				try {
+					while (in.read(buf) > 0)
+						;
+				} catch (Exception ex) {
+					// closed
+				}
+			}
+		};
+		drain.start();
+		ConnectionData cd = new ConnectionData(accepted, null);
+		cd.setTerminalGeometry(COLUMNS, ROWS);
+		TerminalIO tio = new TerminalIO(new Connection(cd));
+
+		for (double changing : new double[] { 0.02, 0.05, 0.1, 0.25 }) {
+			long[] values = new long[ROWS * CELLS];
+			Random rnd = new Random(1);
+
+			long t0 = System.nanoTime();
+			long before = cd.getSegmentBytes();
+			for (int u = 0; u < updates; ++u) {
+				tick(values, rnd, changing);
+				tio.beginFrame();
+				tio.homeCursor();
+				tio.eraseScreen();
+				for (int r = 0; r < ROWS; ++r) {
+					tio.setCursor(r + 1, 1);
+					for (int c = 0; c < CELLS; ++c) {
+						long v = values[r * CELLS + c];
+						tio.setForegroundColor(v % 2 == 0 ? Color.GREEN : Color.RED);
+						tio.write(label(r, c, v));
+					}
+				}
+				tio.endFrame();
+			}
+			long whole = (cd.getSegmentBytes() - before) / updates;
+			long wholeNanos = (System.nanoTime() - t0) / updates;
+
+			Screen screen = tio.getScreen();
+			screen.invalidate();
+			values = new long[ROWS * CELLS];
+			rnd = new Random(1);
+			t0 = System.nanoTime();
+			before = cd.getSegmentBytes();
+			for (int u = 0; u < updates; ++u) {
+				tick(values, rnd, changing);
+				for (int r = 0; r < ROWS; ++r) {
+					for (int c = 0; c < CELLS; ++c) {
+						long v = values[r * CELLS + c];
+						screen.setForeground(v % 2 == 0 ? Color.GREEN : Color.RED);
+						screen.write(r, c * WIDTH, label(r, c, v));
+					}
+				}
+				screen.refresh();
+			}
+			long diffed = (cd.getSegmentBytes() - before) / updates;
+			long diffedNanos = (System.nanoTime() - t0) / updates;
+
+			System.out.printf("%3.0f%% changing: whole %7d bytes %6d us, diffed %6d bytes %6d us, %4.1f%% fewer%n", changing * 100, whole, wholeNanos / 1000, diffed, diffedNanos / 1000, 100.0 - diffed * 100.0 / whole);
+		}
+		client.close();
+		accepted.close();
+		server.close();
+	}
+
+	private static void tick(long[] values, Random rnd, double changing) {
+		for (int i = 0; i < values.length; ++i) {
+			if (rnd.nextDouble() < changing) {
+				values[i] += 1 + rnd.nextInt(1000);
+			}
+		}
+	}
+
+	private static String label(int r, int c, long v) {
+		String s = String.format("m%02d.%d %10d", r, c, v);
+		StringBuilder sb = new StringBuilder(WIDTH);
+		sb.append(s);
+		while (sb.length() < WIDTH)
+			sb.append(' ');
+		return sb.toString();
+	}
+
+}
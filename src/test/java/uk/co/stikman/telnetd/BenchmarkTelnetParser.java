@@ -0,0 +1,157 @@
+package uk.co.stikman.telnetd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+
+import uk.co.stikman.wimpi.telnetd.io.TelnetIO;
+import uk.co.stikman.wimpi.telnetd.io.TelnetParser;
+import uk.co.stikman.wimpi.telnetd.net.Connection;
+import uk.co.stikman.wimpi.telnetd.net.ConnectionData;
+
+/**
+ * Times {@link TelnetParser} on its own, fed in chunks and a byte at a time,
+ * and the whole input path through {@link TelnetIO} over a loopback socket.
+ * Not a unit test, run it by hand: <tt>BenchmarkTelnetParser [megabytes]</tt>
+ */
+public class BenchmarkTelnetParser {
+
+	private static long sink;
+
+	public static void main(String[] args) throws Exception {
+		int mb = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		byte[] traffic = traffic(new Random(42), 1 << 20);
+
+		TelnetParser.Handler counter = new TelnetParser.Handler() {
+			@Override
+			public void data(byte[] b, int off, int len) {
+				sink += len;
+			}
+
+			@Override
+			public void command(int command) {
+				++sink;
+			}
+
+			@Override
+			public void option(int verb, int option) {
+				++sink;
+			}
+
+			@Override
+			public void windowSize(int width, int height) {
+				++sink;
+			}
+
+			@Override
+			public void terminalType(String type) {
+				++sink;
+			}
+
+			@Override
+			public void environment(boolean info, String name, String value) {
+				++sink;
+			}
+
+			@Override
+			public void subnegotiation(int option, byte[] b, int off, int len) {
+				++sink;
+			}
+		};
+
+		for (int round = 0; round < 3; ++round) {
+			for (int chunk : new int[] { 4096, 1 }) {
+				TelnetParser p = new TelnetParser(counter);
+				long t0 = System.nanoTime();
+				for (int i = 0; i < mb; ++i) {
+					for (int off = 0; off < traffic.length; off += chunk)
+						p.parse(traffic, off, Math.min(chunk, traffic.length - off));
+				}
+				report("parser, " + chunk + " byte slices", mb, System.nanoTime() - t0);
+			}
+			report("TelnetIO over loopback", mb, throughSocket(traffic, mb));
+		}
+		if (sink == 0)
+			System.out.println("(nothing parsed)");
+	}
+
+	private static void report(String what, int mb, long nanos) {
+		System.out.printf("%-28s %8.1f MB/s%n", what, mb * 1e9 / nanos);
+	}
+
+	/**
+	 * Mostly text and line ends, with the odd command, negotiation and window
+	 * size change
+	 */
+	private static byte[] traffic(Random rnd, int size) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(size + 100);
+		while (out.size() < size) {
+			int r = rnd.nextInt(100);
+			if (r < 90) {
+				out.write('a' + rnd.nextInt(26));
+			} else if (r < 97) {
+				out.write(13);
+				out.write(10);
+			} else if (r < 98) {
+				out.write(255);
+				out.write(241);
+			} else if (r < 99) {
+				out.write(255);
+				out.write(251);
+				out.write(rnd.nextInt(40));
+			} else {
+				byte[] naws = { (byte) 255, (byte) 250, 31, 0, 80, 0, 24, (byte) 255, (byte) 240 };
+				out.write(naws, 0, naws.length);
+			}
+		}
+		return out.toByteArray();
+	}
+
+	private static long throughSocket(final byte[] traffic, final int mb) throws Exception {
+		try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress()); final Socket client = new Socket(server.getInetAddress(), server.getLocalPort()); Socket accepted = server.accept()) {
+			TelnetIO io = new TelnetIO();
+			io.setConnection(new Connection(new ConnectionData(accepted, null)));
+			io.initIO();
+			Thread writer = new Thread() {
+				@Override
+				public void run() {
+					try {
+						OutputStream out = client.getOutputStream();
+						for (int i = 0; i < mb; ++i)
+							out.write(traffic);
+						client.shutdownOutput();
+					} catch (Exception ex) {
+						ex.printStackTrace();
+					}
+				}
+			};
+			//soak up the replies to negotiations, so they can't fill the socket
+			Thread reader = new Thread() {
+				@Override
+				public void run() {
+					try {
+						byte[] b = new byte[8192];
+						while (client.getInputStream().read(b) > 0)
+							;
+					} catch (Exception ex) {
+						//closed
+					}
+				}
+			};
+			reader.setDaemon(true);
+			reader.start();
+			byte[] buf = new byte[8192];
+			long t0 = System.nanoTime();
+			writer.start();
+			int n;
+			while ((n = io.read(buf, 0, buf.length)) > 0)
+				sink += n;
+			writer.join();
+			return System.nanoTime() - t0;
+		}
+	}
+
+}
@@ -0,0 +1,96 @@
+package uk.co.stikman.telnetd;
+
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import uk.co.stikman.wimpi.telnetd.io.TerminalIO;
+import uk.co.stikman.wimpi.telnetd.io.terminal.Terminal;
+import uk.co.stikman.wimpi.telnetd.io.terminal.TerminalManager;
+import uk.co.stikman.wimpi.telnetd.io.terminal.xterm;
+import uk.co.stikman.wimpi.telnetd.net.Connection;
+import uk.co.stikman.wimpi.telnetd.net.ConnectionData;
+
+/**
+ * Times several threads writing to one {@link TerminalIO} at once, each
+ * positioning the cursor, setting a colour and writing some text, as a shell
+ * and a broadcaster would, over loopback to a client that reads everything.
+ * Not a unit test, run it by hand: <tt>BenchmarkWriteContention [writes]</tt>
+ */
+public class BenchmarkWriteContention {
+
+	public static void main(String[] args) throws Exception {
+		int writes = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		Map<String, Terminal> terminals = new HashMap<>();
+		terminals.put("default", new xterm());
+		TerminalManager.createTerminalManager(terminals, false);
+
+		for (int round = 0; round < 2; ++round) {
+			for (int threads = 1; threads <= 8; threads *= 2) {
+				run(threads, writes);
+			}
+		}
+	}
+
+	private static void run(int threads, final int writes) throws Exception {
+		ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		Socket client = new Socket(server.getInetAddress(), server.getLocalPort());
+		Socket accepted = server.accept();
+		final InputStream in = client.getInputStream();
+		Thread drain = new Thread() {
+			@Override
+			public void run() {
+				byte[] buf = new byte[65536];
+				try {
+					while (in.read(buf) > 0)
+						;
+				} catch (Exception ex) {
+					// closed
+				}
+			}
+		};
+		drain.start();
+		final TerminalIO tio = new TerminalIO(new Connection(new ConnectionData(accepted, null)));
+		tio.setAutoflushing(false);
+
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] writers = new Thread[threads];
+		final int each = writes / threads;
+		for (int t = 0; t < threads; ++t) {
+			final int id = t;
+			writers[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int i = 0; i < each; ++i) {
+							tio.setCursor(1 + i % 24, 1 + id * 10);
+							tio.setForegroundColor(31 + id);
+							tio.write("thread " + id);
+							if ((i & 63) == 0)
+								tio.flush();
+						}
+					} catch (Exception ex) {
+						ex.printStackTrace();
+					}
+				}
+			};
+			writers[t].start();
+		}
+		long t0 = System.nanoTime();
+		start.countDown();
+		for (Thread t : writers)
+			t.join();
+		tio.flush();
+		long nanos = System.nanoTime() - t0;
+		System.out.printf("%d threads %10.0f writes/s%n", threads, each * threads * 3 * 1e9 / nanos);
+		client.close();
+		accepted.close();
+		server.close();
+	}
+
+}
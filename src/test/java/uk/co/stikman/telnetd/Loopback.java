@@ -0,0 +1,145 @@
+package uk.co.stikman.telnetd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.Assert;
+
+import uk.co.stikman.wimpi.telnetd.io.TelnetIO;
+
+/**
+ * A connected pair of sockets on the loopback interface: the server end for
+ * the code under test, and the client end for a test to play the client
+ * with. What the client is sent is kept, so a test can wait for something to
+ * turn up and then look at what came before it.
+ */
+public class Loopback {
+
+	private final Socket				client;
+	private final Socket				accepted;
+	private final ByteArrayOutputStream	received	= new ByteArrayOutputStream();
+
+	public Loopback() throws IOException {
+		try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+			client = new Socket(server.getInetAddress(), server.getLocalPort());
+			client.setSoTimeout(2000);
+			accepted = server.accept();
+		}
+	}
+
+	/**
+	 * @return the client's end
+	 */
+	public Socket getClient() {
+		return client;
+	}
+
+	/**
+	 * @return the server's end, to make a connection from
+	 */
+	public Socket getAccepted() {
+		return accepted;
+	}
+
+	public OutputStream getOutputStream() throws IOException {
+		return client.getOutputStream();
+	}
+
+	public void close() throws IOException {
+		client.close();
+		accepted.close();
+	}
+
+	/**
+	 * Has the client send something, and the server read it, which is when
+	 * the server acts on any negotiation in it
+	 */
+	public void send(TelnetIO io, int... b) throws IOException {
+		OutputStream out = client.getOutputStream();
+		out.write(bytes(b));
+		out.write('.');
+		out.flush();
+		Assert.assertEquals('.', io.read());
+	}
+
+	/**
+	 * Reads what the client has been sent until it contains the given bytes
+	 *
+	 * @return where they start
+	 */
+	public int receive(byte[] want) throws IOException {
+		return receive(want, 0);
+	}
+
+	/**
+	 * Reads what the client has been sent until it contains the given bytes
+	 * at or after a point
+	 *
+	 * @return where they start
+	 */
+	public int receive(byte[] want, int from) throws IOException {
+		for (;;) {
+			int i = indexOf(received.toByteArray(), want, from);
+			if (i >= 0)
+				return i;
+			receiveMore();
+		}
+	}
+
+	/**
+	 * Reads whatever the client is sent next, waiting for it
+	 */
+	public void receiveMore() throws IOException {
+		byte[] buf = new byte[4096];
+		int n = client.getInputStream().read(buf);
+		Assert.assertTrue(n > 0);
+		received.write(buf, 0, n);
+	}
+
+	/**
+	 * Ends the server's output and reads everything the client has been sent
+	 */
+	public byte[] receiveAll() throws IOException {
+		accepted.shutdownOutput();
+		InputStream in = client.getInputStream();
+		byte[] buf = new byte[4096];
+		for (int n; (n = in.read(buf)) != -1;)
+			received.write(buf, 0, n);
+		return received.toByteArray();
+	}
+
+	/**
+	 * @return everything the client has been sent so far, as read by
+	 *         {@link #receive(byte[])}
+	 */
+	public byte[] getReceived() {
+		return received.toByteArray();
+	}
+
+	public static byte[] bytes(int... v) {
+		byte[] b = new byte[v.length];
+		for (int i = 0; i < v.length; ++i)
+			b[i] = (byte) v[i];
+		return b;
+	}
+
+	public static int indexOf(byte[] b, byte[] want) {
+		return indexOf(b, want, 0);
+	}
+
+	public static int indexOf(byte[] b, byte[] want, int from) {
+		outer: for (int i = from; i <= b.length - want.length; ++i) {
+			for (int j = 0; j < want.length; ++j)
+				if (b[i + j] != want[j])
+					continue outer;
+			return i;
+		}
+		return -1;
+	}
+
+}
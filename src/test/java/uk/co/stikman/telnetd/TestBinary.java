@@ -0,0 +1,137 @@
+package uk.co.stikman.telnetd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.co.stikman.wimpi.telnetd.io.TelnetIO;
+import uk.co.stikman.wimpi.telnetd.net.Connection;
+import uk.co.stikman.wimpi.telnetd.net.ConnectionData;
+import uk.co.stikman.wimpi.telnetd.net.ConnectionManager;
+
+public class TestBinary {
+
+	private static final byte[]	WILL_BINARY	= { (byte) 255, (byte) 251, 0 };
+	private static final byte[]	WONT_BINARY	= { (byte) 255, (byte) 252, 0 };
+	private static final byte[]	DO_BINARY	= { (byte) 255, (byte) 253, 0 };
+	private static final byte[]	DONT_BINARY	= { (byte) 255, (byte) 254, 0 };
+
+	private Loopback			loopback;
+	private OutputStream		out;
+	private ConnectionData		cd;
+	private TelnetIO			io;
+
+	@Before
+	public void setUp() throws Exception {
+		loopback = new Loopback();
+		out = loopback.getOutputStream();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		loopback.close();
+	}
+
+	private void start(int mode) throws Exception {
+		cd = new ConnectionData(loopback.getAccepted(), null);
+		cd.setBinaryMode(mode);
+		io = new TelnetIO();
+		io.setConnection(new Connection(cd));
+		io.initIO();
+	}
+
+	private int[] read(int n) throws Exception {
+		int[] r = new int[n];
+		for (int i = 0; i < n; ++i)
+			r[i] = io.read();
+		return r;
+	}
+
+	@Test
+	public void testRefused() throws Exception {
+		start(ConnectionManager.BINARY_OFF);
+		loopback.send(io, 255, 251, 0, 255, 253, 0);
+		loopback.receive(DONT_BINARY);
+		loopback.receive(WONT_BINARY);
+		Assert.assertFalse(cd.isBinaryInput());
+		Assert.assertFalse(cd.isBinaryOutput());
+
+		out.write(new byte[] { 'a', 13, 10, 'b' });
+		out.flush();
+		Assert.assertArrayEquals(new int[] { 'a', 10, 'b' }, read(3));
+	}
+
+	@Test
+	public void testBinary() throws Exception {
+		start(ConnectionManager.BINARY_ACCEPT);
+		loopback.send(io, 255, 251, 0, 255, 253, 0);
+		loopback.receive(DO_BINARY);
+		loopback.receive(WILL_BINARY);
+		Assert.assertTrue(cd.isBinaryInput());
+		Assert.assertTrue(cd.isBinaryOutput());
+
+		// CR comes in as it was sent, IAC IAC is still undone
+		out.write(new byte[] { 'a', 13, 0, 'b', 13, 10, (byte) 255, (byte) 255, 13 });
+		out.flush();
+		Assert.assertArrayEquals(new int[] { 'a', 13, 0, 'b', 13, 10, 255, 13 }, read(8));
+
+		// out goes as it is, apart from IAC, at every length and alignment
+		Random rnd = new Random(7);
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		for (int i = 0; i < 300; ++i) {
+			byte[] b = new byte[rnd.nextInt(40)];
+			for (int j = 0; j < b.length; ++j)
+				b[j] = (byte) (rnd.nextInt(4) == 0 ? 255 : rnd.nextInt(3) == 0 ? 13 : rnd.nextInt(256));
+			int off = b.length == 0 ? 0 : rnd.nextInt(b.length);
+			io.write(b, off, b.length - off);
+			for (int j = off; j < b.length; ++j) {
+				expected.write(b[j]);
+				if (b[j] == (byte) 255)
+					expected.write(b[j]);
+			}
+		}
+		io.write((byte) 10);
+		io.write((byte) 255);
+		expected.write(new byte[] { 10, (byte) 255, (byte) 255 });
+		byte[] marker = "--end--".getBytes();
+		io.write(marker, 0, marker.length);
+		io.flush();
+		int start = loopback.receive(WILL_BINARY) + WILL_BINARY.length;
+		int end = loopback.receive(marker);
+		Assert.assertArrayEquals(expected.toByteArray(), Arrays.copyOfRange(loopback.getReceived(), start, end));
+
+		// switched off from the client end, and answered
+		loopback.send(io, 255, 252, 0, 255, 254, 0);
+		loopback.receive(DONT_BINARY);
+		loopback.receive(WONT_BINARY);
+		Assert.assertFalse(cd.isBinaryInput());
+		Assert.assertFalse(cd.isBinaryOutput());
+		out.write(new byte[] { 'a', 13, 0, 'b' });
+		out.flush();
+		Assert.assertArrayEquals(new int[] { 'a', 10, 'b' }, read(3));
+	}
+
+	@Test
+	public void testRequested() throws Exception {
+		start(ConnectionManager.BINARY_REQUEST);
+		loopback.receive(WILL_BINARY);
+		loopback.receive(DO_BINARY);
+		loopback.send(io, 255, 253, 0, 255, 251, 0);
+		Assert.assertTrue(cd.isBinaryInput());
+		Assert.assertTrue(cd.isBinaryOutput());
+
+		// agreeing to what was asked for isn't answered again
+		io.write((byte) 'x');
+		io.flush();
+		int x = loopback.receive(new byte[] { 'x' });
+		byte[] r = loopback.getReceived();
+		Assert.assertEquals(-1, Loopback.indexOf(Arrays.copyOfRange(r, Loopback.indexOf(r, DO_BINARY) + 3, x), WILL_BINARY));
+	}
+
+}
@@ -0,0 +1,121 @@
+package uk.co.stikman.telnetd;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.co.stikman.wimpi.telnetd.io.Broadcast;
+import uk.co.stikman.wimpi.telnetd.io.TerminalIO;
+import uk.co.stikman.wimpi.telnetd.io.terminal.Terminal;
+import uk.co.stikman.wimpi.telnetd.io.terminal.TerminalManager;
+import uk.co.stikman.wimpi.telnetd.io.terminal.vt100;
+import uk.co.stikman.wimpi.telnetd.io.terminal.xterm;
+import uk.co.stikman.wimpi.telnetd.net.BlockingTransport;
+import uk.co.stikman.wimpi.telnetd.net.Connection;
+import uk.co.stikman.wimpi.telnetd.net.ConnectionData;
+import uk.co.stikman.wimpi.telnetd.net.OutputQueue;
+
+public class TestBroadcast {
+
+	private Loopback[]		loopback	= new Loopback[2];
+	private TerminalIO[]	tio			= new TerminalIO[2];
+
+	@Before
+	public void setUp() throws Exception {
+		Map<String, Terminal> terminals = new HashMap<>();
+		terminals.put("default", new xterm());
+		terminals.put("vt100", new vt100());
+		TerminalManager.createTerminalManager(terminals, false);
+
+		for (int i = 0; i < 2; ++i) {
+			loopback[i] = new Loopback();
+			BlockingTransport t = new BlockingTransport(loopback[i].getAccepted());
+			ConnectionData cd = new ConnectionData(t, null);
+			if (i == 1) {
+				// the second goes through an output queue
+				OutputQueue q = new OutputQueue(4096, OutputQueue.BLOCK, 2000);
+				t.setOutputQueue(q, null);
+				cd.setOutputQueue(q);
+			}
+			tio[i] = new TerminalIO(new Connection(cd));
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for (int i = 0; i < 2; ++i)
+			loopback[i].close();
+	}
+
+	@Test
+	public void testRenderedOnce() throws Exception {
+		Broadcast b = new Broadcast("tick 1\nnaïve\r\n");
+		byte[] want = "tick 1\r\nnaïve\r\n".getBytes(StandardCharsets.UTF_8);
+		for (int i = 0; i < 2; ++i)
+			tio[i].write(b);
+		Assert.assertEquals(1, b.getRenderings());
+		for (int i = 0; i < 2; ++i)
+			loopback[i].receive(want);
+
+		// again, after something that left a CR hanging
+		tio[0].write((byte) 'x');
+		tio[0].write((byte) 13);
+		tio[0].write(b);
+		loopback[0].receive(("x\r\n" + "tick 1\r\nnaïve\r\n").getBytes(StandardCharsets.UTF_8));
+		Assert.assertEquals(1, b.getRenderings());
+	}
+
+	@Test
+	public void testTerminals() throws Exception {
+		tio[1].setTerminal("vt100");
+		Broadcast b = new Broadcast("status\n");
+		for (int i = 0; i < 2; ++i)
+			tio[i].write(b);
+		Assert.assertEquals(2, b.getRenderings());
+		for (int i = 0; i < 2; ++i)
+			loopback[i].receive("status\r\n".getBytes());
+	}
+
+	@Test
+	public void testBusyConnection() throws Exception {
+		// a frame open on another thread keeps the first connection busy
+		final CountDownLatch begun = new CountDownLatch(1);
+		final CountDownLatch end = new CountDownLatch(1);
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					tio[0].beginFrame();
+					tio[0].write("frame ");
+					begun.countDown();
+					end.await();
+					tio[0].write("ends\n");
+					tio[0].endFrame();
+				} catch (Exception ex) {
+					throw new RuntimeException(ex);
+				}
+			}
+		};
+		t.start();
+		begun.await();
+
+		// which doesn't hold up a broadcast, or the other connection
+		Broadcast b = new Broadcast("news\n");
+		for (int i = 0; i < 2; ++i)
+			tio[i].write(b);
+		loopback[1].receive("news\r\n".getBytes());
+
+		// and it comes after the frame, not in the middle of it
+		end.countDown();
+		t.join();
+		int news = loopback[0].receive("news\r\n".getBytes());
+		Assert.assertTrue(loopback[0].receive("ends\r\n".getBytes()) < news);
+	}
+
+}
@@ -0,0 +1,133 @@
+package uk.co.stikman.telnetd;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import uk.co.stikman.wimpi.telnetd.net.CachingHostNameResolver;
+import uk.co.stikman.wimpi.telnetd.net.HostNameResolver;
+
+public class TestCachingHostNameResolver {
+
+	private static InetAddress addr(int n) throws UnknownHostException {
+		return InetAddress.getByAddress(new byte[] { 10, 0, 0, (byte) n });
+	}
+
+	/**
+	 * Resolves 10.0.0.n to hostn, except odd n which fail
+	 */
+	private static class CountingResolver implements HostNameResolver {
+		AtomicInteger calls = new AtomicInteger();
+
+		@Override
+		public String resolve(InetAddress addr) {
+			calls.incrementAndGet();
+			int n = addr.getAddress()[3];
+			return n % 2 == 0 ? "host" + n : null;
+		}
+	}
+
+	@Test
+	public void testHitsAndNegativeHits() throws Exception {
+		CountingResolver upstream = new CountingResolver();
+		CachingHostNameResolver r = new CachingHostNameResolver(upstream, 10, 60000, 60000, 4);
+
+		Assert.assertEquals("host2", r.resolve(addr(2)));
+		Assert.assertEquals("host2", r.resolve(addr(2)));
+		Assert.assertNull(r.resolve(addr(3)));
+		Assert.assertNull(r.resolve(addr(3)));
+
+		Assert.assertEquals(2, upstream.calls.get());
+		Assert.assertEquals(1, r.getHits());
+		Assert.assertEquals(1, r.getNegativeHits());
+		Assert.assertEquals(2, r.getMisses());
+		Assert.assertEquals(1, r.getFailures());
+		Assert.assertEquals(2, r.getLookups());
+	}
+
+	@Test
+	public void testExpiry() throws Exception {
+		CountingResolver upstream = new CountingResolver();
+		CachingHostNameResolver r = new CachingHostNameResolver(upstream, 10, 0, 0, 4);
+		r.resolve(addr(2));
+		Thread.sleep(2);
+		r.resolve(addr(2));
+		Assert.assertEquals(2, upstream.calls.get());
+		Assert.assertEquals(0, r.getHits());
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		CountingResolver upstream = new CountingResolver();
+		CachingHostNameResolver r = new CachingHostNameResolver(upstream, 2, 60000, 60000, 4);
+		r.resolve(addr(2));
+		r.resolve(addr(4));
+		r.resolve(addr(2)); // 4 is now least recently used
+		r.resolve(addr(6));
+		Assert.assertEquals(2, r.size());
+		r.resolve(addr(2));
+		Assert.assertEquals(3, upstream.calls.get());
+		r.resolve(addr(4));
+		Assert.assertEquals(4, upstream.calls.get());
+	}
+
+	@Test
+	public void testConcurrencyLimitAndCoalescing() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		HostNameResolver slow = new HostNameResolver() {
+			@Override
+			public String resolve(InetAddress addr) {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return "slow";
+			}
+		};
+		final CachingHostNameResolver r = new CachingHostNameResolver(slow, 10, 60000, 60000, 1);
+		final String[] results = new String[2];
+		Thread t1 = new Thread() {
+			@Override
+			public void run() {
+				try {
+					results[0] = r.resolve(addr(2));
+				} catch (UnknownHostException e) {
+				}
+			}
+		};
+		t1.start();
+		started.await();
+
+		// a different address is over the limit, so gives up straight away
+		Assert.assertNull(r.resolve(addr(4)));
+		Assert.assertEquals(1, r.getRejected());
+
+		// the same address waits for the lookup in progress
+		Thread t2 = new Thread() {
+			@Override
+			public void run() {
+				try {
+					results[1] = r.resolve(addr(2));
+				} catch (UnknownHostException e) {
+				}
+			}
+		};
+		t2.start();
+		while (r.getCoalesced() == 0)
+			Thread.sleep(1);
+		release.countDown();
+		t1.join();
+		t2.join();
+		Assert.assertEquals("slow", results[0]);
+		Assert.assertEquals("slow", results[1]);
+		Assert.assertEquals(1, r.getLookups());
+	}
+
+}
@@ -0,0 +1,133 @@
+package uk.co.stikman.telnetd;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import uk.co.stikman.wimpi.telnetd.net.CidrConnectionFilter;
+
+public class TestCidrConnectionFilter {
+
+	private static boolean allowed(CidrConnectionFilter f, String addr) throws Exception {
+		return f.isAllowed(InetAddress.getByName(addr));
+	}
+
+	@Test
+	public void testMostSpecificWins() throws Exception {
+		CidrConnectionFilter f = new CidrConnectionFilter();
+		Properties p = new Properties();
+		p.setProperty("cidr.default", "deny");
+		p.setProperty("cidr.allow", "10.0.0.0/8, 10.1.2.3, 2001:db8::/32");
+		p.setProperty("cidr.deny", "10.1.0.0/16, 2001:db8:bad::/48");
+		f.initialize(p);
+
+		Assert.assertEquals(5, f.size());
+		Assert.assertTrue(allowed(f, "10.200.0.1"));
+		Assert.assertFalse(allowed(f, "10.1.2.4"));
+		Assert.assertTrue(allowed(f, "10.1.2.3"));
+		Assert.assertFalse(allowed(f, "11.0.0.1"));
+		Assert.assertTrue(allowed(f, "2001:db8:1::1"));
+		Assert.assertFalse(allowed(f, "2001:db8:bad::1"));
+		Assert.assertFalse(allowed(f, "2001:db9::1"));
+	}
+
+	@Test
+	public void testFileAndReload() throws Exception {
+		File file = File.createTempFile("cidr", ".txt");
+		file.deleteOnExit();
+		write(file, "# test rules\ndefault deny\nallow 192.168.0.0/16  # lan\n");
+		CidrConnectionFilter f = new CidrConnectionFilter();
+		Properties p = new Properties();
+		p.setProperty("cidr.file", file.getPath());
+		f.initialize(p);
+		Assert.assertTrue(allowed(f, "192.168.5.5"));
+		Assert.assertFalse(allowed(f, "8.8.8.8"));
+
+		// a broken file leaves the old rules in place
+		write(file, "allow 8.8.8.0/24\nallow nonsense\n");
+		try {
+			f.reload();
+			Assert.fail();
+		} catch (IllegalArgumentException ex) {
+			Assert.assertTrue(ex.getMessage().contains(":2:"));
+		}
+		Assert.assertTrue(allowed(f, "192.168.5.5"));
+		Assert.assertFalse(allowed(f, "8.8.8.8"));
+
+		write(file, "allow 8.8.8.0/24\ndeny 0.0.0.0/0\n");
+		f.reload();
+		Assert.assertTrue(allowed(f, "8.8.8.8"));
+		Assert.assertFalse(allowed(f, "192.168.5.5"));
+	}
+
+	@Test
+	public void testSetRules() throws Exception {
+		CidrConnectionFilter f = new CidrConnectionFilter();
+		f.initialize(new Properties());
+		Assert.assertTrue(allowed(f, "1.2.3.4"));
+		f.setRules(Arrays.asList("1.2.3.0/24"), Collections.<String> emptyList(), false);
+		Assert.assertTrue(allowed(f, "1.2.3.4"));
+		Assert.assertFalse(allowed(f, "1.2.4.4"));
+	}
+
+	/**
+	 * Compares the trie against checking every rule in turn
+	 */
+	@Test
+	public void testAgainstLinearScan() throws Exception {
+		Random rnd = new Random(1234);
+		List<String> allow = new ArrayList<>();
+		List<String> deny = new ArrayList<>();
+		List<int[]> rules = new ArrayList<>(); // address, prefix, allow
+		for (int i = 0; i < 2000; ++i) {
+			int addr = rnd.nextInt() & 0xffff0000 | rnd.nextInt(4) << 8;
+			int len = 8 + rnd.nextInt(25);
+			addr &= len == 32 ? -1 : ~(-1 >>> len);
+			boolean a = rnd.nextBoolean();
+			String s = InetAddress.getByAddress(bytes(addr)).getHostAddress() + "/" + len;
+			boolean dup = false;
+			for (int[] r : rules)
+				dup |= r[0] == addr && r[1] == len;
+			if (dup)
+				continue;
+			(a ? allow : deny).add(s);
+			rules.add(new int[] { addr, len, a ? 1 : 0 });
+		}
+		CidrConnectionFilter f = new CidrConnectionFilter();
+		f.setRules(allow, deny, true);
+
+		for (int i = 0; i < 20000; ++i) {
+			int addr = i % 2 == 0 ? rnd.nextInt() : rules.get(rnd.nextInt(rules.size()))[0] | rnd.nextInt(1024);
+			int best = -1;
+			boolean expect = true;
+			for (int[] r : rules) {
+				int mask = r[1] == 0 ? 0 : -1 << (32 - r[1]);
+				if ((addr & mask) == r[0] && r[1] > best) {
+					best = r[1];
+					expect = r[2] == 1;
+				}
+			}
+			Assert.assertEquals(expect, f.isAllowed(InetAddress.getByAddress(bytes(addr))));
+		}
+	}
+
+	private static byte[] bytes(int a) {
+		return new byte[] { (byte) (a >> 24), (byte) (a >> 16), (byte) (a >> 8), (byte) a };
+	}
+
+	private static void write(File f, String s) throws Exception {
+		FileOutputStream out = new FileOutputStream(f);
+		out.write(s.getBytes("UTF-8"));
+		out.close();
+	}
+
+}
@@ -0,0 +1,98 @@
+package uk.co.stikman.telnetd;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Inflater;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.co.stikman.wimpi.telnetd.io.TelnetIO;
+import uk.co.stikman.wimpi.telnetd.net.Connection;
+import uk.co.stikman.wimpi.telnetd.net.ConnectionData;
+
+public class TestCompression {
+
+	private static final byte[]	MARKER	= { (byte) 255, (byte) 250, 86, (byte) 255, (byte) 240 };
+
+	private Loopback			loopback;
+	private ConnectionData		cd;
+	private TelnetIO			io;
+
+	@Before
+	public void setUp() throws Exception {
+		loopback = new Loopback();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		loopback.close();
+	}
+
+	private void start(int level, long reset) throws Exception {
+		cd = new ConnectionData(loopback.getAccepted(), null);
+		cd.setCompression(level, reset);
+		io = new TelnetIO();
+		io.setConnection(new Connection(cd));
+		io.initIO();
+	}
+
+	@Test
+	public void testNotOffered() throws Exception {
+		start(-1, 0);
+		loopback.send(io, 255, 253, 86);
+		io.write("hello");
+		io.flush();
+		loopback.receive("hello".getBytes(StandardCharsets.US_ASCII));
+		Assert.assertEquals(-1, Loopback.indexOf(loopback.getReceived(), new byte[] { (byte) 255, (byte) 251, 86 }));
+		Assert.assertEquals(-1, Loopback.indexOf(loopback.getReceived(), MARKER));
+		Assert.assertFalse(cd.isCompressing());
+	}
+
+	@Test
+	public void testCompressed() throws Exception {
+		start(6, 0);
+		loopback.receive(new byte[] { (byte) 255, (byte) 251, 86 });
+		loopback.send(io, 255, 253, 86);
+		Assert.assertTrue(cd.isCompressing());
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 200; ++i)
+			sb.append("\u001b[1;").append(i % 24).append("Hsame old screen ").append(i).append("\n");
+		io.write(sb.toString());
+		io.flush();
+		int at = loopback.receive(MARKER) + MARKER.length;
+
+		// sync flushed, so all of it can be inflated without any more
+		Inflater inf = new Inflater();
+		String expected = sb.toString().replace("\n", "\r\n");
+		byte[] plain = new byte[expected.length() * 2];
+		int got = 0;
+		while (got < expected.length()) {
+			byte[] r = loopback.getReceived();
+			if (at < r.length) {
+				inf.setInput(r, at, r.length - at);
+				at = r.length;
+			}
+			got += inf.inflate(plain, got, plain.length - got);
+			if (got < expected.length() && inf.needsInput())
+				loopback.receiveMore();
+		}
+		Assert.assertEquals(expected, new String(plain, 0, got, StandardCharsets.ISO_8859_1));
+		Assert.assertEquals(expected.length(), cd.getUncompressedBytes());
+		Assert.assertTrue(cd.getCompressedBytes() * 5 < cd.getUncompressedBytes());
+
+		// switching it off ends the compressed stream, then it's plain again
+		loopback.send(io, 255, 254, 86);
+		Assert.assertFalse(cd.isCompressing());
+		io.write("plain");
+		io.flush();
+		int end = loopback.receive("plain".getBytes(StandardCharsets.US_ASCII));
+		byte[] r = loopback.getReceived();
+		inf.setInput(r, at, end - at);
+		inf.inflate(plain);
+		Assert.assertTrue(inf.finished());
+	}
+
+}
@@ -0,0 +1,138 @@
+package uk.co.stikman.telnetd;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.co.stikman.wimpi.telnetd.net.Connection;
+import uk.co.stikman.wimpi.telnetd.net.ConnectionData;
+import uk.co.stikman.wimpi.telnetd.net.ConnectionManager;
+import uk.co.stikman.wimpi.telnetd.net.ConnectionRegistry;
+
+public class TestConnectionRegistry {
+
+	private ServerSocket		server;
+	private List<Socket>		sockets	= new ArrayList<>();
+	private ConnectionManager	cm;
+	private ConnectionRegistry	registry;
+	private InetAddress			loopback;
+
+	@Before
+	public void setUp() throws Exception {
+		loopback = InetAddress.getLoopbackAddress();
+		server = new ServerSocket(0, 50, loopback);
+		cm = new ConnectionManager();
+		registry = cm.getRegistry();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for (Socket s : sockets)
+			s.close();
+		server.close();
+	}
+
+	private Connection connect(String shell) throws Exception {
+		sockets.add(new Socket(server.getInetAddress(), server.getLocalPort()));
+		Socket accepted = server.accept();
+		sockets.add(accepted);
+		ConnectionData cd = new ConnectionData(accepted, cm);
+		cd.setLoginShell(shell);
+		return new Connection(cd);
+	}
+
+	@Test
+	public void testAddRemove() throws Exception {
+		Connection a = connect("login");
+		Connection b = connect("login");
+		Assert.assertTrue(registry.add(a));
+		Assert.assertFalse(registry.add(a));
+		Assert.assertTrue(registry.add(b));
+		Assert.assertEquals(2, registry.size());
+		Assert.assertSame(a, registry.get(a.getId()));
+		Assert.assertEquals(2, registry.getConnections().size());
+		Assert.assertEquals(2, registry.countByAddress(loopback));
+		Assert.assertEquals(2, registry.getByLoginShell("login").size());
+		Assert.assertEquals(2, registry.getByTerminalType("default").size());
+		Assert.assertTrue(registry.getAddresses().contains(loopback));
+
+		Assert.assertTrue(registry.remove(a));
+		Assert.assertFalse(registry.remove(a));
+		Assert.assertNull(registry.get(a.getId()));
+		Assert.assertEquals(1, registry.size());
+		Assert.assertEquals(1, registry.countByAddress(loopback));
+		Assert.assertFalse(registry.getByLoginShell("login").contains(a));
+		Assert.assertTrue(registry.getByLoginShell("login").contains(b));
+
+		// empty keys go
+		Assert.assertTrue(registry.remove(b));
+		Assert.assertEquals(0, registry.size());
+		Assert.assertEquals(0, registry.countByAddress(loopback));
+		Assert.assertFalse(registry.getAddresses().contains(loopback));
+		Assert.assertFalse(registry.getTerminalTypes().contains("default"));
+		Assert.assertTrue(registry.getByLoginShell("login").isEmpty());
+	}
+
+	@Test
+	public void testUpdate() throws Exception {
+		Connection a = connect("login");
+		Connection b = connect("login");
+		registry.add(a);
+		registry.add(b);
+
+		// refiled when the terminal type is negotiated, or the shell changes
+		a.getConnectionData().setNegotiatedTerminalType("vt100");
+		Assert.assertEquals(1, registry.getByTerminalType("default").size());
+		Assert.assertTrue(registry.getByTerminalType("vt100").contains(a));
+		b.getConnectionData().setLoginShell("menu");
+		Assert.assertEquals(1, registry.getByLoginShell("login").size());
+		Assert.assertTrue(registry.getByLoginShell("menu").contains(b));
+		Assert.assertEquals(2, registry.getTerminalTypes().size());
+
+		// not once it's gone
+		registry.remove(a);
+		a.getConnectionData().setNegotiatedTerminalType("xterm");
+		Assert.assertTrue(registry.getByTerminalType("xterm").isEmpty());
+		Assert.assertTrue(registry.getByTerminalType("vt100").isEmpty());
+	}
+
+	@Test
+	public void testLiveViews() throws Exception {
+		Set<Connection> vt100 = registry.getByTerminalType("vt100");
+		Set<Connection> all = registry.getByAddress(loopback);
+		Assert.assertTrue(vt100.isEmpty());
+
+		Connection a = connect("login");
+		registry.add(a);
+		a.getConnectionData().setNegotiatedTerminalType("vt100");
+		Assert.assertEquals(1, vt100.size());
+		Assert.assertTrue(vt100.contains(a));
+		Assert.assertEquals(1, all.size());
+
+		// the key going and coming back doesn't leave the view behind
+		registry.remove(a);
+		Assert.assertTrue(vt100.isEmpty());
+		Connection b = connect("login");
+		registry.add(b);
+		b.getConnectionData().setNegotiatedTerminalType("vt100");
+		Assert.assertEquals(1, vt100.size());
+		Assert.assertSame(b, vt100.iterator().next());
+		Assert.assertEquals(1, all.size());
+
+		try {
+			vt100.remove(b);
+			Assert.fail();
+		} catch (UnsupportedOperationException ex) {
+			// expected
+		}
+	}
+
+}
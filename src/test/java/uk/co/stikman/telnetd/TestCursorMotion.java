@@ -0,0 +1,155 @@
+package uk.co.stikman.telnetd;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import uk.co.stikman.wimpi.telnetd.io.TerminalIO;
+import uk.co.stikman.wimpi.telnetd.io.terminal.CursorMotion;
+import uk.co.stikman.wimpi.telnetd.io.terminal.xterm;
+
+public class TestCursorMotion {
+
+	private static final int	ROWS	= 60;
+	private static final int	COLUMNS	= 200;
+
+	private final CursorMotion	motion	= new CursorMotion(new xterm());
+	private final ByteBuffer	buf		= ByteBuffer.allocate(256);
+
+	/**
+	 * A row of text, all of which can be written again
+	 */
+	private static final CursorMotion.Row	TEXT	= new CursorMotion.Row() {
+		@Override
+		public int charAt(int col) {
+			return 'a' + col % 26;
+		}
+	};
+
+	private String move(int fromRow, int fromCol, int toRow, int toCol, CursorMotion.Row row) {
+		int cost = motion.cost(fromRow, fromCol, toRow, toCol, row);
+		int n = motion.move(buf, fromRow, fromCol, toRow, toCol, row);
+		Assert.assertEquals(cost, n);
+		String s = new String(Arrays.copyOf(buf.array(), buf.position()), StandardCharsets.ISO_8859_1);
+		buf.clear();
+		return s;
+	}
+
+	@Test
+	public void testCheapest() throws Exception {
+		Assert.assertEquals("", move(5, 10, 5, 10, null));
+		Assert.assertEquals("\u001b[C", move(5, 10, 5, 11, null));
+		Assert.assertEquals("k", move(5, 10, 5, 11, TEXT));
+		Assert.assertEquals("\u001b[4C", move(5, 10, 5, 14, null));
+		Assert.assertEquals("\b\b", move(5, 10, 5, 8, null));
+		Assert.assertEquals("\u001b[10D", move(5, 10, 5, 0, null));
+		Assert.assertEquals("\r\n", move(5, 10, 6, 0, null));
+		Assert.assertEquals("\r\nab", move(5, 10, 6, 2, TEXT));
+		Assert.assertEquals("\u001b[A", move(5, 10, 4, 10, null));
+		Assert.assertEquals("\u001b[H", move(20, 70, 0, 0, null));
+		Assert.assertEquals("\u001b[2;1H", move(20, 70, 1, 0, null));
+		Assert.assertEquals("\u001b[Hab", move(20, 70, 0, 2, TEXT));
+		Assert.assertEquals("\u001b[51;151H", move(2, 3, 50, 150, null));
+		Assert.assertEquals("\u001b[6;11H", move(-1, 0, 5, 10, null));
+	}
+
+	@Test
+	public void testBinary() throws Exception {
+		motion.setBinaryOutput(true);
+		Assert.assertEquals("\r", move(5, 10, 5, 0, null));
+		Assert.assertEquals("\n\n", move(5, 10, 7, 10, null));
+		Assert.assertEquals("\r\n", move(5, 10, 6, 0, null));
+		Assert.assertEquals("\rab", move(5, 10, 5, 2, TEXT));
+	}
+
+	@Test
+	public void testMoveBy() throws Exception {
+		motion.moveBy(buf, TerminalIO.LEFT, 2);
+		motion.moveBy(buf, TerminalIO.RIGHT, 1);
+		motion.moveBy(buf, TerminalIO.DOWN, 12);
+		Assert.assertEquals("\b\b\u001b[C\u001b[12B", new String(Arrays.copyOf(buf.array(), buf.position()), StandardCharsets.ISO_8859_1));
+	}
+
+	/**
+	 * Random moves, played on a simple terminal, must all end up where they
+	 * should, and never cost more than positioning
+	 */
+	@Test
+	public void testRandom() throws Exception {
+		Random rnd = new Random(1);
+		for (int binary = 0; binary < 2; ++binary) {
+			motion.setBinaryOutput(binary == 1);
+			for (int i = 0; i < 20000; ++i) {
+				int fr = rnd.nextInt(ROWS);
+				int fc = rnd.nextInt(COLUMNS);
+				int tr = rnd.nextInt(ROWS);
+				int tc = rnd.nextInt(COLUMNS);
+				if (rnd.nextBoolean()) {
+					// mostly short ones, as drawing makes
+					tr = Math.max(0, Math.min(ROWS - 1, fr + rnd.nextInt(3) - 1));
+					tc = Math.max(0, Math.min(COLUMNS - 1, fc + rnd.nextInt(9) - 4));
+				}
+				CursorMotion.Row row = rnd.nextBoolean() ? TEXT : null;
+				String s = move(fr, fc, tr, tc, row);
+				int[] at = play(s, fr, fc, row);
+				Assert.assertEquals(s, tr, at[0]);
+				Assert.assertEquals(s, tc, at[1]);
+				Assert.assertTrue(s.length() <= move(-1, 0, tr, tc, null).length());
+			}
+		}
+	}
+
+	/**
+	 * Where the cursor ends up on a terminal without wrapping or scrolling,
+	 * also checking that what's written is what was there
+	 */
+	private static int[] play(String s, int r, int c, CursorMotion.Row row) {
+		for (int i = 0; i < s.length(); ++i) {
+			char ch = s.charAt(i);
+			if (ch == 27) {
+				int j = i + 2;
+				while (!Character.isLetter(s.charAt(j)))
+					++j;
+				String[] args = s.substring(i + 2, j).split(";");
+				int n = args[0].isEmpty() ? 1 : Integer.parseInt(args[0]);
+				switch (s.charAt(j)) {
+					case 'A':
+						r = Math.max(0, r - n);
+						break;
+					case 'B':
+						r = Math.min(ROWS - 1, r + n);
+						break;
+					case 'C':
+						c = Math.min(COLUMNS - 1, c + n);
+						break;
+					case 'D':
+						c = Math.max(0, c - n);
+						break;
+					case 'H':
+						r = args[0].isEmpty() ? 0 : n - 1;
+						c = args.length < 2 ? 0 : Integer.parseInt(args[1]) - 1;
+						break;
+					default:
+						Assert.fail(s);
+				}
+				i = j;
+			} else if (ch == '\r') {
+				c = 0;
+			} else if (ch == '\n') {
+				Assert.assertTrue(r < ROWS - 1);
+				++r;
+			} else if (ch == '\b') {
+				c = Math.max(0, c - 1);
+			} else {
+				Assert.assertEquals(row.charAt(c), ch);
+				++c;
+			}
+		}
+		return new int[] { r, c };
+	}
+
+}
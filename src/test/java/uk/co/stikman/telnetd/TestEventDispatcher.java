@@ -0,0 +1,154 @@
+package uk.co.stikman.telnetd;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.co.stikman.wimpi.telnetd.net.Connection;
+import uk.co.stikman.wimpi.telnetd.net.ConnectionData;
+import uk.co.stikman.wimpi.telnetd.net.ConnectionEvent;
+import uk.co.stikman.wimpi.telnetd.net.ConnectionListener;
+import uk.co.stikman.wimpi.telnetd.net.EventDispatcher;
+
+public class TestEventDispatcher {
+
+	private ServerSocket	server;
+	private List<Socket>	sockets	= new ArrayList<>();
+
+	@Before
+	public void setUp() throws Exception {
+		server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for (Socket s : sockets)
+			s.close();
+		server.close();
+	}
+
+	private Connection connection() throws Exception {
+		sockets.add(new Socket(server.getInetAddress(), server.getLocalPort()));
+		Socket s = server.accept();
+		sockets.add(s);
+		return new Connection(new ConnectionData(s, null));
+	}
+
+	/**
+	 * Records the events it gets, optionally waiting on a latch in each
+	 */
+	private static class Recorder implements ConnectionListener {
+		final List<Integer>		seen	= Collections.synchronizedList(new ArrayList<Integer>());
+		final CountDownLatch	release;
+
+		Recorder(CountDownLatch release) {
+			this.release = release;
+		}
+
+		private void record(ConnectionEvent ce, int n) {
+			try {
+				if (release != null)
+					release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			seen.add(n);
+		}
+
+		@Override
+		public void connectionIdle(ConnectionEvent ce) {
+			record(ce, 1);
+		}
+
+		@Override
+		public void connectionTimedOut(ConnectionEvent ce) {
+			record(ce, 2);
+		}
+
+		@Override
+		public void connectionLogoutRequest(ConnectionEvent ce) {
+			record(ce, 3);
+		}
+
+		@Override
+		public void connectionSentBreak(ConnectionEvent ce) {
+			record(ce, 4);
+		}
+	}
+
+	private static void waitFor(List<Integer> list, int size) throws InterruptedException {
+		long end = System.currentTimeMillis() + 5000;
+		while (list.size() < size && System.currentTimeMillis() < end)
+			Thread.sleep(1);
+	}
+
+	@Test
+	public void testOrderedPerConnection() throws Exception {
+		EventDispatcher d = new EventDispatcher(4, 16);
+		Connection c = connection();
+		Recorder r = new Recorder(null);
+		c.addConnectionListener(r);
+		List<Integer> expect = new ArrayList<>();
+		for (int i = 0; i < 200; ++i) {
+			int type = i % 2 == 0 ? ConnectionEvent.CONNECTION_IDLE : ConnectionEvent.CONNECTION_BREAK;
+			d.dispatch(c, new ConnectionEvent(c, type));
+			expect.add(i % 2 == 0 ? 1 : 4);
+		}
+		waitFor(r.seen, 200);
+		Assert.assertEquals(expect, r.seen);
+		Assert.assertEquals(200, d.getDispatched());
+		d.shutdown();
+	}
+
+	@Test
+	public void testSlowListenerOnlyHoldsUpItsOwnConnection() throws Exception {
+		EventDispatcher d = new EventDispatcher(2, 16);
+		CountDownLatch release = new CountDownLatch(1);
+		Connection slow = connection();
+		Recorder slowRecorder = new Recorder(release);
+		slow.addConnectionListener(slowRecorder);
+		Connection fast = connection();
+		Recorder fastRecorder = new Recorder(null);
+		fast.addConnectionListener(fastRecorder);
+
+		long t0 = System.nanoTime();
+		d.dispatch(slow, new ConnectionEvent(slow, ConnectionEvent.CONNECTION_IDLE));
+		d.dispatch(slow, new ConnectionEvent(slow, ConnectionEvent.CONNECTION_TIMEDOUT));
+		d.dispatch(fast, new ConnectionEvent(fast, ConnectionEvent.CONNECTION_IDLE));
+		// dispatching doesn't wait for the listeners
+		Assert.assertTrue(System.nanoTime() - t0 < TimeUnit.SECONDS.toNanos(1));
+
+		waitFor(fastRecorder.seen, 1);
+		Assert.assertEquals(Collections.singletonList(1), fastRecorder.seen);
+		Assert.assertTrue(slowRecorder.seen.isEmpty());
+
+		release.countDown();
+		waitFor(slowRecorder.seen, 2);
+		Assert.assertEquals(java.util.Arrays.asList(1, 2), slowRecorder.seen);
+		Assert.assertTrue(d.getMaxListenerMillis() > 0);
+		d.shutdown();
+	}
+
+	@Test
+	public void testRunsInlineWhenShutDown() throws Exception {
+		EventDispatcher d = new EventDispatcher(1, 1);
+		d.shutdown();
+		Connection c = connection();
+		Recorder r = new Recorder(null);
+		c.addConnectionListener(r);
+		d.dispatch(c, new ConnectionEvent(c, ConnectionEvent.CONNECTION_LOGOUTREQUEST));
+		Assert.assertEquals(Collections.singletonList(3), r.seen);
+		Assert.assertEquals(1, d.getRanInline());
+	}
+
+}
@@ -0,0 +1,146 @@
+package uk.co.stikman.telnetd;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.co.stikman.wimpi.telnetd.io.TerminalIO;
+import uk.co.stikman.wimpi.telnetd.io.terminal.Terminal;
+import uk.co.stikman.wimpi.telnetd.io.terminal.TerminalManager;
+import uk.co.stikman.wimpi.telnetd.io.terminal.xterm;
+import uk.co.stikman.wimpi.telnetd.net.Connection;
+import uk.co.stikman.wimpi.telnetd.net.ConnectionData;
+
+public class TestFrames {
+
+	private Loopback		loopback;
+	private ConnectionData	cd;
+	private TerminalIO		tio;
+
+	@Before
+	public void setUp() throws Exception {
+		Map<String, Terminal> terminals = new HashMap<>();
+		terminals.put("default", new xterm());
+		TerminalManager.createTerminalManager(terminals, false);
+
+		loopback = new Loopback();
+		cd = new ConnectionData(loopback.getAccepted(), null);
+		tio = new TerminalIO(new Connection(cd));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		loopback.close();
+	}
+
+	private void draw(int n) throws Exception {
+		for (int i = 0; i < n; ++i) {
+			tio.setCursor(i + 1, 1);
+			tio.setBold(i % 2 == 0);
+			tio.write("row " + i);
+		}
+	}
+
+	@Test
+	public void testAutoflush() throws Exception {
+		long flushes = cd.getFlushes();
+		draw(5);
+		Assert.assertEquals(flushes + 15, cd.getFlushes());
+		loopback.receive("row 4".getBytes());
+	}
+
+	@Test
+	public void testFrame() throws Exception {
+		long flushes = cd.getFlushes();
+		long segments = cd.getSegments();
+		tio.beginFrame();
+		draw(5);
+		tio.beginFrame();
+		tio.write("nested");
+		tio.endFrame();
+		Assert.assertEquals(flushes, cd.getFlushes());
+		tio.endFrame();
+		Assert.assertEquals(flushes + 1, cd.getFlushes());
+		Assert.assertEquals(segments + 1, cd.getSegments());
+		Assert.assertEquals(1, cd.getFrames());
+		loopback.receive("nested".getBytes());
+
+		try {
+			tio.endFrame();
+			Assert.fail();
+		} catch (IllegalStateException ex) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testDelay() throws Exception {
+		cd.setFlushDelay(100000);
+		cd.setFlushThreshold(1 << 16);
+		long flushes = cd.getFlushes();
+		long t0 = System.nanoTime();
+		draw(5);
+		// all held back, then flushed in one go
+		Assert.assertEquals(flushes, cd.getFlushes());
+		loopback.receive("row 4".getBytes());
+		Assert.assertTrue(System.nanoTime() - t0 >= 90_000_000L);
+		Assert.assertEquals(flushes + 1, cd.getFlushes());
+
+		// over the threshold goes straight away
+		cd.setFlushThreshold(16);
+		tio.write("a line that's longer than the threshold");
+		Assert.assertEquals(flushes + 2, cd.getFlushes());
+		Assert.assertTrue(cd.getSegmentBytes() / cd.getSegments() > 0);
+	}
+
+	@Test
+	public void testBusyConnection() throws Exception {
+		Loopback second = new Loopback();
+		try {
+			ConnectionData cd2 = new ConnectionData(second.getAccepted(), null);
+			final TerminalIO other = new TerminalIO(new Connection(cd2));
+			cd2.setFlushDelay(1000);
+			cd2.setFlushThreshold(1 << 16);
+			other.write("held back");
+
+			// another thread keeps the other connection busy meanwhile
+			final CountDownLatch begun = new CountDownLatch(1);
+			final CountDownLatch end = new CountDownLatch(1);
+			Thread t = new Thread() {
+				@Override
+				public void run() {
+					try {
+						other.beginFrame();
+						begun.countDown();
+						end.await();
+						other.endFrame();
+					} catch (Exception ex) {
+						throw new RuntimeException(ex);
+					}
+				}
+			};
+			t.start();
+			begun.await();
+
+			// which doesn't hold up flushes for this one
+			cd.setFlushDelay(1000);
+			cd.setFlushThreshold(1 << 16);
+			long flushes = cd.getFlushes();
+			draw(5);
+			loopback.receive("row 4".getBytes());
+			Assert.assertEquals(flushes + 1, cd.getFlushes());
+
+			end.countDown();
+			t.join();
+			second.receive("held back".getBytes());
+		} finally {
+			second.close();
+		}
+	}
+
+}
@@ -0,0 +1,150 @@
+package uk.co.stikman.telnetd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.co.stikman.wimpi.telnetd.io.TelnetIO;
+import uk.co.stikman.wimpi.telnetd.io.TelnetInputStream;
+import uk.co.stikman.wimpi.telnetd.io.TerminalIO;
+import uk.co.stikman.wimpi.telnetd.io.terminal.Terminal;
+import uk.co.stikman.wimpi.telnetd.io.terminal.TerminalManager;
+import uk.co.stikman.wimpi.telnetd.io.terminal.xterm;
+import uk.co.stikman.wimpi.telnetd.net.Connection;
+import uk.co.stikman.wimpi.telnetd.net.ConnectionData;
+
+public class TestLineMode {
+
+	private Loopback			loopback;
+	private OutputStream		out;
+	private ConnectionData		cd;
+	private TelnetIO			io;
+
+	@Before
+	public void setUp() throws Exception {
+		loopback = new Loopback();
+		out = loopback.getOutputStream();
+		cd = new ConnectionData(loopback.getAccepted(), null);
+		cd.setLineMode(true);
+		io = new TelnetIO();
+		io.setConnection(new Connection(cd));
+		io.initIO();
+		loopback.receive(Loopback.bytes(255, 253, 34));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		loopback.close();
+	}
+
+	@Test
+	public void testEdit() throws Exception {
+		loopback.send(io, 255, 251, 34);
+		// MODE EDIT|TRAPSIG, and no forward mask
+		loopback.receive(Loopback.bytes(255, 250, 34, 1, 3, 255, 240));
+		loopback.receive(Loopback.bytes(255, 250, 34, 254, 2, 255, 240));
+		Assert.assertTrue(cd.isLineEditing());
+
+		// the client only does EDIT
+		loopback.send(io, 255, 250, 34, 1, 1 | 4, 255, 240);
+		Assert.assertTrue(cd.isLineEditing());
+
+		// whole lines, taken in one go, and EOF as ^D
+		TelnetInputStream tin = new TelnetInputStream(io);
+		out.write("first line\r\nsecond\r\n".getBytes());
+		out.write(Loopback.bytes(255, 236));
+		out.flush();
+		StringBuilder sb = new StringBuilder();
+		Assert.assertEquals('\n', tin.readLine(sb));
+		Assert.assertEquals("first line", sb.toString());
+		sb.setLength(0);
+		Assert.assertEquals('\n', tin.readLine(sb));
+		Assert.assertEquals("second", sb.toString());
+		sb.setLength(0);
+		Assert.assertEquals(4, tin.readLine(sb));
+		Assert.assertEquals("", sb.toString());
+
+		// the client asks for a mode without EDIT, which is agreed to
+		loopback.send(io, 255, 250, 34, 1, 2, 255, 240);
+		loopback.receive(Loopback.bytes(255, 250, 34, 1, 2 | 4, 255, 240));
+		Assert.assertFalse(cd.isLineEditing());
+
+		// LINEMODE off altogether
+		loopback.send(io, 255, 250, 34, 1, 3, 255, 240, 255, 252, 34);
+		Assert.assertFalse(cd.isLineEditing());
+		Assert.assertFalse(cd.isLineMode());
+	}
+
+	@Test
+	public void testReadLineWithoutEdit() throws Exception {
+		Map<String, Terminal> terminals = new HashMap<>();
+		terminals.put("default", new xterm());
+		TerminalManager.createTerminalManager(terminals, false);
+
+		// a connection of its own, without LINEMODE
+		Loopback other = new Loopback();
+		try {
+			TerminalIO tio = new TerminalIO(new Connection(new ConnectionData(other.getAccepted(), null)));
+			OutputStream o = other.getOutputStream();
+			o.write("ab\bc\r\nsecond\r".getBytes());
+			o.write(Loopback.bytes(0, 'x', 'y', 127, 10));
+			o.flush();
+			Assert.assertEquals("ac", tio.readLine());
+			Assert.assertEquals("second", tio.readLine());
+			Assert.assertEquals("x", tio.readLine());
+
+			// echoed, with the rubbing out, strings come with an attribute reset
+			while (!new String(other.getReceived(), StandardCharsets.UTF_8).replace("\u001b[0m", "").endsWith("ab\b \bc\r\nsecond\r\nxy\b \b\r\n"))
+				other.receiveMore();
+
+			// interrupted
+			Thread.currentThread().interrupt();
+			try {
+				Assert.assertNull(tio.readLine());
+			} finally {
+				Thread.interrupted();
+			}
+		} finally {
+			other.close();
+		}
+	}
+
+	@Test
+	public void testSLC() throws Exception {
+		loopback.send(io, 255, 251, 34);
+		// asking for our table gets all of it, IP with both flush flags
+		loopback.send(io, 255, 250, 34, 3, 0, 3, 0, 255, 240);
+		int table = loopback.receive(Loopback.bytes(255, 250, 34, 3, 1, 0, 0, 2, 0, 0, 3, 2 | 64 | 32, 3));
+		Assert.assertTrue(Loopback.indexOf(loopback.getReceived(), Loopback.bytes(10, 2, 127)) > table);
+
+		// a change is acknowledged, with IAC doubled in the value
+		loopback.send(io, 255, 250, 34, 3, 10, 2, 8, 11, 2, 255, 255, 255, 240);
+		loopback.receive(Loopback.bytes(255, 250, 34, 3, 10, 2 | 128, 8, 11, 2 | 128, 255, 255, 255, 240));
+		// something unknown isn't supported
+		loopback.send(io, 255, 250, 34, 3, 40, 2, 1, 255, 240);
+		loopback.receive(Loopback.bytes(255, 250, 34, 3, 40, 0, 0, 255, 240));
+	}
+
+	@Test
+	public void testForwardMask() throws Exception {
+		loopback.send(io, 255, 251, 34);
+		loopback.receive(Loopback.bytes(255, 250, 34, 254, 2, 255, 240));
+		byte[] mask = new byte[32];
+		mask[0] = 0x08; // ^D
+		mask[31] = (byte) 0xff; // 248-255
+		io.setForwardMask(mask);
+		ByteArrayOutputStream want = new ByteArrayOutputStream();
+		want.write(Loopback.bytes(255, 250, 34, 253, 2, 0x08));
+		want.write(new byte[30]);
+		want.write(Loopback.bytes(255, 255, 255, 240));
+		loopback.receive(want.toByteArray());
+	}
+
+}
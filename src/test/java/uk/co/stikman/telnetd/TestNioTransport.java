@@ -0,0 +1,176 @@
+package uk.co.stikman.telnetd;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.co.stikman.wimpi.telnetd.net.EventLoop;
+import uk.co.stikman.wimpi.telnetd.net.NioTransport;
+
+public class TestNioTransport {
+
+	private EventLoop			loop;
+	private ServerSocketChannel	server;
+	private Socket				client;
+	private NioTransport		transport;
+
+	@Before
+	public void setUp() throws Exception {
+		loop = new EventLoop("test-eventloop");
+		loop.start();
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		client = new Socket(InetAddress.getLoopbackAddress(), server.socket().getLocalPort());
+		client.setSoTimeout(5000);
+		transport = new NioTransport(server.accept(), loop);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		transport.close();
+		client.close();
+		server.close();
+		loop.stop();
+	}
+
+	@Test
+	public void testRead() throws Exception {
+		InputStream in = transport.getInputStream();
+		OutputStream out = client.getOutputStream();
+		out.write(new byte[] { 'a', 'b', 'c', (byte) 200 });
+		out.flush();
+		Assert.assertEquals('a', in.read());
+		byte[] b = new byte[8];
+		int n = 0;
+		while (n < 3)
+			n += in.read(b, n, b.length - n);
+		Assert.assertEquals(3, n);
+		Assert.assertEquals('b', b[0]);
+		Assert.assertEquals('c', b[1]);
+		Assert.assertEquals(200, b[2] & 0xff);
+		Assert.assertEquals(0, in.available());
+
+		// nothing there
+		transport.setReadTimeout(100);
+		try {
+			in.read();
+			Assert.fail();
+		} catch (SocketTimeoutException ex) {
+			// expected
+		}
+
+		// more than the input buffer, which the reader has to make room for
+		byte[] big = random(100000);
+		out.write(big);
+		out.flush();
+		transport.setReadTimeout(5000);
+		byte[] got = new byte[big.length];
+		n = 0;
+		while (n < got.length)
+			n += in.read(got, n, got.length - n);
+		Assert.assertArrayEquals(big, got);
+
+		// the client going shows as end of stream
+		client.shutdownOutput();
+		Assert.assertEquals(-1, in.read());
+	}
+
+	@Test
+	public void testWrite() throws Exception {
+		OutputStream out = transport.getOutputStream();
+		out.write('x');
+		out.write(new byte[] { 'y', 'z' });
+		out.flush();
+		InputStream in = client.getInputStream();
+		Assert.assertEquals('x', in.read());
+		Assert.assertEquals('y', in.read());
+		Assert.assertEquals('z', in.read());
+	}
+
+	@Test
+	public void testSlowClient() throws Exception {
+		// far more than the socket buffers and the pending limit, which the
+		// writer has to wait for the client to read, even without flushing
+		final byte[] big = random(8 << 20);
+		final OutputStream out = transport.getOutputStream();
+		final IOException[] failed = new IOException[1];
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					for (int i = 0; i < big.length; i += 1000)
+						out.write(big, i, Math.min(1000, big.length - i));
+				} catch (IOException ex) {
+					failed[0] = ex;
+				}
+			}
+		};
+		writer.start();
+		writer.join(500);
+		Assert.assertTrue(writer.isAlive());
+
+		InputStream in = client.getInputStream();
+		byte[] got = new byte[big.length];
+		int n = 0;
+		while (n < got.length) {
+			int r = in.read(got, n, got.length - n);
+			Assert.assertTrue(r > 0);
+			n += r;
+		}
+		writer.join(5000);
+		Assert.assertFalse(writer.isAlive());
+		Assert.assertNull(failed[0]);
+		Assert.assertArrayEquals(big, got);
+	}
+
+	@Test
+	public void testClose() throws Exception {
+		final InputStream in = transport.getInputStream();
+		OutputStream out = transport.getOutputStream();
+		final int[] read = { 0 };
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				try {
+					read[0] = in.read();
+				} catch (IOException ex) {
+					read[0] = -2;
+				}
+			}
+		};
+		reader.start();
+		Thread.sleep(100);
+		transport.close();
+
+		// a reader waiting sees end of stream, a writer gets an exception
+		reader.join(5000);
+		Assert.assertFalse(reader.isAlive());
+		Assert.assertEquals(-1, read[0]);
+		try {
+			out.write(new byte[] { 1 });
+			Assert.fail();
+		} catch (IOException ex) {
+			// expected
+		}
+		// and the client sees it go
+		Assert.assertEquals(-1, client.getInputStream().read());
+	}
+
+	private static byte[] random(int n) {
+		byte[] b = new byte[n];
+		new Random(n).nextBytes(b);
+		return b;
+	}
+
+}
@@ -0,0 +1,235 @@
+package uk.co.stikman.telnetd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import uk.co.stikman.wimpi.telnetd.net.BlockingTransport;
+import uk.co.stikman.wimpi.telnetd.net.OutputQueue;
+
+public class TestOutputQueue {
+
+	private static byte[] frame(char c, int len) {
+		byte[] b = new byte[len];
+		Arrays.fill(b, (byte) c);
+		return b;
+	}
+
+	private static String take(OutputQueue q) {
+		ByteBuffer bb = q.next();
+		if (bb == null)
+			return null;
+		String s = new String(bb.array(), bb.position(), bb.remaining());
+		q.sent();
+		return s;
+	}
+
+	@Test
+	public void testBlock() throws Exception {
+		OutputQueue q = new OutputQueue(10, OutputQueue.BLOCK, 100);
+		q.write(frame('a', 6));
+		q.flush();
+		q.write(frame('b', 4));
+		q.flush();
+		Assert.assertEquals(10, q.getDepth());
+		long t0 = System.nanoTime();
+		try {
+			q.write('c');
+			Assert.fail();
+		} catch (SocketTimeoutException ex) {
+			// expected
+		}
+		Assert.assertTrue(System.nanoTime() - t0 >= 90_000_000L);
+		Assert.assertEquals("aaaaaa", take(q));
+		q.write('c');
+		q.flush();
+		Assert.assertEquals("bbbb", take(q));
+		Assert.assertEquals("c", take(q));
+		Assert.assertNull(take(q));
+		Assert.assertEquals(0, q.getDepth());
+		Assert.assertEquals(10, q.getMaxDepth());
+		Assert.assertEquals(0, q.getDroppedFrames());
+	}
+
+	@Test
+	public void testBlockTimeoutPartWay() throws Exception {
+		OutputQueue q = new OutputQueue(10, OutputQueue.BLOCK, 100);
+		final boolean[] disconnected = new boolean[1];
+		q.setOnDisconnect(new Runnable() {
+			@Override
+			public void run() {
+				disconnected[0] = true;
+			}
+		});
+		q.write(frame('a', 6));
+		q.flush();
+		// only four of these fit, and the rest time out
+		try {
+			q.write(frame('b', 8));
+			Assert.fail();
+		} catch (SocketTimeoutException ex) {
+			// expected
+		}
+		// so the connection goes rather than send half of it
+		Assert.assertTrue(disconnected[0]);
+		Assert.assertNull(q.next());
+		Assert.assertEquals(0, q.getDepth());
+		try {
+			q.write('c');
+			Assert.fail();
+		} catch (IOException ex) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testDropOldest() throws Exception {
+		OutputQueue q = new OutputQueue(10, OutputQueue.DROP_OLDEST, 100);
+		q.write(frame('a', 4));
+		q.flush();
+		q.write(frame('b', 4));
+		q.flush();
+		q.write(frame('c', 4));
+		q.flush();
+		Assert.assertEquals(1, q.getDroppedFrames());
+		Assert.assertEquals(4, q.getDroppedBytes());
+		Assert.assertEquals("bbbb", take(q));
+		Assert.assertEquals("cccc", take(q));
+		Assert.assertNull(take(q));
+	}
+
+	@Test
+	public void testCoalesce() throws Exception {
+		OutputQueue q = new OutputQueue(10, OutputQueue.COALESCE, 100);
+		// the one being sent can't be dropped
+		q.write(frame('a', 3));
+		q.flush();
+		ByteBuffer head = q.next();
+		for (char c = 'b'; c <= 'f'; ++c) {
+			q.write(frame(c, 3));
+			q.flush();
+		}
+		// only the latest one is left waiting
+		Assert.assertEquals(4, q.getDroppedFrames());
+		Assert.assertEquals(12, q.getDroppedBytes());
+		Assert.assertEquals(3, head.remaining());
+		q.sent();
+		Assert.assertEquals("fff", take(q));
+		Assert.assertNull(take(q));
+	}
+
+	@Test
+	public void testDisconnect() throws Exception {
+		OutputQueue q = new OutputQueue(10, OutputQueue.DISCONNECT, 100);
+		final boolean[] disconnected = new boolean[1];
+		q.setOnDisconnect(new Runnable() {
+			@Override
+			public void run() {
+				disconnected[0] = true;
+			}
+		});
+		q.write(frame('a', 10));
+		q.flush();
+		try {
+			q.write('b');
+			Assert.fail();
+		} catch (IOException ex) {
+			// expected
+		}
+		Assert.assertTrue(disconnected[0]);
+		Assert.assertEquals(0, q.getDepth());
+		try {
+			q.write('c');
+			Assert.fail();
+		} catch (IOException ex) {
+			// still closed
+		}
+	}
+
+	@Test
+	public void testSplitAndLossless() throws Exception {
+		final OutputQueue q = new OutputQueue(10, OutputQueue.COALESCE, 2000);
+		final StringBuilder got = new StringBuilder();
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				try {
+					ByteBuffer bb;
+					while ((bb = q.take()) != null) {
+						Thread.sleep(5);
+						got.append(new String(bb.array(), bb.position(), bb.remaining()));
+						q.sent();
+					}
+				} catch (InterruptedException ex) {
+					// done
+				}
+			}
+		};
+		reader.start();
+		// bigger than the queue, so it's split, and none of it is dropped
+		q.write(frame('a', 25));
+		q.flush();
+		q.setLossless(true);
+		for (int i = 0; i < 5; ++i) {
+			q.write(frame((char) ('0' + i), 4));
+			q.flush();
+		}
+		q.setLossless(false);
+		q.close();
+		reader.join(2000);
+		Assert.assertEquals(new String(frame('a', 25)) + "00001111222233334444", got.toString());
+		Assert.assertEquals(0, q.getDroppedFrames());
+	}
+
+	@Test
+	public void testBlockingTransport() throws Exception {
+		ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		Socket client = new Socket(server.getInetAddress(), server.getLocalPort());
+		Socket accepted = server.accept();
+		ExecutorService writers = Executors.newSingleThreadExecutor();
+		try {
+			client.setSoTimeout(2000);
+			BlockingTransport t = new BlockingTransport(accepted);
+			OutputQueue q = new OutputQueue(1024, OutputQueue.BLOCK, 2000);
+			t.setOutputQueue(q, writers);
+			Assert.assertSame(q, t.getOutputStream());
+			for (int i = 0; i < 100; ++i) {
+				q.write(("line " + i + "\r\n").getBytes());
+				q.flush();
+			}
+			q.close();
+			String want = "line 99\r\n";
+			ByteArrayOutputStream received = new ByteArrayOutputStream();
+			InputStream in = client.getInputStream();
+			byte[] buf = new byte[4096];
+			while (!received.toString().endsWith(want)) {
+				int n = in.read(buf);
+				Assert.assertTrue(n > 0);
+				received.write(buf, 0, n);
+			}
+			Assert.assertTrue(received.toString().startsWith("line 0\r\nline 1\r\n"));
+
+			// drained on the executor given, until the queue was closed
+			writers.shutdown();
+			Assert.assertTrue(writers.awaitTermination(2, TimeUnit.SECONDS));
+		} finally {
+			writers.shutdownNow();
+			client.close();
+			accepted.close();
+			server.close();
+		}
+	}
+
+}
@@ -0,0 +1,119 @@
+package uk.co.stikman.telnetd;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.co.stikman.wimpi.telnetd.io.Color;
+import uk.co.stikman.wimpi.telnetd.io.Screen;
+import uk.co.stikman.wimpi.telnetd.io.TerminalIO;
+import uk.co.stikman.wimpi.telnetd.io.terminal.Terminal;
+import uk.co.stikman.wimpi.telnetd.io.terminal.TerminalManager;
+import uk.co.stikman.wimpi.telnetd.io.terminal.xterm;
+import uk.co.stikman.wimpi.telnetd.net.Connection;
+import uk.co.stikman.wimpi.telnetd.net.ConnectionData;
+
+public class TestScreen {
+
+	private Loopback		loopback;
+	private ConnectionData	cd;
+	private TerminalIO		tio;
+	private Screen			screen;
+
+	@Before
+	public void setUp() throws Exception {
+		Map<String, Terminal> terminals = new HashMap<>();
+		terminals.put("default", new xterm());
+		TerminalManager.createTerminalManager(terminals, false);
+
+		loopback = new Loopback();
+		cd = new ConnectionData(loopback.getAccepted(), null);
+		cd.setTerminalGeometry(40, 10);
+		tio = new TerminalIO(new Connection(cd));
+		screen = tio.getScreen();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		loopback.close();
+	}
+
+	/**
+	 * Reads what the client has been sent until it has the given text, and
+	 * returns what came since the last time, up to the end of it
+	 */
+	private String receive(String want) throws Exception {
+		int from = loopback.getReceived().length;
+		int end = loopback.receive(want.getBytes(StandardCharsets.ISO_8859_1), from) + want.length();
+		return new String(loopback.getReceived(), from, end - from, StandardCharsets.ISO_8859_1);
+	}
+
+	@Test
+	public void testOnlyChanges() throws Exception {
+		Assert.assertSame(screen, tio.getScreen());
+		Assert.assertEquals(10, screen.getRows());
+		Assert.assertEquals(40, screen.getColumns());
+		screen.write(0, 0, "hello");
+		screen.write(5, 10, "world");
+		screen.refresh();
+		Assert.assertTrue(receive("\u001b[6;11Hworld").contains("\u001b[2J"));
+
+		// nothing changed, nothing sent
+		Assert.assertEquals(0, screen.refresh());
+
+		// one cell, near another one that's written anyway
+		screen.put(5, 10, 'W');
+		screen.put(5, 12, 'R');
+		screen.refresh();
+		Assert.assertEquals("\u001b[6;11H\u001b[0mWoR", receive("WoR"));
+	}
+
+	@Test
+	public void testAttributes() throws Exception {
+		screen.setForeground(Color.RED);
+		screen.setStyle(Screen.BOLD);
+		screen.write(1, 0, "ab");
+		screen.setStyle(0);
+		screen.write(1, 2, "c");
+		screen.resetAttributes();
+		screen.write(1, 3, "d");
+		screen.refresh();
+		receive("\u001b[2;1H\u001b[1m\u001b[31mab\u001b[22mc\u001b[0md");
+	}
+
+	@Test
+	public void testErase() throws Exception {
+		screen.write(2, 0, "a line long enough to erase");
+		screen.refresh();
+		receive("erase");
+		screen.fill(2, 1, 1, 40, ' ');
+		screen.refresh();
+		receive("\u001b[3;2H\u001b[0m\u001b[K");
+		Assert.assertEquals('a', screen.getChar(2, 0));
+		Assert.assertEquals(' ', screen.getChar(2, 1));
+	}
+
+	@Test
+	public void testResize() throws Exception {
+		screen.write(0, 0, "kept");
+		screen.refresh();
+		receive("kept");
+		cd.setTerminalGeometry(20, 5);
+		screen.refresh();
+		Assert.assertEquals(5, screen.getRows());
+		Assert.assertEquals(20, screen.getColumns());
+		receive("\u001b[0m\u001b[2J\u001b[Hkept");
+
+		// drawing off the edge is clipped
+		screen.write(4, 18, "xyz");
+		screen.write(9, 0, "gone");
+		screen.refresh();
+		receive("\u001b[5;19H\u001b[0mxy");
+	}
+
+}
@@ -0,0 +1,107 @@
+package uk.co.stikman.telnetd;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.co.stikman.wimpi.telnetd.io.TelnetIO;
+import uk.co.stikman.wimpi.telnetd.io.TelnetInputStream;
+import uk.co.stikman.wimpi.telnetd.net.Connection;
+import uk.co.stikman.wimpi.telnetd.net.ConnectionData;
+
+public class TestTelnetInput {
+
+	private Loopback		loopback;
+	private OutputStream	out;
+	private TelnetIO		io;
+
+	@Before
+	public void setUp() throws Exception {
+		loopback = new Loopback();
+		out = loopback.getOutputStream();
+		io = new TelnetIO();
+		io.setConnection(new Connection(new ConnectionData(loopback.getAccepted(), null)));
+		io.initIO();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		loopback.close();
+	}
+
+	/**
+	 * Sends each part as a separate write, with a pause in between so they
+	 * tend to arrive as separate chunks
+	 */
+	private void send(int[]... parts) throws Exception {
+		for (int[] part : parts) {
+			for (int b : part)
+				out.write(b);
+			out.flush();
+			Thread.sleep(20);
+		}
+	}
+
+	private String readAll(int n) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < n; ++i)
+			sb.append((char) io.read());
+		return sb.toString();
+	}
+
+	@Test
+	public void testCRStripping() throws Exception {
+		send(new int[] { 'a', 13, 10, 'b', 13, 0, 'c', 13 }, new int[] { 10, 'd', 13 }, new int[] { 0, 'e' });
+		Assert.assertEquals("a\nb\nc\nd\ne", readAll(9));
+	}
+
+	@Test
+	public void testIAC() throws Exception {
+		// doubled IAC is data, NOP disappears, including when split across chunks
+		send(new int[] { 'a', 255, 255, 'b', 255, 241, 'c', 255 }, new int[] { 241, 'd', 255 }, new int[] { 255, 'e' });
+		Assert.assertEquals("aÿbcdÿe", readAll(7));
+	}
+
+	@Test
+	public void testBulkRead() throws Exception {
+		send(new int[] { 'a', 'b', 'c', 13, 10, 255, 255, 'd' });
+		byte[] buf = new byte[100];
+		int n = 0;
+		while (n < 6)
+			n += io.read(buf, n, buf.length - n);
+		Assert.assertEquals(6, n);
+		Assert.assertArrayEquals(new byte[] { 'a', 'b', 'c', 10, (byte) 255, 'd' }, Arrays.copyOf(buf, n));
+		Assert.assertEquals(0, io.available());
+	}
+
+	@Test
+	public void testDecodeSplitChars() throws Exception {
+		TelnetInputStream in = new TelnetInputStream(io);
+		byte[] b = "xé€😀".getBytes(StandardCharsets.UTF_8);
+		int[][] parts = new int[b.length][];
+		for (int i = 0; i < b.length; ++i)
+			parts[i] = new int[] { b[i] & 0xff };
+		send(parts);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 5; ++i)
+			sb.append(in.readChar());
+		Assert.assertEquals("xé€😀", sb.toString());
+	}
+
+	@Test
+	public void testReadAfterReadChar() throws Exception {
+		// escape sequences are read byte by byte after the ESC came through readChar
+		TelnetInputStream in = new TelnetInputStream(io);
+		send(new int[] { 27, '[', 'A', 0xc3, 0xa9 });
+		Assert.assertEquals(27, in.readChar());
+		Assert.assertEquals('[', in.read());
+		Assert.assertEquals('A', in.read());
+		Assert.assertEquals('é', in.readChar());
+	}
+
+}
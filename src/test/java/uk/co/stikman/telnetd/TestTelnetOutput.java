@@ -0,0 +1,158 @@
+package uk.co.stikman.telnetd;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.co.stikman.wimpi.telnetd.io.TelnetIO;
+import uk.co.stikman.wimpi.telnetd.net.Connection;
+import uk.co.stikman.wimpi.telnetd.net.ConnectionData;
+
+/**
+ * Checks the bulk writes of {@link TelnetIO} against writing the same bytes
+ * one at a time, which is how it used to be done. Each is given a connection
+ * of its own, and what the clients receive has to be the same.
+ */
+public class TestTelnetOutput {
+
+	private Loopback[]		loopback	= new Loopback[2];
+	private TelnetIO		bytewise;
+	private TelnetIO		bulk;
+
+	@Before
+	public void setUp() throws Exception {
+		TelnetIO[] io = new TelnetIO[2];
+		for (int i = 0; i < 2; ++i) {
+			loopback[i] = new Loopback();
+			io[i] = new TelnetIO();
+			io[i].setConnection(new Connection(new ConnectionData(loopback[i].getAccepted(), null)));
+			io[i].initIO();
+		}
+		bytewise = io[0];
+		bulk = io[1];
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for (int i = 0; i < 2; ++i)
+			loopback[i].close();
+	}
+
+	/**
+	 * Flushes both, ends their output and checks the clients got the same
+	 */
+	private void compare() throws Exception {
+		bytewise.flush();
+		bulk.flush();
+		Assert.assertArrayEquals(loopback[0].receiveAll(), loopback[1].receiveAll());
+	}
+
+	private void writeBytewise(byte[] b) throws Exception {
+		for (byte x : b)
+			bytewise.write(x);
+	}
+
+	/**
+	 * Random bytes, a lot of them CR, LF and 255
+	 */
+	private static byte[] random(Random rng, int n) {
+		byte[] b = new byte[n];
+		for (int i = 0; i < n; ++i) {
+			switch (rng.nextInt(8)) {
+				case 0:
+					b[i] = 13;
+					break;
+				case 1:
+					b[i] = 10;
+					break;
+				case 2:
+					b[i] = (byte) 255;
+					break;
+				default:
+					b[i] = (byte) rng.nextInt(256);
+			}
+		}
+		return b;
+	}
+
+	@Test
+	public void testBytes() throws Exception {
+		Random rng = new Random(1);
+		for (int k = 0; k < 200; ++k) {
+			byte[] b = random(rng, rng.nextInt(100));
+			writeBytewise(b);
+			bulk.write(b, 0, b.length);
+		}
+		compare();
+	}
+
+	@Test
+	public void testSplitCRLF() throws Exception {
+		// CR ending one write with the LF starting the next, or something else
+		byte[][] writes = { { 'a', 13 }, { 10, 'b', 13 }, { 'c', 13 }, { 13 }, { (byte) 255, 13 }, {}, { 10 }, { 13, 10 }, { 10, 10, 13 } };
+		for (byte[] b : writes) {
+			writeBytewise(b);
+			bulk.write(b, 0, b.length);
+		}
+		compare();
+	}
+
+	@Test
+	public void testIAC() throws Exception {
+		byte[] b = { (byte) 255, (byte) 255, 'x', (byte) 255 };
+		writeBytewise(b);
+		bulk.write(b, 0, b.length);
+		// and not just at the start of an array
+		bulk.write(new byte[] { 'y', 'y', (byte) 255, 'y' }, 2, 1);
+		bytewise.write((byte) 255);
+		compare();
+	}
+
+	@Test
+	public void testUTF8() throws Exception {
+		strings(StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void testLatin1() throws Exception {
+		strings(StandardCharsets.ISO_8859_1);
+	}
+
+	@Test
+	public void testWindows1252() throws Exception {
+		strings(Charset.forName("windows-1252"));
+	}
+
+	/**
+	 * Strings written whole against their bytes one at a time, including chars
+	 * that encode to 255, ones the charset doesn't have, and surrogate pairs,
+	 * some of them longer than the chunk the chars are encoded in.
+	 */
+	private void strings(Charset cs) throws Exception {
+		bytewise.setEncoding(cs);
+		bulk.setEncoding(cs);
+		String alphabet = "ab\r\nÿé€Ω😀";
+		Random rng = new Random(2);
+		for (int k = 0; k < 40; ++k) {
+			StringBuilder sb = new StringBuilder();
+			int n = rng.nextInt(k % 10 == 0 ? 3000 : 50);
+			for (int i = 0; i < n; ++i) {
+				// never the low surrogate on its own
+				int j = rng.nextInt(alphabet.length() - 1);
+				sb.append(alphabet.charAt(j));
+				if (Character.isHighSurrogate(alphabet.charAt(j)))
+					sb.append(alphabet.charAt(j + 1));
+			}
+			String s = sb.toString();
+			writeBytewise(s.getBytes(cs));
+			bulk.write(s);
+		}
+		compare();
+	}
+
+}
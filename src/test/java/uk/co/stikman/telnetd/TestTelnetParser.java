@@ -0,0 +1,270 @@
+package uk.co.stikman.telnetd;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import uk.co.stikman.wimpi.telnetd.io.TelnetParser;
+
+public class TestTelnetParser {
+
+	/**
+	 * Writes down what it's told, with runs of data joined together
+	 */
+	private static class Recorder implements TelnetParser.Handler {
+		final List<String>	events	= new ArrayList<>();
+		final StringBuilder	data	= new StringBuilder();
+		int					longest;
+
+		private void event(String s) {
+			if (data.length() > 0) {
+				events.add("data " + data);
+				data.setLength(0);
+			}
+			events.add(s);
+		}
+
+		List<String> finish() {
+			event("end");
+			return events;
+		}
+
+		@Override
+		public void data(byte[] b, int off, int len) {
+			for (int i = 0; i < len; ++i)
+				data.append((char) (b[off + i] & 0xff));
+		}
+
+		@Override
+		public void command(int command) {
+			event("cmd " + command);
+		}
+
+		@Override
+		public void option(int verb, int option) {
+			event("opt " + verb + " " + option);
+		}
+
+		@Override
+		public void windowSize(int width, int height) {
+			event("naws " + width + "x" + height);
+		}
+
+		@Override
+		public void terminalType(String type) {
+			event("ttype " + type);
+		}
+
+		@Override
+		public void environment(boolean info, String name, String value) {
+			event("env " + info + " " + name + "=" + value);
+		}
+
+		@Override
+		public void subnegotiation(int option, byte[] b, int off, int len) {
+			longest = Math.max(longest, len);
+			StringBuilder sb = new StringBuilder("sb " + option + ":");
+			for (int i = 0; i < len; ++i)
+				sb.append(' ').append(b[off + i] & 0xff);
+			event(sb.toString());
+		}
+	}
+
+	private static List<String> parse(byte[] b, int... splits) throws Exception {
+		Recorder r = new Recorder();
+		TelnetParser p = new TelnetParser(r, 64);
+		int pos = 0;
+		for (int n : splits) {
+			p.parse(b, pos, n);
+			pos += n;
+		}
+		p.parse(b, pos, b.length - pos);
+		return r.finish();
+	}
+
+	private static byte[] bytes(int... v) {
+		byte[] b = new byte[v.length];
+		for (int i = 0; i < v.length; ++i)
+			b[i] = (byte) v[i];
+		return b;
+	}
+
+	@Test
+	public void testBasics() throws Exception {
+		byte[] b = bytes('a', 13, 10, 'b', 13, 0, 255, 255, 255, 246, 255, 253, 1, 'c', 255, 250, 31, 0, 80, 0, 24, 255, 240, 'd');
+		List<String> expected = List.of("data a\nb\nÿ", "cmd 246", "opt 253 1", "data c", "naws 80x24", "data d", "end");
+		Assert.assertEquals(expected, parse(b));
+		// same wherever it's split
+		for (int i = 0; i <= b.length; ++i)
+			Assert.assertEquals(expected, parse(b, i));
+	}
+
+	@Test
+	public void testSubnegotiations() throws Exception {
+		byte[] b = bytes(255, 250, 24, 0, 'x', 't', 'e', 'r', 'm', 255, 240, //
+				255, 250, 39, 0, 0, 'U', 1, 'b', 2, 1, 3, 'Y', 0, 'Z', 1, 255, 240, //
+				255, 250, 34, 3, 255, 255, 2, 255, 240, //
+				255, 250, 31, 0, 255, 255, 255, 255, 0, 255, 240);
+		List<String> expected = List.of("ttype xterm", "env false U=b\u0001", "env false Y=null", "env false Z=", "sb 34: 3 255 2", "naws 255x65280", "end");
+		Assert.assertEquals(expected, parse(b));
+	}
+
+	@Test
+	public void testBrokenSubnegotiations() throws Exception {
+		byte[] big = new byte[100];
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(bytes(255, 250, 34));
+		out.write(big);
+		out.write(bytes(255, 240, 'a'));
+		// cut short by a command, which still counts
+		out.write(bytes(255, 250, 34, 1, 2, 255, 246, 'b'));
+		// wrong length
+		out.write(bytes(255, 250, 31, 1, 255, 240, 'c'));
+		Recorder r = new Recorder();
+		TelnetParser p = new TelnetParser(r, 64);
+		byte[] b = out.toByteArray();
+		p.parse(b, 0, b.length);
+		Assert.assertEquals(List.of("data a", "cmd 246", "data bc", "end"), r.finish());
+		Assert.assertEquals(3, p.getDiscarded());
+	}
+
+	/**
+	 * Builds a random stream along with what should come out of it, then
+	 * parses it in random slices
+	 */
+	@Test
+	public void testFuzzModel() throws Exception {
+		Random rnd = new Random(1234);
+		for (int round = 0; round < 500; ++round) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			List<String> expected = new ArrayList<>();
+			StringBuilder data = new StringBuilder();
+			for (int item = 0; item < 30; ++item) {
+				String event = null;
+				switch (rnd.nextInt(8)) {
+					case 0:
+					case 1:
+					case 2:
+						for (int i = rnd.nextInt(20); i >= 0; --i) {
+							int c = rnd.nextInt(256);
+							if (c == 13) {
+								out.write(bytes(13, rnd.nextBoolean() ? 10 : 0));
+								data.append('\n');
+							} else if (c == 255) {
+								out.write(bytes(255, 255));
+								data.append((char) 255);
+							} else {
+								out.write(c);
+								data.append((char) c);
+							}
+						}
+						break;
+					case 3:
+						int cmd = 241 + rnd.nextInt(9);
+						out.write(bytes(255, cmd));
+						event = "cmd " + cmd;
+						break;
+					case 4:
+						int verb = 251 + rnd.nextInt(4);
+						int opt = rnd.nextInt(256);
+						out.write(bytes(255, verb, opt));
+						event = "opt " + verb + " " + opt;
+						break;
+					case 5:
+						int w = rnd.nextInt(65536);
+						int h = rnd.nextInt(65536);
+						out.write(bytes(255, 250, 31));
+						sbByte(out, w >> 8);
+						sbByte(out, w & 0xff);
+						sbByte(out, h >> 8);
+						sbByte(out, h & 0xff);
+						out.write(bytes(255, 240));
+						event = "naws " + w + "x" + h;
+						break;
+					case 6:
+						StringBuilder t = new StringBuilder();
+						out.write(bytes(255, 250, 24, 0));
+						for (int i = rnd.nextInt(10); i >= 0; --i) {
+							int c = 32 + rnd.nextInt(224);
+							sbByte(out, c);
+							t.append((char) c);
+						}
+						out.write(bytes(255, 240));
+						event = "ttype " + t;
+						break;
+					default:
+						int len = rnd.nextInt(80);
+						StringBuilder sb = new StringBuilder("sb 99:");
+						out.write(bytes(255, 250, 99));
+						for (int i = 0; i < len; ++i) {
+							int c = rnd.nextInt(256);
+							sbByte(out, c);
+							sb.append(' ').append(c);
+						}
+						out.write(bytes(255, 240));
+						if (len <= 64)
+							event = sb.toString();
+				}
+				if (event != null) {
+					if (data.length() > 0) {
+						expected.add("data " + data);
+						data.setLength(0);
+					}
+					expected.add(event);
+				}
+			}
+			if (data.length() > 0)
+				expected.add("data " + data);
+			expected.add("end");
+
+			byte[] b = out.toByteArray();
+			List<Integer> splits = new ArrayList<>();
+			for (int pos = 0; pos < b.length;) {
+				int n = Math.min(b.length - pos, rnd.nextInt(8) == 0 ? 1 : rnd.nextInt(40));
+				splits.add(n);
+				pos += n;
+			}
+			int[] s = new int[splits.size()];
+			for (int i = 0; i < s.length; ++i)
+				s[i] = splits.get(i);
+			Assert.assertEquals("round " + round, expected, parse(b, s));
+		}
+	}
+
+	private static void sbByte(ByteArrayOutputStream out, int c) {
+		out.write(c);
+		if (c == 255)
+			out.write(c);
+	}
+
+	/**
+	 * Junk in, never an exception, never a subnegotiation over the limit, and
+	 * the same events however it's sliced up
+	 */
+	@Test
+	public void testFuzzRandom() throws Exception {
+		Random rnd = new Random(99);
+		for (int round = 0; round < 500; ++round) {
+			byte[] b = new byte[rnd.nextInt(2000)];
+			for (int i = 0; i < b.length; ++i) {
+				// lots of protocol bytes, so there's plenty to go wrong
+				int r = rnd.nextInt(10);
+				b[i] = (byte) (r < 3 ? 255 : r < 5 ? 240 + rnd.nextInt(15) : r < 6 ? 13 : rnd.nextInt(256));
+			}
+			Recorder r = new Recorder();
+			TelnetParser p = new TelnetParser(r, 64);
+			for (int pos = 0; pos < b.length;) {
+				int n = Math.min(b.length - pos, 1 + rnd.nextInt(50));
+				p.parse(b, pos, n);
+				pos += n;
+			}
+			Assert.assertTrue(r.longest <= 64);
+			Assert.assertEquals(parse(b), r.finish());
+		}
+	}
+
+}
@@ -0,0 +1,129 @@
+package uk.co.stikman.telnetd;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import uk.co.stikman.wimpi.telnetd.io.TerminalIO;
+import uk.co.stikman.wimpi.telnetd.io.terminal.BasicTerminal;
+import uk.co.stikman.wimpi.telnetd.io.terminal.Terminal;
+import uk.co.stikman.wimpi.telnetd.io.terminal.Windoof;
+import uk.co.stikman.wimpi.telnetd.io.terminal.ansi;
+import uk.co.stikman.wimpi.telnetd.io.terminal.vt100;
+import uk.co.stikman.wimpi.telnetd.io.terminal.xterm;
+
+public class TestTerminalSequences {
+
+	private static final Terminal[]	TERMINALS	= { new ansi(), new vt100(), new xterm(), new Windoof() };
+
+	private final ByteBuffer		buf			= ByteBuffer.allocate(4096);
+
+	private byte[] appended() {
+		byte[] b = Arrays.copyOf(buf.array(), buf.position());
+		buf.clear();
+		return b;
+	}
+
+	@Test
+	public void testSameAsGet() throws Exception {
+		int[] numbers = { 0, 1, 7, 9, 10, 42, 99, 100, 107, 108, 999, 1000, 12345 };
+		for (Terminal t : TERMINALS) {
+			for (int dir = TerminalIO.UP; dir <= TerminalIO.LEFT; ++dir) {
+				for (int times = 0; times < 5; ++times) {
+					t.appendCursorMoveSequence(buf, dir, times);
+					Assert.assertArrayEquals(t.getCursorMoveSequence(dir, times), appended());
+				}
+			}
+			for (int row : numbers) {
+				for (int col : numbers) {
+					t.appendCursorPositioningSequence(buf, row, col);
+					Assert.assertArrayEquals(t.getCursorPositioningSequence(new int[] { row, col }), appended());
+				}
+			}
+			for (int f : new int[] { TerminalIO.EEOL, TerminalIO.EBOL, TerminalIO.EEL, TerminalIO.EEOS, TerminalIO.EBOS, TerminalIO.EES }) {
+				t.appendEraseSequence(buf, f);
+				Assert.assertArrayEquals(t.getEraseSequence(f), appended());
+			}
+			for (int f : new int[] { TerminalIO.STORECURSOR, TerminalIO.RESTORECURSOR, TerminalIO.DEVICERESET, TerminalIO.LINEWRAP, TerminalIO.NOLINEWRAP }) {
+				t.appendSpecialSequence(buf, f);
+				Assert.assertArrayEquals(t.getSpecialSequence(f), appended());
+			}
+			for (int type : new int[] { TerminalIO.FCOLOR, TerminalIO.BCOLOR, TerminalIO.STYLE, TerminalIO.RESET }) {
+				for (int p : numbers) {
+					t.appendGRSequence(buf, type, p);
+					Assert.assertArrayEquals(t.getGRSequence(type, p), appended());
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testOwnSequences() throws Exception {
+		// a terminal with its own way of moving is still asked
+		Terminal t = new xterm() {
+			@Override
+			public byte[] getCursorPositioningSequence(int[] pos) {
+				return ("<" + pos[0] + "," + pos[1] + ">").getBytes();
+			}
+
+			@Override
+			public byte[] getEraseSequence(int eraseFunc) {
+				return "<erase>".getBytes();
+			}
+		};
+		t.appendCursorPositioningSequence(buf, 3, 4);
+		Assert.assertEquals("<3,4>", new String(appended()));
+		t.appendEraseSequence(buf, TerminalIO.EES);
+		Assert.assertEquals("<erase>", new String(appended()));
+	}
+
+	@Test
+	public void testNoAllocation() throws Exception {
+		java.lang.management.ThreadMXBean mx = java.lang.management.ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(mx instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean tmx = (com.sun.management.ThreadMXBean) mx;
+		Terminal t = new xterm();
+		ByteBuffer screen = ByteBuffer.allocate(1 << 16);
+		drawScreen(t, screen);
+		long id = Thread.currentThread().getId();
+		long before = tmx.getThreadAllocatedBytes(id);
+		for (int i = 0; i < 10; ++i)
+			drawScreen(t, screen);
+		long allocated = tmx.getThreadAllocatedBytes(id) - before;
+		// a new byte[] for each sequence would be tens of kilobytes
+		Assert.assertTrue("allocated " + allocated, allocated < 1024);
+	}
+
+	private static void drawScreen(Terminal t, ByteBuffer buf) {
+		buf.clear();
+		t.appendEraseSequence(buf, TerminalIO.EES);
+		for (int row = 1; row <= 24; ++row) {
+			t.appendCursorPositioningSequence(buf, row, 1);
+			for (int col = 0; col < 8; ++col) {
+				t.appendGRSequence(buf, TerminalIO.FCOLOR, 30 + col);
+				t.appendGRSequence(buf, TerminalIO.STYLE, col % 2);
+				t.appendCursorMoveSequence(buf, TerminalIO.RIGHT, 2);
+			}
+			t.appendEraseSequence(buf, TerminalIO.EEOL);
+		}
+		t.appendGRSequence(buf, TerminalIO.RESET, 0);
+	}
+
+	@Test
+	public void testOverflow() throws Exception {
+		BasicTerminal t = new xterm();
+		ByteBuffer small = ByteBuffer.allocate(8);
+		try {
+			t.appendCursorMoveSequence(small, TerminalIO.UP, 3);
+			Assert.fail();
+		} catch (BufferOverflowException ex) {
+			// expected, and nothing put
+			Assert.assertEquals(0, small.position());
+		}
+	}
+
+}
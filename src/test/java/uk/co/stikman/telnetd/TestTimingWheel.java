@@ -0,0 +1,86 @@
+package uk.co.stikman.telnetd;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import uk.co.stikman.wimpi.telnetd.util.TimingWheel;
+
+public class TestTimingWheel {
+
+	private static Runnable record(final List<String> out, final String s) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				out.add(s);
+			}
+		};
+	}
+
+	@Test
+	public void testFiresInOrderAndNotEarly() {
+		List<String> out = new ArrayList<>();
+		TimingWheel w = new TimingWheel(10, 8, 0);
+		w.schedule(record(out, "b"), 55);
+		w.schedule(record(out, "a"), 25);
+
+		Assert.assertEquals(0, w.advance(29));
+		Assert.assertEquals(1, w.advance(30));
+		Assert.assertEquals("[a]", out.toString());
+		Assert.assertEquals(0, w.advance(59));
+		Assert.assertEquals(1, w.advance(60));
+		Assert.assertEquals("[a, b]", out.toString());
+		Assert.assertEquals(0, w.size());
+	}
+
+	@Test
+	public void testMoreThanOneTurn() {
+		List<String> out = new ArrayList<>();
+		TimingWheel w = new TimingWheel(10, 4, 0);
+		w.schedule(record(out, "far"), 1005);
+		w.schedule(record(out, "near"), 5);
+		w.advance(10);
+		Assert.assertEquals("[near]", out.toString());
+		w.advance(1000);
+		Assert.assertEquals("[near]", out.toString());
+		w.advance(1010);
+		Assert.assertEquals("[near, far]", out.toString());
+	}
+
+	@Test
+	public void testCancel() {
+		List<String> out = new ArrayList<>();
+		TimingWheel w = new TimingWheel(10, 8, 0);
+		TimingWheel.Timeout before = w.schedule(record(out, "x"), 20);
+		Assert.assertTrue(before.cancel());
+		TimingWheel.Timeout after = w.schedule(record(out, "y"), 20);
+		w.advance(0);
+		Assert.assertEquals(1, w.size());
+		Assert.assertTrue(after.cancel());
+		Assert.assertFalse(after.cancel());
+		w.advance(100);
+		Assert.assertEquals(0, w.size());
+		Assert.assertEquals("[]", out.toString());
+		Assert.assertTrue(after.isCancelled());
+	}
+
+	@Test
+	public void testPastDeadlineAndRescheduleFromTask() {
+		final List<String> out = new ArrayList<>();
+		final TimingWheel w = new TimingWheel(10, 8, 100);
+		w.schedule(new Runnable() {
+			@Override
+			public void run() {
+				out.add("first");
+				w.schedule(record(out, "second"), 0);
+			}
+		}, 0);
+		w.advance(110);
+		Assert.assertEquals("[first]", out.toString());
+		w.advance(120);
+		Assert.assertEquals("[first, second]", out.toString());
+	}
+
+}
@@ -0,0 +1,112 @@
+package uk.co.stikman.telnetd;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Properties;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import uk.co.stikman.wimpi.telnetd.net.TokenBucketConnectionFilter;
+
+public class TestTokenBucketConnectionFilter {
+
+	private static InetAddress addr(int a, int b) throws UnknownHostException {
+		return InetAddress.getByAddress(new byte[] { 10, 0, (byte) a, (byte) b });
+	}
+
+	private static class Filter extends TokenBucketConnectionFilter {
+		long time = 1000000000L;
+
+		@Override
+		protected long now() {
+			return time;
+		}
+
+		void advance(long millis) {
+			time += millis * 1000000L;
+		}
+	}
+
+	private static Filter create(String... settings) {
+		Properties p = new Properties();
+		p.setProperty("tokenbucket.host_rate", "0");
+		p.setProperty("tokenbucket.host_sessions", "0");
+		p.setProperty("tokenbucket.subnet_rate", "0");
+		p.setProperty("tokenbucket.subnet_sessions", "0");
+		p.setProperty("tokenbucket.global_rate", "0");
+		for (int i = 0; i < settings.length; i += 2)
+			p.setProperty(settings[i], settings[i + 1]);
+		Filter f = new Filter();
+		f.initialize(p);
+		return f;
+	}
+
+	@Test
+	public void testHostRate() throws Exception {
+		Filter f = create("tokenbucket.host_rate", "1", "tokenbucket.host_burst", "3");
+		InetAddress a = addr(0, 1);
+		for (int i = 0; i < 3; ++i) {
+			Assert.assertTrue(f.isAllowed(a));
+			f.connectionClosed(a);
+		}
+		Assert.assertFalse(f.isAllowed(a));
+		Assert.assertTrue(f.isAllowed(addr(0, 2)));
+		f.advance(1000);
+		Assert.assertTrue(f.isAllowed(a));
+		Assert.assertFalse(f.isAllowed(a));
+		Assert.assertEquals(2, f.getRejectedRate());
+	}
+
+	@Test
+	public void testHostSessions() throws Exception {
+		Filter f = create("tokenbucket.host_sessions", "2");
+		InetAddress a = addr(0, 1);
+		Assert.assertTrue(f.isAllowed(a));
+		Assert.assertTrue(f.isAllowed(a));
+		Assert.assertFalse(f.isAllowed(a));
+		f.connectionClosed(a);
+		Assert.assertTrue(f.isAllowed(a));
+		Assert.assertEquals(1, f.getRejectedSessions());
+	}
+
+	@Test
+	public void testSubnetRefundsHost() throws Exception {
+		Filter f = create("tokenbucket.host_rate", "1", "tokenbucket.host_burst", "1", "tokenbucket.subnet_sessions", "2");
+		Assert.assertTrue(f.isAllowed(addr(0, 1)));
+		Assert.assertTrue(f.isAllowed(addr(0, 2)));
+		// the subnet is full, the host's token has to be given back
+		Assert.assertFalse(f.isAllowed(addr(0, 3)));
+		Assert.assertTrue(f.isAllowed(addr(1, 3)));
+		f.connectionClosed(addr(0, 1));
+		Assert.assertTrue(f.isAllowed(addr(0, 3)));
+	}
+
+	@Test
+	public void testGlobalRate() throws Exception {
+		Filter f = create("tokenbucket.global_rate", "10", "tokenbucket.global_burst", "5");
+		for (int i = 0; i < 5; ++i)
+			Assert.assertTrue(f.isAllowed(addr(i, 1)));
+		Assert.assertFalse(f.isAllowed(addr(9, 1)));
+		f.advance(100);
+		Assert.assertTrue(f.isAllowed(addr(9, 1)));
+	}
+
+	@Test
+	public void testBoundedAndExpiring() throws Exception {
+		Filter f = create("tokenbucket.host_rate", "1", "tokenbucket.host_burst", "1", "tokenbucket.maxentries", "4");
+		for (int i = 0; i < 4; ++i)
+			Assert.assertTrue(f.isAllowed(addr(0, i)));
+		Assert.assertEquals(4, f.size());
+		// all four are still short of tokens, so there's no room
+		Assert.assertFalse(f.isAllowed(addr(0, 9)));
+		Assert.assertEquals(1, f.getRejectedFull());
+		for (int i = 0; i < 4; ++i)
+			f.connectionClosed(addr(0, i));
+		// once they've refilled they're the same as new, so can be dropped
+		f.advance(1000);
+		Assert.assertTrue(f.isAllowed(addr(0, 9)));
+		Assert.assertEquals(1, f.size());
+	}
+
+}
@@ -4,11 +4,14 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.BufferOverflowException;
 import java.nio.charset.StandardCharsets;
+import java.util.Random;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import uk.co.stikman.wimpi.telnetd.util.FifoByteBuffer;
 import uk.co.stikman.wimpi.telnetd.util.PushDecoder;
 
 public class TestUTFDecoder {
@@ -51,4 +54,76 @@ public class TestUTFDecoder {
 		}
 
 	}
+
+	/**
+	 * Random text through a small decoder, written and read in random sized
+	 * pieces, so sequences get split across writes and across the wrap
+	 */
+	@Test
+	public void testBulkWrapping() {
+		Random rnd = new Random(5);
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < 20000) {
+			int r = rnd.nextInt(4);
+			sb.appendCodePoint(r == 0 ? 32 + rnd.nextInt(90) : r == 1 ? 0x80 + rnd.nextInt(0x700) : r == 2 ? 0x800 + rnd.nextInt(0xd000) : 0x10000 + rnd.nextInt(0x10000));
+		}
+		String s = sb.toString();
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		PushDecoder decoder = new PushDecoder(StandardCharsets.UTF_8.newDecoder(), 37);
+		StringBuilder got = new StringBuilder();
+		char[] buf = new char[50];
+		int pos = 0;
+		while (pos < b.length) {
+			// at most three bytes of a sequence are left waiting
+			int n = Math.min(b.length - pos, rnd.nextInt(35));
+			decoder.write(b, pos, n);
+			pos += n;
+			// read it back in pieces too, leaving room for the next write
+			while (decoder.available() > 0)
+				got.append(buf, 0, decoder.read(buf, 0, 1 + rnd.nextInt(buf.length - 1)));
+		}
+		int n;
+		while ((n = decoder.read(buf, 0, buf.length)) > 0)
+			got.append(buf, 0, n);
+		Assert.assertEquals(s, got.toString());
+	}
+
+	@Test
+	public void testMalformed() {
+		PushDecoder decoder = new PushDecoder(StandardCharsets.UTF_8);
+		// a stray continuation byte, a sequence cut short by ASCII, and a
+		// surrogate encoded on its own
+		byte[] b = { 'a', (byte) 0x80, 'b', (byte) 0xE2, (byte) 0x99, 'c', (byte) 0xED, (byte) 0xA0, (byte) 0x80, 'd' };
+		decoder.write(b, 0, b.length);
+		char[] buf = new char[20];
+		String s = new String(buf, 0, decoder.read(buf, 0, buf.length));
+		Assert.assertEquals(new String(b, StandardCharsets.UTF_8), s);
+		Assert.assertFalse(decoder.hasOutput());
+	}
+
+	@Test
+	public void testOverflow() {
+		PushDecoder decoder = new PushDecoder(StandardCharsets.UTF_8.newDecoder(), 16);
+		byte[] b = new byte[16];
+		decoder.write(b, 0, 16);
+		// decoded to make room, then there's no more
+		decoder.write(b, 0, 16);
+		try {
+			decoder.write((byte) 'x');
+			Assert.fail();
+		} catch (BufferOverflowException e) {
+			// expected
+		}
+		Assert.assertEquals(16, decoder.available());
+
+		FifoByteBuffer fifo = new FifoByteBuffer(4);
+		fifo.write(b, 0, 3);
+		try {
+			fifo.write(b, 0, 2);
+			Assert.fail();
+		} catch (BufferOverflowException e) {
+			// expected
+		}
+		Assert.assertEquals(3, fifo.available());
+	}
 }
@@ -0,0 +1,173 @@
+package uk.co.stikman.telnetd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.co.stikman.wimpi.telnetd.io.TerminalIO;
+import uk.co.stikman.wimpi.telnetd.io.terminal.Terminal;
+import uk.co.stikman.wimpi.telnetd.io.terminal.TerminalManager;
+import uk.co.stikman.wimpi.telnetd.io.terminal.xterm;
+import uk.co.stikman.wimpi.telnetd.net.Connection;
+import uk.co.stikman.wimpi.telnetd.net.ConnectionData;
+
+public class TestWriteLock {
+
+	private static final int	THREADS	= 4;
+	private static final int	WRITES	= 500;
+	private static final String	PAD		= "................................................................";
+
+	/**
+	 * Everything that should be seen: whole escape sequences, whole texts,
+	 * and whole telnet commands
+	 */
+	private static final Pattern	TOKEN	= Pattern.compile("\u001b\\[[0-9;]*[A-Za-z]|T[0-9]+-[0-9]+\\.{64}|!|\u00ff[\u00fb-\u00fe].|\u00ff\u00fa[^\u00ff]*\u00ff\u00f0", Pattern.DOTALL);
+
+	private Loopback		loopback;
+	private TerminalIO		tio;
+
+	@Before
+	public void setUp() throws Exception {
+		Map<String, Terminal> terminals = new HashMap<>();
+		terminals.put("default", new xterm());
+		TerminalManager.createTerminalManager(terminals, false);
+
+		loopback = new Loopback();
+		loopback.getClient().setSoTimeout(5000);
+		tio = new TerminalIO(new Connection(new ConnectionData(loopback.getAccepted(), null)));
+		tio.setAutoflushing(false);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		loopback.close();
+	}
+
+	@Test
+	public void testNotTorn() throws Exception {
+		// the client's reading starts after the constructor's negotiation, and
+		// goes on alongside the writers
+		final ByteArrayOutputStream received = new ByteArrayOutputStream();
+		final InputStream in = loopback.getClient().getInputStream();
+		Thread drain = new Thread() {
+			@Override
+			public void run() {
+				byte[] buf = new byte[8192];
+				try {
+					int n;
+					while ((n = in.read(buf)) > 0) {
+						synchronized (received) {
+							received.write(buf, 0, n);
+						}
+					}
+				} catch (Exception ex) {
+					// closed
+				}
+			}
+		};
+		drain.start();
+
+		// a reader, replying to negotiation while the writers write
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				try {
+					while (tio.read() != 'q')
+						;
+				} catch (Exception ex) {
+					// closed
+				}
+			}
+		};
+		reader.start();
+
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] writers = new Thread[THREADS];
+		for (int t = 0; t < THREADS; ++t) {
+			final int id = t;
+			writers[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int i = 0; i < WRITES; ++i) {
+							tio.setCursor(1 + i % 24, 1 + id * 10);
+							tio.setForegroundColor(31 + id);
+							tio.write("T" + id + "-" + i + PAD);
+							tio.write((byte) '!');
+							if (i % 50 == 0)
+								tio.flush();
+						}
+					} catch (Exception ex) {
+						ex.printStackTrace();
+					}
+				}
+			};
+			writers[t].start();
+		}
+		start.countDown();
+		OutputStream out = loopback.getOutputStream();
+		for (int i = 0; i < 50; ++i) {
+			// NAWS, which gets a reply, and some data
+			out.write(new byte[] { (byte) 255, (byte) 251, 31, 'x' });
+			out.flush();
+			Thread.sleep(1);
+		}
+		out.write('q');
+		out.flush();
+		for (Thread t : writers)
+			t.join();
+		reader.join(5000);
+		tio.flush();
+
+		String want = "T" + (THREADS - 1) + "-" + (WRITES - 1) + PAD;
+		long deadline = System.currentTimeMillis() + 5000;
+		String s;
+		for (;;) {
+			synchronized (received) {
+				s = new String(received.toByteArray(), StandardCharsets.ISO_8859_1);
+			}
+			if (countTexts(s) == THREADS * WRITES || System.currentTimeMillis() > deadline)
+				break;
+			Thread.sleep(10);
+		}
+		Assert.assertTrue(s.contains(want));
+		Assert.assertEquals(THREADS * WRITES, countTexts(s));
+
+		// skip what the constructor sent, up to the first text, then
+		// everything must be whole
+		Matcher m = TOKEN.matcher(s);
+		int pos = s.indexOf("\u001b[", s.indexOf("\u001b[0m") + 1);
+		while (pos < s.length()) {
+			Assert.assertTrue("torn at " + pos + ": " + printable(s.substring(pos, Math.min(s.length(), pos + 20))), m.find(pos) && m.start() == pos);
+			pos = m.end();
+		}
+	}
+
+	private static int countTexts(String s) {
+		int n = 0;
+		Matcher m = Pattern.compile("T[0-9]+-[0-9]+\\.{64}").matcher(s);
+		while (m.find())
+			++n;
+		return n;
+	}
+
+	private static String printable(String s) {
+		StringBuilder sb = new StringBuilder();
+		for (char c : s.toCharArray())
+			sb.append(c < 32 || c > 126 ? "<" + (int) c + ">" : String.valueOf(c));
+		return sb.toString();
+	}
+
+}